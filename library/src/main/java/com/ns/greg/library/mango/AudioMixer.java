@@ -0,0 +1,479 @@
+package com.ns.greg.library.mango;
+
+import android.media.*;
+import android.os.Build;
+import android.os.Process;
+import android.util.Log;
+import com.ns.greg.library.mango.utils.ByteRingBuffer;
+
+import java.lang.ref.WeakReference;
+import java.nio.ByteBuffer;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * @author gregho
+ * @since 2019/3/8
+ *
+ * <p>
+ * Mixes many pcm sources into one shared {@link AudioTrack}, so a wall of players doesn't need one
+ * audio track per stream. Every source is buffered by its own {@link ByteRingBuffer} and starts
+ * being mixed once it has buffered its latency, so the sources are aligned to their own playout
+ * delay. The mixing itself runs on a dedicated thread with preallocated buffers only.
+ *
+ * A {@link Speaker} feeds the mixer by {@link Speaker#attach(AudioMixer)}.
+ * </p>
+ */
+public class AudioMixer {
+
+  /* init defines, do not modify */
+  private static final String TAG = "AudioMixer";
+  private static final int STREAM_TYPE = AudioManager.STREAM_MUSIC;
+  private static final int AUDIO_ENCODING = AudioFormat.ENCODING_PCM_16BIT;
+  private static final int AUDIO_MODE = AudioTrack.MODE_STREAM;
+  private static final int BYTES_PER_SAMPLE = 2;
+  private static final int PERIOD_MS = 10;
+  private static final int SOURCE_BUFFER_MS = 1000;
+  private static final int DEFAULT_LATENCY_MS = 60;
+  private static final int GAIN_UNITY = 1 << 12;
+  private static final long JOIN_TIMEOUT_MS = 100L;
+
+  private final int sampleRate;
+  private final int channelCount;
+  private final int frameSize;
+  private final int periodFrames;
+  /* snapshot of the sources, replaced on add and remove */
+  private volatile Source[] sources = new Source[0];
+  /* read by the mixing thread and the clock readers */
+  private volatile AudioTrack audioTrack;
+  private final PlaybackPosition playbackPosition = new PlaybackPosition();
+  /* frames written into the audio track */
+  private volatile long mixedFrames;
+  /* failed writes in a row, e.g. the track is dead after a route change */
+  private volatile int writeErrors;
+  /* mixing runnable */
+  private MixingRunnable mixingRunnable;
+  private Thread mixingThread;
+
+  public AudioMixer(int sampleRate, int channelCount) {
+    if (channelCount != 1 && channelCount != 2) {
+      throw new IllegalArgumentException("Unacceptable channel count");
+    }
+
+    this.sampleRate = sampleRate;
+    this.channelCount = channelCount;
+    this.frameSize = channelCount * BYTES_PER_SAMPLE;
+    this.periodFrames = sampleRate * PERIOD_MS / 1000;
+  }
+
+  public int getSampleRate() {
+    return sampleRate;
+  }
+
+  public int getChannelCount() {
+    return channelCount;
+  }
+
+  /*--------------------------------
+   * Source functions
+   *-------------------------------*/
+
+  public Source addSource() {
+    Source source = new Source(this);
+    synchronized (this) {
+      Source[] current = sources;
+      Source[] updated = new Source[current.length + 1];
+      System.arraycopy(current, 0, updated, 0, current.length);
+      updated[current.length] = source;
+      sources = updated;
+    }
+
+    return source;
+  }
+
+  public void removeSource(Source source) {
+    synchronized (this) {
+      Source[] current = sources;
+      int index = -1;
+      for (int i = 0; i < current.length; i++) {
+        if (current[i] == source) {
+          index = i;
+          break;
+        }
+      }
+
+      if (index < 0) {
+        return;
+      }
+
+      Source[] updated = new Source[current.length - 1];
+      System.arraycopy(current, 0, updated, 0, index);
+      System.arraycopy(current, index + 1, updated, index, current.length - index - 1);
+      sources = updated;
+    }
+  }
+
+  /*--------------------------------
+   * Playback functions
+   *-------------------------------*/
+
+  public boolean start() {
+    synchronized (this) {
+      if (mixingRunnable != null) {
+        return false;
+      }
+
+      initAudioTrack();
+      if (audioTrack == null) {
+        return false;
+      }
+
+      audioTrack.play();
+      mixingRunnable = new MixingRunnable(this);
+      mixingThread = new Thread(mixingRunnable);
+      mixingThread.setPriority(Thread.MAX_PRIORITY);
+      mixingThread.start();
+      return true;
+    }
+  }
+
+  public void stop() {
+    synchronized (this) {
+      if (mixingRunnable == null) {
+        return;
+      }
+
+      mixingRunnable.running = false;
+      try {
+        mixingThread.join(JOIN_TIMEOUT_MS);
+      } catch (InterruptedException ignored) {
+      }
+
+      mixingRunnable = null;
+      mixingThread = null;
+      try {
+        audioTrack.pause();
+        audioTrack.flush();
+        audioTrack.stop();
+        audioTrack.release();
+        Log.i(TAG, "audio track release");
+      } catch (Exception ignored) {
+      }
+
+      audioTrack = null;
+    }
+  }
+
+  /**
+   * @return frames played by the audio track, in the mixed timeline
+   */
+  long getPlayedFrames() {
+    AudioTrack audioTrack = this.audioTrack;
+    if (audioTrack == null) {
+      return 0;
+    }
+
+    try {
+      return playbackPosition.getPlayedFrames(audioTrack, sampleRate);
+    } catch (Exception e) {
+      return 0;
+    }
+  }
+
+  private void initAudioTrack() {
+    int channelConfig =
+        channelCount == 1 ? AudioFormat.CHANNEL_OUT_MONO : AudioFormat.CHANNEL_OUT_STEREO;
+    int minBufferSize = AudioTrack.getMinBufferSize(sampleRate, channelConfig, AUDIO_ENCODING);
+    int bufferSize = Math.max(minBufferSize, 2 * periodFrames * frameSize);
+    try {
+      if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.M) {
+        audioTrack = new AudioTrack(
+            new AudioAttributes.Builder().setLegacyStreamType(STREAM_TYPE).build(),
+            new AudioFormat.Builder().setChannelMask(channelConfig)
+                .setSampleRate(sampleRate)
+                .setEncoding(AUDIO_ENCODING)
+                .build(), bufferSize, AUDIO_MODE, AudioManager.AUDIO_SESSION_ID_GENERATE);
+      } else {
+        audioTrack = new AudioTrack(STREAM_TYPE, sampleRate, channelConfig, AUDIO_ENCODING,
+            bufferSize, AUDIO_MODE);
+      }
+
+      Log.i(TAG, "init audio track");
+    } catch (IllegalArgumentException e) {
+      Log.i(TAG, "create audio track failed");
+    }
+  }
+
+  /**
+   * Mixes one period of all sources and writes it into the audio track, runs on the mixing thread
+   *
+   * @return false if the audio track fails, the timeline is not advanced then
+   */
+  private boolean mix(int[] accumulator, byte[] period, byte[] output) {
+    AudioTrack audioTrack = this.audioTrack;
+    if (audioTrack == null) {
+      return false;
+    }
+
+    int samples = periodFrames * channelCount;
+    int length = samples * BYTES_PER_SAMPLE;
+    for (int i = 0; i < samples; i++) {
+      accumulator[i] = 0;
+    }
+
+    long mixedAt = mixedFrames + periodFrames;
+    Source[] sources = this.sources;
+    for (Source source : sources) {
+      if (source.pull(period, length, mixedAt)) {
+        int gain = source.muted ? 0 : source.gain;
+        if (gain == 0) {
+          continue;
+        }
+
+        for (int i = 0; i < samples; i++) {
+          int sample = (short) ((period[2 * i] & 0xFF) | (period[2 * i + 1] << 8));
+          accumulator[i] += (sample * gain) >> 12;
+        }
+      }
+    }
+
+    for (int i = 0; i < samples; i++) {
+      int sample = accumulator[i];
+      if (sample > Short.MAX_VALUE) {
+        sample = Short.MAX_VALUE;
+      } else if (sample < Short.MIN_VALUE) {
+        sample = Short.MIN_VALUE;
+      }
+
+      output[2 * i] = (byte) sample;
+      output[2 * i + 1] = (byte) (sample >> 8);
+    }
+
+    /* blocking write, paced by the audio track */
+    int offset = 0;
+    while (offset < length) {
+      int written = audioTrack.write(output, offset, length - offset);
+      if (written < 0) {
+        if (writeErrors++ == 0) {
+          Log.i(TAG, "WRITE -> failed, " + written);
+        }
+
+        return false;
+      }
+
+      if (written == 0) {
+        break;
+      }
+
+      offset += written;
+    }
+
+    writeErrors = 0;
+    mixedFrames = mixedAt;
+    return true;
+  }
+
+  /**
+   * One input of the mixer, written by a single producer thread
+   */
+  public static class Source {
+
+    private final AudioMixer mixer;
+    private final ByteRingBuffer ringBuffer;
+    private volatile int gain = GAIN_UNITY;
+    private volatile boolean muted;
+    private volatile int latency;
+    private volatile boolean flushRequested;
+    /* accessed by the mixing thread only */
+    private boolean primed;
+    /* frames offered by the producer and frames consumed by the mixer */
+    private volatile long offeredFrames;
+    private long consumedFrames;
+    /* mixed frame count when the last consumed frame is written */
+    private long mixedAt;
+    /* statistics */
+    private volatile int underrunCount;
+    private volatile int overrunCount;
+
+    Source(AudioMixer mixer) {
+      this.mixer = mixer;
+      this.ringBuffer = new ByteRingBuffer(getBytes(SOURCE_BUFFER_MS));
+      this.latency = getBytes(DEFAULT_LATENCY_MS);
+    }
+
+    public int getSampleRate() {
+      return mixer.sampleRate;
+    }
+
+    public int getChannelCount() {
+      return mixer.channelCount;
+    }
+
+    public void setGain(float gain) {
+      this.gain = Math.max(0, Math.round(gain * GAIN_UNITY));
+    }
+
+    public float getGain() {
+      return (float) gain / GAIN_UNITY;
+    }
+
+    public void setMuted(boolean muted) {
+      this.muted = muted;
+    }
+
+    public boolean isMuted() {
+      return muted;
+    }
+
+    /**
+     * Sets the duration buffered before this source is mixed, also after an underrun
+     */
+    public void setLatencyMs(int latencyMs) {
+      this.latency = Math.min(getBytes(latencyMs), ringBuffer.capacity());
+    }
+
+    public int getBufferedMs() {
+      return (int) (ringBuffer.size() / mixer.frameSize * 1000L / mixer.sampleRate);
+    }
+
+    public int getUnderrunCount() {
+      return underrunCount;
+    }
+
+    public int getOverrunCount() {
+      return overrunCount;
+    }
+
+    /**
+     * Writes the pcm in the format of the mixer
+     *
+     * @return false if dropped since the buffer is full
+     */
+    public boolean write(byte[] pcm, int offset, int length) {
+      if (!ringBuffer.offer(pcm, offset, length)) {
+        overrunCount++;
+        return false;
+      }
+
+      offeredFrames += length / mixer.frameSize;
+      return true;
+    }
+
+    /**
+     * Writes the pcm in the format of the mixer from the position of the buffer
+     *
+     * @return false if dropped since the buffer is full
+     */
+    public boolean write(ByteBuffer pcm, int length) {
+      if (!ringBuffer.offer(pcm, length)) {
+        overrunCount++;
+        return false;
+      }
+
+      offeredFrames += length / mixer.frameSize;
+      return true;
+    }
+
+    /**
+     * Discards the buffered pcm
+     */
+    public void flush() {
+      flushRequested = true;
+    }
+
+    /**
+     * @return frames offered so far, the timeline of {@link #getPlayedFrames()}
+     */
+    public long getOfferedFrames() {
+      return offeredFrames;
+    }
+
+    /**
+     * @return frames of this source played by the audio track
+     */
+    public long getPlayedFrames() {
+      long consumedFrames;
+      long mixedAt;
+      synchronized (this) {
+        consumedFrames = this.consumedFrames;
+        mixedAt = this.mixedAt;
+      }
+
+      return consumedFrames - Math.max(0, mixedAt - mixer.getPlayedFrames());
+    }
+
+    /**
+     * Reads one period, runs on the mixing thread
+     *
+     * @return true if a whole period is read
+     */
+    boolean pull(byte[] period, int length, long mixedAt) {
+      if (flushRequested) {
+        flushRequested = false;
+        int discarded = ringBuffer.size();
+        ringBuffer.clear();
+        primed = false;
+        /* keep the timelines aligned */
+        advance(discarded / mixer.frameSize, mixedAt);
+      }
+
+      int size = ringBuffer.size();
+      if (!primed) {
+        if (size < Math.max(latency, length)) {
+          return false;
+        }
+
+        primed = true;
+      } else if (size < length) {
+        primed = false;
+        underrunCount++;
+        return false;
+      }
+
+      ringBuffer.read(period, 0, length);
+      advance(length / mixer.frameSize, mixedAt);
+      return true;
+    }
+
+    private void advance(int frames, long mixedAt) {
+      synchronized (this) {
+        this.consumedFrames += frames;
+        this.mixedAt = mixedAt;
+      }
+    }
+
+    private int getBytes(int durationMs) {
+      return (int) ((long) mixer.sampleRate * durationMs / 1000L) * mixer.frameSize;
+    }
+  }
+
+  private static class MixingRunnable implements Runnable {
+
+    private final AudioMixer instance;
+    private final int[] accumulator;
+    private final byte[] period;
+    private final byte[] output;
+    private volatile boolean running = true;
+
+    MixingRunnable(AudioMixer reference) {
+      instance = new WeakReference<>(reference).get();
+      int samples = instance.periodFrames * instance.channelCount;
+      accumulator = new int[samples];
+      period = new byte[samples * BYTES_PER_SAMPLE];
+      output = new byte[samples * BYTES_PER_SAMPLE];
+    }
+
+    @Override public void run() {
+      Process.setThreadPriority(Process.THREAD_PRIORITY_URGENT_AUDIO);
+      Log.i(TAG, "MIXING -> start");
+      while (running) {
+        if (!instance.mix(accumulator, period, output)) {
+          /* not paced by the audio track, backs off for a period instead of spinning */
+          LockSupport.parkNanos(TimeUnit.MILLISECONDS.toNanos(PERIOD_MS));
+        }
+      }
+
+      Log.i(TAG, "MIXING -> stop");
+    }
+  }
+}
@@ -0,0 +1,92 @@
+package com.ns.greg.library.mango;
+
+/**
+ * @author gregho
+ * @since 2019/3/11
+ *
+ * <p>
+ * Decides the buffer size of an audio track from the underrun trend: grows by one step as soon as
+ * the underrun count increases, and shrinks by one step after a stable period without underruns.
+ * The stable period doubles every time a shrink is followed by an underrun, so a device settles
+ * instead of oscillating.
+ * </p>
+ */
+final class BufferSizeTuner {
+
+  private static final long CHECK_INTERVAL_MS = 200L;
+  private static final long STABLE_PERIOD_MS = 10_000L;
+  private static final long MAX_STABLE_PERIOD_MS = 160_000L;
+
+  private final int stepFrames;
+  private final int minFrames;
+  private final int maxFrames;
+  private int sizeFrames;
+  private int underrunCount;
+  private long lastCheckMs;
+  private long lastChangeMs;
+  private long stablePeriodMs = STABLE_PERIOD_MS;
+  private boolean shrunk;
+
+  BufferSizeTuner(int stepFrames, int initialFrames, int maxFrames) {
+    this.stepFrames = Math.max(1, stepFrames);
+    this.minFrames = Math.min(initialFrames, maxFrames);
+    this.maxFrames = maxFrames;
+    this.sizeFrames = minFrames;
+  }
+
+  int getSizeFrames() {
+    return sizeFrames;
+  }
+
+  /**
+   * @return true if it is time to {@link #check(int, long)}
+   */
+  boolean isDue(long nowMs) {
+    return nowMs - lastCheckMs >= CHECK_INTERVAL_MS;
+  }
+
+  /**
+   * Checks the underrun count
+   *
+   * @param underrunCount underrun count reported by the audio track
+   * @param nowMs current time
+   * @return the new buffer size in frames, or -1 if nothing to change
+   */
+  int check(int underrunCount, long nowMs) {
+    lastCheckMs = nowMs;
+    if (lastChangeMs == 0) {
+      lastChangeMs = nowMs;
+    }
+
+    int newUnderruns = underrunCount - this.underrunCount;
+    this.underrunCount = underrunCount;
+    if (newUnderruns > 0) {
+      if (shrunk) {
+        /* the last shrink was too much, be more patient next time */
+        stablePeriodMs = Math.min(stablePeriodMs * 2, MAX_STABLE_PERIOD_MS);
+        shrunk = false;
+      }
+
+      lastChangeMs = nowMs;
+      return resize(sizeFrames + stepFrames);
+    }
+
+    if (nowMs - lastChangeMs >= stablePeriodMs && sizeFrames > minFrames) {
+      lastChangeMs = nowMs;
+      shrunk = true;
+      return resize(sizeFrames - stepFrames);
+    }
+
+    return -1;
+  }
+
+  private int resize(int frames) {
+    int size = Math.max(minFrames, Math.min(maxFrames, frames));
+    if (size == sizeFrames) {
+      return -1;
+    }
+
+    sizeFrames = size;
+    return size;
+  }
+}
@@ -0,0 +1,74 @@
+package com.ns.greg.library.mango;
+
+import android.media.AudioRecord;
+import android.media.AudioTimestamp;
+import android.os.Build;
+
+/**
+ * @author gregho
+ * @since 2019/3/10
+ *
+ * <p>
+ * Stamps the chunks read from an {@link AudioRecord} with the capture time of the first frame, in
+ * the {@link System#nanoTime()} time base. Uses {@link AudioRecord#getTimestamp} when available,
+ * otherwise a frame-count clock anchored at the first read.
+ * </p>
+ */
+final class CaptureClock {
+
+  private AudioTimestamp audioTimestamp;
+  private int sampleRate;
+  private long capturedFrames;
+  /* capture time of the frame 0 for the frame-count clock */
+  private long baseTimeUs;
+  private long lastTimeUs;
+
+  void reset(int sampleRate) {
+    this.sampleRate = sampleRate;
+    capturedFrames = 0L;
+    baseTimeUs = -1L;
+    lastTimeUs = -1L;
+  }
+
+  /**
+   * Called after a chunk is read
+   *
+   * @param audioRecord the audio record read from
+   * @param frames frames of the chunk
+   * @return the capture time of the first frame of the chunk
+   */
+  long onRead(AudioRecord audioRecord, int frames) {
+    long startFrame = capturedFrames;
+    capturedFrames += frames;
+    long timeUs = -1L;
+    if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.N) {
+      if (audioTimestamp == null) {
+        audioTimestamp = new AudioTimestamp();
+      }
+
+      if (audioRecord.getTimestamp(audioTimestamp, AudioTimestamp.TIMEBASE_MONOTONIC)
+          == AudioRecord.SUCCESS) {
+        long offsetNs =
+            (startFrame - audioTimestamp.framePosition) * 1_000_000_000L / sampleRate;
+        timeUs = (audioTimestamp.nanoTime + offsetNs) / 1000L;
+      }
+    }
+
+    if (timeUs < 0) {
+      if (baseTimeUs < 0) {
+        /* the chunk just finished, so its last frame is captured now */
+        baseTimeUs = System.nanoTime() / 1000L - capturedFrames * 1_000_000L / sampleRate;
+      }
+
+      timeUs = baseTimeUs + startFrame * 1_000_000L / sampleRate;
+    }
+
+    /* the encoder needs increasing timestamps */
+    if (timeUs <= lastTimeUs) {
+      timeUs = lastTimeUs + 1;
+    }
+
+    lastTimeUs = timeUs;
+    return timeUs;
+  }
+}
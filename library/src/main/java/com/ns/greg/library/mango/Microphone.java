@@ -10,29 +10,89 @@ import com.ns.greg.library.mango.codec.AudioEncoder;
 import com.ns.greg.library.mango.codec.CodecFormat;
 import com.ns.greg.library.mango.codec.CodecState;
 import com.ns.greg.library.mango.codec.listener.EncodeListener;
+import com.ns.greg.library.mango.dsp.PcmProcessor;
+import com.ns.greg.library.mango.dsp.PcmProcessorChain;
+import com.ns.greg.library.mango.dsp.VoiceActivityDetector;
+import com.ns.greg.library.mango.utils.ByteRingBuffer;
 import com.ns.greg.library.mango.utils.MediaWriter;
 
 import java.lang.ref.WeakReference;
+import java.nio.ByteBuffer;
 
 /**
  * @author gregho
  * @since 2018/12/5
+ *
+ * <p>
+ * With the direct capture, the audio record reads straight into the input buffers of the
+ * {@link AudioEncoder}, there is no intermediate array and no chunk can be overwritten while the
+ * encoder is busy.
+ *
+ * With {@link #setFramesPerChunk(int)}, every read and every encoder input is an exact multiple
+ * of the codec frame, so the encoder outputs one frame per frame read instead of in bursts.
+ *
+ * With {@link #setVoiceActivityDetection(boolean, int, int)}, the silence is neither encoded nor
+ * delivered. The pcm before the speech is kept as the pre-roll and sent with the first speech
+ * chunk, so the onset of the speech is not cut, the pre-roll is not available with the direct
+ * capture since the pcm is already in the encoder input buffer.
+ *
+ * The {@link PcmProcessor}s added by {@link #addPcmProcessor(PcmProcessor)} run in place on the
+ * captured pcm before the voice activity detection and the encoding.
+ * </p>
  */
 public class Microphone implements EncodeListener {
 
   public interface RecordListener {
 
+    /**
+     * @param chunk encoded audio, or raw audio without the audio format
+     */
     void onSpeaking(byte[] chunk, int length);
 
+    /**
+     * Override to get the capture time, it calls {@link #onSpeaking(byte[], int)} by default
+     *
+     * @param presentationTimeUs capture time of the chunk, in the {@link System#nanoTime()} time
+     * base
+     */
+    default void onSpeaking(byte[] chunk, int length, long presentationTimeUs) {
+      onSpeaking(chunk, length);
+    }
+
+    /**
+     * Called once before the first encoded chunk, never called for raw audio
+     *
+     * @param csd the codec specific data, e.g. AudioSpecificConfig of aac
+     */
+    default void onCodecConfig(byte[] csd, int length) {
+    }
+
+    /**
+     * Called when the voice activity detection detects the speech
+     */
+    default void onSpeechStart() {
+    }
+
+    /**
+     * Called when the speech and the hangover end
+     */
+    default void onSpeechEnd() {
+    }
+
     void onTurnOff();
   }
 
   /* init defines, do not modify */
   private static final String TAG = "Microphone";
-  private static final int BIT_RATE = 16000;
+  private static final int DEFAULT_BIT_RATE = 16000;
   private static final int BYTES_2048 = 2048;
   private static final int AUDIO_SOURCE = MediaRecorder.AudioSource.VOICE_COMMUNICATION;
   private static final int AUDIO_ENCODING = AudioFormat.ENCODING_PCM_16BIT;
+  private static final int BYTES_PER_SAMPLE = 2;
+  private static final long INPUT_TIMEOUT_US = 10_000L;
+  private static final int MAX_FRAMES_PER_CHUNK = 8;
+  private static final int DEFAULT_HANGOVER_MS = 300;
+  private static final int DEFAULT_PRE_ROLL_MS = 200;
 
   private final AudioEncoder audioEncoder;
   private AudioRecord audioRecord;
@@ -42,6 +102,29 @@ public class Microphone implements EncodeListener {
   /* recording flag */
   private boolean recording;
   private int bufferSize = 0;
+  private int bitRate = DEFAULT_BIT_RATE;
+  /* bytes per read */
+  private int chunkSize = 0;
+  /* codec frames per read, 0 to follow the buffer size */
+  private int framesPerChunk;
+  /* capture to encoded output, smoothed */
+  private volatile long encodeLatencyUs = -1L;
+  /* reads into the encoder input buffers */
+  private final boolean directCapture;
+  private int sampleRate;
+  private int frameSize;
+  /* frame size after the processor chain */
+  private int outputFrameSize;
+  private final PcmProcessorChain processorChain = new PcmProcessorChain();
+  private final CaptureClock captureClock = new CaptureClock();
+  /* voice activity detection */
+  private boolean voiceActivityDetection;
+  private int hangoverMs = DEFAULT_HANGOVER_MS;
+  private int preRollMs = DEFAULT_PRE_ROLL_MS;
+  private VoiceActivityDetector voiceActivityDetector;
+  private ByteRingBuffer preRoll;
+  private byte[] preRollChunk;
+  private volatile boolean speaking;
   /* write file for debug */
   private final boolean saved;
   private MediaWriter aacWriter;
@@ -60,13 +143,98 @@ public class Microphone implements EncodeListener {
   }
 
   public Microphone(CodecFormat audioFormat, boolean saved) {
+    this(audioFormat, saved, false);
+  }
+
+  /**
+   * @param directCapture reads into the encoder input buffers, only works with the media codec
+   * formats
+   */
+  public Microphone(CodecFormat audioFormat, boolean saved, boolean directCapture) {
     if (audioFormat != null) {
       this.audioEncoder = new AudioEncoder(audioFormat);
+      this.audioEncoder.setDirectInput(directCapture && !audioFormat.isG711());
     } else {
       this.audioEncoder = null;
     }
 
     this.saved = saved;
+    this.directCapture = directCapture && audioEncoder != null && !audioFormat.isG711();
+  }
+
+  /**
+   * Sets the bit rate of the encoder, takes effect on next start
+   */
+  public void setBitRate(int bitRate) {
+    if (bitRate <= 0) {
+      throw new IllegalArgumentException("Unacceptable bit rate");
+    }
+
+    this.bitRate = bitRate;
+  }
+
+  /**
+   * Sizes every read to the codec frames, takes effect on next start. One frame has the lowest
+   * latency, more frames have the lower per-call overhead. The frame is 1024 samples for aac and
+   * 20 ms for opus, see {@link AudioEncoder#getFrameSamples(CodecFormat, int)}.
+   *
+   * @param framesPerChunk codec frames per read, from 1 to 8, 0 to follow the buffer size
+   */
+  public void setFramesPerChunk(int framesPerChunk) {
+    if (framesPerChunk < 0 || framesPerChunk > MAX_FRAMES_PER_CHUNK) {
+      throw new IllegalArgumentException("Unacceptable frames per chunk");
+    }
+
+    this.framesPerChunk = framesPerChunk;
+  }
+
+  /**
+   * @deprecated the frame is of any codec, use {@link #setFramesPerChunk(int)}
+   */
+  @Deprecated
+  public void setAacFramesPerChunk(int aacFramesPerChunk) {
+    setFramesPerChunk(aacFramesPerChunk);
+  }
+
+  /**
+   * Gets the latency from the capture to the encoded output, smoothed
+   *
+   * @return latency in milliseconds, or -1 if nothing is encoded yet
+   */
+  public int getEncodeLatencyMs() {
+    long encodeLatencyUs = this.encodeLatencyUs;
+    return encodeLatencyUs < 0 ? -1 : (int) (encodeLatencyUs / 1000L);
+  }
+
+  /**
+   * Adds a stage processing the captured pcm in place, must be called before start
+   */
+  public void addPcmProcessor(PcmProcessor processor) {
+    processorChain.add(processor);
+  }
+
+  /**
+   * Skips the silence, takes effect on next start
+   *
+   * @param hangoverMs duration to keep sending after the speech, so the pauses between words are
+   * kept
+   * @param preRollMs duration sent before the speech
+   */
+  public void setVoiceActivityDetection(boolean enabled, int hangoverMs, int preRollMs) {
+    if (hangoverMs < 0 || preRollMs < 0) {
+      throw new IllegalArgumentException("Unacceptable hangover or pre-roll");
+    }
+
+    this.voiceActivityDetection = enabled;
+    this.hangoverMs = hangoverMs;
+    this.preRollMs = preRollMs;
+  }
+
+  /**
+   * @return true if the voice activity detection is disabled or the speech is detected
+   */
+  public boolean isSpeaking() {
+    return voiceActivityDetector == null || speaking;
   }
 
   @RequiresPermission(Manifest.permission.RECORD_AUDIO)
@@ -80,14 +248,21 @@ public class Microphone implements EncodeListener {
       synchronized (this) {
         if (recordingRunnable == null) {
           this.listener = listener;
+          this.sampleRate = sampleRate;
+          this.frameSize = channelCount * BYTES_PER_SAMPLE;
+          captureClock.reset(sampleRate);
+          encodeLatencyUs = -1L;
           initAudioRecord(sampleRate, channelCount);
           if (audioRecord == null) {
             return false;
           }
 
+          /* the channel count can be changed by the processors */
+          int outputChannelCount = initProcessorChain(sampleRate, channelCount);
+          initVoiceActivityDetection(sampleRate, outputChannelCount);
           if (audioEncoder != null) {
             /*  aac */
-            audioEncoder.prepare(sampleRate, channelCount, BIT_RATE, this);
+            audioEncoder.prepare(sampleRate, outputChannelCount, bitRate, this);
             if (audioEncoder.getState() != CodecState.PREPARED) {
               return false;
             }
@@ -100,8 +275,9 @@ public class Microphone implements EncodeListener {
             if (saved) {
               wavWriter = new MediaWriter("pcm", ".wav");
               try {
-                wavWriter.writeWavHeader(sampleRate, channelCount == 1 ? AudioFormat.CHANNEL_IN_MONO
-                    : AudioFormat.CHANNEL_IN_STEREO, AUDIO_ENCODING);
+                wavWriter.writeWavHeader(sampleRate,
+                    outputChannelCount == 1 ? AudioFormat.CHANNEL_IN_MONO
+                        : AudioFormat.CHANNEL_IN_STEREO, AUDIO_ENCODING);
               } catch (Exception e) {
                 e.printStackTrace();
               }
@@ -129,11 +305,9 @@ public class Microphone implements EncodeListener {
           if (audioEncoder != null) {
             audioEncoder.setEos();
           } else if (saved) {
-            try {
-              wavWriter.close();
-              wavWriter.updateWavHeader();
-            } catch (Exception ignored) {
-            }
+            /* the wav header is kept up to date by the writer */
+            wavWriter.close();
+            logWriter(wavWriter);
           }
 
           /* stop runnable */
@@ -157,7 +331,14 @@ public class Microphone implements EncodeListener {
     int channelConfig =
         channelCount == 1 ? AudioFormat.CHANNEL_IN_MONO : AudioFormat.CHANNEL_IN_STEREO;
     int minBufferSize = AudioRecord.getMinBufferSize(sampleRate, channelConfig, AUDIO_ENCODING);
-    bufferSize = Math.max(BYTES_2048, minBufferSize);
+    int alignedChunkSize = getAlignedChunkSize();
+    if (alignedChunkSize > 0) {
+      /* room for two chunks, so the next one is captured while the last one is encoding */
+      bufferSize = Math.max(2 * alignedChunkSize, minBufferSize);
+    } else {
+      bufferSize = Math.max(BYTES_2048, minBufferSize);
+    }
+
     try {
       audioRecord = getAudioRecord(sampleRate, channelConfig, bufferSize);
       Log.i(TAG, "init audio record");
@@ -170,6 +351,7 @@ public class Microphone implements EncodeListener {
         Log.i(TAG, "create audio record with min buffer size failed");
       }
     } finally {
+      chunkSize = alignedChunkSize > 0 ? alignedChunkSize : bufferSize;
       if (audioRecord != null) {
         audioRecord.startRecording();
         Log.i(TAG, "audio record start recording");
@@ -177,10 +359,64 @@ public class Microphone implements EncodeListener {
     }
   }
 
+  /**
+   * @return bytes of the codec frames per read, or 0 if not aligned
+   */
+  private int getAlignedChunkSize() {
+    if (audioEncoder == null || framesPerChunk == 0) {
+      return 0;
+    }
+
+    return framesPerChunk * getCodecFrameSize();
+  }
+
+  /**
+   * @return bytes of a codec frame
+   */
+  private int getCodecFrameSize() {
+    return AudioEncoder.getFrameSamples(audioEncoder.getCodecFormat(), sampleRate) * frameSize;
+  }
+
   private AudioRecord getAudioRecord(int sampleRate, int channelConfig, int bufferSize) {
     return new AudioRecord(AUDIO_SOURCE, sampleRate, channelConfig, AUDIO_ENCODING, bufferSize);
   }
 
+  /**
+   * @return the output channel count
+   */
+  private int initProcessorChain(int sampleRate, int channelCount) {
+    int outputChannelCount = channelCount;
+    if (!processorChain.isEmpty()) {
+      outputChannelCount =
+          processorChain.configure(sampleRate, channelCount, chunkSize / frameSize);
+    }
+
+    outputFrameSize = outputChannelCount * BYTES_PER_SAMPLE;
+    return outputChannelCount;
+  }
+
+  private void initVoiceActivityDetection(int sampleRate, int channelCount) {
+    speaking = false;
+    preRoll = null;
+    preRollChunk = null;
+    if (!voiceActivityDetection) {
+      voiceActivityDetector = null;
+      return;
+    }
+
+    voiceActivityDetector = new VoiceActivityDetector(sampleRate, channelCount, hangoverMs);
+    /* whole chunks, so the pre-roll sent with the speech keeps the reads aligned to the codec
+     * frames, and the oldest chunk is dropped as a whole */
+    int chunkFrames = chunkSize / frameSize;
+    int preRollFrames = (int) ((long) sampleRate * preRollMs / 1000L);
+    int preRollSize = chunkFrames > 0
+        ? (preRollFrames + chunkFrames - 1) / chunkFrames * chunkFrames * outputFrameSize : 0;
+    if (preRollSize > 0 && !directCapture) {
+      preRoll = new ByteRingBuffer(preRollSize);
+      preRollChunk = new byte[preRollSize + chunkSize];
+    }
+  }
+
   private void record(byte[] buffer) {
     int bufferSize = buffer.length;
     int offset = 0;
@@ -203,23 +439,146 @@ public class Microphone implements EncodeListener {
       }
     }
 
-    if (offset != AudioRecord.ERROR_INVALID_OPERATION) {
-      if (audioEncoder != null) {
-        audioEncoder.encode(buffer, offset, 0);
-      } else if (listener != null) {
-        listener.onSpeaking(buffer, offset);
-        wavWriter.write(buffer);
+    if (offset <= 0) {
+      return;
+    }
+
+    long presentationTimeUs = captureClock.onRead(audioRecord, offset / frameSize);
+    if (!processorChain.isEmpty()) {
+      offset = processorChain.process(buffer, 0, offset);
+    }
+
+    if (voiceActivityDetector == null) {
+      deliver(buffer, offset, presentationTimeUs);
+    } else if (!detectSpeech(voiceActivityDetector.process(buffer, 0, offset))) {
+      keepPreRoll(buffer, offset);
+    } else if (preRoll != null && preRoll.size() > 0) {
+      /* the first speech chunk, sends the pre-roll together */
+      int preRolled = preRoll.read(preRollChunk, 0, preRoll.size());
+      System.arraycopy(buffer, 0, preRollChunk, preRolled, offset);
+      long preRollUs = (long) (preRolled / outputFrameSize) * 1_000_000L / sampleRate;
+      deliver(preRollChunk, preRolled + offset, presentationTimeUs - preRollUs);
+    } else {
+      deliver(buffer, offset, presentationTimeUs);
+    }
+  }
+
+  private void deliver(byte[] pcm, int length, long presentationTimeUs) {
+    if (audioEncoder != null) {
+      audioEncoder.encodeSample(pcm, length, presentationTimeUs);
+    } else if (listener != null) {
+      listener.onSpeaking(pcm, length, presentationTimeUs);
+      if (saved) {
+        wavWriter.write(pcm, 0, length);
+      }
+    }
+  }
+
+  /**
+   * Notifies the speech start and end
+   *
+   * @param active true if the chunk has speech or is in the hangover
+   * @return true if the chunk should be sent
+   */
+  private boolean detectSpeech(boolean active) {
+    if (active != speaking) {
+      speaking = active;
+      Log.i(TAG, active ? "SPEECH -> start" : "SPEECH -> end");
+      if (listener != null) {
+        if (active) {
+          listener.onSpeechStart();
+        } else {
+          listener.onSpeechEnd();
+        }
+      }
+    }
+
+    return active;
+  }
+
+  /**
+   * Keeps the latest silence as the pre-roll
+   */
+  private void keepPreRoll(byte[] buffer, int length) {
+    ByteRingBuffer preRoll = this.preRoll;
+    if (preRoll == null) {
+      return;
+    }
+
+    int capacity = preRoll.capacity();
+    if (length >= capacity) {
+      preRoll.clear();
+      preRoll.offer(buffer, length - capacity, capacity);
+      return;
+    }
+
+    /* drops the oldest */
+    int free = preRoll.free();
+    if (free < length) {
+      preRoll.skip(length - free);
+    }
+
+    preRoll.offer(buffer, 0, length);
+  }
+
+  /**
+   * Reads the audio record into an encoder input buffer
+   */
+  private void capture() {
+    int index = audioEncoder.dequeueInputBuffer(INPUT_TIMEOUT_US);
+    if (index < 0) {
+      return;
+    }
+
+    int read = 0;
+    ByteBuffer inputBuffer = audioEncoder.getInputBuffer(index);
+    if (inputBuffer != null && recording) {
+      /* the audio record writes from the position */
+      inputBuffer.clear();
+      int size = Math.min(chunkSize, inputBuffer.capacity());
+      int alignment = getCodecFrameSize();
+      if (framesPerChunk == 0 || size < alignment) {
+        alignment = frameSize;
       }
+
+      read = Math.max(0, audioRecord.read(inputBuffer, size - size % alignment));
+    }
+
+    /* the dequeued buffer is always queued back */
+    long presentationTimeUs = captureClock.onRead(audioRecord, read / frameSize);
+    if (read > 0 && !processorChain.isEmpty()) {
+      read = processorChain.process(inputBuffer, read);
+    }
+
+    if (read > 0 && voiceActivityDetector != null
+        && !detectSpeech(voiceActivityDetector.process(inputBuffer, read))) {
+      /* skips the silence */
+      read = 0;
     }
+
+    audioEncoder.queueInputBuffer(index, read, presentationTimeUs);
   }
 
-  @Override public void onEncode(byte[] chunk, int length) {
+  @Override public void onCodecConfig(byte[] csd, int length) {
     if (listener != null) {
-      listener.onSpeaking(chunk, length);
+      listener.onCodecConfig(csd, length);
+    }
+  }
+
+  @Override public void onEncode(byte[] chunk, int length, long presentationTimeUs) {
+    long latencyUs = System.nanoTime() / 1000L - presentationTimeUs;
+    if (encodeLatencyUs < 0) {
+      encodeLatencyUs = latencyUs;
+    } else {
+      encodeLatencyUs += (latencyUs - encodeLatencyUs) >> 3;
+    }
+
+    if (listener != null) {
+      listener.onSpeaking(chunk, length, presentationTimeUs);
     }
 
     if (saved) {
-      aacWriter.write(chunk);
+      aacWriter.write(chunk, 0, length);
     }
   }
 
@@ -230,9 +589,19 @@ public class Microphone implements EncodeListener {
 
     if (saved) {
       aacWriter.close();
+      logWriter(aacWriter);
     }
   }
 
+  private static void logWriter(MediaWriter writer) {
+    Log.i(TAG, "WRITE -> written: " + writer.getWrittenBytes()
+        + ", max backlog: " + writer.getMaxBacklog()
+        + ", max latency: " + writer.getMaxWriteLatencyUs() + " us"
+        + ", dropped: " + writer.getDroppedBytes()
+        + ", wav updates: " + writer.getWavUpdates()
+        + ", max wav update latency: " + writer.getMaxWavUpdateLatencyUs() + " us");
+  }
+
   private static class RecordingRunnable implements Runnable {
 
     private final Microphone instance;
@@ -240,13 +609,17 @@ public class Microphone implements EncodeListener {
 
     RecordingRunnable(Microphone reference) {
       instance = new WeakReference<>(reference).get();
-      buffer = new byte[instance.bufferSize];
+      buffer = instance.directCapture ? null : new byte[instance.chunkSize];
     }
 
     @Override public void run() {
       Log.i(TAG, "RECORDING -> start");
       while (instance.recording) {
-        instance.record(buffer);
+        if (instance.directCapture) {
+          instance.capture();
+        } else {
+          instance.record(buffer);
+        }
       }
 
       Log.i(TAG, "RECORDING -> stop");
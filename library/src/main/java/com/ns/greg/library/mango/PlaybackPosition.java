@@ -0,0 +1,40 @@
+package com.ns.greg.library.mango;
+
+import android.media.AudioTimestamp;
+import android.media.AudioTrack;
+import android.os.Build;
+
+/**
+ * @author gregho
+ * @since 2019/3/8
+ *
+ * <p>
+ * Gets the frames played by an {@link AudioTrack}, from {@link AudioTrack#getTimestamp} when
+ * available, otherwise from the playback head position.
+ * </p>
+ */
+final class PlaybackPosition {
+
+  private AudioTimestamp audioTimestamp;
+
+  long getPlayedFrames(AudioTrack audioTrack, int sampleRate) {
+    if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.KITKAT) {
+      if (audioTimestamp == null) {
+        audioTimestamp = new AudioTimestamp();
+      }
+
+      if (audioTrack.getTimestamp(audioTimestamp)) {
+        /* extrapolate the frame position to now */
+        long elapsedNs = System.nanoTime() - audioTimestamp.nanoTime;
+        return audioTimestamp.framePosition + elapsedNs * sampleRate / 1_000_000_000L;
+      }
+    }
+
+    /* playback head position is an unsigned 32-bit value */
+    return getHeadPosition(audioTrack);
+  }
+
+  static long getHeadPosition(AudioTrack audioTrack) {
+    return audioTrack.getPlaybackHeadPosition() & 0xFFFFFFFFL;
+  }
+}
@@ -2,17 +2,47 @@ package com.ns.greg.library.mango;
 
 import android.media.*;
 import android.os.Build;
+import android.os.Process;
+import android.os.SystemClock;
 import android.util.Log;
 import com.ns.greg.library.mango.codec.AudioDecoder;
 import com.ns.greg.library.mango.codec.CodecFormat;
 import com.ns.greg.library.mango.codec.CodecState;
+import com.ns.greg.library.mango.codec.MediaClock;
 import com.ns.greg.library.mango.codec.listener.DecodeListener;
+import com.ns.greg.library.mango.dsp.DriftController;
+import com.ns.greg.library.mango.dsp.PcmConverter;
+import com.ns.greg.library.mango.utils.ByteRingBuffer;
+
+import java.lang.ref.WeakReference;
+import java.nio.ByteBuffer;
+import java.util.concurrent.locks.LockSupport;
 
 /**
  * @author gregho
  * @since 2018/12/7
+ *
+ * <p>
+ * The decoded pcm is buffered by a {@link ByteRingBuffer} and written into the
+ * {@link AudioTrack} by a dedicated playback thread, so the decoder never blocks on the audio
+ * track. With direct rendering the codec output buffer is written into the audio track on the
+ * decoder thread instead, which skips the buffer copy entirely.
+ *
+ * The audio track keeps the format it is created with, a decoded format different from it is
+ * converted by {@link PcmConverter} instead of recreating the audio track.
+ *
+ * On API 24+ the audio track starts with a small buffer which is resized by
+ * {@link BufferSizeTuner} from the underrun trend, and on API 26+ it requests the low latency
+ * performance mode.
+ *
+ * When attached to an {@link AudioMixer} the speaker owns no audio track, the pcm is converted
+ * into the format of the mixer and written into its own {@link AudioMixer.Source}.
+ *
+ * The speaker is also the master {@link MediaClock} of the playback, the position is derived from
+ * the frames played by the {@link AudioTrack} and the presentation time of the written chunks.
+ * </p>
  */
-public class Speaker implements DecodeListener {
+public class Speaker implements DecodeListener, MediaClock {
 
   /* init defines, do not modify */
   private static final String TAG = "Speaker";
@@ -20,21 +50,120 @@ public class Speaker implements DecodeListener {
   private static final int STREAM_TYPE = AudioManager.STREAM_MUSIC;
   private static final int AUDIO_ENCODING = AudioFormat.ENCODING_PCM_16BIT;
   private static final int AUDIO_MODE = AudioTrack.MODE_STREAM;
+  private static final int BYTES_PER_SAMPLE = 2;
+  private static final int RING_DURATION_MS = 500;
+  private static final int DEFAULT_LOW_WATERMARK_MS = 40;
+  private static final int DEFAULT_HIGH_WATERMARK_MS = 400;
+  private static final long IDLE_WAIT_NS = 2_000_000L;
+  private static final long JOIN_TIMEOUT_MS = 100L;
+  /* the capacity allocated for tuning, in multiple of the min buffer size */
+  private static final int TUNING_CAPACITY = 4;
 
   private final AudioDecoder audioDecoder;
+  /* writes the codec output into the audio track without buffering */
+  private final boolean directRendering;
   /* audio speaker */
-  private AudioTrack audioTrack;
+  private volatile AudioTrack audioTrack;
+  private int trackBufferSize;
+  /* resizes the audio track buffer, API 24+ */
+  private volatile BufferSizeTuner bufferSizeTuner;
+  /* requested output format, follows the first prepared format if not set */
+  private int outputSampleRate;
+  private int outputChannelCount;
+  /* converts the decoded pcm into the format of the audio track */
+  private final PcmConverter converter = new PcmConverter();
+  private int decodedSampleRate;
+  private int decodedChannelCount;
+  /* keeps the queued pcm around the target latency, disabled if 0 */
+  private final DriftController driftController = new DriftController();
+  private int targetLatencyMs;
+  /* shared output, replaces the audio track when attached */
+  private AudioMixer mixer;
+  private volatile AudioMixer.Source mixerSource;
   /* decides the audio speaker is mute or not */
-  private boolean enabled;
+  private volatile boolean enabled;
+  /* pcm buffer between the decoder and the audio track */
+  private volatile ByteRingBuffer ringBuffer;
+  private int lowWatermarkMs = DEFAULT_LOW_WATERMARK_MS;
+  private int highWatermarkMs = DEFAULT_HIGH_WATERMARK_MS;
+  private volatile int lowWatermark;
+  private volatile int highWatermark;
+  private volatile boolean flushRequested;
+  /* accessed by the playback thread only */
+  private boolean primed;
+  /* buffer statistics */
+  private volatile int underrunCount;
+  private volatile int overrunCount;
+  /* playback runnable */
+  private PlaybackRunnable playbackRunnable;
+  private Thread playbackThread;
+  /* playback clock, anchored at the last written chunk */
+  private final Object clockLock = new Object();
+  private final PlaybackPosition playbackPosition = new PlaybackPosition();
+  private int sampleRate;
+  private int channelCount;
+  private int frameSize;
+  private long writtenFrames;
+  private long anchorFrame;
+  private long anchorPtsUs = TIME_UNSET;
 
   public Speaker(CodecFormat audioFormat) {
+    this(audioFormat, false);
+  }
+
+  public Speaker(CodecFormat audioFormat, boolean directRendering) {
     audioDecoder = new AudioDecoder(audioFormat);
+    this.directRendering = directRendering;
     /* default is playing */
     enabled = true;
   }
 
+  /**
+   * Sets the format of the audio track, takes effect on the next {@link #prepare(int, int)} after
+   * {@link #stop()}
+   */
+  public void setOutputFormat(int sampleRate, int channelCount) {
+    this.outputSampleRate = sampleRate;
+    this.outputChannelCount = channelCount;
+  }
+
+  /**
+   * Attaches to the mixer instead of creating an own audio track, must be called before
+   * {@link #prepare(int, int)}
+   */
+  public void attach(AudioMixer mixer) {
+    detach();
+    this.mixer = mixer;
+    this.mixerSource = mixer.addSource();
+  }
+
+  public void detach() {
+    if (mixer != null) {
+      mixer.removeSource(mixerSource);
+      mixer = null;
+      mixerSource = null;
+    }
+  }
+
+  /**
+   * @return the mixer source when attached, to control the gain, mute and latency
+   */
+  public AudioMixer.Source getMixerSource() {
+    return mixerSource;
+  }
+
   public void prepare(int sampleRate, int channelCount) {
-    initAudioTrack(sampleRate, channelCount);
+    if (mixerSource != null) {
+      this.sampleRate = mixer.getSampleRate();
+      this.channelCount = mixer.getChannelCount();
+      this.frameSize = this.channelCount * BYTES_PER_SAMPLE;
+      resetClock();
+    } else if (audioTrack == null) {
+      initOutput(outputSampleRate > 0 ? outputSampleRate : sampleRate,
+          outputChannelCount > 0 ? outputChannelCount : channelCount);
+    }
+
+    configureConverter(sampleRate, channelCount);
     audioDecoder.prepare(sampleRate, channelCount, this);
   }
 
@@ -49,17 +178,12 @@ public class Speaker implements DecodeListener {
 
   public void stop() {
     audioDecoder.setEos();
-    try {
-      audioTrack.pause();
-      Log.i(TAG, "audio track pause");
-      audioTrack.flush();
-      Log.i(TAG, "audio track flush");
-      audioTrack.stop();
-      Log.i(TAG, "audio track stop");
-      audioTrack.release();
-      Log.i(TAG, "audio track release");
-    } catch (Exception ignored) {
+    if (mixerSource != null) {
+      mixerSource.flush();
     }
+
+    stopPlayback();
+    releaseAudioTrack();
   }
 
   public boolean isEnabled() {
@@ -68,15 +192,30 @@ public class Speaker implements DecodeListener {
 
   public void setEnabled(boolean enabled) {
     this.enabled = enabled;
+    if (mixerSource != null) {
+      if (!enabled) {
+        mixerSource.flush();
+      }
+
+      resetClock();
+      return;
+    }
+
     try {
       if (enabled) {
         audioTrack.play();
       } else {
         audioTrack.pause();
+        if (requestDiscard()) {
+          return;
+        }
+
         audioTrack.flush();
       }
     } catch (Exception ignored) {
     }
+
+    resetClock();
   }
 
   public void decode(byte[] content, int contentLength, int sampleRate, int channelCount,
@@ -84,6 +223,46 @@ public class Speaker implements DecodeListener {
     audioDecoder.decode(content, contentLength, sampleRate, channelCount, playTimeMs);
   }
 
+  /**
+   * Decodes a demuxed sample with its presentation time and flags
+   */
+  public void decodeSample(byte[] content, int contentLength, int sampleRate, int channelCount,
+      long presentationTimeUs, int flags) {
+    audioDecoder.decodeSample(content, contentLength, sampleRate, channelCount, presentationTimeUs,
+        flags);
+  }
+
+  /**
+   * @return true if the last input is not taken by the decoder yet
+   */
+  public boolean isInputPending() {
+    return audioDecoder.isContentPending();
+  }
+
+  /**
+   * Discards the pending input, the decoded and the buffered pcm, and resets the clock, the
+   * decoder is flushed instead of recreated, used when seeking
+   */
+  public void flush() {
+    audioDecoder.flush();
+    if (mixerSource != null) {
+      mixerSource.flush();
+    } else if (requestDiscard()) {
+      return;
+    } else if (audioTrack != null) {
+      try {
+        audioTrack.pause();
+        audioTrack.flush();
+        if (enabled) {
+          audioTrack.play();
+        }
+      } catch (Exception ignored) {
+      }
+    }
+
+    resetClock();
+  }
+
   public CodecFormat getCodecFormat() {
     return audioDecoder.getCodecFormat();
   }
@@ -92,9 +271,300 @@ public class Speaker implements DecodeListener {
     return audioDecoder.getState();
   }
 
+  /*--------------------------------
+   * Buffer functions
+   *-------------------------------*/
+
+  /**
+   * Sets the watermarks of the pcm buffer, takes effect on next {@link #prepare(int, int)}
+   *
+   * @param lowWatermarkMs the buffered duration needed before the playback starts or resumes
+   * from an underrun
+   * @param highWatermarkMs the buffered duration above which the decoded chunks are dropped
+   */
+  public void setWatermarks(int lowWatermarkMs, int highWatermarkMs) {
+    if (lowWatermarkMs < 0 || highWatermarkMs <= lowWatermarkMs
+        || highWatermarkMs > RING_DURATION_MS) {
+      throw new IllegalArgumentException("Unacceptable watermarks");
+    }
+
+    this.lowWatermarkMs = lowWatermarkMs;
+    this.highWatermarkMs = highWatermarkMs;
+  }
+
+  /**
+   * Compensates the drift between the source clock and the output clock by adjusting the
+   * resampling ratio slightly, so the queued pcm stays around the target latency. Takes effect on
+   * next {@link #prepare(int, int)}
+   *
+   * @param targetLatencyMs the latency from the decoded pcm to the speaker to keep, 0 to disable
+   */
+  public void setDriftCompensation(int targetLatencyMs) {
+    if (targetLatencyMs < 0) {
+      throw new IllegalArgumentException("Unacceptable target latency");
+    }
+
+    this.targetLatencyMs = targetLatencyMs;
+  }
+
+  /**
+   * @return the current resampling ratio adjustment in ppm
+   */
+  public int getDriftPpm() {
+    return driftController.getPpm();
+  }
+
+  /**
+   * @return times the pcm buffer ran empty while playing
+   */
+  public int getUnderrunCount() {
+    return underrunCount;
+  }
+
+  /**
+   * @return times a decoded chunk is dropped since the pcm buffer is above the high watermark
+   */
+  public int getOverrunCount() {
+    return overrunCount;
+  }
+
+  /**
+   * @return the duration buffered in the pcm buffer
+   */
+  public int getBufferedMs() {
+    if (mixerSource != null) {
+      return mixerSource.getBufferedMs();
+    }
+
+    ByteRingBuffer ringBuffer = this.ringBuffer;
+    if (ringBuffer == null || sampleRate == 0) {
+      return 0;
+    }
+
+    return (int) (ringBuffer.size() / frameSize * 1000L / sampleRate);
+  }
+
+  private void initRingBuffer(int sampleRate, int channelCount) {
+    int frameSize = channelCount * BYTES_PER_SAMPLE;
+    int capacity = getBytes(RING_DURATION_MS, sampleRate, frameSize);
+    if (ringBuffer == null || ringBuffer.capacity() != capacity) {
+      ringBuffer = new ByteRingBuffer(capacity);
+    } else {
+      ringBuffer.clear();
+    }
+
+    lowWatermark = getBytes(lowWatermarkMs, sampleRate, frameSize);
+    highWatermark = getBytes(highWatermarkMs, sampleRate, frameSize);
+    flushRequested = false;
+  }
+
+  private static int getBytes(int durationMs, int sampleRate, int frameSize) {
+    /* always frame aligned */
+    return (int) ((long) sampleRate * durationMs / 1000L) * frameSize;
+  }
+
+  /*--------------------------------
+   * Playback functions
+   *-------------------------------*/
+
+  /**
+   * Requests the playback thread to discard the buffered pcm, flush the audio track and reset the
+   * clock together, so neither the pcm written before nor the clock advanced after survives it
+   *
+   * @return false if there is no playback thread
+   */
+  private boolean requestDiscard() {
+    Thread playbackThread = this.playbackThread;
+    if (playbackThread == null) {
+      return false;
+    }
+
+    flushRequested = true;
+    LockSupport.unpark(playbackThread);
+    return true;
+  }
+
+  /**
+   * Runs on the playback thread, the decoded chunks are dropped from the request until here
+   */
+  private void discard(ByteRingBuffer ringBuffer) {
+    synchronized (clockLock) {
+      ringBuffer.clear();
+      primed = false;
+      try {
+        audioTrack.pause();
+        audioTrack.flush();
+        if (enabled) {
+          audioTrack.play();
+        }
+      } catch (Exception ignored) {
+      }
+
+      resetClock();
+      flushRequested = false;
+    }
+  }
+
+  private void startPlayback() {
+    if (playbackRunnable == null && audioTrack != null) {
+      primed = false;
+      playbackRunnable = new PlaybackRunnable(this);
+      playbackThread = new Thread(playbackRunnable);
+      playbackThread.setPriority(Thread.MAX_PRIORITY);
+      playbackThread.start();
+    }
+  }
+
+  private void stopPlayback() {
+    if (playbackRunnable != null) {
+      playbackRunnable.running = false;
+      LockSupport.unpark(playbackThread);
+      try {
+        playbackThread.join(JOIN_TIMEOUT_MS);
+      } catch (InterruptedException ignored) {
+      }
+
+      playbackRunnable = null;
+      playbackThread = null;
+    }
+  }
+
+  /**
+   * Writes the buffered pcm into the audio track, runs on the playback thread
+   *
+   * @param trackBuffer the view of the pcm buffer
+   * @return false if nothing is written
+   */
+  private boolean drain(ByteBuffer trackBuffer) {
+    ByteRingBuffer ringBuffer = this.ringBuffer;
+    if (flushRequested) {
+      discard(ringBuffer);
+      return false;
+    }
+
+    int size = ringBuffer.size();
+    if (size == 0) {
+      if (primed) {
+        primed = false;
+        underrunCount++;
+      }
+
+      return false;
+    }
+
+    if (!primed) {
+      if (size < lowWatermark) {
+        return false;
+      }
+
+      primed = true;
+    }
+
+    int offset = ringBuffer.getReadOffset();
+    int length = ringBuffer.getReadableContiguous();
+    int written;
+    try {
+      if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.LOLLIPOP) {
+        trackBuffer.clear();
+        trackBuffer.position(offset);
+        trackBuffer.limit(offset + length);
+        written = audioTrack.write(trackBuffer, length, AudioTrack.WRITE_NON_BLOCKING);
+      } else {
+        written = audioTrack.write(ringBuffer.array(), offset, length);
+      }
+    } catch (Exception e) {
+      written = 0;
+    }
+
+    if (written > 0) {
+      ringBuffer.skip(written);
+      return true;
+    }
+
+    return false;
+  }
+
+  /*--------------------------------
+   * Clock functions
+   *-------------------------------*/
+
+  @Override public long getPositionUs() {
+    AudioTrack audioTrack = this.audioTrack;
+    AudioMixer.Source mixerSource = this.mixerSource;
+    if (!enabled || (audioTrack == null && mixerSource == null)) {
+      return TIME_UNSET;
+    }
+
+    synchronized (clockLock) {
+      if (anchorPtsUs == TIME_UNSET) {
+        return TIME_UNSET;
+      }
+
+      long playedFrames = mixerSource != null ? mixerSource.getPlayedFrames()
+          : playbackPosition.getPlayedFrames(audioTrack, sampleRate);
+      return anchorPtsUs + (playedFrames - anchorFrame) * 1_000_000L / sampleRate;
+    }
+  }
+
+  /**
+   * @return frames written but not played yet, or -1 if unknown
+   */
+  private long getQueuedFrames() {
+    AudioTrack audioTrack = this.audioTrack;
+    AudioMixer.Source mixerSource = this.mixerSource;
+    if (audioTrack == null && mixerSource == null) {
+      return -1L;
+    }
+
+    synchronized (clockLock) {
+      long playedFrames = mixerSource != null ? mixerSource.getPlayedFrames()
+          : playbackPosition.getPlayedFrames(audioTrack, sampleRate);
+      return Math.max(0L, writtenFrames - playedFrames);
+    }
+  }
+
+  private void resetClock() {
+    synchronized (clockLock) {
+      anchorPtsUs = TIME_UNSET;
+      try {
+        /* the next written frame will be played at the current head position */
+        writtenFrames = mixerSource != null ? mixerSource.getOfferedFrames()
+            : PlaybackPosition.getHeadPosition(audioTrack);
+      } catch (Exception e) {
+        writtenFrames = 0;
+      }
+
+      anchorFrame = writtenFrames;
+    }
+  }
+
+  /*--------------------------------
+   * Audio track functions
+   *-------------------------------*/
+
+  private void initOutput(int sampleRate, int channelCount) {
+    stopPlayback();
+    releaseAudioTrack();
+    initAudioTrack(sampleRate, channelCount);
+    if (!directRendering) {
+      initRingBuffer(sampleRate, channelCount);
+      startPlayback();
+    }
+  }
+
   private void initAudioTrack(int sampleRate, int channelCount) {
-    int channelConfig =
-        channelCount == 1 ? AudioFormat.CHANNEL_OUT_MONO : AudioFormat.CHANNEL_OUT_STEREO;
+    this.sampleRate = sampleRate;
+    this.channelCount = channelCount;
+    this.frameSize = channelCount * BYTES_PER_SAMPLE;
+    int channelConfig;
+    if (channelCount == 1) {
+      channelConfig = AudioFormat.CHANNEL_OUT_MONO;
+    } else if (channelCount == 6) {
+      channelConfig = AudioFormat.CHANNEL_OUT_5POINT1;
+    } else {
+      channelConfig = AudioFormat.CHANNEL_OUT_STEREO;
+    }
+
     int customBufferSize = BYTES_4096;
     if (sampleRate == 16000 && channelCount == 2) {
       customBufferSize *= 2;
@@ -102,28 +572,54 @@ public class Speaker implements DecodeListener {
 
     int minBufferSize = AudioTrack.getMinBufferSize(sampleRate, channelConfig, AUDIO_ENCODING);
     int bufferSize = Math.max(customBufferSize, minBufferSize);
+    if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.N) {
+      /* allocate room to grow, the used size is decided by the tuner */
+      bufferSize = Math.max(bufferSize, minBufferSize * TUNING_CAPACITY);
+    }
+
+    bufferSizeTuner = null;
     try {
       audioTrack = getAudioTrack(sampleRate, channelConfig, bufferSize);
+      trackBufferSize = bufferSize;
       Log.i(TAG, "init audio track");
     } catch (IllegalArgumentException custom) {
       Log.i(TAG,
           "create audio track with buffer size failed, replace with min buffer size");
       try {
         audioTrack = getAudioTrack(sampleRate, channelConfig, minBufferSize);
+        trackBufferSize = minBufferSize;
       } catch (IllegalArgumentException min) {
         Log.i(TAG, "create audio track with min buffer size failed");
       }
     } finally {
+      if (audioTrack != null && Build.VERSION.SDK_INT >= Build.VERSION_CODES.N) {
+        initBufferSizeTuner(minBufferSize / frameSize);
+      }
+
       /* if initialized then play */
       if (audioTrack != null && enabled) {
         audioTrack.play();
         Log.i(TAG, "audio track start playing");
       }
+
+      resetClock();
     }
   }
 
   private AudioTrack getAudioTrack(int sampleRate, int channelConfig, int bufferSize) {
-    if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.M) {
+    if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.O) {
+      return new AudioTrack.Builder()
+          .setAudioAttributes(
+              new AudioAttributes.Builder().setLegacyStreamType(STREAM_TYPE).build())
+          .setAudioFormat(new AudioFormat.Builder().setChannelMask(channelConfig)
+              .setSampleRate(sampleRate)
+              .setEncoding(AUDIO_ENCODING)
+              .build())
+          .setBufferSizeInBytes(bufferSize)
+          .setTransferMode(AUDIO_MODE)
+          .setPerformanceMode(AudioTrack.PERFORMANCE_MODE_LOW_LATENCY)
+          .build();
+    } else if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.M) {
       return new AudioTrack(
           new AudioAttributes.Builder().setLegacyStreamType(STREAM_TYPE).build(),
           new AudioFormat.Builder().setChannelMask(channelConfig)
@@ -136,32 +632,294 @@ public class Speaker implements DecodeListener {
     }
   }
 
-  @Override public void onDecode(byte[] chunk, int length) {
-    if (enabled) {
+  /**
+   * Starts from half of the min buffer and steps by a quarter of it
+   */
+  private void initBufferSizeTuner(int minFrames) {
+    try {
+      int capacityFrames = audioTrack.getBufferCapacityInFrames();
+      BufferSizeTuner tuner =
+          new BufferSizeTuner(minFrames / 4, Math.max(1, minFrames / 2), capacityFrames);
+      audioTrack.setBufferSizeInFrames(tuner.getSizeFrames());
+      bufferSizeTuner = tuner;
+      Log.i(TAG, "audio track buffer: "
+          + tuner.getSizeFrames()
+          + " / "
+          + capacityFrames
+          + " frames");
+    } catch (Exception e) {
+      Log.i(TAG, "audio track buffer tuning is not supported");
+    }
+  }
+
+  /**
+   * Resizes the audio track buffer if needed, runs on the thread writing the audio track
+   */
+  private void tuneBufferSize() {
+    BufferSizeTuner tuner = bufferSizeTuner;
+    AudioTrack audioTrack = this.audioTrack;
+    if (tuner == null || audioTrack == null || Build.VERSION.SDK_INT < Build.VERSION_CODES.N) {
+      return;
+    }
+
+    long nowMs = SystemClock.uptimeMillis();
+    if (!tuner.isDue(nowMs)) {
+      return;
+    }
+
+    try {
+      int sizeFrames = tuner.check(audioTrack.getUnderrunCount(), nowMs);
+      if (sizeFrames > 0) {
+        audioTrack.setBufferSizeInFrames(sizeFrames);
+      }
+    } catch (Exception ignored) {
+    }
+  }
+
+  /**
+   * Gets the latency from the decoded pcm to the speaker, which is the pcm buffer plus the audio
+   * track buffer
+   *
+   * @return latency in milliseconds
+   */
+  public int getOutputLatencyMs() {
+    AudioTrack audioTrack = this.audioTrack;
+    if (audioTrack == null || sampleRate == 0) {
+      return getBufferedMs();
+    }
+
+    int trackFrames;
+    if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.N) {
+      trackFrames = audioTrack.getBufferSizeInFrames();
+    } else {
+      trackFrames = trackBufferSize / frameSize;
+    }
+
+    return (int) (trackFrames * 1000L / sampleRate) + getBufferedMs();
+  }
+
+  private void releaseAudioTrack() {
+    if (audioTrack == null) {
+      return;
+    }
+
+    try {
+      audioTrack.pause();
+      Log.i(TAG, "audio track pause");
+      audioTrack.flush();
+      Log.i(TAG, "audio track flush");
+      audioTrack.stop();
+      Log.i(TAG, "audio track stop");
+      audioTrack.release();
+      Log.i(TAG, "audio track release");
+    } catch (Exception ignored) {
+    }
+
+    audioTrack = null;
+  }
+
+  /*--------------------------------
+   * Decode listener
+   *-------------------------------*/
+
+  @Override public void onDecode(byte[] chunk, int length, long presentationTimeUs) {
+    if (!enabled) {
+      return;
+    }
+
+    compensateDrift();
+    if (converter.isPassthrough()) {
+      render(chunk, length, presentationTimeUs);
+    } else {
+      int converted = converter.convert(chunk, 0, length);
+      render(converter.getOutput(), converted, presentationTimeUs);
+    }
+  }
+
+  @Override public void onDecode(ByteBuffer buffer, int length, long presentationTimeUs) {
+    if (!enabled) {
+      return;
+    }
+
+    compensateDrift();
+    if (converter.isPassthrough()) {
+      render(buffer, length, presentationTimeUs);
+    } else {
+      int converted = converter.convert(buffer, length);
+      render(converter.getOutput(), converted, presentationTimeUs);
+    }
+  }
+
+  /**
+   * Updates the resampling ratio from the queued pcm, runs on the decoder thread
+   */
+  private void compensateDrift() {
+    if (targetLatencyMs <= 0) {
+      return;
+    }
+
+    long nowMs = SystemClock.uptimeMillis();
+    if (!driftController.isDue(nowMs)) {
+      return;
+    }
+
+    long queuedFrames;
+    try {
+      queuedFrames = getQueuedFrames();
+    } catch (Exception e) {
+      queuedFrames = -1L;
+    }
+
+    if (queuedFrames >= 0) {
+      converter.setDriftPpm(driftController.update(queuedFrames, nowMs));
+    }
+  }
+
+  private void render(byte[] chunk, int length, long presentationTimeUs) {
+    ByteRingBuffer ringBuffer = this.ringBuffer;
+    AudioMixer.Source mixerSource = this.mixerSource;
+    if (!enabled || (!directRendering && ringBuffer == null && mixerSource == null)) {
+      return;
+    }
+
+    if (mixerSource != null) {
+      if (mixerSource.write(chunk, 0, length)) {
+        advanceClock(length, presentationTimeUs);
+      }
+    } else if (directRendering) {
+      tuneBufferSize();
       try {
-        audioTrack.write(chunk, 0, length);
+        advanceClock(audioTrack.write(chunk, 0, length), presentationTimeUs);
       } catch (Exception ignored) {
       }
+    } else {
+      synchronized (clockLock) {
+        /* the chunk is discarded along with the buffered pcm, so the clock is not advanced */
+        if (flushRequested) {
+          return;
+        }
+
+        if (isOverrun(ringBuffer, length) || !ringBuffer.offer(chunk, 0, length)) {
+          overrunCount++;
+          return;
+        }
+
+        advanceClock(length, presentationTimeUs);
+      }
+
+      LockSupport.unpark(playbackThread);
+    }
+  }
+
+  private void render(ByteBuffer buffer, int length, long presentationTimeUs) {
+    ByteRingBuffer ringBuffer = this.ringBuffer;
+    AudioMixer.Source mixerSource = this.mixerSource;
+    if (!enabled || (!directRendering && ringBuffer == null && mixerSource == null)) {
+      return;
+    }
+
+    if (mixerSource != null) {
+      if (mixerSource.write(buffer, length)) {
+        advanceClock(length, presentationTimeUs);
+      }
+    } else if (directRendering) {
+      tuneBufferSize();
+      try {
+        advanceClock(audioTrack.write(buffer, length, AudioTrack.WRITE_BLOCKING),
+            presentationTimeUs);
+      } catch (Exception ignored) {
+      }
+    } else {
+      synchronized (clockLock) {
+        /* the chunk is discarded along with the buffered pcm, so the clock is not advanced */
+        if (flushRequested) {
+          return;
+        }
+
+        if (isOverrun(ringBuffer, length) || !ringBuffer.offer(buffer, length)) {
+          overrunCount++;
+          return;
+        }
+
+        advanceClock(length, presentationTimeUs);
+      }
+
+      LockSupport.unpark(playbackThread);
+    }
+  }
+
+  private boolean isOverrun(ByteRingBuffer ringBuffer, int length) {
+    return ringBuffer.size() + length > highWatermark;
+  }
+
+  private void advanceClock(int written, long presentationTimeUs) {
+    if (written <= 0) {
+      return;
+    }
+
+    synchronized (clockLock) {
+      anchorPtsUs = presentationTimeUs;
+      anchorFrame = writtenFrames;
+      writtenFrames += written / frameSize;
     }
   }
 
   @Override public void onFormatChanged(MediaFormat format) {
     int sampleRate = format.getInteger(MediaFormat.KEY_SAMPLE_RATE);
     int channelCount = format.getInteger(MediaFormat.KEY_CHANNEL_COUNT);
-    if (audioTrack.getSampleRate() != sampleRate || audioTrack.getChannelCount() != channelCount) {
-      Log.i(TAG, "change audio format");
-      Log.i(TAG, "current: ["
-          + audioTrack.getSampleRate()
-          + ", "
-          + audioTrack.getChannelCount()
-          + "]");
-      Log.i(TAG, "new: ["
-          + sampleRate
-          + ", "
-          + channelCount
-          + "]");
-      audioDecoder.onFormatChanged();
-      prepare(sampleRate, channelCount);
-    }
-  }
-}
\ No newline at end of file
+    if (decodedSampleRate == sampleRate && decodedChannelCount == channelCount) {
+      return;
+    }
+
+    Log.i(TAG, "change audio format");
+    Log.i(TAG, "output: ["
+        + this.sampleRate
+        + ", "
+        + this.channelCount
+        + "]");
+    Log.i(TAG, "new: ["
+        + sampleRate
+        + ", "
+        + channelCount
+        + "]");
+    /* keeps the audio track, converts the pcm instead */
+    configureConverter(sampleRate, channelCount);
+  }
+
+  private void configureConverter(int sampleRate, int channelCount) {
+    decodedSampleRate = sampleRate;
+    decodedChannelCount = channelCount;
+    converter.setDriftCompensation(targetLatencyMs > 0);
+    converter.configure(sampleRate, channelCount, this.sampleRate, this.channelCount);
+    if (targetLatencyMs > 0) {
+      driftController.configure(targetLatencyMs, this.sampleRate);
+    } else {
+      driftController.reset();
+    }
+  }
+
+  private static class PlaybackRunnable implements Runnable {
+
+    private final Speaker instance;
+    private final ByteBuffer trackBuffer;
+    private volatile boolean running = true;
+
+    PlaybackRunnable(Speaker reference) {
+      instance = new WeakReference<>(reference).get();
+      trackBuffer = ByteBuffer.wrap(instance.ringBuffer.array());
+    }
+
+    @Override public void run() {
+      Process.setThreadPriority(Process.THREAD_PRIORITY_URGENT_AUDIO);
+      Log.i(TAG, "PLAYBACK -> start");
+      while (running) {
+        instance.tuneBufferSize();
+        if (!instance.drain(trackBuffer)) {
+          LockSupport.parkNanos(IDLE_WAIT_NS);
+        }
+      }
+
+      Log.i(TAG, "PLAYBACK -> stop");
+    }
+  }
+}
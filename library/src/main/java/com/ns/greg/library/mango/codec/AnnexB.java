@@ -0,0 +1,156 @@
+package com.ns.greg.library.mango.codec;
+
+/**
+ * @author gregho
+ * @since 2019/3/15
+ *
+ * <p>
+ * Scans H.264/H.265 access units in Annex-B byte stream format, the nal units are separated by the
+ * 3 or 4 bytes start codes. Nothing is allocated.
+ * </p>
+ */
+public final class AnnexB {
+
+  /* H.264 nal unit types */
+  public static final int AVC_IDR = 5;
+  public static final int AVC_SEI = 6;
+  public static final int AVC_SPS = 7;
+  public static final int AVC_PPS = 8;
+  public static final int AVC_AUD = 9;
+  /* H.265 nal unit types, the random access points are 16 ~ 23 */
+  public static final int HEVC_BLA_W_LP = 16;
+  public static final int HEVC_RSV_IRAP_23 = 23;
+  public static final int HEVC_VPS = 32;
+  public static final int HEVC_SPS = 33;
+  public static final int HEVC_PPS = 34;
+  public static final int HEVC_AUD = 35;
+  public static final int HEVC_PREFIX_SEI = 39;
+
+  private AnnexB() {
+  }
+
+  /**
+   * Finds the next nal unit
+   *
+   * @param from index to search from
+   * @param end index after the last byte
+   * @return index of the first byte of the nal unit after the start code, -1 if not found
+   */
+  public static int findNalStart(byte[] data, int from, int end) {
+    for (int i = from; i + 2 < end; i++) {
+      if ((data[i + 2] & 0xFF) > 1) {
+        /* can not be a part of the start code, skip it */
+        i += 2;
+      } else if (data[i] == 0 && data[i + 1] == 0 && data[i + 2] == 1) {
+        return i + 3;
+      }
+    }
+
+    return -1;
+  }
+
+  /**
+   * Finds the end of the nal unit, the trailing zeros of the next 4 bytes start code are excluded
+   *
+   * @param nalStart index of the first byte of the nal unit
+   * @param end index after the last byte
+   * @return index after the last byte of the nal unit
+   */
+  public static int findNalEnd(byte[] data, int nalStart, int end) {
+    int next = findNalStart(data, nalStart, end);
+    if (next < 0) {
+      return end;
+    }
+
+    int nalEnd = next - 3;
+    while (nalEnd > nalStart && data[nalEnd - 1] == 0) {
+      nalEnd--;
+    }
+
+    return nalEnd;
+  }
+
+  /**
+   * @param header the first byte of the nal unit
+   * @return the nal unit type
+   */
+  public static int getNalType(CodecFormat codecFormat, byte header) {
+    return codecFormat == CodecFormat.VIDEO_HEVC ? (header >> 1) & 0x3F : header & 0x1F;
+  }
+
+  public static boolean isParameterSet(CodecFormat codecFormat, int nalType) {
+    if (codecFormat == CodecFormat.VIDEO_HEVC) {
+      return nalType >= HEVC_VPS && nalType <= HEVC_PPS;
+    }
+
+    return nalType == AVC_SPS || nalType == AVC_PPS;
+  }
+
+  public static boolean isRandomAccess(CodecFormat codecFormat, int nalType) {
+    if (codecFormat == CodecFormat.VIDEO_HEVC) {
+      return nalType >= HEVC_BLA_W_LP && nalType <= HEVC_RSV_IRAP_23;
+    }
+
+    return nalType == AVC_IDR;
+  }
+
+  public static boolean isAccessUnitDelimiter(CodecFormat codecFormat, int nalType) {
+    return nalType == (codecFormat == CodecFormat.VIDEO_HEVC ? HEVC_AUD : AVC_AUD);
+  }
+
+  /**
+   * @return true if the nal unit is a coded slice
+   */
+  public static boolean isVcl(CodecFormat codecFormat, int nalType) {
+    if (codecFormat == CodecFormat.VIDEO_HEVC) {
+      return nalType < HEVC_VPS;
+    }
+
+    return nalType >= 1 && nalType <= AVC_IDR;
+  }
+
+  /**
+   * Checks the first slice flag of a coded slice, first_mb_in_slice is 0 (H.264) or
+   * first_slice_segment_in_pic_flag is set (H.265)
+   *
+   * @param nalStart index of the first byte of the nal unit
+   * @param end index after the last byte
+   * @return true if the slice starts a new picture
+   */
+  public static boolean isFirstSlice(CodecFormat codecFormat, byte[] data, int nalStart, int end) {
+    int index = nalStart + (codecFormat == CodecFormat.VIDEO_HEVC ? 2 : 1);
+    return index < end && (data[index] & 0x80) != 0;
+  }
+
+  /**
+   * @return true if the non coded slice nal unit can only come before the first slice of an access
+   * unit, so it ends the previous access unit
+   */
+  public static boolean isAccessUnitPrefix(CodecFormat codecFormat, int nalType) {
+    if (codecFormat == CodecFormat.VIDEO_HEVC) {
+      return (nalType >= HEVC_VPS && nalType <= HEVC_AUD) || nalType == HEVC_PREFIX_SEI;
+    }
+
+    return nalType >= AVC_SEI && nalType <= AVC_AUD;
+  }
+
+  /**
+   * Checks the first coded slice of the access unit, the rest of the slices are not scanned
+   *
+   * @return true if the access unit is an IDR (H.264) or an IRAP (H.265) picture
+   */
+  public static boolean isKeyFrame(CodecFormat codecFormat, byte[] data, int offset, int length) {
+    int end = offset + length;
+    int nalStart = findNalStart(data, offset, end);
+    while (nalStart >= 0 && nalStart < end) {
+      int nalType = getNalType(codecFormat, data[nalStart]);
+      if (isVcl(codecFormat, nalType)) {
+        return isRandomAccess(codecFormat, nalType);
+      }
+
+      nalStart = findNalStart(data, nalStart + 1, end);
+    }
+
+    return false;
+  }
+}
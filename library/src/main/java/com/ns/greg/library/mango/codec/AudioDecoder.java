@@ -17,6 +17,8 @@ import java.nio.ByteBuffer;
  * <p>
  * Support:
  * 1. AAC LC
+ * 2. Opus, API 21+, the input is one opus packet per decode and the output is always 48 kHz
+ * 3. G.711 A-law and mu-law, decoded by {@link G711} on the calling thread without the media codec
  * </p>
  */
 public class AudioDecoder extends BaseCodec {
@@ -27,6 +29,10 @@ public class AudioDecoder extends BaseCodec {
   private int sampleRate;
   private int channelCount;
   private DecodeListener listener;
+  /* format of the incoming audio */
+  private final AudioFormatTracker formatTracker = new AudioFormatTracker();
+  /* reused output chunk for the devices before API 21 and G.711 */
+  private byte[] chunk;
 
   public AudioDecoder(CodecFormat codecFormat) {
     super(codecFormat);
@@ -42,6 +48,14 @@ public class AudioDecoder extends BaseCodec {
       this.listener = listener;
       this.sampleRate = sampleRate;
       this.channelCount = channelCount;
+      formatTracker.reset(sampleRate, channelCount);
+      if (getCodecFormat().isG711()) {
+        /* no media codec and no process thread */
+        setState(CodecState.PREPARED);
+        Log.i(TAG, "PREPARE G.711 -> succeeded");
+        return;
+      }
+
       initMediaFormat();
       if (isState(CodecState.FAILED)) {
         /* return when create media format failed */
@@ -53,11 +67,24 @@ public class AudioDecoder extends BaseCodec {
   }
 
   @Override protected void initMediaFormat() {
-    int aacProfile = getProfile();
-    MediaFormat format = MediaFormatBuilder.audioFormat(getMimeType(), sampleRate, channelCount)
-        .setAacProfile(aacProfile)
-        .setByteBuffer(CSD_0, CodecConstants.getAacCsd0(sampleRate, channelCount, aacProfile))
-        .build();
+    MediaFormat format;
+    if (getCodecFormat() == CodecFormat.AUDIO_OPUS) {
+      int preSkip = CodecConstants.OPUS_PRE_SKIP;
+      format = MediaFormatBuilder.audioFormat(getMimeType(), CodecConstants.OPUS_SAMPLE_RATE,
+          channelCount)
+          .setByteBuffer(CSD_0, CodecConstants.getOpusHead(channelCount, preSkip, sampleRate))
+          .setByteBuffer(CSD_1,
+              CodecConstants.getOpusNanos(CodecConstants.getOpusPreSkipNs(preSkip)))
+          .setByteBuffer(CSD_2, CodecConstants.getOpusNanos(CodecConstants.OPUS_SEEK_PRE_ROLL_NS))
+          .build();
+    } else {
+      int aacProfile = getProfile();
+      format = MediaFormatBuilder.audioFormat(getMimeType(), sampleRate, channelCount)
+          .setAacProfile(aacProfile)
+          .setByteBuffer(CSD_0, CodecConstants.getAacCsd0(sampleRate, channelCount, aacProfile))
+          .build();
+    }
+
     if (format == null) {
       Log.i(TAG, "INIT MEDIA FORMAT -> failed, no such audio format");
       setState(CodecState.FAILED);
@@ -93,30 +120,102 @@ public class AudioDecoder extends BaseCodec {
   @WorkerThread
   public void decode(byte[] content, int contentLength, int sampleRate, int channelCount,
       long playTimeMs) {
+    if (getCodecFormat().isG711()) {
+      decodeG711(content, contentLength, sampleRate, channelCount, playTimeMs);
+      return;
+    }
+
     synchronized (this) {
       setContent(content);
       setContentLength(contentLength);
-      this.sampleRate = sampleRate;
-      this.channelCount = channelCount;
+      setContentFlags(0);
+      setPresentationTimeUs(playTimeMs * 1000L);
+      formatTracker.update(sampleRate, channelCount);
+    }
+  }
+
+  /**
+   * Decodes a demuxed sample with its presentation time and flags
+   *
+   * @param presentationTimeUs presentation time in microseconds
+   * @param flags buffer flags, e.g. {@link MediaCodec#BUFFER_FLAG_KEY_FRAME}
+   */
+  @WorkerThread
+  public void decodeSample(byte[] content, int contentLength, int sampleRate, int channelCount,
+      long presentationTimeUs, int flags) {
+    if (getCodecFormat().isG711()) {
+      decodeG711(content, contentLength, sampleRate, channelCount, presentationTimeUs / 1000L);
+      return;
+    }
+
+    synchronized (this) {
+      setContent(content);
+      setContentLength(contentLength);
+      setContentFlags(flags);
+      setPresentationTimeUs(presentationTimeUs);
+      formatTracker.update(sampleRate, channelCount);
+    }
+  }
+
+  private void decodeG711(byte[] content, int contentLength, int sampleRate, int channelCount,
+      long playTimeMs) {
+    synchronized (this) {
+      if (!isState(CodecState.PREPARED) || content == null || contentLength <= 0) {
+        return;
+      }
+
+      if (formatTracker.update(sampleRate, channelCount) && formatTracker.consumeChange()) {
+        Log.i(TAG, "FORMAT CHANGED -> [" + sampleRate + ", " + channelCount + "]");
+        this.sampleRate = sampleRate;
+        this.channelCount = channelCount;
+        if (listener != null && formatTracker.shouldNotify(sampleRate, channelCount)) {
+          listener.onFormatChanged(
+              MediaFormatBuilder.audioFormat(getMimeType(), sampleRate, channelCount).build());
+        }
+      }
+
+      int pcmLength = 2 * contentLength;
+      if (chunk == null || chunk.length < pcmLength) {
+        chunk = new byte[pcmLength];
+      }
+
+      G711.decode(getCodecFormat(), content, 0, contentLength, chunk, 0);
+      if (listener != null) {
+        listener.onDecode(chunk, pcmLength, playTimeMs * 1000L);
+      }
     }
   }
 
   @Override void process() {
-    /* update audio format */
-    if (listener != null) {
-      listener.onFormatChanged(
-          MediaFormatBuilder.audioFormat(getMimeType(), sampleRate, channelCount).build());
+    /* reconfigure only when the incoming format is changed */
+    if (formatTracker.consumeChange()) {
+      reconfigure(formatTracker.getSampleRate(), formatTracker.getChannelCount());
+    }
+
+    /* one snapshot, so the bytes are never paired with the time or flags of a newer content */
+    byte[] content;
+    int contentLength;
+    long presentationTimeUs;
+    int contentFlags;
+    int sequence;
+    synchronized (this) {
+      content = getContent();
+      contentLength = getContentLength();
+      presentationTimeUs = getPresentationTimeUs();
+      contentFlags = getContentFlags();
+      sequence = getContentSequence();
     }
 
     try {
-      byte[] content = getContent();
-      int contentLength = getContentLength();
       if (content != null && contentLength > 0) {
         int inputBufferIndex = getCodec().dequeueInputBuffer(TIMEOUT);
         if (inputBufferIndex >= 0) {
           if (isEos()) {
             getCodec().queueInputBuffer(inputBufferIndex, 0, 0, 0,
                 MediaCodec.BUFFER_FLAG_END_OF_STREAM);
+          } else if (isFlushPending()) {
+            /* read before the flush, the input buffer is given back by the flush */
+            return;
           } else {
             ByteBuffer inputBuffer;
             if (Build.VERSION.SDK_INT <= Build.VERSION_CODES.LOLLIPOP) {
@@ -128,18 +227,58 @@ public class AudioDecoder extends BaseCodec {
             if (inputBuffer != null) {
               inputBuffer.clear();
               inputBuffer.put(content, 0, contentLength);
-              getCodec().queueInputBuffer(inputBufferIndex, 0, contentLength, 0L, 0);
+              getCodec().queueInputBuffer(inputBufferIndex, 0, contentLength,
+                  presentationTimeUs, contentFlags);
             }
           }
+
+          /* clear decode content once queued, a content set meanwhile is kept */
+          clearContent(sequence);
         }
-        /* clear decode content */
-        setContent(null);
-        setContentLength(0);
       }
-    } catch (Exception ignored) {
+    } catch (Exception e) {
+      /* dropped, e.g. larger than the input buffer */
+      clearContent(sequence);
+    }
+  }
+
+  /**
+   * Reconfigures the codec in place with the new format, runs on the process thread
+   */
+  private void reconfigure(int sampleRate, int channelCount) {
+    Log.i(TAG, "FORMAT CHANGED -> [" + sampleRate + ", " + channelCount + "]");
+    this.sampleRate = sampleRate;
+    this.channelCount = channelCount;
+    initMediaFormat();
+    try {
+      MediaCodec codec = getCodec();
+      codec.stop();
+      codec.configure(getFormat(), null, null, 0);
+      codec.start();
+      Log.i(TAG, "RECONFIGURE CODEC -> succeeded");
+    } catch (Exception e) {
+      setState(CodecState.FAILED);
+      Log.i(TAG, "RECONFIGURE CODEC -> failed");
+      return;
+    }
+
+    /* the output format of the restarted codec is dropped if it is the same */
+    if (listener != null && formatTracker.shouldNotify(sampleRate, channelCount)) {
+      listener.onFormatChanged(
+          MediaFormatBuilder.audioFormat(getMimeType(), sampleRate, channelCount).build());
     }
   }
 
+  private boolean shouldNotify(MediaFormat format) {
+    if (!format.containsKey(MediaFormat.KEY_SAMPLE_RATE)
+        || !format.containsKey(MediaFormat.KEY_CHANNEL_COUNT)) {
+      return true;
+    }
+
+    return formatTracker.shouldNotify(format.getInteger(MediaFormat.KEY_SAMPLE_RATE),
+        format.getInteger(MediaFormat.KEY_CHANNEL_COUNT));
+  }
+
   @Override void output() {
     try {
       MediaCodec.BufferInfo bufferInfo = new MediaCodec.BufferInfo();
@@ -150,9 +289,10 @@ public class AudioDecoder extends BaseCodec {
           break;
 
         case MediaCodec.INFO_OUTPUT_FORMAT_CHANGED:
-          /* update audio format */
-          if (listener != null) {
-            listener.onFormatChanged(getCodec().getOutputFormat());
+          /* update audio format, unless it is the one just notified by the reconfiguration */
+          MediaFormat outputFormat = getCodec().getOutputFormat();
+          if (listener != null && shouldNotify(outputFormat)) {
+            listener.onFormatChanged(outputFormat);
           }
 
           break;
@@ -162,15 +302,30 @@ public class AudioDecoder extends BaseCodec {
           break;
 
         default:
-          ByteBuffer outputBuffer = getCodec().getOutputBuffers()[outputBufferIndex];
           int outputBufferSize = bufferInfo.size;
-          byte[] chunk = new byte[outputBufferSize];
-          outputBuffer.get(chunk);
-          outputBuffer.clear();
           if (listener != null && outputBufferSize > 0) {
-            listener.onDecode(chunk, outputBufferSize);
+            if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.LOLLIPOP) {
+              /* hand the codec buffer over directly, no copy */
+              ByteBuffer outputBuffer = getCodec().getOutputBuffer(outputBufferIndex);
+              if (outputBuffer != null) {
+                outputBuffer.position(bufferInfo.offset);
+                outputBuffer.limit(bufferInfo.offset + outputBufferSize);
+                listener.onDecode(outputBuffer, outputBufferSize, bufferInfo.presentationTimeUs);
+              }
+            } else {
+              ByteBuffer outputBuffer = getCodec().getOutputBuffers()[outputBufferIndex];
+              if (chunk == null || chunk.length < outputBufferSize) {
+                chunk = new byte[outputBufferSize];
+              }
+
+              outputBuffer.position(bufferInfo.offset);
+              outputBuffer.get(chunk, 0, outputBufferSize);
+              outputBuffer.clear();
+              listener.onDecode(chunk, outputBufferSize, bufferInfo.presentationTimeUs);
+            }
           }
 
+          /* release after the listener consumed it */
           getCodec().releaseOutputBuffer(outputBufferIndex, false);
           break;
       }
@@ -184,7 +339,22 @@ public class AudioDecoder extends BaseCodec {
     }
   }
 
+  @Override public void setEos() {
+    if (getCodecFormat().isG711()) {
+      /* nothing is pending */
+      setState(CodecState.UNINITIALIZED);
+      Log.i(TAG, "STOP G.711 -> succeeded");
+      return;
+    }
+
+    super.setEos();
+  }
+
   @Override public void startCodec() throws NullPointerException {
+    if (getCodecFormat().isG711()) {
+      return;
+    }
+
     if (isState(CodecState.PREPARING) || isState(CodecState.STOP)) {
       try {
         setState(CodecState.PREPARED);
@@ -15,11 +15,29 @@ import static com.ns.greg.library.mango.codec.CodecConstants.ADTS_SIZE;
 /**
  * @author gregho
  * @since 2018/12/5
+ *
+ * <p>
+ * The raw audio is either handed over by {@link #encodeSample(byte[], int, long)}, or written into
+ * the input buffers directly with {@link #setDirectInput(boolean)}, see
+ * {@link #dequeueInputBuffer(long)}.
+ *
+ * Support:
+ * 1. AAC LC, the output is wrapped by adts
+ * 2. Opus, API 29+, the output is one raw opus packet per chunk, the frame is 20 ms instead of
+ * 1024 samples of aac, the codec config is delivered as the codec outputs it
+ * 3. G.711 A-law and mu-law, encoded by {@link G711} on the calling thread without the media
+ * codec, there is no codec config and no direct input, the chunk is reused after
+ * {@link EncodeListener#onEncode(byte[], int, long)} returns
+ * </p>
  */
 public class AudioEncoder extends BaseCodec {
 
   /* init defines, do not modify */
   private static final String TAG = "AudioEncoder";
+  /* samples per channel of an aac frame */
+  public static final int AAC_FRAME_SAMPLES = 1024;
+  /* the opus encoder is available since Q */
+  private static final int OPUS_ENCODER_API = 29;
 
   /* audio microphone */
   private int sampleRate;
@@ -27,11 +45,38 @@ public class AudioEncoder extends BaseCodec {
   private int bitRate;
   private int frequencyIndex;
   private EncodeListener listener;
+  /* the input buffers are filled by the caller */
+  private volatile boolean directInput;
+  private boolean eosQueued;
+  private boolean codecConfigDelivered;
+  /* queued bytes of the content, the rest is queued by the next process */
+  private int contentOffset;
+  /* bumped by every content, the array may be reused by the caller */
+  private int contentSequence;
+  /* reused G.711 output chunk, grown to the largest one */
+  private byte[] g711Chunk;
 
   public AudioEncoder(CodecFormat codecFormat) {
     super(codecFormat);
   }
 
+  /**
+   * Gets the samples per channel of a frame of the codec format
+   */
+  public static int getFrameSamples(CodecFormat codecFormat, int sampleRate) {
+    if (codecFormat == CodecFormat.AUDIO_OPUS) {
+      return sampleRate * CodecConstants.OPUS_FRAME_MS / 1000;
+    } else if (codecFormat.isG711()) {
+      return sampleRate * CodecConstants.G711_PACKET_MS / 1000;
+    }
+
+    return AAC_FRAME_SAMPLES;
+  }
+
+  private boolean isOpus() {
+    return getCodecFormat() == CodecFormat.AUDIO_OPUS;
+  }
+
   /*--------------------------------
    * Codec functions
    *-------------------------------*/
@@ -44,6 +89,15 @@ public class AudioEncoder extends BaseCodec {
       this.channelCount = channelCount;
       this.bitRate = bitRate;
       this.frequencyIndex = CodecConstants.getFrequencyIndex(sampleRate);
+      eosQueued = false;
+      codecConfigDelivered = false;
+      if (getCodecFormat().isG711()) {
+        /* no media codec and no process thread */
+        setState(CodecState.PREPARED);
+        Log.i(TAG, "PREPARE G.711 -> succeeded");
+        return;
+      }
+
       initMediaFormat();
       if (isState(CodecState.FAILED)) {
         /* return when crate audio record failed */
@@ -55,6 +109,19 @@ public class AudioEncoder extends BaseCodec {
   }
 
   @Override protected void initMediaFormat() {
+    if (isOpus()) {
+      if (Build.VERSION.SDK_INT < OPUS_ENCODER_API) {
+        setState(CodecState.FAILED);
+        Log.i(TAG, "INIT MEDIA FORMAT -> failed, opus encoder needs API 29");
+        return;
+      }
+
+      setFormat(MediaFormatBuilder.audioFormat(getMimeType(), sampleRate, channelCount)
+          .setBitRate(bitRate)
+          .build());
+      return;
+    }
+
     MediaFormatBuilder builder =
         MediaFormatBuilder.audioFormat(getMimeType(), sampleRate, channelCount)
             .setAacProfile(getProfile()).setBitRate(bitRate);
@@ -83,44 +150,198 @@ public class AudioEncoder extends BaseCodec {
    *
    * @param content audio data
    * @param contentLength length of audio data
-   * @param playTimeMs play time
+   * @param playTimeMs capture time
    */
   @WorkerThread
   public void encode(byte[] content, int contentLength, long playTimeMs) {
+    encodeSample(content, contentLength, playTimeMs * 1000L);
+  }
+
+  /**
+   * Encodes the raw audio data with its capture time in microseconds, which is kept to the
+   * encoded chunk without rounding
+   *
+   * @param content audio data
+   * @param contentLength length of audio data
+   * @param presentationTimeUs capture time in microseconds
+   */
+  @WorkerThread
+  public void encodeSample(byte[] content, int contentLength, long presentationTimeUs) {
+    if (getCodecFormat().isG711()) {
+      encodeG711(content, contentLength, presentationTimeUs);
+      return;
+    }
+
     synchronized (this) {
       setContent(content);
       setContentLength(contentLength);
+      setPresentationTimeUs(presentationTimeUs);
+      contentOffset = 0;
+      contentSequence++;
+    }
+  }
+
+  private void encodeG711(byte[] content, int contentLength, long presentationTimeUs) {
+    if (!isState(CodecState.PREPARED) || content == null || contentLength <= 0) {
+      return;
+    }
+
+    if (g711Chunk == null || g711Chunk.length < contentLength / 2) {
+      g711Chunk = new byte[contentLength / 2];
+    }
+
+    int chunkSize = G711.encode(getCodecFormat(), content, 0, contentLength, g711Chunk, 0);
+    if (listener != null) {
+      listener.onEncode(g711Chunk, chunkSize, presentationTimeUs);
+    }
+  }
+
+  /**
+   * Fills the input buffers directly instead of {@link #encodeSample(byte[], int, long)}, must be
+   * called before {@link #prepare(int, int, int, EncodeListener)}
+   */
+  public void setDirectInput(boolean directInput) {
+    this.directInput = directInput;
+  }
+
+  /**
+   * Dequeues an input buffer to fill directly, the index must be queued back by
+   * {@link #queueInputBuffer(int, int, long)}
+   *
+   * @param timeoutUs time to wait for an input buffer
+   * @return the index of the input buffer, or -1 if not available
+   */
+  @WorkerThread
+  public int dequeueInputBuffer(long timeoutUs) {
+    if (!directInput || isEos() || !isState(CodecState.PREPARED)) {
+      return -1;
+    }
+
+    try {
+      return getCodec().dequeueInputBuffer(timeoutUs);
+    } catch (Exception e) {
+      return -1;
+    }
+  }
+
+  /**
+   * Gets the input buffer dequeued by {@link #dequeueInputBuffer(long)}
+   */
+  @WorkerThread
+  public ByteBuffer getInputBuffer(int index) {
+    try {
+      if (Build.VERSION.SDK_INT <= Build.VERSION_CODES.LOLLIPOP) {
+        return getCodec().getInputBuffers()[index];
+      } else {
+        return getCodec().getInputBuffer(index);
+      }
+    } catch (Exception e) {
+      return null;
+    }
+  }
+
+  /**
+   * Queues the filled input buffer to encode
+   *
+   * @param index the index from {@link #dequeueInputBuffer(long)}
+   * @param size length of the raw audio in the input buffer
+   * @param presentationTimeUs presentation time of the raw audio
+   */
+  @WorkerThread
+  public void queueInputBuffer(int index, int size, long presentationTimeUs) {
+    try {
+      getCodec().queueInputBuffer(index, 0, size, presentationTimeUs, 0);
+    } catch (Exception ignored) {
     }
   }
 
   @Override void process() {
+    if (directInput) {
+      /* the input buffers are filled by the caller, only the end of stream is queued here */
+      if (isEos() && !eosQueued) {
+        try {
+          int inputBufferIndex = getCodec().dequeueInputBuffer(TIMEOUT);
+          if (inputBufferIndex >= 0) {
+            getCodec().queueInputBuffer(inputBufferIndex, 0, 0, 0,
+                MediaCodec.BUFFER_FLAG_END_OF_STREAM);
+            eosQueued = true;
+          }
+        } catch (Exception ignored) {
+        }
+      }
+
+      return;
+    }
+
     try {
-      byte[] content = getContent();
-      int contentLength = getContentLength();
+      byte[] content;
+      int contentLength;
+      long presentationTimeUs;
+      int offset;
+      int sequence;
+      synchronized (this) {
+        content = getContent();
+        contentLength = getContentLength();
+        presentationTimeUs = getPresentationTimeUs();
+        offset = contentOffset;
+        sequence = contentSequence;
+      }
+
       if (content != null && contentLength > 0) {
-        int inputBufferIndex = getCodec().dequeueInputBuffer(TIMEOUT);
-        if (inputBufferIndex >= 0) {
+        /* the content can be larger than an input buffer, e.g. with the pre-roll */
+        int frameSize = channelCount * 2;
+        while (offset < contentLength) {
+          int inputBufferIndex = getCodec().dequeueInputBuffer(TIMEOUT);
+          if (inputBufferIndex < 0) {
+            break;
+          }
+
           if (isEos()) {
             getCodec().queueInputBuffer(inputBufferIndex, 0, 0, 0,
                 MediaCodec.BUFFER_FLAG_END_OF_STREAM);
+            break;
+          }
+
+          ByteBuffer inputBuffer;
+          if (Build.VERSION.SDK_INT <= Build.VERSION_CODES.LOLLIPOP) {
+            inputBuffer = getCodec().getInputBuffers()[inputBufferIndex];
           } else {
-            ByteBuffer inputBuffer;
-            if (Build.VERSION.SDK_INT <= Build.VERSION_CODES.LOLLIPOP) {
-              inputBuffer = getCodec().getInputBuffers()[inputBufferIndex];
-            } else {
-              inputBuffer = getCodec().getInputBuffer(inputBufferIndex);
-            }
+            inputBuffer = getCodec().getInputBuffer(inputBufferIndex);
+          }
 
-            if (inputBuffer != null) {
-              inputBuffer.clear();
-              inputBuffer.put(content, 0, contentLength);
-              getCodec().queueInputBuffer(inputBufferIndex, 0, contentLength, 0L, 0);
+          if (inputBuffer == null) {
+            /* returns the index, the rest is queued by the next process */
+            getCodec().queueInputBuffer(inputBufferIndex, 0, 0, presentationTimeUs, 0);
+            break;
+          }
+
+          inputBuffer.clear();
+          int size = Math.min(contentLength - offset, inputBuffer.remaining());
+          size -= size % frameSize;
+          inputBuffer.put(content, offset, size);
+          long offsetUs = (long) (offset / frameSize) * 1_000_000L / sampleRate;
+          getCodec().queueInputBuffer(inputBufferIndex, 0, size, presentationTimeUs + offsetUs,
+              0);
+          offset += size;
+          if (size == 0) {
+            /* less than a frame is left, dropped */
+            offset = contentLength;
+            break;
+          }
+        }
+
+        synchronized (this) {
+          if (sequence == contentSequence) {
+            if (offset < contentLength && !isEos()) {
+              /* e.g. no input buffer in time, keeps the rest pending */
+              contentOffset = offset;
+            } else {
+              /* clear decode content */
+              setContent(null);
+              setContentLength(0);
             }
           }
         }
-        /* clear decode content */
-        setContent(null);
-        setContentLength(0);
       }
     } catch (Exception ignored) {
     }
@@ -136,7 +357,11 @@ public class AudioEncoder extends BaseCodec {
           break;
 
         case MediaCodec.INFO_OUTPUT_FORMAT_CHANGED:
-          /* update audio track format */
+          /* some encoders only put the codec config into the output format */
+          ByteBuffer csd = getCodec().getOutputFormat().getByteBuffer(CSD_0);
+          if (csd != null) {
+            deliverCodecConfig(csd, csd.position(), csd.remaining());
+          }
           break;
 
         case MediaCodec.INFO_TRY_AGAIN_LATER:
@@ -146,7 +371,24 @@ public class AudioEncoder extends BaseCodec {
         default:
           ByteBuffer outputBuffer = getCodec().getOutputBuffers()[outputBufferIndex];
           int outputBufferSize = bufferInfo.size;
-          if (outputBufferSize > 10 /* skip small data */) {
+          if ((bufferInfo.flags & MediaCodec.BUFFER_FLAG_CODEC_CONFIG) != 0) {
+            /* the codec config is not an audio frame, deliver it separately */
+            deliverCodecConfig(outputBuffer, bufferInfo.offset, outputBufferSize);
+          } else if (isOpus()) {
+            if (outputBufferSize > 0) {
+              /* the opus packets are delimited by the transport, no header is added */
+              byte[] chunk = new byte[outputBufferSize];
+              int offset = bufferInfo.offset;
+              outputBuffer.position(offset);
+              outputBuffer.limit(outputBufferSize + offset);
+              outputBuffer.get(chunk, 0, outputBufferSize);
+              if (listener != null) {
+                listener.onEncode(chunk, outputBufferSize, bufferInfo.presentationTimeUs);
+              }
+
+              outputBuffer.clear();
+            }
+          } else if (outputBufferSize > 10 /* skip small data */) {
             int chunkSize = outputBufferSize + ADTS_SIZE;
             byte[] chunk = new byte[chunkSize];
             byte[] adst =
@@ -159,7 +401,7 @@ public class AudioEncoder extends BaseCodec {
             /* write encode data into chunk */
             outputBuffer.get(chunk, ADTS_SIZE, outputBufferSize);
             if (listener != null) {
-              listener.onEncode(chunk, chunkSize);
+              listener.onEncode(chunk, chunkSize, bufferInfo.presentationTimeUs);
             }
 
             outputBuffer.clear();
@@ -182,7 +424,43 @@ public class AudioEncoder extends BaseCodec {
     }
   }
 
+  private void deliverCodecConfig(ByteBuffer buffer, int offset, int size) {
+    if (codecConfigDelivered || size <= 0) {
+      return;
+    }
+
+    codecConfigDelivered = true;
+    byte[] csd = new byte[size];
+    ByteBuffer duplicate = buffer.duplicate();
+    duplicate.limit(offset + size);
+    duplicate.position(offset);
+    duplicate.get(csd);
+    Log.i(TAG, "CODEC CONFIG -> " + size + " bytes");
+    if (listener != null) {
+      listener.onCodecConfig(csd, size);
+    }
+  }
+
+  @Override public void setEos() {
+    if (getCodecFormat().isG711()) {
+      /* nothing is pending */
+      setState(CodecState.UNINITIALIZED);
+      Log.i(TAG, "STOP G.711 -> succeeded");
+      if (listener != null) {
+        listener.onStop();
+      }
+
+      return;
+    }
+
+    super.setEos();
+  }
+
   @Override public void startCodec() throws NullPointerException {
+    if (getCodecFormat().isG711()) {
+      return;
+    }
+
     if (isState(CodecState.PREPARING) || isState(CodecState.STOP)) {
       try {
         setState(CodecState.PREPARED);
@@ -0,0 +1,83 @@
+package com.ns.greg.library.mango.codec;
+
+/**
+ * @author gregho
+ * @since 2019/3/6
+ *
+ * <p>
+ * Tracks the sample rate and channel count of the incoming audio, so a format change is reported
+ * once when it happens instead of on every process loop. It also remembers the format last
+ * notified to the listener, so the reconfiguration and the output format of the restarted codec
+ * which follows it notify once between them.
+ * </p>
+ */
+final class AudioFormatTracker {
+
+  private int sampleRate;
+  private int channelCount;
+  private boolean changed;
+  /* the format last notified to the listener, 0 if none */
+  private int notifiedSampleRate;
+  private int notifiedChannelCount;
+
+  synchronized void reset(int sampleRate, int channelCount) {
+    this.sampleRate = sampleRate;
+    this.channelCount = channelCount;
+    this.changed = false;
+    this.notifiedSampleRate = 0;
+    this.notifiedChannelCount = 0;
+  }
+
+  /**
+   * Updates the format of the incoming audio
+   *
+   * @return true if the format is different from the current one
+   */
+  synchronized boolean update(int sampleRate, int channelCount) {
+    if (this.sampleRate == sampleRate && this.channelCount == channelCount) {
+      return false;
+    }
+
+    this.sampleRate = sampleRate;
+    this.channelCount = channelCount;
+    this.changed = true;
+    return true;
+  }
+
+  /**
+   * Consumes the pending change
+   *
+   * @return true only once per change
+   */
+  synchronized boolean consumeChange() {
+    if (changed) {
+      changed = false;
+      return true;
+    }
+
+    return false;
+  }
+
+  /**
+   * Decides whether the format is notified to the listener, it is remembered if so
+   *
+   * @return true if the format is different from the last notified one
+   */
+  synchronized boolean shouldNotify(int sampleRate, int channelCount) {
+    if (notifiedSampleRate == sampleRate && notifiedChannelCount == channelCount) {
+      return false;
+    }
+
+    notifiedSampleRate = sampleRate;
+    notifiedChannelCount = channelCount;
+    return true;
+  }
+
+  synchronized int getSampleRate() {
+    return sampleRate;
+  }
+
+  synchronized int getChannelCount() {
+    return channelCount;
+  }
+}
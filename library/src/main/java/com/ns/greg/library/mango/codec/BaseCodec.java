@@ -15,9 +15,12 @@ abstract class BaseCodec {
   /* init defines, do not modify */
   static final long TIMEOUT = 10_000L;
   static final String CSD_0 = "csd-0";
+  static final String CSD_1 = "csd-1";
+  static final String CSD_2 = "csd-2";
 
   private final CodecFormat codecFormat;
   private final AtomicBoolean atomicEos;
+  private final AtomicBoolean atomicFlush;
   private MediaFormat format;
   private volatile MediaCodec codec;
   private volatile CodecState state;
@@ -26,10 +29,15 @@ abstract class BaseCodec {
   /* media raw data */
   private volatile byte[] content;
   private volatile int contentLength;
+  private volatile int contentFlags;
+  private volatile long presentationTimeUs;
+  /* bumped by every content, the arrays may be reused by the caller */
+  private int contentSequence;
 
   BaseCodec(CodecFormat codecFormat) {
     this.codecFormat = codecFormat;
     this.atomicEos = new AtomicBoolean();
+    this.atomicFlush = new AtomicBoolean();
     setState(CodecState.UNINITIALIZED);
   }
 
@@ -94,6 +102,32 @@ abstract class BaseCodec {
   protected void setContent(byte[] content) {
     synchronized (this) {
       this.content = content;
+      if (content != null) {
+        contentSequence++;
+      }
+    }
+  }
+
+  /**
+   * @return the sequence of the content, read along with the content under the lock
+   */
+  int getContentSequence() {
+    synchronized (this) {
+      return contentSequence;
+    }
+  }
+
+  /**
+   * Clears the content only if it is still the one of the sequence, a content set meanwhile is
+   * kept for the next process
+   */
+  void clearContent(int sequence) {
+    synchronized (this) {
+      if (sequence == contentSequence) {
+        content = null;
+        contentLength = 0;
+        contentFlags = 0;
+      }
     }
   }
 
@@ -109,6 +143,43 @@ abstract class BaseCodec {
     }
   }
 
+  /**
+   * @return the buffer flags of the content, e.g. {@link MediaCodec#BUFFER_FLAG_KEY_FRAME}
+   */
+  protected int getContentFlags() {
+    synchronized (this) {
+      return contentFlags;
+    }
+  }
+
+  protected void setContentFlags(int contentFlags) {
+    synchronized (this) {
+      this.contentFlags = contentFlags;
+    }
+  }
+
+  /**
+   * @return true if the last content is not queued into the codec yet, the next content replaces
+   * it, so a source feeding as fast as it reads waits for this
+   */
+  public boolean isContentPending() {
+    synchronized (this) {
+      return content != null;
+    }
+  }
+
+  protected long getPresentationTimeUs() {
+    synchronized (this) {
+      return presentationTimeUs;
+    }
+  }
+
+  protected void setPresentationTimeUs(long presentationTimeUs) {
+    synchronized (this) {
+      this.presentationTimeUs = presentationTimeUs;
+    }
+  }
+
   boolean isEos() {
     return atomicEos.get();
   }
@@ -117,6 +188,34 @@ abstract class BaseCodec {
     atomicEos.set(true);
   }
 
+  /**
+   * Flushes the codec on its thread before the next input, the pending input and output are
+   * discarded without recreating the codec, used when seeking
+   */
+  public void flush() {
+    synchronized (this) {
+      content = null;
+      contentLength = 0;
+      contentFlags = 0;
+    }
+
+    atomicFlush.set(true);
+  }
+
+  /**
+   * @return true if a flush is requested but not done yet, the content read before it is stale
+   */
+  boolean isFlushPending() {
+    return atomicFlush.get();
+  }
+
+  void flushCodec() {
+    try {
+      getCodec().flush();
+    } catch (IllegalStateException ignored) {
+    }
+  }
+
   public void startCodec() throws NullPointerException {
     /* synchronized this to make sure only create one thread at once */
     if (processRunnable == null) {
@@ -181,6 +280,10 @@ abstract class BaseCodec {
 
     @Override public void run() {
       while (codec.isState(CodecState.PREPARED)) {
+        if (codec.atomicFlush.getAndSet(false)) {
+          codec.flushCodec();
+        }
+
         codec.process();
         codec.output();
       }
@@ -1,14 +1,25 @@
 package com.ns.greg.library.mango.codec;
 
 import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
 
 /**
  * @author gregho
  * @since 2018/12/6
  */
-class CodecConstants {
+public class CodecConstants {
 
   static final int ADTS_SIZE = 7;
+  /* opus always runs at 48 kHz internally, the pre-skip is in 48 kHz samples */
+  static final int OPUS_SAMPLE_RATE = 48000;
+  /* the pre-skip of libopus, 6.5 ms */
+  static final int OPUS_PRE_SKIP = 312;
+  /* the decoder needs 80 ms to converge after seeking */
+  static final long OPUS_SEEK_PRE_ROLL_NS = 80_000_000L;
+  /* opus frame duration used for the framing */
+  static final int OPUS_FRAME_MS = 20;
+  /* the common packet duration of G.711 */
+  static final int G711_PACKET_MS = 20;
   private static final int[] FREQUENCIES = new int[] {
       96000, 88200, 64000, 48000, 44100, 32000, 24000, 22050,
       16000, 12000, 11025, 8000, 7350
@@ -90,7 +101,10 @@ class CodecConstants {
     return adts;
   }
 
-  static ByteBuffer getAacCsd0(int sampleRate, int channelCount, int aacProfile) {
+  /**
+   * Gets the audio specific config of aac, the csd-0 of the decoder and the esds of mp4
+   */
+  public static ByteBuffer getAacCsd0(int sampleRate, int channelCount, int aacProfile) {
     int frequencyIndex = getFrequencyIndex(sampleRate);
     ByteBuffer csd0 = ByteBuffer.allocate(2);
     csd0.put((byte) ((aacProfile << 3) | (frequencyIndex >> 1)));
@@ -99,4 +113,38 @@ class CodecConstants {
     csd0.flip();
     return csd0;
   }
-}
\ No newline at end of file
+
+  /**
+   * Identification header of RFC 7845, the csd-0 of opus
+   *
+   * Magic Signature "OpusHead" (8), Version 1 (1), Channel Count (1), Pre-skip (2),
+   * Input Sample Rate (4), Output Gain (2), Channel Mapping Family 0 (1), all little-endian
+   */
+  static ByteBuffer getOpusHead(int channelCount, int preSkip, int inputSampleRate) {
+    ByteBuffer csd0 = ByteBuffer.allocate(19).order(ByteOrder.LITTLE_ENDIAN);
+    csd0.put(new byte[] { 'O', 'p', 'u', 's', 'H', 'e', 'a', 'd' });
+    csd0.put((byte) 1);
+    csd0.put((byte) channelCount);
+    csd0.putShort((short) preSkip);
+    csd0.putInt(inputSampleRate);
+    csd0.putShort((short) 0);
+    csd0.put((byte) 0);
+    csd0.flip();
+    return csd0;
+  }
+
+  /**
+   * The csd-1 and csd-2 of opus, the codec delay and the seek pre-roll in nanoseconds, native
+   * order
+   */
+  static ByteBuffer getOpusNanos(long nanos) {
+    ByteBuffer csd = ByteBuffer.allocate(8).order(ByteOrder.nativeOrder());
+    csd.putLong(nanos);
+    csd.flip();
+    return csd;
+  }
+
+  static long getOpusPreSkipNs(int preSkip) {
+    return preSkip * 1_000_000_000L / OPUS_SAMPLE_RATE;
+  }
+}
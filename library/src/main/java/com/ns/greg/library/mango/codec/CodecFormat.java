@@ -12,6 +12,11 @@ public enum CodecFormat {
    * Audio
    *-------------------------------*/
   AUDIO_AAC_LC("audio/mp4a-latm", MediaCodecInfo.CodecProfileLevel.AACObjectLC),
+  /* decoder on API 21+, encoder on API 29+ */
+  AUDIO_OPUS("audio/opus", -1),
+  /* pure Java, see G711 */
+  AUDIO_G711_ALAW("audio/g711-alaw", -1),
+  AUDIO_G711_MLAW("audio/g711-mlaw", -1),
   /*--------------------------------
    * Video
    *-------------------------------*/
@@ -33,4 +38,11 @@ public enum CodecFormat {
   public int getProfile() {
     return profile;
   }
+
+  /**
+   * @return true if coded by {@link G711} instead of the media codec
+   */
+  public boolean isG711() {
+    return this == AUDIO_G711_ALAW || this == AUDIO_G711_MLAW;
+  }
 }
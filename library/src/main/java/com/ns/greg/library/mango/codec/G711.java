@@ -0,0 +1,152 @@
+package com.ns.greg.library.mango.codec;
+
+/**
+ * @author gregho
+ * @since 2019/3/13
+ *
+ * <p>
+ * G.711 A-law and mu-law in pure Java, both directions are a single table lookup per sample. The
+ * pcm is little-endian 16-bit, the tables are built once when the class is loaded.
+ * </p>
+ */
+public final class G711 {
+
+  /* mu-law */
+  private static final int BIAS = 0x84;
+  private static final int CLIP = 32635;
+  /* indexed by the unsigned 16-bit sample */
+  private static final byte[] A_LAW_ENCODE = new byte[65536];
+  private static final byte[] MU_LAW_ENCODE = new byte[65536];
+  /* indexed by the unsigned code */
+  private static final short[] A_LAW_DECODE = new short[256];
+  private static final short[] MU_LAW_DECODE = new short[256];
+
+  static {
+    for (int i = 0; i < 65536; i++) {
+      A_LAW_ENCODE[i] = linearToALaw((short) i);
+      MU_LAW_ENCODE[i] = linearToMuLaw((short) i);
+    }
+
+    for (int i = 0; i < 256; i++) {
+      A_LAW_DECODE[i] = aLawToLinear((byte) i);
+      MU_LAW_DECODE[i] = muLawToLinear((byte) i);
+    }
+  }
+
+  private G711() {
+  }
+
+  /**
+   * Decodes the codes into the pcm
+   *
+   * @param codecFormat {@link CodecFormat#AUDIO_G711_ALAW} or {@link CodecFormat#AUDIO_G711_MLAW}
+   * @param dst the pcm, must hold 2 * length bytes from the offset
+   * @return length of the pcm
+   */
+  public static int decode(CodecFormat codecFormat, byte[] src, int srcOffset, int length,
+      byte[] dst, int dstOffset) {
+    short[] table = codecFormat == CodecFormat.AUDIO_G711_ALAW ? A_LAW_DECODE : MU_LAW_DECODE;
+    for (int i = 0; i < length; i++) {
+      short sample = table[src[srcOffset + i] & 0xFF];
+      int index = dstOffset + 2 * i;
+      dst[index] = (byte) sample;
+      dst[index + 1] = (byte) (sample >> 8);
+    }
+
+    return 2 * length;
+  }
+
+  /**
+   * Encodes the pcm into the codes
+   *
+   * @param codecFormat {@link CodecFormat#AUDIO_G711_ALAW} or {@link CodecFormat#AUDIO_G711_MLAW}
+   * @param dst the codes, must hold length / 2 bytes from the offset
+   * @return length of the codes
+   */
+  public static int encode(CodecFormat codecFormat, byte[] src, int srcOffset, int length,
+      byte[] dst, int dstOffset) {
+    byte[] table = codecFormat == CodecFormat.AUDIO_G711_ALAW ? A_LAW_ENCODE : MU_LAW_ENCODE;
+    int samples = length / 2;
+    for (int i = 0; i < samples; i++) {
+      int index = srcOffset + 2 * i;
+      dst[dstOffset + i] = table[(src[index] & 0xFF) | ((src[index + 1] & 0xFF) << 8)];
+    }
+
+    return samples;
+  }
+
+  /*--------------------------------
+   * Reference conversions, for the tables
+   *-------------------------------*/
+
+  static byte linearToALaw(short sample) {
+    /* 13-bit magnitude */
+    int value = sample >> 3;
+    int mask;
+    if (value >= 0) {
+      mask = 0xD5;
+    } else {
+      mask = 0x55;
+      value = -value - 1;
+    }
+
+    int segment = 0;
+    while (segment < 8 && value > (0x20 << segment) - 1) {
+      segment++;
+    }
+
+    if (segment >= 8) {
+      return (byte) (0x7F ^ mask);
+    }
+
+    int code = segment << 4;
+    if (segment < 2) {
+      code |= (value >> 1) & 0x0F;
+    } else {
+      code |= (value >> segment) & 0x0F;
+    }
+
+    return (byte) (code ^ mask);
+  }
+
+  static short aLawToLinear(byte code) {
+    int value = (code & 0xFF) ^ 0x55;
+    int linear = (value & 0x0F) << 4;
+    int segment = (value & 0x70) >> 4;
+    if (segment == 0) {
+      linear += 8;
+    } else {
+      linear = (linear + 0x108) << (segment - 1);
+    }
+
+    return (short) ((value & 0x80) != 0 ? linear : -linear);
+  }
+
+  static byte linearToMuLaw(short sample) {
+    int value = sample;
+    int sign = (value >> 8) & 0x80;
+    if (sign != 0) {
+      value = -value;
+    }
+
+    if (value > CLIP) {
+      value = CLIP;
+    }
+
+    value += BIAS;
+    int exponent = 7;
+    while (exponent > 0 && (value & (0x4000 >> (7 - exponent))) == 0) {
+      exponent--;
+    }
+
+    int mantissa = (value >> (exponent + 3)) & 0x0F;
+    return (byte) ~(sign | (exponent << 4) | mantissa);
+  }
+
+  static short muLawToLinear(byte code) {
+    int value = ~code & 0xFF;
+    int linear = ((value & 0x0F) << 3) + BIAS;
+    linear <<= (value & 0x70) >> 4;
+    return (short) ((value & 0x80) != 0 ? BIAS - linear : linear - BIAS);
+  }
+}
@@ -0,0 +1,21 @@
+package com.ns.greg.library.mango.codec;
+
+/**
+ * @author gregho
+ * @since 2019/3/4
+ *
+ * <p>
+ * A playback clock which the video output is scheduled against.
+ * </p>
+ */
+public interface MediaClock {
+
+  long TIME_UNSET = Long.MIN_VALUE;
+
+  /**
+   * Gets the current playback position
+   *
+   * @return position in microseconds, or {@link #TIME_UNSET} when the clock is not running
+   */
+  long getPositionUs();
+}
@@ -47,12 +47,51 @@ public class MediaFormatBuilder {
     return this;
   }
 
+  /**
+   * Sets the audio specific config of aac as the csd-0
+   */
+  public MediaFormatBuilder setAacCsd0(int sampleRate, int channelCount, int aacProfile) {
+    mediaFormat.setByteBuffer(BaseCodec.CSD_0,
+        CodecConstants.getAacCsd0(sampleRate, channelCount, aacProfile));
+    return this;
+  }
+
   @RequiresApi(api = Build.VERSION_CODES.LOLLIPOP)
   public MediaFormatBuilder setAacSbrMode(int mode) {
     mediaFormat.setInteger(MediaFormat.KEY_AAC_SBR_MODE, mode);
     return this;
   }
 
+  public MediaFormatBuilder setFrameRate(int frameRate) {
+    mediaFormat.setInteger(MediaFormat.KEY_FRAME_RATE, frameRate);
+    return this;
+  }
+
+  /**
+   * Sets the key frame interval in seconds, the fraction is rounded up before N MR1, 0 for all
+   * key frames and a negative for the first key frame only
+   */
+  public MediaFormatBuilder setIFrameInterval(float seconds) {
+    if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.N_MR1) {
+      mediaFormat.setFloat(MediaFormat.KEY_I_FRAME_INTERVAL, seconds);
+    } else {
+      mediaFormat.setInteger(MediaFormat.KEY_I_FRAME_INTERVAL, (int) Math.ceil(seconds));
+    }
+
+    return this;
+  }
+
+  public MediaFormatBuilder setColorFormat(int colorFormat) {
+    mediaFormat.setInteger(MediaFormat.KEY_COLOR_FORMAT, colorFormat);
+    return this;
+  }
+
+  @RequiresApi(api = Build.VERSION_CODES.LOLLIPOP)
+  public MediaFormatBuilder setBitrateMode(int mode) {
+    mediaFormat.setInteger(MediaFormat.KEY_BITRATE_MODE, mode);
+    return this;
+  }
+
   public MediaFormat build() {
     return mediaFormat;
   }
@@ -7,6 +7,7 @@ import android.view.Surface;
 
 import java.io.IOException;
 import java.nio.ByteBuffer;
+import java.util.Arrays;
 
 /**
  * @author gregho
@@ -16,6 +17,12 @@ public class VideoDecoder extends BaseCodec {
 
   /* init defines, do not modify */
   private static final String TAG = "VideoDecoder";
+  private static final long DEFAULT_LATE_THRESHOLD_US = 50_000L;
+  private static final long MAX_EARLY_US = 1_000_000L;
+  private static final long MAX_SLEEP_MS = 100L;
+  /* timed inputs tracked until output, more than the codec holds */
+  private static final int MAX_TIMED_INPUTS = 64;
+  private static final long NO_INPUT = Long.MIN_VALUE;
 
   /* rendered surface */
   private Surface surface;
@@ -25,9 +32,21 @@ public class VideoDecoder extends BaseCodec {
   /* video resolution */
   private int width;
   private int height;
+  /* a/v synchronization */
+  private volatile MediaClock clock;
+  /* the content has a presentation time, guarded by this */
+  private boolean contentTimed;
+  /* presentation times of the timed inputs not output yet, on the codec thread, the oldest is
+   * overwritten if the codec drops them */
+  private final long[] timedInputs = new long[MAX_TIMED_INPUTS];
+  private int nextTimedInput;
+  private volatile long lateThresholdUs = DEFAULT_LATE_THRESHOLD_US;
+  private volatile long syncErrorUs;
+  private volatile long droppedFrames;
 
   public VideoDecoder(CodecFormat codecFormat) {
     super(codecFormat);
+    Arrays.fill(timedInputs, NO_INPUT);
   }
 
   /*--------------------------------
@@ -42,6 +61,42 @@ public class VideoDecoder extends BaseCodec {
     return surface;
   }
 
+  /*--------------------------------
+   * Synchronization functions
+   *-------------------------------*/
+
+  /**
+   * Sets the clock which the decoded frames are scheduled against, the frames are rendered as soon
+   * as decoded when there is no clock or the clock is not running.
+   *
+   * @param clock master clock, normally the audio output
+   */
+  public void setClock(MediaClock clock) {
+    this.clock = clock;
+  }
+
+  /**
+   * Sets how late a frame can be before it is dropped instead of rendered
+   *
+   * @param lateThresholdUs threshold in microseconds
+   */
+  public void setLateThresholdUs(long lateThresholdUs) {
+    this.lateThresholdUs = lateThresholdUs;
+  }
+
+  /**
+   * Gets the difference between the last frame and the clock, positive means the video is ahead
+   *
+   * @return sync error in microseconds
+   */
+  public long getSyncErrorUs() {
+    return syncErrorUs;
+  }
+
+  public long getDroppedFrames() {
+    return droppedFrames;
+  }
+
   /*--------------------------------
    * Codec functions
    *-------------------------------*/
@@ -101,20 +156,76 @@ public class VideoDecoder extends BaseCodec {
     synchronized (this) {
       setContent(content);
       setContentLength(contentLength);
+      setContentFlags(0);
+      setPresentationTimeUs(0L);
+      contentTimed = false;
+    }
+  }
+
+  /**
+   * Decode the raw video data with its presentation time, which is used to schedule the frame
+   * against the {@link MediaClock}
+   *
+   * @param content video data
+   * @param contentLength length of video data
+   * @param playTimeMs play time ms
+   */
+  public void decode(byte[] content, int contentLength, long playTimeMs) {
+    synchronized (this) {
+      setContent(content);
+      setContentLength(contentLength);
+      setContentFlags(0);
+      setPresentationTimeUs(playTimeMs * 1000L);
+      contentTimed = true;
+    }
+  }
+
+  /**
+   * Decodes a demuxed sample with its presentation time and flags
+   *
+   * @param content access unit in Annex-B format
+   * @param contentLength length of the access unit
+   * @param presentationTimeUs presentation time in microseconds
+   * @param flags buffer flags, e.g. {@link MediaCodec#BUFFER_FLAG_KEY_FRAME}
+   */
+  public void decodeSample(byte[] content, int contentLength, long presentationTimeUs, int flags) {
+    synchronized (this) {
+      setContent(content);
+      setContentLength(contentLength);
+      setContentFlags(flags);
+      setPresentationTimeUs(presentationTimeUs);
+      contentTimed = true;
     }
   }
 
   @Override
   void process() {
+    /* one snapshot, so the bytes are never paired with the time or flags of a newer content */
+    byte[] content;
+    int contentLength;
+    long presentationTimeUs;
+    int contentFlags;
+    boolean timed;
+    int sequence;
+    synchronized (this) {
+      content = getContent();
+      contentLength = getContentLength();
+      presentationTimeUs = getPresentationTimeUs();
+      contentFlags = getContentFlags();
+      timed = contentTimed;
+      sequence = getContentSequence();
+    }
+
     try {
-      byte[] content = getContent();
-      int contentLength = getContentLength();
       if (content != null && contentLength > 0) {
         int inputBufferIndex = getCodec().dequeueInputBuffer(TIMEOUT);
         if (inputBufferIndex >= 0) {
           if (isEos()) {
             getCodec().queueInputBuffer(inputBufferIndex, 0, 0, 0,
                 MediaCodec.BUFFER_FLAG_END_OF_STREAM);
+          } else if (isFlushPending()) {
+            /* read before the flush, the input buffer is given back by the flush */
+            return;
           } else {
             ByteBuffer inputBuffer;
             if (Build.VERSION.SDK_INT < Build.VERSION_CODES.LOLLIPOP) {
@@ -126,15 +237,21 @@ public class VideoDecoder extends BaseCodec {
             if (inputBuffer != null) {
               inputBuffer.clear();
               inputBuffer.put(content, 0, contentLength);
-              getCodec().queueInputBuffer(inputBufferIndex, 0, contentLength, 0L, 0);
+              getCodec().queueInputBuffer(inputBufferIndex, 0, contentLength,
+                  presentationTimeUs, contentFlags);
+              if (timed) {
+                addTimedInput(presentationTimeUs);
+              }
             }
           }
+
+          /* clear decode content once queued, a content set meanwhile is kept */
+          clearContent(sequence);
         }
-        /* clear decode content */
-        setContent(null);
-        setContentLength(0);
       }
-    } catch (Exception ignored) {
+    } catch (Exception e) {
+      /* dropped, e.g. larger than the input buffer */
+      clearContent(sequence);
     }
   }
 
@@ -157,7 +274,7 @@ public class VideoDecoder extends BaseCodec {
           break;
 
         default:
-          getCodec().releaseOutputBuffer(outputBufferIndex, true);
+          render(outputBufferIndex, bufferInfo.presentationTimeUs);
           break;
       }
 
@@ -170,11 +287,65 @@ public class VideoDecoder extends BaseCodec {
     }
   }
 
+  private void render(int outputBufferIndex, long presentationTimeUs)
+      throws InterruptedException {
+    MediaClock clock = this.clock;
+    boolean timed = removeTimedInput(presentationTimeUs);
+    long positionUs = clock != null && timed ? clock.getPositionUs() : MediaClock.TIME_UNSET;
+    if (positionUs == MediaClock.TIME_UNSET) {
+      getCodec().releaseOutputBuffer(outputBufferIndex, true);
+      return;
+    }
+
+    long earlyUs = presentationTimeUs - positionUs;
+    syncErrorUs = earlyUs;
+    if (earlyUs < -lateThresholdUs) {
+      /* too late, drop it */
+      droppedFrames++;
+      getCodec().releaseOutputBuffer(outputBufferIndex, false);
+    } else if (earlyUs <= 0 || earlyUs > MAX_EARLY_US) {
+      /* on time, or discontinuity of the timeline */
+      getCodec().releaseOutputBuffer(outputBufferIndex, true);
+    } else if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.LOLLIPOP) {
+      getCodec().releaseOutputBuffer(outputBufferIndex, System.nanoTime() + earlyUs * 1000L);
+    } else {
+      Thread.sleep(Math.min(earlyUs / 1000L, MAX_SLEEP_MS));
+      getCodec().releaseOutputBuffer(outputBufferIndex, true);
+    }
+  }
+
+  private void addTimedInput(long presentationTimeUs) {
+    timedInputs[nextTimedInput] = presentationTimeUs;
+    nextTimedInput = (nextTimedInput + 1) % MAX_TIMED_INPUTS;
+  }
+
+  /**
+   * @return true if the output is of a timed input
+   */
+  private boolean removeTimedInput(long presentationTimeUs) {
+    for (int i = 0; i < MAX_TIMED_INPUTS; i++) {
+      if (timedInputs[i] == presentationTimeUs) {
+        timedInputs[i] = NO_INPUT;
+        return true;
+      }
+    }
+
+    return false;
+  }
+
+  @Override
+  void flushCodec() {
+    super.flushCodec();
+    /* the queued inputs are discarded */
+    Arrays.fill(timedInputs, NO_INPUT);
+  }
+
   @Override
   public void startCodec() throws NullPointerException {
     if (isState(CodecState.PREPARING) || isState(CodecState.STOP)) {
       try {
         setState(CodecState.PREPARED);
+        Arrays.fill(timedInputs, NO_INPUT);
         super.startCodec();
         Log.i(TAG, "START CODEC -> succeeded");
       } catch (NullPointerException e) {
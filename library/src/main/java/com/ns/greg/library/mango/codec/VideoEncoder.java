@@ -0,0 +1,465 @@
+package com.ns.greg.library.mango.codec;
+
+import android.media.MediaCodec;
+import android.media.MediaCodecInfo;
+import android.os.Build;
+import android.os.Bundle;
+import android.util.Log;
+import android.view.Surface;
+import com.ns.greg.library.mango.codec.listener.EncodeListener;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+
+/**
+ * @author gregho
+ * @since 2019/3/21
+ *
+ * <p>
+ * Encodes the frames drawn into the input surface, e.g. by the camera or GL, so the frames never
+ * pass through the byte arrays. The surface is created between configured and started, get it by
+ * {@link #getInputSurface()} after {@link #prepare(int, int, int, int, EncodeListener)}.
+ *
+ * The access units are delivered in Annex-B format, or with a 4 bytes length in front of each nal
+ * unit by {@link #setLengthPrefixed(boolean)}, the codec config is delivered once before them in
+ * the same format. The chunk is reused after {@link EncodeListener#onEncode(byte[], int, long)}
+ * returns, and {@link #isKeyFrame()} tells whether it is a key frame during the call.
+ *
+ * Support:
+ * 1. H.264, H.265
+ * 2. bitrate mode CQ, VBR and CBR, API 21+
+ * 3. sync frame requests and bitrate changes while encoding, API 19+
+ * </p>
+ */
+public class VideoEncoder extends BaseCodec {
+
+  /* init defines, do not modify */
+  private static final String TAG = "VideoEncoder";
+  public static final int BITRATE_MODE_CQ = MediaCodecInfo.EncoderCapabilities.BITRATE_MODE_CQ;
+  public static final int BITRATE_MODE_VBR = MediaCodecInfo.EncoderCapabilities.BITRATE_MODE_VBR;
+  public static final int BITRATE_MODE_CBR = MediaCodecInfo.EncoderCapabilities.BITRATE_MODE_CBR;
+  private static final int INITIAL_CHUNK_SIZE = 64 * 1024;
+
+  /* video resolution */
+  private int width;
+  private int height;
+  /* rate control */
+  private int frameRate;
+  private int bitRate;
+  private int bitrateMode = BITRATE_MODE_VBR;
+  private int gopLength;
+  private boolean lengthPrefixed;
+  private EncodeListener listener;
+  private Surface inputSurface;
+  private boolean eosSignaled;
+  private boolean codecConfigDelivered;
+  private boolean keyFrame;
+  /* output chunks, reused */
+  private byte[] annexB = new byte[INITIAL_CHUNK_SIZE];
+  private byte[] chunk = new byte[INITIAL_CHUNK_SIZE];
+
+  /**
+   * @param codecFormat {@link CodecFormat#VIDEO_AVC} or {@link CodecFormat#VIDEO_HEVC}
+   */
+  public VideoEncoder(CodecFormat codecFormat) {
+    super(codecFormat);
+    if (codecFormat != CodecFormat.VIDEO_AVC && codecFormat != CodecFormat.VIDEO_HEVC) {
+      throw new IllegalArgumentException("Unacceptable codec format: " + codecFormat);
+    }
+  }
+
+  /*--------------------------------
+   * Configuration functions
+   *-------------------------------*/
+
+  /**
+   * Sets the bitrate mode, must be called before {@link #prepare(int, int, int, int,
+   * EncodeListener)}, it is ignored before API 21 and the bitrate is ignored by the CQ mode
+   *
+   * @param bitrateMode {@link #BITRATE_MODE_CQ}, {@link #BITRATE_MODE_VBR} or {@link
+   * #BITRATE_MODE_CBR}
+   */
+  public void setBitrateMode(int bitrateMode) {
+    if (bitrateMode != BITRATE_MODE_CQ && bitrateMode != BITRATE_MODE_VBR
+        && bitrateMode != BITRATE_MODE_CBR) {
+      throw new IllegalArgumentException("Unacceptable bitrate mode: " + bitrateMode);
+    }
+
+    this.bitrateMode = bitrateMode;
+  }
+
+  /**
+   * Sets the frames from a key frame to the next, must be called before {@link #prepare(int, int,
+   * int, int, EncodeListener)}, it is a second of frames by default
+   *
+   * @param gopLength frames of a group of pictures, 1 for all key frames
+   */
+  public void setGopLength(int gopLength) {
+    if (gopLength <= 0) {
+      throw new IllegalArgumentException("Unacceptable gop length: " + gopLength);
+    }
+
+    this.gopLength = gopLength;
+  }
+
+  /**
+   * Delivers the nal units with a 4 bytes big-endian length instead of the start code, e.g. for
+   * mp4 samples, must be called before {@link #prepare(int, int, int, int, EncodeListener)}
+   */
+  public void setLengthPrefixed(boolean lengthPrefixed) {
+    this.lengthPrefixed = lengthPrefixed;
+  }
+
+  /*--------------------------------
+   * Codec functions
+   *-------------------------------*/
+
+  public void prepare(int width, int height, int frameRate, int bitRate,
+      EncodeListener listener) {
+    if (frameRate <= 0) {
+      throw new IllegalArgumentException("Unacceptable frame rate: " + frameRate);
+    }
+
+    synchronized (this) {
+      setState(CodecState.PREPARING);
+      this.listener = listener;
+      this.width = width;
+      this.height = height;
+      this.frameRate = frameRate;
+      this.bitRate = bitRate;
+      eosSignaled = false;
+      codecConfigDelivered = false;
+      initMediaFormat();
+      initCodec();
+    }
+  }
+
+  @Override protected void initMediaFormat() {
+    int frames = gopLength > 0 ? gopLength : frameRate;
+    MediaFormatBuilder builder = MediaFormatBuilder.videoFormat(getMimeType(), width, height)
+        .setColorFormat(MediaCodecInfo.CodecCapabilities.COLOR_FormatSurface)
+        .setBitRate(bitRate)
+        .setFrameRate(frameRate)
+        .setIFrameInterval(frames == 1 ? 0f : (float) frames / frameRate);
+    if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.LOLLIPOP) {
+      builder.setBitrateMode(bitrateMode);
+    }
+
+    setFormat(builder.build());
+  }
+
+  @Override protected void initCodec() {
+    try {
+      MediaCodec codec = MediaCodec.createEncoderByType(getMimeType());
+      codec.configure(getFormat(), null, null, MediaCodec.CONFIGURE_FLAG_ENCODE);
+      /* only between configure and start */
+      inputSurface = codec.createInputSurface();
+      setCodec(codec);
+      startCodec();
+    } catch (IOException e) {
+      setState(CodecState.FAILED);
+      e.printStackTrace();
+      Log.i(TAG, "INIT CODEC -> failed, I/O exception");
+    } catch (IllegalArgumentException | IllegalStateException e) {
+      /* e.g. the bitrate mode or the resolution is not supported */
+      setState(CodecState.FAILED);
+      e.printStackTrace();
+      Log.i(TAG, "INIT CODEC -> failed, not configured");
+    }
+  }
+
+  /**
+   * @return the surface to draw the frames into, null if not prepared, it is released along with
+   * the codec
+   */
+  public Surface getInputSurface() {
+    synchronized (this) {
+      return inputSurface;
+    }
+  }
+
+  /*--------------------------------
+   * Rate control functions
+   *-------------------------------*/
+
+  /**
+   * Requests a key frame as soon as possible, e.g. when a receiver joins or reports a loss
+   */
+  public void requestSyncFrame() {
+    Bundle parameters = new Bundle();
+    parameters.putInt(MediaCodec.PARAMETER_KEY_REQUEST_SYNC_FRAME, 0);
+    if (setParameters(parameters)) {
+      Log.i(TAG, "REQUEST SYNC FRAME -> succeeded");
+    }
+  }
+
+  /**
+   * Changes the bitrate while encoding without restarting the codec, it takes effect within a few
+   * frames and is ignored by the CQ mode
+   */
+  public void setBitRate(int bitRate) {
+    if (bitRate <= 0) {
+      throw new IllegalArgumentException("Unacceptable bitrate: " + bitRate);
+    }
+
+    Bundle parameters = new Bundle();
+    parameters.putInt(MediaCodec.PARAMETER_KEY_VIDEO_BITRATE, bitRate);
+    if (setParameters(parameters)) {
+      this.bitRate = bitRate;
+      Log.i(TAG, "SET BITRATE -> " + bitRate);
+    }
+  }
+
+  public int getBitRate() {
+    return bitRate;
+  }
+
+  private boolean setParameters(Bundle parameters) {
+    if (Build.VERSION.SDK_INT < Build.VERSION_CODES.KITKAT) {
+      Log.i(TAG, "SET PARAMETERS -> failed, needs API 19");
+      return false;
+    }
+
+    if (!isState(CodecState.PREPARED)) {
+      Log.i(TAG, "SET PARAMETERS -> failed, illegal state");
+      return false;
+    }
+
+    try {
+      getCodec().setParameters(parameters);
+      return true;
+    } catch (NullPointerException | IllegalStateException e) {
+      Log.i(TAG, "SET PARAMETERS -> failed, " + e.getMessage());
+      return false;
+    }
+  }
+
+  /*--------------------------------
+   * Encoding functions
+   *-------------------------------*/
+
+  /**
+   * @return whether the chunk being delivered by {@link EncodeListener#onEncode(byte[], int,
+   * long)} is a key frame
+   */
+  public boolean isKeyFrame() {
+    return keyFrame;
+  }
+
+  @Override void process() {
+    /* the frames come from the input surface, only the end of stream is signaled here */
+    if (isEos() && !eosSignaled) {
+      try {
+        getCodec().signalEndOfInputStream();
+        eosSignaled = true;
+        Log.i(TAG, "SIGNAL END OF STREAM -> succeeded");
+      } catch (Exception ignored) {
+      }
+    }
+  }
+
+  @Override void output() {
+    try {
+      MediaCodec.BufferInfo bufferInfo = new MediaCodec.BufferInfo();
+      int outputBufferIndex = getCodec().dequeueOutputBuffer(bufferInfo, TIMEOUT);
+      switch (outputBufferIndex) {
+        case MediaCodec.INFO_OUTPUT_BUFFERS_CHANGED:
+          /* ignored */
+          break;
+
+        case MediaCodec.INFO_OUTPUT_FORMAT_CHANGED:
+          /* some encoders only put the codec config into the output format */
+          deliverCodecConfig(getCodec().getOutputFormat().getByteBuffer(CSD_0),
+              getCodec().getOutputFormat().getByteBuffer(CSD_1));
+          break;
+
+        case MediaCodec.INFO_TRY_AGAIN_LATER:
+          /* ignored */
+          break;
+
+        default:
+          ByteBuffer outputBuffer;
+          if (Build.VERSION.SDK_INT <= Build.VERSION_CODES.LOLLIPOP) {
+            outputBuffer = getCodec().getOutputBuffers()[outputBufferIndex];
+          } else {
+            outputBuffer = getCodec().getOutputBuffer(outputBufferIndex);
+          }
+
+          int outputBufferSize = bufferInfo.size;
+          if (outputBuffer != null && outputBufferSize > 0) {
+            ByteBuffer duplicate = outputBuffer.duplicate();
+            duplicate.limit(bufferInfo.offset + outputBufferSize);
+            duplicate.position(bufferInfo.offset);
+            if ((bufferInfo.flags & MediaCodec.BUFFER_FLAG_CODEC_CONFIG) != 0) {
+              /* the codec config is not a frame, deliver it separately */
+              deliverCodecConfig(duplicate, null);
+            } else {
+              annexB = ensureCapacity(annexB, outputBufferSize);
+              duplicate.get(annexB, 0, outputBufferSize);
+              keyFrame = (bufferInfo.flags & MediaCodec.BUFFER_FLAG_KEY_FRAME) != 0;
+              deliver(annexB, outputBufferSize, bufferInfo.presentationTimeUs);
+            }
+          }
+
+          getCodec().releaseOutputBuffer(outputBufferIndex, false);
+          break;
+      }
+
+      if ((bufferInfo.flags & MediaCodec.BUFFER_FLAG_END_OF_STREAM) != 0) {
+        Log.i(TAG, "MEET FLAG -> `END OF STREAM`");
+        if (listener != null) {
+          listener.onStop();
+        }
+
+        stopCodec();
+        releaseCodec();
+      }
+    } catch (Exception ignored) {
+    }
+  }
+
+  /**
+   * Delivers the codec config once, the parameter sets are in Annex-B format from the encoder
+   *
+   * @param csd1 the pps of H.264 in the output format, null otherwise
+   */
+  private void deliverCodecConfig(ByteBuffer csd0, ByteBuffer csd1) {
+    if (codecConfigDelivered || csd0 == null || !csd0.hasRemaining()) {
+      return;
+    }
+
+    int csd0Size = csd0.remaining();
+    int csd1Size = csd1 != null ? csd1.remaining() : 0;
+    byte[] csd = new byte[csd0Size + csd1Size];
+    csd0.duplicate().get(csd, 0, csd0Size);
+    if (csd1Size > 0) {
+      csd1.duplicate().get(csd, csd0Size, csd1Size);
+    }
+
+    codecConfigDelivered = true;
+    Log.i(TAG, "CODEC CONFIG -> " + csd.length + " bytes");
+    if (listener == null) {
+      return;
+    }
+
+    if (lengthPrefixed) {
+      byte[] prefixed = new byte[getPrefixedCapacity(csd.length)];
+      int length = toLengthPrefixed(csd, csd.length, prefixed);
+      listener.onCodecConfig(prefixed, length);
+    } else {
+      listener.onCodecConfig(csd, csd.length);
+    }
+  }
+
+  private void deliver(byte[] accessUnit, int length, long presentationTimeUs) {
+    if (listener == null) {
+      return;
+    }
+
+    if (lengthPrefixed) {
+      chunk = ensureCapacity(chunk, getPrefixedCapacity(length));
+      listener.onEncode(chunk, toLengthPrefixed(accessUnit, length, chunk), presentationTimeUs);
+    } else {
+      listener.onEncode(accessUnit, length, presentationTimeUs);
+    }
+  }
+
+  /**
+   * Replaces the start codes by the 4 bytes lengths of the nal units
+   *
+   * @return length of the output
+   */
+  private int toLengthPrefixed(byte[] data, int length, byte[] output) {
+    int outputLength = 0;
+    int nalStart = AnnexB.findNalStart(data, 0, length);
+    while (nalStart >= 0 && nalStart < length) {
+      int nalEnd = AnnexB.findNalEnd(data, nalStart, length);
+      int nalSize = nalEnd - nalStart;
+      output[outputLength++] = (byte) (nalSize >>> 24);
+      output[outputLength++] = (byte) (nalSize >>> 16);
+      output[outputLength++] = (byte) (nalSize >>> 8);
+      output[outputLength++] = (byte) nalSize;
+      System.arraycopy(data, nalStart, output, outputLength, nalSize);
+      outputLength += nalSize;
+      nalStart = AnnexB.findNalStart(data, nalEnd, length);
+    }
+
+    return outputLength;
+  }
+
+  /**
+   * @return the output size at most, a 3 bytes start code becomes 4 bytes and a nal unit is at
+   * least a byte
+   */
+  private static int getPrefixedCapacity(int length) {
+    return length + length / 4 + 4;
+  }
+
+  private static byte[] ensureCapacity(byte[] array, int capacity) {
+    return array.length >= capacity ? array : Arrays.copyOf(array, Math.max(capacity,
+        array.length * 2));
+  }
+
+  /*--------------------------------
+   * State functions
+   *-------------------------------*/
+
+  @Override public void startCodec() throws NullPointerException {
+    if (isState(CodecState.PREPARING) || isState(CodecState.STOP)) {
+      try {
+        setState(CodecState.PREPARED);
+        super.startCodec();
+        Log.i(TAG, "START CODEC -> succeeded");
+      } catch (NullPointerException e) {
+        setState(CodecState.UNINITIALIZED);
+        Log.i(TAG, "START CODEC -> failed, no instance");
+      } catch (IllegalStateException e) {
+        setState(CodecState.UNINITIALIZED);
+        Log.i(TAG, "START CODEC -> failed, not configured");
+      }
+    } else {
+      Log.i(TAG, "START CODEC -> failed, illegal state");
+    }
+  }
+
+  @Override void stopCodec() {
+    if (isState(CodecState.PREPARED)) {
+      try {
+        setState(CodecState.STOP);
+        super.stopCodec();
+        Log.i(TAG, "STOP CODEC -> succeeded");
+      } catch (NullPointerException e) {
+        setState(CodecState.UNINITIALIZED);
+        Log.i(TAG, "STOP CODEC -> failed, no instance");
+      } catch (IllegalStateException e) {
+        e.printStackTrace();
+        Log.i(TAG, "STOP CODEC -> failed, is in release state");
+      }
+    } else {
+      Log.i(TAG, "STOP CODEC -> failed, illegal state");
+    }
+  }
+
+  @Override void releaseCodec() {
+    if (isState(CodecState.STOP)) {
+      try {
+        setState(CodecState.RELEASE);
+        super.releaseCodec();
+        Log.i(TAG, "RELEASE CODEC -> succeeded");
+      } catch (NullPointerException e) {
+        setState(CodecState.UNINITIALIZED);
+        Log.i(TAG, "RELEASE CODEC -> failed, no instance");
+      }
+    } else {
+      Log.i(TAG, "RELEASE CODEC -> failed, illegal state");
+    }
+
+    synchronized (this) {
+      if (inputSurface != null) {
+        inputSurface.release();
+        inputSurface = null;
+      }
+    }
+  }
+}
@@ -2,13 +2,38 @@ package com.ns.greg.library.mango.codec.listener;
 
 import android.media.MediaFormat;
 
+import java.nio.ByteBuffer;
+
 /**
  * @author gregho
  * @since 2018/12/7
  */
 public interface DecodeListener {
 
-  void onDecode(byte[] chunk, int length);
+  /**
+   * Called by {@link #onDecode(byte[], int, long)} unless it is overridden
+   */
+  default void onDecode(byte[] chunk, int length) {
+  }
+
+  default void onDecode(byte[] chunk, int length, long presentationTimeUs) {
+    onDecode(chunk, length);
+  }
+
+  /**
+   * Called with the codec output buffer on API 21+, the buffer is released back to the codec once
+   * this returns, so it must be consumed here. The buffer is copied into
+   * {@link #onDecode(byte[], int, long)} by default, override it to skip the copy.
+   *
+   * @param buffer output buffer, positioned at the decoded data
+   * @param length length of decoded data
+   * @param presentationTimeUs presentation time of decoded data
+   */
+  default void onDecode(ByteBuffer buffer, int length, long presentationTimeUs) {
+    byte[] chunk = new byte[length];
+    buffer.duplicate().get(chunk, 0, length);
+    onDecode(chunk, length, presentationTimeUs);
+  }
 
   void onFormatChanged(MediaFormat format);
 }
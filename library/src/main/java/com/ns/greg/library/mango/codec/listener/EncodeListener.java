@@ -6,7 +6,23 @@ package com.ns.greg.library.mango.codec.listener;
  */
 public interface EncodeListener {
 
-  void onEncode(byte[] chunk, int length);
+  /**
+   * Called once before the first encoded chunk
+   *
+   * @param csd the codec specific data, the same as csd-0 of the output format
+   */
+  default void onCodecConfig(byte[] csd, int length) {
+  }
+
+  /**
+   * Called by {@link #onEncode(byte[], int, long)} unless it is overridden
+   */
+  default void onEncode(byte[] chunk, int length) {
+  }
+
+  default void onEncode(byte[] chunk, int length, long presentationTimeUs) {
+    onEncode(chunk, length);
+  }
 
   void onStop();
 }
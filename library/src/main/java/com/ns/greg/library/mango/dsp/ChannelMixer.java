@@ -0,0 +1,106 @@
+package com.ns.greg.library.mango.dsp;
+
+/**
+ * @author gregho
+ * @since 2019/3/7
+ *
+ * <p>
+ * Down/up mixes interleaved 16-bit pcm between mono, stereo and 5.1, the 5.1 layout follows
+ * Android: FL, FR, FC, LFE, BL, BR.
+ *
+ * Down mixing follows ITU-R BS.775 (center and surround at -3 dB, LFE dropped) with saturation,
+ * other layouts copy the common channels and silence the rest.
+ * </p>
+ */
+public final class ChannelMixer {
+
+  private static final int MINUS_3DB_Q15 = 23170;
+
+  private ChannelMixer() {
+  }
+
+  /**
+   * Mixes the frames, the input and output can be the same array if it is large enough
+   *
+   * @param input interleaved input samples
+   * @param inputChannels input channel count
+   * @param output interleaved output samples
+   * @param outputChannels output channel count
+   * @param frames frames to mix
+   */
+  public static void mix(short[] input, int inputChannels, short[] output, int outputChannels,
+      int frames) {
+    if (inputChannels == outputChannels) {
+      if (input != output) {
+        System.arraycopy(input, 0, output, 0, frames * inputChannels);
+      }
+    } else if (inputChannels == 2 && outputChannels == 1) {
+      for (int i = 0; i < frames; i++) {
+        output[i] = (short) ((input[2 * i] + input[2 * i + 1]) >> 1);
+      }
+    } else if (inputChannels == 1 && outputChannels == 2) {
+      /* backwards, so the same array is safe as long as it is large enough */
+      for (int i = frames - 1; i >= 0; i--) {
+        short sample = input[i];
+        output[2 * i] = sample;
+        output[2 * i + 1] = sample;
+      }
+    } else if (inputChannels == 6 && outputChannels <= 2) {
+      for (int i = 0; i < frames; i++) {
+        int in = 6 * i;
+        int center = (input[in + 2] * MINUS_3DB_Q15) >> 15;
+        int left = input[in] + center + ((input[in + 4] * MINUS_3DB_Q15) >> 15);
+        int right = input[in + 1] + center + ((input[in + 5] * MINUS_3DB_Q15) >> 15);
+        if (outputChannels == 2) {
+          output[2 * i] = saturate(left);
+          output[2 * i + 1] = saturate(right);
+        } else {
+          output[i] = saturate((left + right) >> 1);
+        }
+      }
+    } else {
+      copyCommon(input, inputChannels, output, outputChannels, frames);
+    }
+  }
+
+  private static void copyCommon(short[] input, int inputChannels, short[] output,
+      int outputChannels, int frames) {
+    if (outputChannels < inputChannels) {
+      /* forwards for down mixing, so the same array is safe */
+      for (int i = 0; i < frames; i++) {
+        int in = i * inputChannels;
+        int out = i * outputChannels;
+        for (int c = 0; c < outputChannels; c++) {
+          output[out + c] = input[in + c];
+        }
+      }
+    } else {
+      /* backwards for up mixing */
+      for (int i = frames - 1; i >= 0; i--) {
+        int in = i * inputChannels;
+        int out = i * outputChannels;
+        short first = input[in];
+        for (int c = outputChannels - 1; c >= 0; c--) {
+          if (c < inputChannels) {
+            output[out + c] = input[in + c];
+          } else if (inputChannels == 1 && c == 1) {
+            /* mono fills both front channels */
+            output[out + c] = first;
+          } else {
+            output[out + c] = 0;
+          }
+        }
+      }
+    }
+  }
+
+  static short saturate(int sample) {
+    if (sample > Short.MAX_VALUE) {
+      return Short.MAX_VALUE;
+    } else if (sample < Short.MIN_VALUE) {
+      return Short.MIN_VALUE;
+    }
+
+    return (short) sample;
+  }
+}
@@ -0,0 +1,106 @@
+package com.ns.greg.library.mango.dsp;
+
+/**
+ * @author gregho
+ * @since 2019/3/9
+ *
+ * <p>
+ * Keeps the queued pcm around a target latency when the source clock and the output clock drift
+ * apart. The queued frames are smoothed and turned into a small resampling ratio adjustment in
+ * ppm for {@link PcmResampler#setDriftPpm(int)}, the adjustment is bounded and changes slowly so
+ * the pitch shift is not audible.
+ * </p>
+ */
+public class DriftController {
+
+  /* 0.2%, about 3.5 cents */
+  public static final int MAX_PPM = 2000;
+  private static final long UPDATE_INTERVAL_MS = 100L;
+  /* ignores the fill level while the buffers are priming */
+  private static final long WARMUP_MS = 2000L;
+  /* ppm per millisecond away from the target */
+  private static final int PPM_PER_MS = 20;
+  /* ppm change per update at most */
+  private static final int MAX_SLEW_PPM = 50;
+  /* smoothing factor of the fill level, 1 / 2^SMOOTHING_SHIFT */
+  private static final int SMOOTHING_SHIFT = 3;
+
+  private int sampleRate;
+  private long targetFrames;
+  private long toleranceFrames;
+  private long startMs = -1L;
+  private long lastUpdateMs;
+  private long smoothedFrames = -1L;
+  private int ppm;
+
+  /**
+   * @param targetLatencyMs the latency to keep
+   * @param sampleRate output sample rate
+   */
+  public void configure(int targetLatencyMs, int sampleRate) {
+    if (targetLatencyMs <= 0 || sampleRate <= 0) {
+      throw new IllegalArgumentException("Unacceptable target latency");
+    }
+
+    this.sampleRate = sampleRate;
+    this.targetFrames = (long) targetLatencyMs * sampleRate / 1000L;
+    /* within 10% of the target is considered on target */
+    this.toleranceFrames = targetFrames / 10;
+    reset();
+  }
+
+  public void reset() {
+    startMs = -1L;
+    lastUpdateMs = 0L;
+    smoothedFrames = -1L;
+    ppm = 0;
+  }
+
+  /**
+   * @return true if it is time to {@link #update(long, long)}
+   */
+  public boolean isDue(long nowMs) {
+    return nowMs - lastUpdateMs >= UPDATE_INTERVAL_MS;
+  }
+
+  /**
+   * Updates with the current fill level
+   *
+   * @param queuedFrames frames written but not played yet
+   * @param nowMs current time
+   * @return the ratio adjustment in ppm, positive to consume the input faster
+   */
+  public int update(long queuedFrames, long nowMs) {
+    lastUpdateMs = nowMs;
+    if (startMs < 0) {
+      startMs = nowMs;
+    }
+
+    if (nowMs - startMs < WARMUP_MS || sampleRate == 0) {
+      return ppm;
+    }
+
+    if (smoothedFrames < 0) {
+      smoothedFrames = queuedFrames;
+    } else {
+      smoothedFrames += (queuedFrames - smoothedFrames) >> SMOOTHING_SHIFT;
+    }
+
+    long errorFrames = smoothedFrames - targetFrames;
+    int target;
+    if (Math.abs(errorFrames) <= toleranceFrames) {
+      /* back to the nominal ratio inside the band */
+      target = 0;
+    } else {
+      long errorMs = errorFrames * 1000L / sampleRate;
+      target = (int) Math.max(-MAX_PPM, Math.min(MAX_PPM, errorMs * PPM_PER_MS));
+    }
+
+    ppm += Math.max(-MAX_SLEW_PPM, Math.min(MAX_SLEW_PPM, target - ppm));
+    return ppm;
+  }
+
+  public int getPpm() {
+    return ppm;
+  }
+}
@@ -0,0 +1,59 @@
+package com.ns.greg.library.mango.dsp;
+
+/**
+ * @author gregho
+ * @since 2019/3/12
+ *
+ * <p>
+ * A one-pole high-pass filter, y[n] = x[n] - x[n - 1] + a * y[n - 1], removes the dc offset and
+ * the rumble below the cutoff.
+ * </p>
+ */
+public class HighPassFilter implements PcmProcessor {
+
+  private final int cutoffHz;
+  private int channelCount;
+  /* pole in Q15 */
+  private int coefficient;
+  private int[] lastInput = new int[0];
+  private int[] lastOutput = new int[0];
+
+  /**
+   * @param cutoffHz e.g. 80 for the voice
+   */
+  public HighPassFilter(int cutoffHz) {
+    if (cutoffHz <= 0) {
+      throw new IllegalArgumentException("Unacceptable cutoff");
+    }
+
+    this.cutoffHz = cutoffHz;
+  }
+
+  @Override public int configure(int sampleRate, int channelCount) {
+    this.channelCount = channelCount;
+    double pole = Math.exp(-2.0 * Math.PI * cutoffHz / sampleRate);
+    coefficient = (int) Math.round(pole * (1 << 15));
+    lastInput = new int[channelCount];
+    lastOutput = new int[channelCount];
+    return channelCount;
+  }
+
+  @Override public void process(short[] pcm, int frames) {
+    int channelCount = this.channelCount;
+    int coefficient = this.coefficient;
+    for (int c = 0; c < channelCount; c++) {
+      int x1 = lastInput[c];
+      int y1 = lastOutput[c];
+      for (int i = c, end = frames * channelCount; i < end; i += channelCount) {
+        int x = pcm[i];
+        int y = x - x1 + ((coefficient * y1) >> 15);
+        x1 = x;
+        y1 = y;
+        pcm[i] = ChannelMixer.saturate(y);
+      }
+
+      lastInput[c] = x1;
+      lastOutput[c] = y1;
+    }
+  }
+}
@@ -0,0 +1,85 @@
+package com.ns.greg.library.mango.dsp;
+
+/**
+ * @author gregho
+ * @since 2019/3/12
+ *
+ * <p>
+ * Measures the rms and the peak level, reports them at a fixed rate of the pcm duration. The pcm
+ * passes through unchanged, the listener is called on the processing thread.
+ * </p>
+ */
+public class LevelMeter implements PcmProcessor {
+
+  public interface LevelListener {
+
+    /**
+     * @param rmsDb rms level in dBFS
+     * @param peakDb peak level in dBFS
+     */
+    void onLevel(float rmsDb, float peakDb);
+  }
+
+  /* below any 16-bit level */
+  private static final float SILENCE_DB = -96f;
+
+  private final int intervalMs;
+  private final LevelListener listener;
+  private int channelCount;
+  private int intervalSamples;
+  /* current interval */
+  private long energySum;
+  private int peak;
+  private int samples;
+
+  /**
+   * @param intervalMs duration of the pcm between two reports
+   */
+  public LevelMeter(int intervalMs, LevelListener listener) {
+    if (intervalMs <= 0) {
+      throw new IllegalArgumentException("Unacceptable interval");
+    }
+
+    this.intervalMs = intervalMs;
+    this.listener = listener;
+  }
+
+  @Override public int configure(int sampleRate, int channelCount) {
+    this.channelCount = channelCount;
+    this.intervalSamples = (int) ((long) sampleRate * intervalMs / 1000L) * channelCount;
+    energySum = 0L;
+    peak = 0;
+    samples = 0;
+    return channelCount;
+  }
+
+  @Override public void process(short[] pcm, int frames) {
+    for (int i = 0, end = frames * channelCount; i < end; i++) {
+      int sample = pcm[i];
+      energySum += sample * sample;
+      peak = Math.max(peak, Math.abs(sample));
+      if (++samples >= intervalSamples) {
+        report();
+      }
+    }
+  }
+
+  private void report() {
+    double rms = Math.sqrt((double) energySum / samples);
+    if (listener != null) {
+      listener.onLevel(toDb(rms), toDb(peak));
+    }
+
+    energySum = 0L;
+    peak = 0;
+    samples = 0;
+  }
+
+  private static float toDb(double level) {
+    if (level <= 0) {
+      return SILENCE_DB;
+    }
+
+    return (float) Math.max(SILENCE_DB, 20.0 * Math.log10(level / 32768.0));
+  }
+}
@@ -0,0 +1,158 @@
+package com.ns.greg.library.mango.dsp;
+
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+
+/**
+ * @author gregho
+ * @since 2019/3/7
+ *
+ * <p>
+ * Converts interleaved 16-bit pcm to a fixed output format with {@link ChannelMixer} and
+ * {@link PcmResampler}. The work buffers only grow when a larger chunk comes in, so the steady
+ * state is allocation free. With the drift compensation enabled the pcm always goes through the
+ * resampler, so the ratio can be adjusted by {@link #setDriftPpm(int)} without a discontinuity.
+ * </p>
+ */
+public class PcmConverter {
+
+  private static final int BYTES_PER_SAMPLE = 2;
+
+  private final PcmResampler resampler = new PcmResampler();
+  private int inputRate;
+  private int inputChannels;
+  private int outputRate;
+  private int outputChannels;
+  private boolean driftCompensation;
+  /* work buffers */
+  private short[] input = new short[0];
+  private short[] mixed = new short[0];
+  private short[] resampled = new short[0];
+  private byte[] output = new byte[0];
+
+  public void configure(int inputRate, int inputChannels, int outputRate, int outputChannels) {
+    this.inputRate = inputRate;
+    this.inputChannels = inputChannels;
+    this.outputRate = outputRate;
+    this.outputChannels = outputChannels;
+    resampler.configure(inputRate, outputRate, outputChannels);
+  }
+
+  /**
+   * Enables the drift compensation, must be called before {@link #configure(int, int, int, int)}
+   */
+  public void setDriftCompensation(boolean driftCompensation) {
+    this.driftCompensation = driftCompensation;
+  }
+
+  /**
+   * Adjusts the resampling ratio, only works with the drift compensation enabled
+   *
+   * @see PcmResampler#setDriftPpm(int)
+   */
+  public void setDriftPpm(int ppm) {
+    if (driftCompensation) {
+      resampler.setDriftPpm(ppm);
+    }
+  }
+
+  /**
+   * @return true if the input is already in the output format
+   */
+  public boolean isPassthrough() {
+    return inputRate == outputRate && inputChannels == outputChannels && !driftCompensation;
+  }
+
+  public int getOutputRate() {
+    return outputRate;
+  }
+
+  public int getOutputChannels() {
+    return outputChannels;
+  }
+
+  /**
+   * Gets the converted pcm, valid until the next conversion
+   */
+  public byte[] getOutput() {
+    return output;
+  }
+
+  /**
+   * Converts the pcm from the position of the source, the position is advanced
+   *
+   * @return length of the converted pcm in {@link #getOutput()}
+   */
+  public int convert(ByteBuffer src, int length) {
+    int frames = length / (BYTES_PER_SAMPLE * inputChannels);
+    int samples = frames * inputChannels;
+    ensureInput(samples);
+    ByteOrder order = src.order();
+    src.order(ByteOrder.nativeOrder());
+    int position = src.position();
+    for (int i = 0; i < samples; i++) {
+      input[i] = src.getShort(position + i * BYTES_PER_SAMPLE);
+    }
+
+    src.order(order);
+    src.position(position + length);
+    return convert(frames);
+  }
+
+  /**
+   * Converts the little-endian pcm
+   *
+   * @return length of the converted pcm in {@link #getOutput()}
+   */
+  public int convert(byte[] src, int offset, int length) {
+    int frames = length / (BYTES_PER_SAMPLE * inputChannels);
+    int samples = frames * inputChannels;
+    ensureInput(samples);
+    for (int i = 0; i < samples; i++) {
+      int index = offset + i * BYTES_PER_SAMPLE;
+      input[i] = (short) ((src[index] & 0xFF) | (src[index + 1] << 8));
+    }
+
+    return convert(frames);
+  }
+
+  private int convert(int frames) {
+    int mixedSamples = frames * outputChannels;
+    if (mixed.length < mixedSamples) {
+      mixed = new short[mixedSamples];
+    }
+
+    ChannelMixer.mix(input, inputChannels, mixed, outputChannels, frames);
+    short[] pcm = mixed;
+    int outputFrames = frames;
+    if (inputRate != outputRate || driftCompensation) {
+      int maxSamples = resampler.getMaxOutputFrames(frames) * outputChannels;
+      if (resampled.length < maxSamples) {
+        resampled = new short[maxSamples];
+      }
+
+      outputFrames = resampler.process(mixed, frames, resampled);
+      pcm = resampled;
+    }
+
+    int outputSamples = outputFrames * outputChannels;
+    int outputLength = outputSamples * BYTES_PER_SAMPLE;
+    if (output.length < outputLength) {
+      output = new byte[outputLength];
+    }
+
+    for (int i = 0; i < outputSamples; i++) {
+      short sample = pcm[i];
+      output[2 * i] = (byte) sample;
+      output[2 * i + 1] = (byte) (sample >> 8);
+    }
+
+    return outputLength;
+  }
+
+  private void ensureInput(int samples) {
+    if (input.length < samples) {
+      input = new short[samples];
+    }
+  }
+}
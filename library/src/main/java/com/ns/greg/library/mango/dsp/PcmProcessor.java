@@ -0,0 +1,28 @@
+package com.ns.greg.library.mango.dsp;
+
+/**
+ * @author gregho
+ * @since 2019/3/12
+ *
+ * <p>
+ * A stage of {@link PcmProcessorChain}, processes interleaved 16-bit pcm in place. The state is
+ * allocated in {@link #configure(int, int)}, never in {@link #process(short[], int)}.
+ * </p>
+ */
+public interface PcmProcessor {
+
+  /**
+   * Configures the input format, called before the first {@link #process(short[], int)}
+   *
+   * @return the output channel count
+   */
+  int configure(int sampleRate, int channelCount);
+
+  /**
+   * Processes the pcm in place, the output has the same frames in the output channel count
+   *
+   * @param pcm interleaved samples
+   * @param frames frames of the pcm
+   */
+  void process(short[] pcm, int frames);
+}
@@ -0,0 +1,119 @@
+package com.ns.greg.library.mango.dsp;
+
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * @author gregho
+ * @since 2019/3/12
+ *
+ * <p>
+ * Runs the {@link PcmProcessor}s in order over the 16-bit pcm in place. The pcm is converted to
+ * samples once for all the stages, the work buffer is allocated in
+ * {@link #configure(int, int, int)}.
+ * </p>
+ */
+public class PcmProcessorChain {
+
+  private static final int BYTES_PER_SAMPLE = 2;
+
+  private final List<PcmProcessor> processors = new ArrayList<>();
+  private int inputChannels;
+  private int outputChannels;
+  private short[] samples = new short[0];
+
+  /**
+   * Adds a stage, must be called before {@link #configure(int, int, int)}
+   */
+  public PcmProcessorChain add(PcmProcessor processor) {
+    processors.add(processor);
+    return this;
+  }
+
+  public boolean isEmpty() {
+    return processors.isEmpty();
+  }
+
+  /**
+   * @param maxFrames the most frames processed at once
+   * @return the output channel count
+   */
+  public int configure(int sampleRate, int channelCount, int maxFrames) {
+    inputChannels = channelCount;
+    for (PcmProcessor processor : processors) {
+      channelCount = processor.configure(sampleRate, channelCount);
+    }
+
+    outputChannels = channelCount;
+    int maxSamples = maxFrames * Math.max(inputChannels, outputChannels);
+    if (samples.length < maxSamples) {
+      samples = new short[maxSamples];
+    }
+
+    return outputChannels;
+  }
+
+  public int getOutputChannels() {
+    return outputChannels;
+  }
+
+  /**
+   * Processes the little-endian pcm in place
+   *
+   * @return length of the processed pcm from the offset
+   */
+  public int process(byte[] pcm, int offset, int length) {
+    int frames = Math.min(length / (BYTES_PER_SAMPLE * inputChannels),
+        samples.length / inputChannels);
+    int inputSamples = frames * inputChannels;
+    for (int i = 0; i < inputSamples; i++) {
+      int index = offset + i * BYTES_PER_SAMPLE;
+      samples[i] = (short) ((pcm[index] & 0xFF) | (pcm[index + 1] << 8));
+    }
+
+    int outputSamples = process(frames);
+    for (int i = 0; i < outputSamples; i++) {
+      int index = offset + i * BYTES_PER_SAMPLE;
+      short sample = samples[i];
+      pcm[index] = (byte) sample;
+      pcm[index + 1] = (byte) (sample >> 8);
+    }
+
+    return outputSamples * BYTES_PER_SAMPLE;
+  }
+
+  /**
+   * Processes the native order pcm from the position in place, the position is not changed
+   *
+   * @return length of the processed pcm from the position
+   */
+  public int process(ByteBuffer pcm, int length) {
+    ByteOrder order = pcm.order();
+    pcm.order(ByteOrder.nativeOrder());
+    int position = pcm.position();
+    int frames = Math.min(length / (BYTES_PER_SAMPLE * inputChannels),
+        samples.length / inputChannels);
+    int inputSamples = frames * inputChannels;
+    for (int i = 0; i < inputSamples; i++) {
+      samples[i] = pcm.getShort(position + i * BYTES_PER_SAMPLE);
+    }
+
+    int outputSamples = process(frames);
+    for (int i = 0; i < outputSamples; i++) {
+      pcm.putShort(position + i * BYTES_PER_SAMPLE, samples[i]);
+    }
+
+    pcm.order(order);
+    return outputSamples * BYTES_PER_SAMPLE;
+  }
+
+  private int process(int frames) {
+    for (int i = 0, size = processors.size(); i < size; i++) {
+      processors.get(i).process(samples, frames);
+    }
+
+    return frames * outputChannels;
+  }
+}
@@ -0,0 +1,125 @@
+package com.ns.greg.library.mango.dsp;
+
+/**
+ * @author gregho
+ * @since 2019/3/7
+ *
+ * <p>
+ * A streaming linear interpolation resampler for interleaved 16-bit pcm, the position is tracked
+ * in 32.32 fixed point and the last input frame is carried over between calls, so the chunks can
+ * be of any size and nothing is allocated after construction.
+ * </p>
+ */
+public class PcmResampler {
+
+  private static final long ONE = 1L << 32;
+  private static final int MAX_CHANNELS = 8;
+
+  private final short[] previous = new short[MAX_CHANNELS];
+  private int inputRate;
+  private int outputRate;
+  private int channelCount;
+  /* input frames per output frame */
+  private long nominalStep;
+  private long step;
+  /* position of the next output frame, where 0 is the last frame of the previous chunk */
+  private long position;
+
+  public void configure(int inputRate, int outputRate, int channelCount) {
+    if (inputRate <= 0 || outputRate <= 0) {
+      throw new IllegalArgumentException("Unacceptable sample rate");
+    }
+
+    if (channelCount <= 0 || channelCount > MAX_CHANNELS) {
+      throw new IllegalArgumentException("Unacceptable channel count");
+    }
+
+    this.inputRate = inputRate;
+    this.outputRate = outputRate;
+    this.channelCount = channelCount;
+    this.nominalStep = (inputRate * ONE) / outputRate;
+    this.step = nominalStep;
+    reset();
+  }
+
+  public void reset() {
+    /* starts from the first input frame, there is no previous frame yet */
+    position = ONE;
+    for (int i = 0; i < MAX_CHANNELS; i++) {
+      previous[i] = 0;
+    }
+  }
+
+  public int getInputRate() {
+    return inputRate;
+  }
+
+  public int getOutputRate() {
+    return outputRate;
+  }
+
+  /**
+   * Adjusts the ratio slightly to compensate the clock drift, keeps the position so the output
+   * stays continuous
+   *
+   * @param ppm positive to consume the input faster, negative to slower
+   */
+  public void setDriftPpm(int ppm) {
+    step = nominalStep + nominalStep * ppm / 1_000_000L;
+  }
+
+  /**
+   * Gets the output frames needed for the input frames at most
+   */
+  public int getMaxOutputFrames(int inputFrames) {
+    return (int) (((long) inputFrames << 32) / step) + 2;
+  }
+
+  /**
+   * Resamples the input frames, the output must be able to hold
+   * {@link #getMaxOutputFrames(int)} frames
+   *
+   * @param input interleaved input samples
+   * @param inputFrames input frames
+   * @param output interleaved output samples
+   * @return output frames
+   */
+  public int process(short[] input, int inputFrames, short[] output) {
+    if (inputFrames <= 0) {
+      return 0;
+    }
+
+    int channelCount = this.channelCount;
+    long position = this.position;
+    int outputIndex = 0;
+    int outputFrames = 0;
+    while (true) {
+      int index = (int) (position >>> 32);
+      if (index >= inputFrames) {
+        break;
+      }
+
+      /* Q15 fraction between frame index and index + 1 */
+      int fraction = (int) ((position & 0xFFFFFFFFL) >>> 17);
+      int current = (index - 1) * channelCount;
+      int next = index * channelCount;
+      for (int c = 0; c < channelCount; c++) {
+        int a = index == 0 ? previous[c] : input[current + c];
+        int b = input[next + c];
+        output[outputIndex++] = (short) (a + (((b - a) * fraction) >> 15));
+      }
+
+      outputFrames++;
+      position += step;
+    }
+
+    /* carry the last frame over */
+    int last = (inputFrames - 1) * channelCount;
+    for (int c = 0; c < channelCount; c++) {
+      previous[c] = input[last + c];
+    }
+
+    this.position = position - inputFrames * ONE;
+    return outputFrames;
+  }
+}
@@ -0,0 +1,54 @@
+package com.ns.greg.library.mango.dsp;
+
+/**
+ * @author gregho
+ * @since 2019/3/12
+ *
+ * <p>
+ * Applies a gain, the samples above the knee are compressed smoothly towards the full scale
+ * instead of being clipped hard.
+ * </p>
+ */
+public class SoftClipGain implements PcmProcessor {
+
+  private static final int FULL_SCALE = 32767;
+  /* -2.5 dBFS */
+  private static final int KNEE = 24576;
+  private static final int HEADROOM = FULL_SCALE - KNEE;
+
+  private int channelCount;
+  /* gain in Q12 */
+  private volatile int gain;
+
+  public SoftClipGain(float gainDb) {
+    setGainDb(gainDb);
+  }
+
+  /**
+   * Can be called while processing
+   */
+  public void setGainDb(float gainDb) {
+    gain = (int) Math.round(Math.pow(10.0, gainDb / 20.0) * (1 << 12));
+  }
+
+  @Override public int configure(int sampleRate, int channelCount) {
+    this.channelCount = channelCount;
+    return channelCount;
+  }
+
+  @Override public void process(short[] pcm, int frames) {
+    int gain = this.gain;
+    for (int i = 0, end = frames * channelCount; i < end; i++) {
+      long x = ((long) pcm[i] * gain) >> 12;
+      long magnitude = Math.abs(x);
+      if (magnitude > KNEE) {
+        /* y = knee + d / (1 + d / headroom), approaches the full scale */
+        long over = magnitude - KNEE;
+        magnitude = KNEE + over * HEADROOM / (over + HEADROOM);
+        x = x < 0 ? -magnitude : magnitude;
+      }
+
+      pcm[i] = (short) x;
+    }
+  }
+}
@@ -0,0 +1,31 @@
+package com.ns.greg.library.mango.dsp;
+
+/**
+ * @author gregho
+ * @since 2019/3/12
+ *
+ * <p>
+ * Mixes the stereo down to mono, so the encoder only encodes half of the samples. Other channel
+ * counts pass through.
+ * </p>
+ */
+public class StereoDownmix implements PcmProcessor {
+
+  private boolean stereo;
+
+  @Override public int configure(int sampleRate, int channelCount) {
+    stereo = channelCount == 2;
+    return stereo ? 1 : channelCount;
+  }
+
+  @Override public void process(short[] pcm, int frames) {
+    if (!stereo) {
+      return;
+    }
+
+    /* the output index never passes the input index */
+    for (int i = 0; i < frames; i++) {
+      pcm[i] = (short) ((pcm[2 * i] + pcm[2 * i + 1]) >> 1);
+    }
+  }
+}
@@ -0,0 +1,162 @@
+package com.ns.greg.library.mango.dsp;
+
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+
+/**
+ * @author gregho
+ * @since 2019/3/11
+ *
+ * <p>
+ * An energy and zero-crossing voice activity detector for interleaved 16-bit pcm. The pcm is
+ * analysed in 10 ms frames against an adaptive noise floor, a frame is speech when it is well
+ * above the noise floor and does not cross zero like the noise does. The activity is held for the
+ * hangover after the last speech frame, so the pauses between words are kept. Nothing is
+ * allocated after construction.
+ * </p>
+ */
+public class VoiceActivityDetector {
+
+  private static final int BYTES_PER_SAMPLE = 2;
+  private static final int FRAME_MS = 10;
+  /* mean square of about -50 dBFS, anything below is silence */
+  private static final long MIN_ENERGY = 10_000L;
+  /* speech is at least 6 dB above the noise floor */
+  private static final int SPEECH_RATIO = 4;
+  /* a frame crossing zero more than 35% of the samples is noise like, unless it is loud */
+  private static final int NOISE_ZCR_PERCENT = 35;
+  private static final int LOUD_RATIO = 16;
+
+  private final int channelCount;
+  private final int frameSamples;
+  private final int hangoverFrames;
+  /* current 10 ms frame */
+  private long energySum;
+  private int crossings;
+  private int samples;
+  private int lastSample;
+  /* state */
+  private long noiseEnergy;
+  private int hangover;
+  private boolean active;
+
+  /**
+   * @param sampleRate sample rate of the pcm
+   * @param channelCount channel count of the pcm
+   * @param hangoverMs duration to stay active after the last speech frame
+   */
+  public VoiceActivityDetector(int sampleRate, int channelCount, int hangoverMs) {
+    if (sampleRate <= 0 || channelCount <= 0) {
+      throw new IllegalArgumentException("Unacceptable pcm format");
+    }
+
+    if (hangoverMs < 0) {
+      throw new IllegalArgumentException("Unacceptable hangover");
+    }
+
+    this.channelCount = channelCount;
+    this.frameSamples = sampleRate * FRAME_MS / 1000;
+    this.hangoverFrames = hangoverMs / FRAME_MS;
+    reset();
+  }
+
+  public void reset() {
+    energySum = 0L;
+    crossings = 0;
+    samples = 0;
+    lastSample = 0;
+    noiseEnergy = MIN_ENERGY;
+    hangover = 0;
+    active = false;
+  }
+
+  /**
+   * @return true if in speech or in the hangover
+   */
+  public boolean isActive() {
+    return active;
+  }
+
+  /**
+   * Analyses the little-endian pcm
+   *
+   * @return true if in speech or in the hangover after the pcm
+   */
+  public boolean process(byte[] pcm, int offset, int length) {
+    int end = offset + length - length % (BYTES_PER_SAMPLE * channelCount);
+    int step = BYTES_PER_SAMPLE * channelCount;
+    boolean speech = false;
+    for (int i = offset; i < end; i += step) {
+      /* the first channel is enough to decide */
+      speech |= analyse((short) ((pcm[i] & 0xFF) | (pcm[i + 1] << 8)));
+    }
+
+    return speech || active;
+  }
+
+  /**
+   * Analyses the native order pcm from the position, the position is not changed
+   *
+   * @return true if in speech or in the hangover after the pcm
+   */
+  public boolean process(ByteBuffer pcm, int length) {
+    ByteOrder order = pcm.order();
+    pcm.order(ByteOrder.nativeOrder());
+    int position = pcm.position();
+    int end = position + length - length % (BYTES_PER_SAMPLE * channelCount);
+    int step = BYTES_PER_SAMPLE * channelCount;
+    boolean speech = false;
+    for (int i = position; i < end; i += step) {
+      speech |= analyse(pcm.getShort(i));
+    }
+
+    pcm.order(order);
+    return speech || active;
+  }
+
+  /**
+   * @return true if the sample completes a speech frame
+   */
+  private boolean analyse(int sample) {
+    energySum += sample * sample;
+    if ((sample ^ lastSample) < 0) {
+      crossings++;
+    }
+
+    lastSample = sample;
+    if (++samples < frameSamples) {
+      return false;
+    }
+
+    long energy = energySum / samples;
+    boolean speech = energy > MIN_ENERGY
+        && energy > SPEECH_RATIO * noiseEnergy
+        && (crossings * 100 < NOISE_ZCR_PERCENT * samples || energy > LOUD_RATIO * noiseEnergy);
+    updateNoise(energy, speech);
+    if (speech) {
+      hangover = hangoverFrames;
+      active = true;
+    } else if (hangover > 0) {
+      hangover--;
+    } else {
+      active = false;
+    }
+
+    energySum = 0L;
+    crossings = 0;
+    samples = 0;
+    return speech;
+  }
+
+  private void updateNoise(long energy, boolean speech) {
+    if (energy < noiseEnergy) {
+      /* follows the quiet quickly */
+      noiseEnergy = Math.max(1L, noiseEnergy + ((energy - noiseEnergy) >> 2));
+    } else if (!speech) {
+      noiseEnergy += (energy - noiseEnergy) >> 4;
+    } else {
+      /* rises slowly even in speech, so a louder background is learned eventually */
+      noiseEnergy += (energy - noiseEnergy) >> 10;
+    }
+  }
+}
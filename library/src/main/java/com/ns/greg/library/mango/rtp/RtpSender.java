@@ -0,0 +1,429 @@
+package com.ns.greg.library.mango.rtp;
+
+import com.ns.greg.library.mango.codec.CodecFormat;
+import com.ns.greg.library.mango.codec.listener.EncodeListener;
+
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.DatagramChannel;
+import java.security.SecureRandom;
+
+/**
+ * @author gregho
+ * @since 2019/3/14
+ *
+ * <p>
+ * Packetizes the encoded audio into RTP and sends it over a {@link DatagramChannel}, can be used
+ * as the {@link EncodeListener} of the encoder or fed from
+ * {@link com.ns.greg.library.mango.Microphone.RecordListener#onSpeaking(byte[], int, long)}.
+ *
+ * Payloads:
+ * 1. AAC, RFC 3640 AAC-hbr mode, the adts header is stripped, up to
+ * {@link #setMaxAusPerPacket(int)} consecutive access units per packet
+ * 2. G.711, RFC 3551 PCMA / PCMU, one chunk per packet, split by the payload size
+ *
+ * The RTP header and the payload are preallocated and sent by a gathering write, nothing is
+ * allocated per packet. The timestamps follow the presentation time of the chunks, so the gaps of
+ * the silence suppression are kept. A RTCP sender report is sent to the RTCP address at the
+ * report interval. Not thread safe, everything runs on the sending thread.
+ * </p>
+ */
+public class RtpSender implements EncodeListener {
+
+  private static final int RTP_VERSION = 2;
+  private static final int RTP_HEADER_SIZE = 12;
+  /* AU-headers-length plus one 16-bit AU-header per access unit */
+  private static final int AU_HEADERS_LENGTH_SIZE = 2;
+  private static final int AU_HEADER_SIZE = 2;
+  private static final int AU_SIZE_BITS = 13;
+  private static final int MAX_AU_SIZE = (1 << AU_SIZE_BITS) - 1;
+  private static final int DEFAULT_MAX_PAYLOAD_SIZE = 1400;
+  private static final int MAX_AUS_PER_PACKET = 16;
+  private static final int PAYLOAD_TYPE_PCMU = 0;
+  private static final int PAYLOAD_TYPE_PCMA = 8;
+  private static final int PAYLOAD_TYPE_DYNAMIC = 96;
+  private static final int AAC_FRAME_SAMPLES = 1024;
+  /* RTCP */
+  private static final int RTCP_SR = 200;
+  private static final int RTCP_SDES = 202;
+  private static final int SDES_CNAME = 1;
+  private static final long DEFAULT_REPORT_INTERVAL_MS = 5000L;
+  /* seconds from 1900 to 1970 */
+  private static final long NTP_OFFSET_S = 2208988800L;
+  private static final String CNAME = "mango";
+
+  private final boolean aac;
+  private final int clockRate;
+  private int payloadType;
+  private int ssrc;
+  private int maxAusPerPacket = 1;
+  private int maxPayloadSize = DEFAULT_MAX_PAYLOAD_SIZE;
+  private long reportIntervalMs = DEFAULT_REPORT_INTERVAL_MS;
+  /* channels */
+  private DatagramChannel rtpChannel;
+  private DatagramChannel rtcpChannel;
+  /* preallocated packet */
+  private final ByteBuffer header =
+      ByteBuffer.allocate(RTP_HEADER_SIZE + AU_HEADERS_LENGTH_SIZE + AU_HEADER_SIZE
+          * MAX_AUS_PER_PACKET);
+  private ByteBuffer payload;
+  private final ByteBuffer[] packet = new ByteBuffer[2];
+  private final ByteBuffer report = ByteBuffer.allocate(64);
+  /* pending access units of the current packet */
+  private final int[] auSizes = new int[MAX_AUS_PER_PACKET];
+  private int auCount;
+  private long packetPtsUs;
+  private long nextPtsUs;
+  /* sequence and timing */
+  private int sequenceNumber;
+  private int timestampBase;
+  private long firstPtsUs = -1L;
+  /* the latest sent packet, maps the wall clock to the RTP time for the reports */
+  private long lastPtsUs;
+  private long lastSendNs;
+  private long lastReportMs;
+  private boolean talkspurt = true;
+  /* statistics */
+  private volatile long packetCount;
+  private volatile long octetCount;
+
+  /**
+   * @param codecFormat {@link CodecFormat#AUDIO_AAC_LC}, {@link CodecFormat#AUDIO_G711_ALAW} or
+   * {@link CodecFormat#AUDIO_G711_MLAW}
+   * @param sampleRate sample rate of the audio, the clock rate of the timestamps
+   */
+  public RtpSender(CodecFormat codecFormat, int sampleRate) {
+    if (codecFormat != CodecFormat.AUDIO_AAC_LC && !codecFormat.isG711()) {
+      throw new IllegalArgumentException("Unsupported payload format");
+    }
+
+    this.aac = codecFormat == CodecFormat.AUDIO_AAC_LC;
+    this.clockRate = sampleRate;
+    if (aac) {
+      payloadType = PAYLOAD_TYPE_DYNAMIC;
+    } else {
+      payloadType = codecFormat == CodecFormat.AUDIO_G711_ALAW ? PAYLOAD_TYPE_PCMA
+          : PAYLOAD_TYPE_PCMU;
+    }
+
+    SecureRandom random = new SecureRandom();
+    ssrc = random.nextInt();
+    sequenceNumber = random.nextInt() & 0xFFFF;
+    timestampBase = random.nextInt();
+    payload = ByteBuffer.allocate(maxPayloadSize);
+    packet[0] = header;
+    packet[1] = payload;
+  }
+
+  /*--------------------------------
+   * Options, must be set before open
+   *-------------------------------*/
+
+  public void setPayloadType(int payloadType) {
+    if (payloadType < 0 || payloadType > 127) {
+      throw new IllegalArgumentException("Unacceptable payload type");
+    }
+
+    this.payloadType = payloadType;
+  }
+
+  public void setSsrc(int ssrc) {
+    this.ssrc = ssrc;
+  }
+
+  public int getSsrc() {
+    return ssrc;
+  }
+
+  /**
+   * Aggregates the consecutive aac access units, more units save the headers but wait longer
+   *
+   * @param maxAusPerPacket from 1 to 16
+   */
+  public void setMaxAusPerPacket(int maxAusPerPacket) {
+    if (maxAusPerPacket < 1 || maxAusPerPacket > MAX_AUS_PER_PACKET) {
+      throw new IllegalArgumentException("Unacceptable access units per packet");
+    }
+
+    this.maxAusPerPacket = maxAusPerPacket;
+  }
+
+  /**
+   * @param maxPayloadSize the payload size after the RTP header, below the path MTU
+   */
+  public void setMaxPayloadSize(int maxPayloadSize) {
+    if (maxPayloadSize <= AU_HEADERS_LENGTH_SIZE + AU_HEADER_SIZE) {
+      throw new IllegalArgumentException("Unacceptable payload size");
+    }
+
+    this.maxPayloadSize = maxPayloadSize;
+    payload = ByteBuffer.allocate(maxPayloadSize);
+    packet[1] = payload;
+  }
+
+  /**
+   * @param reportIntervalMs interval of the RTCP sender reports, 0 to report with every packet
+   */
+  public void setReportIntervalMs(long reportIntervalMs) {
+    this.reportIntervalMs = reportIntervalMs;
+  }
+
+  /*--------------------------------
+   * Channel functions
+   *-------------------------------*/
+
+  /**
+   * Opens the channels
+   *
+   * @param rtpAddress the remote RTP address
+   * @param rtcpAddress the remote RTCP address, null to disable the sender reports
+   */
+  public void open(InetSocketAddress rtpAddress, InetSocketAddress rtcpAddress)
+      throws IOException {
+    close();
+    rtpChannel = DatagramChannel.open();
+    rtpChannel.connect(rtpAddress);
+    if (rtcpAddress != null) {
+      rtcpChannel = DatagramChannel.open();
+      rtcpChannel.connect(rtcpAddress);
+    }
+
+    auCount = 0;
+    firstPtsUs = -1L;
+    lastSendNs = 0L;
+    lastReportMs = 0L;
+    talkspurt = true;
+  }
+
+  public void close() {
+    flush();
+    closeQuietly(rtpChannel);
+    closeQuietly(rtcpChannel);
+    rtpChannel = null;
+    rtcpChannel = null;
+  }
+
+  private static void closeQuietly(DatagramChannel channel) {
+    if (channel != null) {
+      try {
+        channel.close();
+      } catch (IOException ignored) {
+      }
+    }
+  }
+
+  public long getPacketCount() {
+    return packetCount;
+  }
+
+  public long getOctetCount() {
+    return octetCount;
+  }
+
+  /*--------------------------------
+   * Encode listener
+   *-------------------------------*/
+
+  @Override public void onCodecConfig(byte[] csd, int length) {
+    /* signaled out of band by the SDP config */
+  }
+
+  @Override public void onEncode(byte[] chunk, int length, long presentationTimeUs) {
+    send(chunk, 0, length, presentationTimeUs);
+  }
+
+  @Override public void onStop() {
+    flush();
+  }
+
+  /**
+   * Sends an encoded chunk, an adts framed aac access unit or G.711 codes
+   *
+   * @param presentationTimeUs presentation time of the chunk
+   */
+  public void send(byte[] chunk, int offset, int length, long presentationTimeUs) {
+    if (rtpChannel == null || length <= 0) {
+      return;
+    }
+
+    if (firstPtsUs < 0) {
+      firstPtsUs = presentationTimeUs;
+    }
+
+    if (aac) {
+      int adtsSize = getAdtsSize(chunk, offset, length);
+      addAccessUnit(chunk, offset + adtsSize, length - adtsSize, presentationTimeUs);
+    } else {
+      sendG711(chunk, offset, length, presentationTimeUs);
+    }
+
+    sendReportIfDue();
+  }
+
+  /**
+   * Sends the pending access units
+   */
+  public void flush() {
+    if (auCount > 0) {
+      sendAccessUnits();
+    }
+  }
+
+  /*--------------------------------
+   * RTP
+   *-------------------------------*/
+
+  private void addAccessUnit(byte[] chunk, int offset, int length, long presentationTimeUs) {
+    if (length > MAX_AU_SIZE) {
+      return;
+    }
+
+    int frameUs = (int) (AAC_FRAME_SAMPLES * 1_000_000L / clockRate);
+    boolean consecutive = Math.abs(presentationTimeUs - nextPtsUs) < frameUs / 2;
+    int headersSize = AU_HEADERS_LENGTH_SIZE + AU_HEADER_SIZE * (auCount + 1);
+    if (auCount > 0 && (!consecutive
+        || headersSize + payload.position() + length > maxPayloadSize)) {
+      sendAccessUnits();
+    }
+
+    if (AU_HEADERS_LENGTH_SIZE + AU_HEADER_SIZE + length > maxPayloadSize) {
+      return;
+    }
+
+    if (auCount == 0) {
+      payload.clear();
+      packetPtsUs = presentationTimeUs;
+    }
+
+    payload.put(chunk, offset, length);
+    auSizes[auCount++] = length;
+    nextPtsUs = presentationTimeUs + frameUs;
+    if (auCount >= maxAusPerPacket) {
+      sendAccessUnits();
+    }
+  }
+
+  private void sendAccessUnits() {
+    writeRtpHeader(true, packetPtsUs);
+    header.putShort((short) (auCount * AU_HEADER_SIZE * 8));
+    for (int i = 0; i < auCount; i++) {
+      /* 13-bit size, 3-bit index (delta) of 0 */
+      header.putShort((short) (auSizes[i] << 3));
+    }
+
+    auCount = 0;
+    write();
+  }
+
+  private void sendG711(byte[] chunk, int offset, int length, long presentationTimeUs) {
+    /* the marker starts a talkspurt, e.g. after the silence suppression */
+    boolean marker = talkspurt || Math.abs(presentationTimeUs - nextPtsUs) > 1000L;
+    talkspurt = false;
+    nextPtsUs = presentationTimeUs + length * 1_000_000L / clockRate;
+    /* one code per sample, split by the payload size */
+    for (int sent = 0; sent < length; ) {
+      int size = Math.min(length - sent, maxPayloadSize);
+      payload.clear();
+      payload.put(chunk, offset + sent, size);
+      writeRtpHeader(marker, presentationTimeUs + sent * 1_000_000L / clockRate);
+      write();
+      marker = false;
+      sent += size;
+    }
+  }
+
+  private void writeRtpHeader(boolean marker, long presentationTimeUs) {
+    lastPtsUs = presentationTimeUs;
+    header.clear();
+    header.put((byte) (RTP_VERSION << 6));
+    header.put((byte) ((marker ? 0x80 : 0) | payloadType));
+    header.putShort((short) sequenceNumber);
+    header.putInt(getRtpTimestamp(presentationTimeUs));
+    header.putInt(ssrc);
+    sequenceNumber = (sequenceNumber + 1) & 0xFFFF;
+  }
+
+  private void write() {
+    header.flip();
+    payload.flip();
+    int payloadSize = payload.remaining();
+    try {
+      rtpChannel.write(packet);
+      lastSendNs = System.nanoTime();
+      packetCount++;
+      octetCount += payloadSize;
+    } catch (IOException ignored) {
+      /* the datagram is lost, same as on the network */
+    }
+  }
+
+  private int getRtpTimestamp(long presentationTimeUs) {
+    return timestampBase + (int) ((presentationTimeUs - firstPtsUs) * clockRate / 1_000_000L);
+  }
+
+  /**
+   * @return size of the adts header at the offset, 0 if there is none
+   */
+  private static int getAdtsSize(byte[] chunk, int offset, int length) {
+    if (length < 7 || (chunk[offset] & 0xFF) != 0xFF || (chunk[offset + 1] & 0xF0) != 0xF0) {
+      return 0;
+    }
+
+    /* protection absent, otherwise followed by the crc */
+    return (chunk[offset + 1] & 0x01) != 0 ? 7 : 9;
+  }
+
+  /*--------------------------------
+   * RTCP
+   *-------------------------------*/
+
+  private void sendReportIfDue() {
+    if (rtcpChannel == null || lastSendNs == 0L) {
+      return;
+    }
+
+    long nowNs = System.nanoTime();
+    long nowMs = nowNs / 1_000_000L;
+    if (lastReportMs != 0L && nowMs - lastReportMs < reportIntervalMs) {
+      return;
+    }
+
+    lastReportMs = nowMs;
+    report.clear();
+    /* sender report, no report blocks */
+    report.put((byte) (RTP_VERSION << 6));
+    report.put((byte) RTCP_SR);
+    report.putShort((short) 6);
+    report.putInt(ssrc);
+    long wallMs = System.currentTimeMillis();
+    report.putInt((int) (wallMs / 1000L + NTP_OFFSET_S));
+    report.putInt((int) ((wallMs % 1000L << 32) / 1000L));
+    /* the RTP time of now, extrapolated from the latest packet */
+    report.putInt(getRtpTimestamp(lastPtsUs + (nowNs - lastSendNs) / 1000L));
+    report.putInt((int) packetCount);
+    report.putInt((int) octetCount);
+    /* source description with the cname, padded to 32 bits */
+    int sdesStart = report.position();
+    report.put((byte) ((RTP_VERSION << 6) | 1));
+    report.put((byte) RTCP_SDES);
+    report.putShort((short) 0);
+    report.putInt(ssrc);
+    report.put((byte) SDES_CNAME);
+    report.put((byte) CNAME.length());
+    for (int i = 0; i < CNAME.length(); i++) {
+      report.put((byte) CNAME.charAt(i));
+    }
+
+    do {
+      report.put((byte) 0);
+    } while ((report.position() - sdesStart) % 4 != 0);
+
+    report.putShort(sdesStart + 2, (short) ((report.position() - sdesStart) / 4 - 1));
+    report.flip();
+    try {
+      rtcpChannel.write(report);
+    } catch (IOException ignored) {
+    }
+  }
+}
@@ -2,10 +2,12 @@ package com.ns.greg.library.mango.rtsp;
 
 import android.util.Log;
 import android.view.Surface;
+import com.ns.greg.library.mango.AudioMixer;
 import com.ns.greg.library.mango.Speaker;
 import com.ns.greg.library.mango.codec.CodecFormat;
 import com.ns.greg.library.mango.codec.CodecState;
 import com.ns.greg.library.mango.codec.VideoDecoder;
+import com.ns.greg.library.mango.utils.StreamRecorder;
 
 /**
  * @author gregho
@@ -18,6 +20,7 @@ public class RtspPlayer {
   private final VideoDecoder videoDecoder;
   private final Speaker speaker;
   private RenderOptions renderOptions;
+  private volatile StreamRecorder recorder;
 
   public RtspPlayer() {
     this(CodecFormat.VIDEO_AVC, CodecFormat.AUDIO_AAC_LC);
@@ -26,6 +29,8 @@ public class RtspPlayer {
   public RtspPlayer(CodecFormat videoFormat, CodecFormat audioFormat) {
     videoDecoder = new VideoDecoder(videoFormat);
     speaker = new Speaker(audioFormat);
+    /* audio is the master clock */
+    videoDecoder.setClock(speaker);
   }
 
   /*--------------------------------
@@ -60,15 +65,40 @@ public class RtspPlayer {
    *-------------------------------*/
 
   public void prepareVideoDecoder(byte[] data, int size) {
-    if (renderOptions != null) {
-      videoDecoder.prepare(data, size, renderOptions.getWidth(), renderOptions.getHeight());
-    } else {
-      videoDecoder.prepare(data, size, RenderOptions.DEFAULT_WIDTH, RenderOptions.DEFAULT_HEIGHT);
+    int width = renderOptions != null ? renderOptions.getWidth() : RenderOptions.DEFAULT_WIDTH;
+    int height = renderOptions != null ? renderOptions.getHeight() : RenderOptions.DEFAULT_HEIGHT;
+    videoDecoder.prepare(data, size, width, height);
+    StreamRecorder recorder = this.recorder;
+    if (recorder != null) {
+      recorder.setVideoFormat(data, size, width, height);
     }
   }
 
+  /**
+   * Plays the audio through the shared mixer instead of an own audio track, must be called before
+   * {@link #prepareSpeaker(int, int)}
+   *
+   * @return the mixer source of this player
+   */
+  public AudioMixer.Source attachAudioMixer(AudioMixer mixer) {
+    speaker.attach(mixer);
+    return speaker.getMixerSource();
+  }
+
   public void prepareSpeaker(int sampleRate, int channelCount) {
     speaker.prepare(sampleRate, channelCount);
+    StreamRecorder recorder = this.recorder;
+    if (recorder != null) {
+      recorder.setAudioFormat(sampleRate, channelCount);
+    }
+  }
+
+  public CodecFormat getVideoCodecFormat() {
+    return videoDecoder.getCodecFormat();
+  }
+
+  public CodecFormat getSpeakerCodecFormat() {
+    return speaker.getCodecFormat();
   }
 
   public Boolean formatChanged(CodecFormat videoFormat, CodecFormat audioFormat) {
@@ -96,11 +126,104 @@ public class RtspPlayer {
   public void decodeVideo(byte[] content, int contentLength/*, int iFrame, int width, int height,
       long playTimeMs*/) {
     videoDecoder.decode(content, contentLength/*, iFrame, width, height, playTimeMs*/);
+    StreamRecorder recorder = this.recorder;
+    if (recorder != null) {
+      /* no presentation time, stamped by the arrival */
+      recorder.writeVideo(content, contentLength, System.nanoTime() / 1000L);
+    }
+  }
+
+  /**
+   * Decodes the video with its presentation time, so the frame is scheduled against the audio
+   * clock, and dropped if it is later than the threshold.
+   */
+  public void decodeVideo(byte[] content, int contentLength, long playTimeMs) {
+    videoDecoder.decode(content, contentLength, playTimeMs);
+    StreamRecorder recorder = this.recorder;
+    if (recorder != null) {
+      recorder.writeVideo(content, contentLength, playTimeMs * 1000L);
+    }
   }
 
   public void decodeAudio(byte[] content, int contentLength, int sampleRate, int channelCount,
       long playTimeMs) {
     speaker.decode(content, contentLength, sampleRate, channelCount, playTimeMs);
+    StreamRecorder recorder = this.recorder;
+    if (recorder != null) {
+      recorder.writeAudio(content, contentLength, playTimeMs * 1000L);
+    }
+  }
+
+  /**
+   * Decodes a demuxed video sample, e.g. fed by {@link
+   * com.ns.greg.library.mango.source.ExtractorSource}
+   *
+   * @param presentationTimeUs presentation time in microseconds
+   * @param flags buffer flags, e.g. {@link android.media.MediaCodec#BUFFER_FLAG_KEY_FRAME}
+   */
+  public void decodeVideoSample(byte[] content, int contentLength, long presentationTimeUs,
+      int flags) {
+    videoDecoder.decodeSample(content, contentLength, presentationTimeUs, flags);
+    StreamRecorder recorder = this.recorder;
+    if (recorder != null) {
+      recorder.writeVideo(content, contentLength, presentationTimeUs);
+    }
+  }
+
+  /**
+   * Decodes a demuxed audio sample
+   *
+   * @param presentationTimeUs presentation time in microseconds
+   * @param flags buffer flags
+   */
+  public void decodeAudioSample(byte[] content, int contentLength, int sampleRate,
+      int channelCount, long presentationTimeUs, int flags) {
+    speaker.decodeSample(content, contentLength, sampleRate, channelCount, presentationTimeUs,
+        flags);
+    StreamRecorder recorder = this.recorder;
+    if (recorder != null) {
+      recorder.writeAudio(content, contentLength, presentationTimeUs);
+    }
+  }
+
+  /**
+   * @return true if the last video sample is not taken by the decoder yet, the next one replaces
+   * it
+   */
+  public boolean isVideoInputPending() {
+    return videoDecoder.isContentPending();
+  }
+
+  public boolean isAudioInputPending() {
+    return speaker.isInputPending();
+  }
+
+  /**
+   * Discards everything queued in the decoders and the audio output without recreating the
+   * codecs, the audio clock is reset as well, used when seeking
+   */
+  public void flush() {
+    videoDecoder.flush();
+    speaker.flush();
+  }
+
+  /*--------------------------------
+   * Recording functions
+   *-------------------------------*/
+
+  /**
+   * Taps the access units going into the decoders, must be set before the decoders are prepared
+   * so the recorder gets the formats. The untimed {@link #decodeVideo(byte[], int)} is stamped by
+   * the arrival time, the timed one should be used when the audio is recorded as well.
+   *
+   * @param recorder the recorder, null to stop tapping
+   */
+  public void setRecorder(StreamRecorder recorder) {
+    this.recorder = recorder;
+  }
+
+  public StreamRecorder getRecorder() {
+    return recorder;
   }
 
   /*--------------------------------
@@ -114,4 +237,26 @@ public class RtspPlayer {
   public CodecState getSpeakerDecoderState() {
     return speaker.getDecoderState();
   }
+
+  /*--------------------------------
+   * Synchronization functions
+   *-------------------------------*/
+
+  public void setVideoLateThresholdMs(long lateThresholdMs) {
+    videoDecoder.setLateThresholdUs(lateThresholdMs * 1000L);
+  }
+
+  /**
+   * Gets the a/v sync error of the last rendered video frame, positive means the video is ahead of
+   * the audio
+   *
+   * @return sync error in microseconds
+   */
+  public long getSyncErrorUs() {
+    return videoDecoder.getSyncErrorUs();
+  }
+
+  public long getDroppedVideoFrames() {
+    return videoDecoder.getDroppedFrames();
+  }
 }
@@ -0,0 +1,369 @@
+package com.ns.greg.library.mango.source;
+
+import android.util.Log;
+import com.ns.greg.library.mango.codec.AnnexB;
+import com.ns.greg.library.mango.codec.CodecFormat;
+import com.ns.greg.library.mango.codec.VideoDecoder;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.Arrays;
+
+/**
+ * @author gregho
+ * @since 2019/3/18
+ *
+ * <p>
+ * Reads the access units of a raw H.264/H.265 file, e.g. a .h264 recording, and seeks by the
+ * {@link KeyFrameIndex} of the file. The index is loaded from the sidecar, or built by a scan and
+ * saved on the first open, so a seek reads from the nearest key frame at or before the time
+ * directly. The parameter sets in effect at the key frame are fed in front of it, so the decoder
+ * is primed with the right SPS/PPS after it is flushed, without being recreated.
+ * </p>
+ */
+public class ElementaryStreamSource {
+
+  /* init defines, do not modify */
+  private static final String TAG = "ElementaryStreamSource";
+  private static final int WINDOW_SIZE = 512 * 1024;
+  private static final int MAX_WINDOW_SIZE = 16 * 1024 * 1024;
+  /* parameter sets are read by this size at most */
+  private static final int MAX_PARAMETER_SET_SIZE = 4 * 1024;
+
+  private final File file;
+  private final CodecFormat codecFormat;
+  private final long frameDurationUs;
+  private final int[] parameterSetTypes;
+  private KeyFrameIndex index;
+  private RandomAccessFile accessFile;
+  private FileChannel channel;
+  private VideoDecoder decoder;
+  /* read window, window[0] is at the window offset of the file */
+  private byte[] window = new byte[WINDOW_SIZE];
+  private long windowOffset;
+  private int windowLength;
+  private boolean windowEof;
+  /* next access unit */
+  private long readOffset;
+  private long nextPresentationTimeUs;
+  private long presentationTimeUs;
+  /* parameter sets fed in front of the next access unit after a seek */
+  private byte[] primer;
+
+  /**
+   * @param codecFormat {@link CodecFormat#VIDEO_AVC} or {@link CodecFormat#VIDEO_HEVC}
+   * @param frameDurationUs duration of a picture, the stream has no presentation time
+   */
+  public ElementaryStreamSource(File file, CodecFormat codecFormat, long frameDurationUs) {
+    if (frameDurationUs <= 0) {
+      throw new IllegalArgumentException("Unacceptable frame duration: " + frameDurationUs);
+    }
+
+    this.file = file;
+    this.codecFormat = codecFormat;
+    this.frameDurationUs = frameDurationUs;
+    this.parameterSetTypes = codecFormat == CodecFormat.VIDEO_HEVC ? new int[] {
+        AnnexB.HEVC_VPS, AnnexB.HEVC_SPS, AnnexB.HEVC_PPS
+    } : new int[] { AnnexB.AVC_SPS, AnnexB.AVC_PPS };
+  }
+
+  /**
+   * Opens the file and loads the index, the file is scanned if there is no sidecar, and the
+   * sidecar is saved for the next open
+   */
+  public synchronized void open() throws IOException {
+    if (channel != null) {
+      return;
+    }
+
+    index = KeyFrameIndex.load(file, codecFormat);
+    if (index == null) {
+      long startNs = System.nanoTime();
+      index = KeyFrameIndex.scan(file, codecFormat, frameDurationUs);
+      Log.i(TAG, "SCAN -> " + index.size() + " entries in "
+          + (System.nanoTime() - startNs) / 1000_000L + " ms");
+      try {
+        index.save(file);
+      } catch (IOException e) {
+        Log.i(TAG, "SAVE INDEX -> failed, " + e.getMessage());
+      }
+    }
+
+    accessFile = new RandomAccessFile(file, "r");
+    channel = accessFile.getChannel();
+    reload(0L);
+    readOffset = 0L;
+    nextPresentationTimeUs = 0L;
+  }
+
+  public synchronized void close() {
+    if (accessFile == null) {
+      return;
+    }
+
+    try {
+      accessFile.close();
+    } catch (IOException ignored) {
+    }
+
+    accessFile = null;
+    channel = null;
+  }
+
+  public KeyFrameIndex getIndex() {
+    return index;
+  }
+
+  /**
+   * Sets the decoder fed by {@link #decodeNext()}, it is flushed when seeking
+   */
+  public synchronized void setDecoder(VideoDecoder decoder) {
+    this.decoder = decoder;
+  }
+
+  /**
+   * @return the parameter sets of the first key frame in Annex-B format, null if not found
+   */
+  public synchronized byte[] getCodecConfig() throws IOException {
+    int keyFrame = index.findKeyFrame(0L);
+    return keyFrame < 0 ? null : readParameterSets(keyFrame);
+  }
+
+  /**
+   * Prepares the decoder by the parameter sets of the first key frame
+   */
+  public synchronized void prepareDecoder(int width, int height) throws IOException {
+    byte[] codecConfig = getCodecConfig();
+    if (decoder == null || codecConfig == null) {
+      Log.i(TAG, "PREPARE DECODER -> failed, no decoder or no parameter sets");
+      return;
+    }
+
+    decoder.prepare(codecConfig, codecConfig.length, width, height);
+  }
+
+  /*--------------------------------
+   * Reading functions
+   *-------------------------------*/
+
+  /**
+   * Reads the next access unit, a new array is returned since the decoder keeps the reference
+   *
+   * @return the access unit in Annex-B format, null if the end of the file
+   */
+  public synchronized byte[] readAccessUnit() throws IOException {
+    if (readOffset < windowOffset || readOffset > windowOffset + windowLength) {
+      reload(readOffset);
+    }
+
+    int start = (int) (readOffset - windowOffset);
+    int cursor = start;
+    boolean vcl = false;
+    int end;
+    while (true) {
+      int nalStart = AnnexB.findNalStart(window, cursor, windowLength);
+      if (windowEof && (nalStart < 0 || nalStart >= windowLength)) {
+        end = windowLength;
+        break;
+      }
+
+      if (!windowEof && (nalStart < 0 || nalStart + 2 >= windowLength)) {
+        /* the start code may be on the edge, scanned again after more is read */
+        cursor = nalStart < 0 ? Math.max(cursor, windowLength - 3) : nalStart - 3;
+        if (start > 0) {
+          compact(start);
+          cursor -= start;
+          start = 0;
+        } else if (windowLength == window.length) {
+          if (window.length >= MAX_WINDOW_SIZE) {
+            throw new IOException("Unacceptable access unit size");
+          }
+
+          window = Arrays.copyOf(window, window.length * 2);
+        }
+
+        fill();
+        continue;
+      }
+
+      int nalType = AnnexB.getNalType(codecFormat, window[nalStart]);
+      if (vcl && (AnnexB.isAccessUnitPrefix(codecFormat, nalType) || (AnnexB.isVcl(codecFormat,
+          nalType) && AnnexB.isFirstSlice(codecFormat, window, nalStart, windowLength)))) {
+        /* the next access unit, the leading zero of a 4 bytes start code goes with it */
+        end = nalStart - 3;
+        while (end > start && window[end - 1] == 0) {
+          end--;
+        }
+
+        break;
+      }
+
+      if (AnnexB.isVcl(codecFormat, nalType)) {
+        vcl = true;
+      }
+
+      cursor = nalStart + 1;
+    }
+
+    if (end <= start) {
+      return null;
+    }
+
+    int primerLength = primer != null ? primer.length : 0;
+    byte[] accessUnit = new byte[primerLength + end - start];
+    if (primerLength > 0) {
+      System.arraycopy(primer, 0, accessUnit, 0, primerLength);
+      primer = null;
+    }
+
+    System.arraycopy(window, start, accessUnit, primerLength, end - start);
+    readOffset = windowOffset + end;
+    presentationTimeUs = nextPresentationTimeUs;
+    nextPresentationTimeUs += frameDurationUs;
+    return accessUnit;
+  }
+
+  /**
+   * @return presentation time of the last read access unit
+   */
+  public synchronized long getPresentationTimeUs() {
+    return presentationTimeUs;
+  }
+
+  /**
+   * Reads the next access unit into the decoder with its presentation time
+   *
+   * @return false if the end of the file
+   */
+  public synchronized boolean decodeNext() throws IOException {
+    byte[] accessUnit = readAccessUnit();
+    if (accessUnit == null) {
+      return false;
+    }
+
+    if (decoder != null) {
+      decoder.decode(accessUnit, accessUnit.length, presentationTimeUs / 1000L);
+    }
+
+    return true;
+  }
+
+  /*--------------------------------
+   * Seeking functions
+   *-------------------------------*/
+
+  /**
+   * Positions at the nearest key frame at or before the time, the decoder is flushed, and the
+   * parameter sets in effect at the key frame are fed in front of it
+   *
+   * @return presentation time of the key frame, -1 if there is no key frame
+   */
+  public synchronized long seekTo(long presentationTimeUs) throws IOException {
+    int keyFrame = index.findKeyFrame(presentationTimeUs);
+    if (keyFrame < 0) {
+      Log.i(TAG, "SEEK -> failed, no key frame");
+      return -1L;
+    }
+
+    long keyFrameTimeUs = index.getPresentationTimeUs(keyFrame);
+    /* the parameter sets written with the key frame are read along with it */
+    int first = keyFrame;
+    while (first > 0 && AnnexB.isParameterSet(codecFormat, index.getNalType(first - 1))
+        && index.getPresentationTimeUs(first - 1) == keyFrameTimeUs) {
+      first--;
+    }
+
+    primer = hasParameterSets(first, keyFrame) ? null : readParameterSets(keyFrame);
+    readOffset = index.getOffset(first);
+    nextPresentationTimeUs = keyFrameTimeUs;
+    if (decoder != null) {
+      decoder.flush();
+    }
+
+    Log.i(TAG, "SEEK -> " + keyFrameTimeUs + " us at " + readOffset + (primer != null
+        ? ", primed" : ""));
+    return keyFrameTimeUs;
+  }
+
+  /*--------------------------------
+   * Private functions
+   *-------------------------------*/
+
+  private boolean hasParameterSets(int from, int to) {
+    for (int type : parameterSetTypes) {
+      boolean found = false;
+      for (int i = from; i < to && !found; i++) {
+        found = index.getNalType(i) == type;
+      }
+
+      if (!found) {
+        return false;
+      }
+    }
+
+    return true;
+  }
+
+  private byte[] readParameterSets(int keyFrame) throws IOException {
+    byte[] parameterSets = new byte[parameterSetTypes.length * MAX_PARAMETER_SET_SIZE];
+    byte[] buffer = new byte[MAX_PARAMETER_SET_SIZE];
+    int length = 0;
+    for (int type : parameterSetTypes) {
+      int entry = index.findParameterSet(keyFrame, type);
+      if (entry < 0) {
+        return null;
+      }
+
+      int read = read(buffer, index.getOffset(entry));
+      int nalStart = AnnexB.findNalStart(buffer, 0, read);
+      if (nalStart < 0) {
+        return null;
+      }
+
+      int nalEnd = AnnexB.findNalEnd(buffer, nalStart, read);
+      System.arraycopy(buffer, 0, parameterSets, length, nalEnd);
+      length += nalEnd;
+    }
+
+    return Arrays.copyOf(parameterSets, length);
+  }
+
+  private int read(byte[] buffer, long position) throws IOException {
+    ByteBuffer byteBuffer = ByteBuffer.wrap(buffer);
+    while (byteBuffer.hasRemaining()) {
+      if (channel.read(byteBuffer, position + byteBuffer.position()) < 0) {
+        break;
+      }
+    }
+
+    return byteBuffer.position();
+  }
+
+  private void reload(long offset) throws IOException {
+    windowOffset = offset;
+    windowLength = 0;
+    windowEof = false;
+    fill();
+  }
+
+  private void compact(int start) {
+    System.arraycopy(window, start, window, 0, windowLength - start);
+    windowOffset += start;
+    windowLength -= start;
+  }
+
+  private void fill() throws IOException {
+    ByteBuffer byteBuffer = ByteBuffer.wrap(window, windowLength, window.length - windowLength);
+    while (byteBuffer.hasRemaining()) {
+      if (channel.read(byteBuffer, windowOffset + byteBuffer.position()) < 0) {
+        windowEof = true;
+        break;
+      }
+    }
+
+    windowLength = byteBuffer.position();
+  }
+}
@@ -0,0 +1,563 @@
+package com.ns.greg.library.mango.source;
+
+import android.media.MediaCodec;
+import android.media.MediaExtractor;
+import android.media.MediaFormat;
+import android.util.Log;
+import com.ns.greg.library.mango.codec.CodecFormat;
+import com.ns.greg.library.mango.rtsp.RtspPlayer;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * @author gregho
+ * @since 2019/3/19
+ *
+ * <p>
+ * Plays a file, e.g. an MP4 or MKV clip, through the {@link RtspPlayer} by the {@link
+ * MediaExtractor}. The demuxer thread reads ahead into a bounded queue of pooled samples, and the
+ * feeding thread hands the samples to the decoders with their presentation time and sync flag,
+ * paced by the playback speed. Seeking flushes the decoders instead of recreating them.
+ *
+ * The audio is played at 1x only, it is the master clock of the video then. From 4x on, only the
+ * video key frames are demuxed, the rest of each GOP is skipped by seeking to the next key frame.
+ * </p>
+ */
+public class ExtractorSource {
+
+  /* init defines, do not modify */
+  private static final String TAG = "ExtractorSource";
+  public static final float MIN_SPEED = 0.5f;
+  public static final float MAX_SPEED = 16f;
+  private static final float KEY_FRAME_ONLY_SPEED = 4f;
+  private static final int READ_AHEAD_SAMPLES = 128;
+  private static final int INITIAL_SAMPLE_SIZE = 16 * 1024;
+  private static final int MAX_SAMPLE_SIZE = 16 * 1024 * 1024;
+  /* fed ahead of the time, so the audio output is primed and the decoders are not late */
+  private static final long AUDIO_LEAD_US = 200_000L;
+  private static final long VIDEO_LEAD_US = 50_000L;
+  private static final long IDLE_WAIT_NS = 2_000_000L;
+  private static final long MAX_WAIT_NS = 10_000_000L;
+  private static final long JOIN_TIMEOUT_MS = 1000L;
+  private static final long NO_SEEK = Long.MIN_VALUE;
+
+  public interface PlaybackListener {
+
+    /**
+     * Called on the feeding thread once the last sample is fed
+     */
+    void onCompleted();
+  }
+
+  private static final class Sample {
+
+    private byte[] data;
+    private ByteBuffer buffer;
+    /* -1 for the end of the stream */
+    private int size;
+    private long presentationTimeUs;
+    private int flags;
+    private boolean video;
+    private int generation;
+
+    Sample(int size) {
+      data = new byte[size];
+      buffer = ByteBuffer.wrap(data);
+    }
+
+    private void grow() {
+      data = new byte[data.length * 2];
+      buffer = ByteBuffer.wrap(data);
+    }
+  }
+
+  private final String path;
+  /* owned by the demuxing thread once started, released by it on exit */
+  private volatile MediaExtractor extractor;
+  private int videoTrack = -1;
+  private int audioTrack = -1;
+  private CodecFormat videoCodecFormat;
+  private CodecFormat audioCodecFormat;
+  private byte[] videoCsd;
+  private int sampleRate;
+  private int channelCount;
+  private long durationUs;
+  private RtspPlayer player;
+  private PlaybackListener listener;
+  /* samples, pooled */
+  private ArrayBlockingQueue<Sample> freeSamples;
+  private ArrayBlockingQueue<Sample> readSamples;
+  private Thread demuxingThread;
+  private Thread feedingThread;
+  private volatile boolean running;
+  private volatile float speed = 1f;
+  private final AtomicLong pendingSeekUs = new AtomicLong(NO_SEEK);
+  /* bumped by every seek, the samples read before it are discarded */
+  private volatile int generation;
+  private volatile long positionUs;
+  /* the end of the stream is queued, owned by the demuxing thread */
+  private boolean ended;
+
+  /**
+   * @param path file path or url
+   */
+  public ExtractorSource(String path) {
+    this.path = path;
+  }
+
+  /**
+   * Opens the file and selects the first video and the first audio track which can be played
+   */
+  public void prepare() throws IOException {
+    extractor = new MediaExtractor();
+    extractor.setDataSource(path);
+    for (int i = 0; i < extractor.getTrackCount(); i++) {
+      MediaFormat format = extractor.getTrackFormat(i);
+      CodecFormat codecFormat = getCodecFormat(format.getString(MediaFormat.KEY_MIME));
+      if (codecFormat == null) {
+        continue;
+      }
+
+      boolean video =
+          codecFormat == CodecFormat.VIDEO_AVC || codecFormat == CodecFormat.VIDEO_HEVC;
+      if (video && videoTrack < 0) {
+        videoTrack = i;
+        videoCodecFormat = codecFormat;
+        videoCsd = getCsd(format);
+      } else if (!video && audioTrack < 0) {
+        audioTrack = i;
+        audioCodecFormat = codecFormat;
+        sampleRate = format.getInteger(MediaFormat.KEY_SAMPLE_RATE);
+        channelCount = format.getInteger(MediaFormat.KEY_CHANNEL_COUNT);
+      } else {
+        continue;
+      }
+
+      extractor.selectTrack(i);
+      if (format.containsKey(MediaFormat.KEY_DURATION)) {
+        durationUs = Math.max(durationUs, format.getLong(MediaFormat.KEY_DURATION));
+      }
+    }
+
+    if (videoTrack < 0 && audioTrack < 0) {
+      extractor.release();
+      extractor = null;
+      throw new IOException("No playable track: " + path);
+    }
+
+    Log.i(TAG, "PREPARE -> video: " + videoCodecFormat + ", audio: " + audioCodecFormat
+        + ", duration: " + durationUs + " us");
+  }
+
+  /**
+   * @return format of the video track, null if there is none
+   */
+  public CodecFormat getVideoCodecFormat() {
+    return videoCodecFormat;
+  }
+
+  /**
+   * @return format of the audio track, null if there is none
+   */
+  public CodecFormat getAudioCodecFormat() {
+    return audioCodecFormat;
+  }
+
+  public long getDurationUs() {
+    return durationUs;
+  }
+
+  public void setPlaybackListener(PlaybackListener listener) {
+    this.listener = listener;
+  }
+
+  /*--------------------------------
+   * Playback functions
+   *-------------------------------*/
+
+  /**
+   * Prepares and starts the player, then starts demuxing into it
+   *
+   * @param player the player created with the formats of this source
+   */
+  public synchronized void start(RtspPlayer player) {
+    if (running || extractor == null || demuxingThread != null) {
+      Log.i(TAG, "START -> failed, running or not prepared");
+      return;
+    }
+
+    this.player = player;
+    if (videoTrack >= 0) {
+      player.prepareVideoDecoder(videoCsd, videoCsd.length);
+    }
+
+    if (audioTrack >= 0) {
+      player.prepareSpeaker(sampleRate, channelCount);
+    }
+
+    player.start();
+    freeSamples = new ArrayBlockingQueue<>(READ_AHEAD_SAMPLES);
+    readSamples = new ArrayBlockingQueue<>(READ_AHEAD_SAMPLES);
+    for (int i = 0; i < READ_AHEAD_SAMPLES; i++) {
+      freeSamples.offer(new Sample(INITIAL_SAMPLE_SIZE));
+    }
+
+    running = true;
+    demuxingThread = new Thread(new DemuxingRunnable(this));
+    feedingThread = new Thread(new FeedingRunnable(this));
+    feedingThread.setPriority(Thread.MAX_PRIORITY);
+    demuxingThread.start();
+    feedingThread.start();
+  }
+
+  /**
+   * Stops the threads and the player, the extractor is released by the demuxing thread once it
+   * exits, since it may be inside the extractor, the source can not be started again
+   */
+  public synchronized void stop() {
+    if (!running) {
+      return;
+    }
+
+    running = false;
+    demuxingThread.interrupt();
+    join(demuxingThread);
+    join(feedingThread);
+    feedingThread = null;
+    player.stop();
+    if (demuxingThread.isAlive()) {
+      Log.i(TAG, "STOP -> the extractor is released once the demuxing thread exits");
+    }
+  }
+
+  /**
+   * Seeks to the key frame at or before the time, the decoders are flushed when the first sample
+   * after the seek is fed
+   */
+  public void seekTo(long timeUs) {
+    positionUs = timeUs;
+    pendingSeekUs.set(Math.max(0L, timeUs));
+    LockSupport.unpark(demuxingThread);
+  }
+
+  /**
+   * Sets the playback speed, the audio is muted out of 1x, and only the key frames are played
+   * from 4x on. The playback restarts from the current position.
+   *
+   * @param speed from {@link #MIN_SPEED} to {@link #MAX_SPEED}
+   */
+  public void setSpeed(float speed) {
+    if (speed < MIN_SPEED || speed > MAX_SPEED) {
+      throw new IllegalArgumentException("Unacceptable speed: " + speed);
+    }
+
+    if (this.speed != speed) {
+      this.speed = speed;
+      seekTo(positionUs);
+    }
+  }
+
+  public float getSpeed() {
+    return speed;
+  }
+
+  /**
+   * @return presentation time of the last fed sample
+   */
+  public long getPositionUs() {
+    return positionUs;
+  }
+
+  /*--------------------------------
+   * Demuxing functions, on the demuxing thread
+   *-------------------------------*/
+
+  /**
+   * Reads a sample into the queue
+   *
+   * @return false if nothing to do, the queue is full or the stream is ended
+   */
+  private boolean demux() {
+    long seekUs = pendingSeekUs.getAndSet(NO_SEEK);
+    if (seekUs != NO_SEEK) {
+      extractor.seekTo(seekUs, MediaExtractor.SEEK_TO_PREVIOUS_SYNC);
+      Sample sample;
+      while ((sample = readSamples.poll()) != null) {
+        freeSamples.offer(sample);
+      }
+
+      generation++;
+      ended = false;
+    }
+
+    if (ended) {
+      return false;
+    }
+
+    Sample sample = freeSamples.poll();
+    if (sample == null) {
+      return false;
+    }
+
+    sample.generation = generation;
+    int track = extractor.getSampleTrackIndex();
+    if (track < 0) {
+      sample.size = -1;
+      ended = true;
+      readSamples.offer(sample);
+      LockSupport.unpark(feedingThread);
+      return false;
+    }
+
+    boolean video = track == videoTrack;
+    int flags = extractor.getSampleFlags();
+    if (speed >= KEY_FRAME_ONLY_SPEED
+        && (!video || (flags & MediaExtractor.SAMPLE_FLAG_SYNC) == 0)) {
+      freeSamples.offer(sample);
+      long sampleTimeUs = extractor.getSampleTime();
+      if (video) {
+        /* skips the rest of the GOP */
+        extractor.seekTo(sampleTimeUs, MediaExtractor.SEEK_TO_NEXT_SYNC);
+      }
+
+      if (!video || extractor.getSampleTime() <= sampleTimeUs) {
+        extractor.advance();
+      }
+
+      return true;
+    }
+
+    int size = readSampleData(sample);
+    if (size < 0) {
+      freeSamples.offer(sample);
+      extractor.advance();
+      return true;
+    }
+
+    sample.size = size;
+    sample.presentationTimeUs = extractor.getSampleTime();
+    /* the extractor flags are not the codec flags, e.g. encrypted is codec config */
+    sample.flags =
+        (flags & MediaExtractor.SAMPLE_FLAG_SYNC) != 0 ? MediaCodec.BUFFER_FLAG_KEY_FRAME : 0;
+    sample.video = video;
+    readSamples.offer(sample);
+    extractor.advance();
+    LockSupport.unpark(feedingThread);
+    return true;
+  }
+
+  /**
+   * @return size of the sample, -1 if it is too large
+   */
+  private int readSampleData(Sample sample) {
+    while (true) {
+      try {
+        sample.buffer.clear();
+        return extractor.readSampleData(sample.buffer, 0);
+      } catch (IllegalArgumentException e) {
+        /* the buffer is too small, grown once for the large key frames */
+        if (sample.data.length >= MAX_SAMPLE_SIZE) {
+          Log.i(TAG, "READ SAMPLE -> failed, larger than " + MAX_SAMPLE_SIZE);
+          return -1;
+        }
+
+        sample.grow();
+      }
+    }
+  }
+
+  /*--------------------------------
+   * Feeding functions, on the feeding thread
+   *-------------------------------*/
+
+  private void feed() {
+    /* the sample waiting for its time or the decoder, and the ones being taken by the decoders */
+    Sample current = null;
+    Sample videoPending = null;
+    Sample audioPending = null;
+    int feedingGeneration = 0;
+    boolean completed = false;
+    long baseTimeUs = 0L;
+    long baseNs = 0L;
+    boolean based = false;
+    while (running) {
+      if (current == null) {
+        current = readSamples.poll();
+        if (current == null) {
+          LockSupport.parkNanos(IDLE_WAIT_NS);
+          continue;
+        }
+      }
+
+      if (current.generation != generation) {
+        /* read before a seek */
+        freeSamples.offer(current);
+        current = null;
+        continue;
+      }
+
+      if (current.generation != feedingGeneration) {
+        feedingGeneration = current.generation;
+        player.flush();
+        videoPending = recycle(videoPending);
+        audioPending = recycle(audioPending);
+        completed = false;
+        based = false;
+      }
+
+      if (current.size < 0) {
+        if (!completed) {
+          completed = true;
+          Log.i(TAG, "PLAYBACK -> completed");
+          if (listener != null) {
+            listener.onCompleted();
+          }
+        }
+
+        current = recycle(current);
+        continue;
+      }
+
+      float speed = this.speed;
+      if (!current.video && speed != 1f) {
+        current = recycle(current);
+        continue;
+      }
+
+      if (!based) {
+        baseTimeUs = current.presentationTimeUs;
+        baseNs = System.nanoTime();
+        based = true;
+      }
+
+      long leadUs = current.video ? (audioTrack >= 0 && speed == 1f ? VIDEO_LEAD_US : 0L)
+          : AUDIO_LEAD_US;
+      long elapsedUs = (long) ((System.nanoTime() - baseNs) / 1000L * speed);
+      long earlyUs = current.presentationTimeUs - leadUs - (baseTimeUs + elapsedUs);
+      if (earlyUs > 0) {
+        LockSupport.parkNanos(Math.min(MAX_WAIT_NS, (long) (earlyUs * 1000L / speed)));
+        continue;
+      }
+
+      if (current.video ? player.isVideoInputPending() : player.isAudioInputPending()) {
+        LockSupport.parkNanos(IDLE_WAIT_NS);
+        continue;
+      }
+
+      if (current.video) {
+        recycle(videoPending);
+        player.decodeVideoSample(current.data, current.size, current.presentationTimeUs,
+            current.flags);
+        videoPending = current;
+      } else {
+        recycle(audioPending);
+        player.decodeAudioSample(current.data, current.size, sampleRate, channelCount,
+            current.presentationTimeUs, current.flags);
+        audioPending = current;
+      }
+
+      if (current.video || videoTrack < 0) {
+        positionUs = current.presentationTimeUs;
+      }
+
+      current = null;
+      LockSupport.unpark(demuxingThread);
+    }
+  }
+
+  /**
+   * @return always null
+   */
+  private Sample recycle(Sample sample) {
+    if (sample != null) {
+      freeSamples.offer(sample);
+    }
+
+    return null;
+  }
+
+  /*--------------------------------
+   * Private functions
+   *-------------------------------*/
+
+  private static CodecFormat getCodecFormat(String mime) {
+    for (CodecFormat codecFormat : CodecFormat.values()) {
+      if (codecFormat.getType().equals(mime)) {
+        return codecFormat;
+      }
+    }
+
+    return null;
+  }
+
+  /**
+   * @return the parameter sets in Annex-B format, csd-1 (PPS) follows csd-0 (SPS) for H.264
+   */
+  private static byte[] getCsd(MediaFormat format) {
+    ByteBuffer csd0 = format.getByteBuffer("csd-0");
+    ByteBuffer csd1 = format.getByteBuffer("csd-1");
+    int length0 = csd0 != null ? csd0.remaining() : 0;
+    int length1 = csd1 != null ? csd1.remaining() : 0;
+    byte[] csd = new byte[length0 + length1];
+    if (csd0 != null) {
+      csd0.duplicate().get(csd, 0, length0);
+    }
+
+    if (csd1 != null) {
+      csd1.duplicate().get(csd, length0, length1);
+    }
+
+    return csd;
+  }
+
+  private static void join(Thread thread) {
+    LockSupport.unpark(thread);
+    try {
+      thread.join(JOIN_TIMEOUT_MS);
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+    }
+  }
+
+  private static class DemuxingRunnable implements Runnable {
+
+    private final ExtractorSource instance;
+
+    DemuxingRunnable(ExtractorSource instance) {
+      this.instance = instance;
+    }
+
+    @Override public void run() {
+      try {
+        while (instance.running) {
+          if (!instance.demux()) {
+            /* woken up by a seek or a fed sample */
+            LockSupport.parkNanos(this, instance.ended ? MAX_WAIT_NS : IDLE_WAIT_NS);
+          }
+        }
+      } finally {
+        /* released only here, never while the extractor is being read */
+        instance.extractor.release();
+        instance.extractor = null;
+        Log.i(TAG, "RELEASE EXTRACTOR -> succeeded");
+      }
+    }
+  }
+
+  private static class FeedingRunnable implements Runnable {
+
+    private final ExtractorSource instance;
+
+    FeedingRunnable(ExtractorSource instance) {
+      this.instance = instance;
+    }
+
+    @Override public void run() {
+      instance.feed();
+    }
+  }
+}
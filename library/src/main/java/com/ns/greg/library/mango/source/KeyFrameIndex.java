@@ -0,0 +1,343 @@
+package com.ns.greg.library.mango.source;
+
+import com.ns.greg.library.mango.codec.AnnexB;
+import com.ns.greg.library.mango.codec.CodecFormat;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.Arrays;
+
+/**
+ * @author gregho
+ * @since 2019/3/18
+ *
+ * <p>
+ * Index of the key frames and the parameter sets of an H.264/H.265 elementary stream, each entry
+ * holds the file offset of the start code, the presentation time and the nal unit type. It is
+ * built while the stream is written by {@link #add(byte[], int, int, long, long)}, or by a scan
+ * of the file, and kept next to the stream as a sidecar, so a seek never scans the stream again.
+ *
+ * The sidecar is 17 bytes per entry after a 20 bytes header, which is about 200 KB for an hour of
+ * a stream with a key frame per second.
+ * </p>
+ */
+public final class KeyFrameIndex {
+
+  /* init defines, do not modify */
+  private static final int MAGIC = 0x4D4B4649; /* MKFI */
+  private static final int VERSION = 1;
+  private static final int HEADER_SIZE = 20;
+  private static final int ENTRY_SIZE = 17;
+  private static final String SIDECAR_TYPE = ".kfi";
+  private static final int INITIAL_CAPACITY = 256;
+  private static final int SCAN_BUFFER_SIZE = 1024 * 1024;
+  /* start code and the bytes of the nal header read with it */
+  private static final int SCAN_OVERLAP = 8;
+
+  private final CodecFormat codecFormat;
+  private long[] offsets = new long[INITIAL_CAPACITY];
+  private long[] presentationTimesUs = new long[INITIAL_CAPACITY];
+  private byte[] nalTypes = new byte[INITIAL_CAPACITY];
+  private int size;
+
+  /**
+   * @param codecFormat {@link CodecFormat#VIDEO_AVC} or {@link CodecFormat#VIDEO_HEVC}
+   */
+  public KeyFrameIndex(CodecFormat codecFormat) {
+    if (codecFormat != CodecFormat.VIDEO_AVC && codecFormat != CodecFormat.VIDEO_HEVC) {
+      throw new IllegalArgumentException("Unacceptable codec format: " + codecFormat);
+    }
+
+    this.codecFormat = codecFormat;
+  }
+
+  public CodecFormat getCodecFormat() {
+    return codecFormat;
+  }
+
+  /**
+   * @return the sidecar of the stream, the stream name with the .kfi suffix
+   */
+  public static File getSidecar(File stream) {
+    return new File(stream.getPath() + SIDECAR_TYPE);
+  }
+
+  /*--------------------------------
+   * Indexing functions
+   *-------------------------------*/
+
+  /**
+   * Indexes an access unit while it is written, the parameter sets and a key frame of it are
+   * added, the rest of the nal units are skipped after the first coded slice.
+   *
+   * @param fileOffset file offset of the access unit, e.g. {@link
+   * com.ns.greg.library.mango.utils.MediaWriter#getPosition()} before it is written
+   * @param presentationTimeUs presentation time of the access unit
+   */
+  public synchronized void add(byte[] data, int offset, int length, long fileOffset,
+      long presentationTimeUs) {
+    int end = offset + length;
+    int nalStart = AnnexB.findNalStart(data, offset, end);
+    while (nalStart >= 0 && nalStart < end) {
+      int nalType = AnnexB.getNalType(codecFormat, data[nalStart]);
+      long nalOffset = fileOffset + startCode(data, offset, nalStart) - offset;
+      if (AnnexB.isParameterSet(codecFormat, nalType)) {
+        append(nalOffset, presentationTimeUs, nalType);
+      } else if (AnnexB.isVcl(codecFormat, nalType)) {
+        if (AnnexB.isRandomAccess(codecFormat, nalType)) {
+          append(nalOffset, presentationTimeUs, nalType);
+        }
+
+        break;
+      }
+
+      nalStart = AnnexB.findNalStart(data, nalStart + 1, end);
+    }
+  }
+
+  /**
+   * Builds the index by scanning the stream, the presentation times are counted by the pictures
+   * since the stream has none, the first picture is at 0.
+   *
+   * @param frameDurationUs duration of a picture
+   */
+  public static KeyFrameIndex scan(File stream, CodecFormat codecFormat, long frameDurationUs)
+      throws IOException {
+    KeyFrameIndex index = new KeyFrameIndex(codecFormat);
+    byte[] buffer = new byte[SCAN_BUFFER_SIZE];
+    long pictures = 0L;
+    /* file offset of the last scanned nal unit */
+    long scanned = -1L;
+    try (RandomAccessFile file = new RandomAccessFile(stream, "r")) {
+      FileChannel channel = file.getChannel();
+      long length = channel.size();
+      long bufferOffset = 0L;
+      while (bufferOffset < length) {
+        int end = read(channel, buffer, bufferOffset);
+        boolean eof = bufferOffset + end >= length;
+        /* the start codes from the limit on are scanned by the next buffer, the ones before it
+         * are scanned with their leading zero, and skipped by the next buffer */
+        int limit = eof ? end : end - SCAN_OVERLAP;
+        int nalStart = AnnexB.findNalStart(buffer, 0, end);
+        while (nalStart >= 0 && nalStart < end) {
+          int startCode = startCode(buffer, 0, nalStart);
+          if (startCode >= limit) {
+            break;
+          }
+
+          if (bufferOffset + nalStart <= scanned) {
+            nalStart = AnnexB.findNalStart(buffer, nalStart + 1, end);
+            continue;
+          }
+
+          scanned = bufferOffset + nalStart;
+          int nalType = AnnexB.getNalType(codecFormat, buffer[nalStart]);
+          long nalOffset = bufferOffset + startCode;
+          if (AnnexB.isParameterSet(codecFormat, nalType)) {
+            index.append(nalOffset, pictures * frameDurationUs, nalType);
+          } else if (AnnexB.isVcl(codecFormat, nalType)
+              && AnnexB.isFirstSlice(codecFormat, buffer, nalStart, end)) {
+            if (AnnexB.isRandomAccess(codecFormat, nalType)) {
+              index.append(nalOffset, pictures * frameDurationUs, nalType);
+            }
+
+            pictures++;
+          }
+
+          nalStart = AnnexB.findNalStart(buffer, nalStart + 1, end);
+        }
+
+        bufferOffset += limit;
+      }
+    }
+
+    return index;
+  }
+
+  /*--------------------------------
+   * Sidecar functions
+   *-------------------------------*/
+
+  /**
+   * Loads the sidecar of the stream
+   *
+   * @return the index, null if there is no sidecar, or it is broken or stale
+   */
+  public static KeyFrameIndex load(File stream, CodecFormat codecFormat) {
+    File sidecar = getSidecar(stream);
+    if (!sidecar.isFile()) {
+      return null;
+    }
+
+    try (DataInputStream input = new DataInputStream(
+        new BufferedInputStream(new FileInputStream(sidecar)))) {
+      if (input.readInt() != MAGIC || input.readInt() != VERSION) {
+        return null;
+      }
+
+      if (input.readLong() != stream.length()) {
+        /* the stream is changed after indexed */
+        return null;
+      }
+
+      int size = input.readInt();
+      if (size < 0 || sidecar.length() != HEADER_SIZE + (long) size * ENTRY_SIZE) {
+        return null;
+      }
+
+      KeyFrameIndex index = new KeyFrameIndex(codecFormat);
+      index.ensureCapacity(size);
+      for (int i = 0; i < size; i++) {
+        index.offsets[i] = input.readLong();
+        index.presentationTimesUs[i] = input.readLong();
+        index.nalTypes[i] = input.readByte();
+      }
+
+      index.size = size;
+      return index;
+    } catch (IOException e) {
+      return null;
+    }
+  }
+
+  /**
+   * Saves the sidecar of the stream with its length, should be called after the stream is closed,
+   * the sidecar is stale once the stream length changes
+   */
+  public synchronized void save(File stream) throws IOException {
+    try (DataOutputStream output = new DataOutputStream(
+        new BufferedOutputStream(new FileOutputStream(getSidecar(stream))))) {
+      output.writeInt(MAGIC);
+      output.writeInt(VERSION);
+      output.writeLong(stream.length());
+      output.writeInt(size);
+      for (int i = 0; i < size; i++) {
+        output.writeLong(offsets[i]);
+        output.writeLong(presentationTimesUs[i]);
+        output.writeByte(nalTypes[i]);
+      }
+    }
+  }
+
+  /*--------------------------------
+   * Lookup functions
+   *-------------------------------*/
+
+  public synchronized int size() {
+    return size;
+  }
+
+  /**
+   * @return file offset of the start code of the entry
+   */
+  public synchronized long getOffset(int entry) {
+    return offsets[entry];
+  }
+
+  public synchronized long getPresentationTimeUs(int entry) {
+    return presentationTimesUs[entry];
+  }
+
+  public synchronized int getNalType(int entry) {
+    return nalTypes[entry];
+  }
+
+  /**
+   * Finds the key frame at or before the time, or the first key frame if the time is before it
+   *
+   * @return the entry, -1 if there is no key frame
+   */
+  public synchronized int findKeyFrame(long presentationTimeUs) {
+    int low = 0;
+    int high = size - 1;
+    /* the last entry at or before the time */
+    while (low <= high) {
+      int middle = (low + high) >>> 1;
+      if (presentationTimesUs[middle] <= presentationTimeUs) {
+        low = middle + 1;
+      } else {
+        high = middle - 1;
+      }
+    }
+
+    for (int i = high; i >= 0; i--) {
+      if (AnnexB.isRandomAccess(codecFormat, nalTypes[i])) {
+        return i;
+      }
+    }
+
+    for (int i = high + 1; i < size; i++) {
+      if (AnnexB.isRandomAccess(codecFormat, nalTypes[i])) {
+        return i;
+      }
+    }
+
+    return -1;
+  }
+
+  /**
+   * Finds the parameter set in effect at the key frame, the latest one of the type before it
+   *
+   * @param nalType nal unit type of the parameter set
+   * @return the entry, -1 if not found
+   */
+  public synchronized int findParameterSet(int keyFrame, int nalType) {
+    for (int i = keyFrame - 1; i >= 0; i--) {
+      if (nalTypes[i] == nalType) {
+        return i;
+      }
+    }
+
+    return -1;
+  }
+
+  /*--------------------------------
+   * Private functions
+   *-------------------------------*/
+
+  private synchronized void append(long offset, long presentationTimeUs, int nalType) {
+    ensureCapacity(size + 1);
+    offsets[size] = offset;
+    presentationTimesUs[size] = presentationTimeUs;
+    nalTypes[size] = (byte) nalType;
+    size++;
+  }
+
+  private void ensureCapacity(int capacity) {
+    if (capacity <= offsets.length) {
+      return;
+    }
+
+    int length = Math.max(capacity, offsets.length * 2);
+    offsets = Arrays.copyOf(offsets, length);
+    presentationTimesUs = Arrays.copyOf(presentationTimesUs, length);
+    nalTypes = Arrays.copyOf(nalTypes, length);
+  }
+
+  /**
+   * @return index of the start code, 3 or 4 bytes
+   */
+  private static int startCode(byte[] data, int offset, int nalStart) {
+    return nalStart - 4 >= offset && data[nalStart - 4] == 0 ? nalStart - 4 : nalStart - 3;
+  }
+
+  private static int read(FileChannel channel, byte[] buffer, long position) throws IOException {
+    ByteBuffer byteBuffer = ByteBuffer.wrap(buffer);
+    while (byteBuffer.hasRemaining()) {
+      if (channel.read(byteBuffer, position + byteBuffer.position()) < 0) {
+        break;
+      }
+    }
+
+    return byteBuffer.position();
+  }
+}
@@ -0,0 +1,505 @@
+package com.ns.greg.library.mango.ts;
+
+import com.ns.greg.library.mango.codec.AnnexB;
+import com.ns.greg.library.mango.codec.CodecFormat;
+
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+
+/**
+ * @author gregho
+ * @since 2019/3/20
+ *
+ * <p>
+ * Demuxes an MPEG-TS stream, e.g. received over UDP multicast or RTP, into the access units of
+ * the first video (H.264/H.265) and the first audio (AAC ADTS) stream of the first program.
+ *
+ * The PAT and the PMT are followed, the PES packets are reassembled into an own buffer per stream,
+ * the PTS (33 bits, extended over the wrap) and the PCR are converted to microseconds. A gap of
+ * the continuity counter drops the PES packet it hits, and the listener is told, so the video can
+ * wait for the next key frame. The packets are read from the given buffer, direct or not, by
+ * absolute offsets, nothing is allocated per packet, the reassembly buffers only grow for a
+ * larger PES packet.
+ *
+ * Not thread safe, everything runs on the receiving thread. The PSI sections are expected to fit
+ * in one packet, and their CRC is not checked.
+ * </p>
+ */
+public class TsDemuxer {
+
+  /* init defines, do not modify */
+  public static final int PACKET_SIZE = 188;
+  private static final int SYNC_BYTE = 0x47;
+  private static final int PAT_PID = 0;
+  private static final int NULL_PID = 0x1FFF;
+  private static final int TABLE_ID_PAT = 0x00;
+  private static final int TABLE_ID_PMT = 0x02;
+  /* stream types of the PMT */
+  public static final int STREAM_TYPE_AAC_ADTS = 0x0F;
+  public static final int STREAM_TYPE_H264 = 0x1B;
+  public static final int STREAM_TYPE_H265 = 0x24;
+  private static final int RTP_VERSION = 2;
+  private static final int RTP_HEADER_SIZE = 12;
+  private static final int ADTS_HEADER_SIZE = 7;
+  private static final int AAC_SAMPLES_PER_FRAME = 1024;
+  private static final int INITIAL_PES_SIZE = 64 * 1024;
+  private static final long PTS_WRAP = 1L << 33;
+  private static final int[] ADTS_SAMPLE_RATES = {
+      96000, 88200, 64000, 48000, 44100, 32000, 24000, 22050, 16000, 12000, 11025, 8000, 7350
+  };
+
+  public interface Listener {
+
+    /**
+     * Called with a complete access unit in Annex-B format, the data is reused after the call
+     *
+     * @param presentationTimeUs presentation time, extended over the 33 bits wrap
+     * @param keyFrame true if an IDR (H.264) or an IRAP (H.265) picture
+     */
+    void onVideo(CodecFormat codecFormat, byte[] data, int offset, int length,
+        long presentationTimeUs, boolean keyFrame);
+
+    /**
+     * Called with a raw AAC frame, the ADTS header is stripped, the data is reused after the call
+     */
+    void onAudio(CodecFormat codecFormat, byte[] data, int offset, int length, int sampleRate,
+        int channelCount, long presentationTimeUs);
+
+    /**
+     * Called when the continuity counter of a stream skips, the PES packet being reassembled is
+     * dropped
+     *
+     * @param video true if the video stream
+     * @param lostPackets the packets lost, modulo 16
+     */
+    void onDiscontinuity(boolean video, int lostPackets);
+  }
+
+  /**
+   * Reassembles the PES packets of an elementary stream
+   */
+  private static final class PesStream {
+
+    private final int pid;
+    private final int streamType;
+    private byte[] data = new byte[INITIAL_PES_SIZE];
+    private int size;
+    /* PES_packet_length in the payload, 0 if unbounded */
+    private int expectedSize;
+    private boolean started;
+    private long presentationTimeUs;
+    private int continuityCounter = -1;
+    /* the last PTS extended over the 33 bits wrap */
+    private long lastPts = -1L;
+
+    PesStream(int pid, int streamType) {
+      this.pid = pid;
+      this.streamType = streamType;
+    }
+
+    private void append(ByteBuffer buffer, int offset, int length) {
+      if (size + length > data.length) {
+        data = Arrays.copyOf(data, Math.max(data.length * 2, size + length));
+      }
+
+      /* bulk copy, the position is restored */
+      int position = buffer.position();
+      buffer.position(offset);
+      buffer.get(data, size, length);
+      buffer.position(position);
+      size += length;
+    }
+
+    /**
+     * @param pts 90 kHz, 33 bits
+     * @return the PTS nearest to the last one in microseconds
+     */
+    private long extendPts(long pts) {
+      long extended = pts;
+      if (lastPts >= 0) {
+        extended = (lastPts & ~(PTS_WRAP - 1)) | pts;
+        if (extended < lastPts - PTS_WRAP / 2) {
+          extended += PTS_WRAP;
+        } else if (extended > lastPts + PTS_WRAP / 2 && extended >= PTS_WRAP) {
+          /* a late packet from before the wrap */
+          extended -= PTS_WRAP;
+        }
+      }
+
+      lastPts = extended;
+      return extended * 100L / 9L;
+    }
+  }
+
+  private Listener listener;
+  private int pmtPid = -1;
+  private int pmtVersion = -1;
+  private int pcrPid = -1;
+  private PesStream video;
+  private PesStream audio;
+  private long lastPcrUs = -1L;
+  /* metrics */
+  private long packets;
+  private long lostPackets;
+  private long droppedPes;
+  private long syncLosses;
+
+  public void setListener(Listener listener) {
+    this.listener = listener;
+  }
+
+  /**
+   * Forgets the programs and the partial PES packets, e.g. when the source is switched
+   */
+  public void reset() {
+    pmtPid = -1;
+    pmtVersion = -1;
+    pcrPid = -1;
+    video = null;
+    audio = null;
+    lastPcrUs = -1L;
+  }
+
+  /*--------------------------------
+   * Feeding functions
+   *-------------------------------*/
+
+  /**
+   * Demuxes the whole packets from the position to the limit, the position is moved after the
+   * last whole packet, so a partial packet at the end stays for the next read
+   */
+  public void feed(ByteBuffer buffer) {
+    int position = buffer.position();
+    int limit = buffer.limit();
+    while (limit - position >= PACKET_SIZE) {
+      if ((buffer.get(position) & 0xFF) != SYNC_BYTE) {
+        /* resync byte by byte */
+        syncLosses++;
+        position++;
+        continue;
+      }
+
+      demuxPacket(buffer, position);
+      position += PACKET_SIZE;
+    }
+
+    buffer.position(position);
+  }
+
+  /**
+   * Demuxes a datagram of the packets, the RTP header (RFC 2250) is skipped if there is one
+   */
+  public void feedDatagram(ByteBuffer datagram) {
+    int position = datagram.position();
+    if (datagram.remaining() > RTP_HEADER_SIZE
+        && (datagram.get(position) & 0xFF) != SYNC_BYTE
+        && (datagram.get(position) & 0xFF) >> 6 == RTP_VERSION) {
+      int first = datagram.get(position) & 0xFF;
+      int headerSize = RTP_HEADER_SIZE + 4 * (first & 0x0F);
+      if ((first & 0x10) != 0 && datagram.limit() >= position + headerSize + 4) {
+        /* header extension, the length is in 32 bits words */
+        headerSize += 4 + 4 * (datagram.getShort(position + headerSize + 2) & 0xFFFF);
+      }
+
+      datagram.position(Math.min(datagram.limit(), position + headerSize));
+    }
+
+    feed(datagram);
+  }
+
+  /*--------------------------------
+   * Metrics
+   *-------------------------------*/
+
+  public long getPackets() {
+    return packets;
+  }
+
+  /**
+   * @return the packets lost by the continuity counter, modulo 16 per gap
+   */
+  public long getLostPackets() {
+    return lostPackets;
+  }
+
+  /**
+   * @return the PES packets dropped by a gap
+   */
+  public long getDroppedPes() {
+    return droppedPes;
+  }
+
+  /**
+   * @return the bytes skipped to find the sync byte
+   */
+  public long getSyncLosses() {
+    return syncLosses;
+  }
+
+  /**
+   * @return the last PCR of the program in microseconds, -1 if not received yet
+   */
+  public long getLastPcrUs() {
+    return lastPcrUs;
+  }
+
+  /*--------------------------------
+   * Packet functions
+   *-------------------------------*/
+
+  private void demuxPacket(ByteBuffer buffer, int offset) {
+    packets++;
+    int header = buffer.getInt(offset);
+    boolean transportError = (header & 0x800000) != 0;
+    boolean payloadStart = (header & 0x400000) != 0;
+    int pid = (header >> 8) & 0x1FFF;
+    int adaptationControl = (header >> 4) & 0x03;
+    int continuityCounter = header & 0x0F;
+    if (transportError || pid == NULL_PID) {
+      return;
+    }
+
+    int payloadOffset = offset + 4;
+    boolean discontinuity = false;
+    if ((adaptationControl & 0x02) != 0) {
+      int adaptationLength = buffer.get(payloadOffset) & 0xFF;
+      if (adaptationLength > 0) {
+        int flags = buffer.get(payloadOffset + 1) & 0xFF;
+        discontinuity = (flags & 0x80) != 0;
+        if ((flags & 0x10) != 0 && adaptationLength >= 7 && pid == pcrPid) {
+          lastPcrUs = readPcrUs(buffer, payloadOffset + 2);
+        }
+      }
+
+      payloadOffset += 1 + adaptationLength;
+    }
+
+    int payloadEnd = offset + PACKET_SIZE;
+    if ((adaptationControl & 0x01) == 0 || payloadOffset >= payloadEnd) {
+      /* no payload, the continuity counter is not incremented */
+      return;
+    }
+
+    if (pid == PAT_PID) {
+      if (payloadStart) {
+        parsePat(buffer, payloadOffset, payloadEnd);
+      }
+    } else if (pid == pmtPid) {
+      if (payloadStart) {
+        parsePmt(buffer, payloadOffset, payloadEnd);
+      }
+    } else if (video != null && pid == video.pid) {
+      demuxPes(video, buffer, payloadOffset, payloadEnd, payloadStart, continuityCounter,
+          discontinuity);
+    } else if (audio != null && pid == audio.pid) {
+      demuxPes(audio, buffer, payloadOffset, payloadEnd, payloadStart, continuityCounter,
+          discontinuity);
+    }
+  }
+
+  private static long readPcrUs(ByteBuffer buffer, int offset) {
+    long base = ((buffer.getInt(offset) & 0xFFFFFFFFL) << 1)
+        | ((buffer.get(offset + 4) & 0x80) >> 7);
+    int extension = ((buffer.get(offset + 4) & 0x01) << 8) | (buffer.get(offset + 5) & 0xFF);
+    /* 27 MHz */
+    return (base * 300L + extension) / 27L;
+  }
+
+  /*--------------------------------
+   * PSI functions
+   *-------------------------------*/
+
+  private void parsePat(ByteBuffer buffer, int offset, int end) {
+    int section = offset + 1 + (buffer.get(offset) & 0xFF);
+    if (section + 8 > end || (buffer.get(section) & 0xFF) != TABLE_ID_PAT) {
+      return;
+    }
+
+    int sectionLength = buffer.getShort(section + 1) & 0x0FFF;
+    /* program loop, without the CRC */
+    int loopEnd = Math.min(end, section + 3 + sectionLength - 4);
+    for (int i = section + 8; i + 4 <= loopEnd; i += 4) {
+      int programNumber = buffer.getShort(i) & 0xFFFF;
+      int pid = buffer.getShort(i + 2) & 0x1FFF;
+      if (programNumber != 0) {
+        /* the first program, 0 is the network PID */
+        if (pid != pmtPid) {
+          reset();
+          pmtPid = pid;
+        }
+
+        return;
+      }
+    }
+  }
+
+  private void parsePmt(ByteBuffer buffer, int offset, int end) {
+    int section = offset + 1 + (buffer.get(offset) & 0xFF);
+    if (section + 12 > end || (buffer.get(section) & 0xFF) != TABLE_ID_PMT) {
+      return;
+    }
+
+    int sectionLength = buffer.getShort(section + 1) & 0x0FFF;
+    int version = (buffer.get(section + 5) >> 1) & 0x1F;
+    if (version == pmtVersion) {
+      return;
+    }
+
+    pmtVersion = version;
+    pcrPid = buffer.getShort(section + 8) & 0x1FFF;
+    int programInfoLength = buffer.getShort(section + 10) & 0x0FFF;
+    int loopEnd = Math.min(end, section + 3 + sectionLength - 4);
+    PesStream newVideo = null;
+    PesStream newAudio = null;
+    for (int i = section + 12 + programInfoLength; i + 5 <= loopEnd; ) {
+      int streamType = buffer.get(i) & 0xFF;
+      int pid = buffer.getShort(i + 1) & 0x1FFF;
+      int infoLength = buffer.getShort(i + 3) & 0x0FFF;
+      if (newVideo == null && (streamType == STREAM_TYPE_H264 || streamType == STREAM_TYPE_H265)) {
+        /* keeps the stream if not changed, so the partial PES packet is not lost */
+        newVideo = video != null && video.pid == pid && video.streamType == streamType ? video
+            : new PesStream(pid, streamType);
+      } else if (newAudio == null && streamType == STREAM_TYPE_AAC_ADTS) {
+        newAudio = audio != null && audio.pid == pid && audio.streamType == streamType ? audio
+            : new PesStream(pid, streamType);
+      }
+
+      i += 5 + infoLength;
+    }
+
+    video = newVideo;
+    audio = newAudio;
+  }
+
+  /*--------------------------------
+   * PES functions
+   *-------------------------------*/
+
+  private void demuxPes(PesStream stream, ByteBuffer buffer, int offset, int end,
+      boolean payloadStart, int continuityCounter, boolean discontinuity) {
+    if (stream.continuityCounter >= 0 && !discontinuity) {
+      int expected = (stream.continuityCounter + 1) & 0x0F;
+      if (continuityCounter == stream.continuityCounter) {
+        /* duplicate packet */
+        return;
+      }
+
+      if (continuityCounter != expected) {
+        int lost = (continuityCounter - expected) & 0x0F;
+        lostPackets += lost;
+        if (stream.started) {
+          droppedPes++;
+          stream.started = false;
+          stream.size = 0;
+        }
+
+        if (listener != null) {
+          listener.onDiscontinuity(stream == video, lost);
+        }
+      }
+    }
+
+    stream.continuityCounter = continuityCounter;
+    if (payloadStart) {
+      if (stream.started && stream.expectedSize == 0) {
+        /* unbounded, ended by the next one */
+        emit(stream);
+      }
+
+      startPes(stream, buffer, offset, end);
+    } else if (stream.started) {
+      stream.append(buffer, offset, end - offset);
+    }
+
+    if (stream.started && stream.expectedSize > 0 && stream.size >= stream.expectedSize) {
+      stream.size = stream.expectedSize;
+      emit(stream);
+    }
+  }
+
+  private void startPes(PesStream stream, ByteBuffer buffer, int offset, int end) {
+    stream.started = false;
+    stream.size = 0;
+    if (offset + 9 > end || (buffer.getInt(offset) >>> 8) != 0x000001) {
+      return;
+    }
+
+    int packetLength = buffer.getShort(offset + 4) & 0xFFFF;
+    int ptsDtsFlags = (buffer.get(offset + 7) >> 6) & 0x03;
+    int headerLength = buffer.get(offset + 8) & 0xFF;
+    int payload = offset + 9 + headerLength;
+    if (payload > end) {
+      return;
+    }
+
+    if ((ptsDtsFlags & 0x02) != 0) {
+      stream.presentationTimeUs = stream.extendPts(readTimestamp(buffer, offset + 9));
+    }
+
+    /* the length counts from after the length field */
+    stream.expectedSize = packetLength > 0 ? packetLength - 3 - headerLength : 0;
+    stream.started = true;
+    stream.append(buffer, payload, end - payload);
+  }
+
+  private static long readTimestamp(ByteBuffer buffer, int offset) {
+    return ((long) (buffer.get(offset) & 0x0E) << 29)
+        | ((buffer.get(offset + 1) & 0xFF) << 22)
+        | ((buffer.get(offset + 2) & 0xFE) << 14)
+        | ((buffer.get(offset + 3) & 0xFF) << 7)
+        | ((buffer.get(offset + 4) & 0xFE) >> 1);
+  }
+
+  private void emit(PesStream stream) {
+    stream.started = false;
+    int size = stream.size;
+    stream.size = 0;
+    if (listener == null || size <= 0) {
+      return;
+    }
+
+    if (stream.streamType == STREAM_TYPE_AAC_ADTS) {
+      emitAdts(stream, size);
+    } else {
+      CodecFormat codecFormat =
+          stream.streamType == STREAM_TYPE_H265 ? CodecFormat.VIDEO_HEVC : CodecFormat.VIDEO_AVC;
+      listener.onVideo(codecFormat, stream.data, 0, size, stream.presentationTimeUs,
+          AnnexB.isKeyFrame(codecFormat, stream.data, 0, size));
+    }
+  }
+
+  /**
+   * Splits the ADTS frames of the PES packet, the frames after the first are stamped by the frame
+   * duration
+   */
+  private void emitAdts(PesStream stream, int size) {
+    byte[] data = stream.data;
+    int offset = 0;
+    int frames = 0;
+    while (offset + ADTS_HEADER_SIZE <= size) {
+      if ((data[offset] & 0xFF) != 0xFF || (data[offset + 1] & 0xF0) != 0xF0) {
+        offset++;
+        continue;
+      }
+
+      boolean protectionAbsent = (data[offset + 1] & 0x01) != 0;
+      int sampleRateIndex = (data[offset + 2] >> 2) & 0x0F;
+      int channelCount = ((data[offset + 2] & 0x01) << 2) | ((data[offset + 3] >> 6) & 0x03);
+      int frameLength = ((data[offset + 3] & 0x03) << 11) | ((data[offset + 4] & 0xFF) << 3)
+          | ((data[offset + 5] >> 5) & 0x07);
+      int headerSize = protectionAbsent ? ADTS_HEADER_SIZE : ADTS_HEADER_SIZE + 2;
+      if (sampleRateIndex >= ADTS_SAMPLE_RATES.length || frameLength <= headerSize
+          || offset + frameLength > size) {
+        return;
+      }
+
+      int sampleRate = ADTS_SAMPLE_RATES[sampleRateIndex];
+      long presentationTimeUs = stream.presentationTimeUs
+          + frames * AAC_SAMPLES_PER_FRAME * 1_000_000L / sampleRate;
+      listener.onAudio(CodecFormat.AUDIO_AAC_LC, data, offset + headerSize,
+          frameLength - headerSize, sampleRate, channelCount, presentationTimeUs);
+      offset += frameLength;
+      frames++;
+    }
+  }
+}
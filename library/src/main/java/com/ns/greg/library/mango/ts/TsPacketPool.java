@@ -0,0 +1,71 @@
+package com.ns.greg.library.mango.ts;
+
+import java.nio.ByteBuffer;
+import java.util.concurrent.ArrayBlockingQueue;
+
+/**
+ * @author gregho
+ * @since 2019/3/20
+ *
+ * <p>
+ * Pool of direct buffers for the TS packets, sliced from one allocation. A buffer holds a datagram
+ * of the packets, 7 packets is the usual UDP/RTP payload, plus the room of an RTP header, so the
+ * receiving thread reads into it and the demuxing thread hands it back, nothing is allocated per
+ * datagram.
+ * </p>
+ */
+public final class TsPacketPool {
+
+  /* init defines, do not modify */
+  public static final int DEFAULT_PACKETS_PER_BUFFER = 7;
+  /* RTP header with CSRCs and an extension */
+  private static final int HEADER_ROOM = 64;
+
+  private final ArrayBlockingQueue<ByteBuffer> buffers;
+  private final int bufferSize;
+
+  public TsPacketPool(int bufferCount) {
+    this(bufferCount, DEFAULT_PACKETS_PER_BUFFER);
+  }
+
+  public TsPacketPool(int bufferCount, int packetsPerBuffer) {
+    if (bufferCount <= 0 || packetsPerBuffer <= 0) {
+      throw new IllegalArgumentException("Unacceptable pool size");
+    }
+
+    bufferSize = packetsPerBuffer * TsDemuxer.PACKET_SIZE + HEADER_ROOM;
+    buffers = new ArrayBlockingQueue<>(bufferCount);
+    ByteBuffer block = ByteBuffer.allocateDirect(bufferCount * bufferSize);
+    for (int i = 0; i < bufferCount; i++) {
+      block.limit((i + 1) * bufferSize).position(i * bufferSize);
+      buffers.offer(block.slice());
+    }
+  }
+
+  public int getBufferSize() {
+    return bufferSize;
+  }
+
+  /**
+   * @return a cleared buffer, null if all are in use
+   */
+  public ByteBuffer acquire() {
+    ByteBuffer buffer = buffers.poll();
+    if (buffer != null) {
+      buffer.clear();
+    }
+
+    return buffer;
+  }
+
+  public void release(ByteBuffer buffer) {
+    buffers.offer(buffer);
+  }
+
+  /**
+   * @return the buffers not in use
+   */
+  public int available() {
+    return buffers.size();
+  }
+}
@@ -0,0 +1,241 @@
+package com.ns.greg.library.mango.ts;
+
+import android.media.MediaCodec;
+import android.util.Log;
+import com.ns.greg.library.mango.codec.AnnexB;
+import com.ns.greg.library.mango.codec.CodecFormat;
+import com.ns.greg.library.mango.rtsp.RtspPlayer;
+
+/**
+ * @author gregho
+ * @since 2019/3/20
+ *
+ * <p>
+ * Feeds the access units of the {@link TsDemuxer} into the {@link RtspPlayer}. The video decoder
+ * is prepared by the parameter sets of the first key frame, and the speaker by the first AAC
+ * frame. After a loss of the video the frames are skipped until the next key frame.
+ *
+ * The decoders hold one access unit until it is queued, so the access units are copied into a
+ * small queue per stream, and handed over only when the decoder has taken the previous one. The
+ * queues are drained on every callback, and by {@link #drain()}. The arrays are reused once grown
+ * to the largest access unit. A video queue overflow is a loss, the frames are skipped until the
+ * next key frame then.
+ * </p>
+ */
+public class TsPlayerListener implements TsDemuxer.Listener {
+
+  /* init defines, do not modify */
+  private static final String TAG = "TsPlayerListener";
+  /* the decoder holds one, the rest wait for it */
+  private static final int QUEUE_SIZE = 8;
+  /* the 3 bytes start codes of the parameter sets become 4 bytes */
+  private static final int CSD_ROOM = 16;
+
+  private final RtspPlayer player;
+  private final AccessUnitQueue videoQueue = new AccessUnitQueue();
+  private final AccessUnitQueue audioQueue = new AccessUnitQueue();
+  private int sampleRate;
+  private int channelCount;
+  private boolean videoPrepared;
+  private boolean audioPrepared;
+  private boolean waitKeyFrame = true;
+  private long skippedFrames;
+  private long droppedAudioFrames;
+
+  /**
+   * @param player the player created with the formats of the stream
+   */
+  public TsPlayerListener(RtspPlayer player) {
+    this.player = player;
+  }
+
+  /**
+   * @return the video frames skipped while waiting for a key frame, or dropped by an overflow
+   */
+  public long getSkippedFrames() {
+    return skippedFrames;
+  }
+
+  /**
+   * @return the audio frames dropped by an overflow
+   */
+  public long getDroppedAudioFrames() {
+    return droppedAudioFrames;
+  }
+
+  /**
+   * Hands the queued access units over to the decoders which have taken the previous ones, should
+   * be called on the thread feeding the demuxer, e.g. while waiting for the next datagram
+   */
+  public void drain() {
+    while (!videoQueue.isEmpty() && !player.isVideoInputPending()) {
+      int index = videoQueue.poll();
+      player.decodeVideoSample(videoQueue.arrays[index], videoQueue.lengths[index],
+          videoQueue.presentationTimesUs[index], videoQueue.flags[index]);
+    }
+
+    while (!audioQueue.isEmpty() && !player.isAudioInputPending()) {
+      int index = audioQueue.poll();
+      player.decodeAudioSample(audioQueue.arrays[index], audioQueue.lengths[index], sampleRate,
+          channelCount, audioQueue.presentationTimesUs[index], 0);
+    }
+  }
+
+  @Override public void onVideo(CodecFormat codecFormat, byte[] data, int offset, int length,
+      long presentationTimeUs, boolean keyFrame) {
+    if (waitKeyFrame && !keyFrame) {
+      skippedFrames++;
+      return;
+    }
+
+    if (!videoPrepared) {
+      if (player.getVideoCodecFormat() != codecFormat) {
+        Log.i(TAG, "PREPARE VIDEO -> failed, the player is not for " + codecFormat);
+        return;
+      }
+
+      byte[] csd = new byte[length + CSD_ROOM];
+      int csdLength = collectParameterSets(codecFormat, data, offset, length, csd);
+      if (csdLength <= 0) {
+        skippedFrames++;
+        return;
+      }
+
+      player.prepareVideoDecoder(csd, csdLength);
+      player.start();
+      videoPrepared = true;
+    }
+
+    drain();
+    if (videoQueue.isFull()) {
+      /* the decoder falls behind, the queued reference frames are lost along with this one */
+      skippedFrames += videoQueue.clear() + 1;
+      waitKeyFrame = true;
+      Log.i(TAG, "VIDEO QUEUE -> overflow, wait for the next key frame");
+      return;
+    }
+
+    waitKeyFrame = false;
+    videoQueue.offer(data, offset, length, presentationTimeUs,
+        keyFrame ? MediaCodec.BUFFER_FLAG_KEY_FRAME : 0);
+    drain();
+  }
+
+  @Override public void onAudio(CodecFormat codecFormat, byte[] data, int offset, int length,
+      int sampleRate, int channelCount, long presentationTimeUs) {
+    if (!audioPrepared) {
+      if (player.getSpeakerCodecFormat() != codecFormat) {
+        return;
+      }
+
+      player.prepareSpeaker(sampleRate, channelCount);
+      player.start();
+      this.sampleRate = sampleRate;
+      this.channelCount = channelCount;
+      audioPrepared = true;
+    }
+
+    drain();
+    if (audioQueue.isFull()) {
+      droppedAudioFrames++;
+      return;
+    }
+
+    audioQueue.offer(data, offset, length, presentationTimeUs, 0);
+    drain();
+  }
+
+  @Override public void onDiscontinuity(boolean video, int lostPackets) {
+    if (video) {
+      /* the queued frames are still decodable, only the following ones are skipped */
+      waitKeyFrame = true;
+    }
+  }
+
+  /*--------------------------------
+   * Private functions
+   *-------------------------------*/
+
+  /**
+   * Copies the parameter sets of the access unit with the 4 bytes start codes
+   *
+   * @return length of the parameter sets
+   */
+  private static int collectParameterSets(CodecFormat codecFormat, byte[] data, int offset,
+      int length, byte[] csd) {
+    int csdLength = 0;
+    int end = offset + length;
+    int nalStart = AnnexB.findNalStart(data, offset, end);
+    while (nalStart >= 0 && nalStart < end) {
+      int nalEnd = AnnexB.findNalEnd(data, nalStart, end);
+      if (AnnexB.isParameterSet(codecFormat, AnnexB.getNalType(codecFormat, data[nalStart]))) {
+        csd[csdLength++] = 0;
+        csd[csdLength++] = 0;
+        csd[csdLength++] = 0;
+        csd[csdLength++] = 1;
+        System.arraycopy(data, nalStart, csd, csdLength, nalEnd - nalStart);
+        csdLength += nalEnd - nalStart;
+      }
+
+      nalStart = AnnexB.findNalStart(data, nalEnd, end);
+    }
+
+    return csdLength;
+  }
+
+  /**
+   * Ring of the copied access units, the slot before the head is the one held by the decoder, so
+   * it is never written until the next one is handed over
+   */
+  private static final class AccessUnitQueue {
+
+    private final byte[][] arrays = new byte[QUEUE_SIZE][];
+    private final int[] lengths = new int[QUEUE_SIZE];
+    private final long[] presentationTimesUs = new long[QUEUE_SIZE];
+    private final int[] flags = new int[QUEUE_SIZE];
+    private int head;
+    private int count;
+
+    private boolean isEmpty() {
+      return count == 0;
+    }
+
+    private boolean isFull() {
+      return count == QUEUE_SIZE - 1;
+    }
+
+    private void offer(byte[] data, int offset, int length, long presentationTimeUs, int flags) {
+      int index = (head + count) % QUEUE_SIZE;
+      byte[] array = arrays[index];
+      if (array == null || array.length < length) {
+        array = new byte[length];
+        arrays[index] = array;
+      }
+
+      System.arraycopy(data, offset, array, 0, length);
+      lengths[index] = length;
+      presentationTimesUs[index] = presentationTimeUs;
+      this.flags[index] = flags;
+      count++;
+    }
+
+    /**
+     * @return index of the head
+     */
+    private int poll() {
+      int index = head;
+      head = (head + 1) % QUEUE_SIZE;
+      count--;
+      return index;
+    }
+
+    /**
+     * @return the access units discarded
+     */
+    private int clear() {
+      int discarded = count;
+      count = 0;
+      return discarded;
+    }
+  }
+}
@@ -0,0 +1,161 @@
+package com.ns.greg.library.mango.utils;
+
+import java.nio.ByteBuffer;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * @author gregho
+ * @since 2019/3/5
+ *
+ * <p>
+ * A preallocated single-producer/single-consumer ring buffer, the producer and the consumer never
+ * block each other.
+ *
+ * Producer: {@link #offer(byte[], int, int)}, {@link #offer(ByteBuffer, int)}
+ * Consumer: {@link #getReadOffset()}, {@link #getReadableContiguous()}, {@link #skip(int)},
+ * {@link #read(byte[], int, int)}, {@link #clear()}
+ * </p>
+ */
+public class ByteRingBuffer {
+
+  private final byte[] buffer;
+  private final int capacity;
+  /* total bytes ever written and read, the index is the position modulo capacity */
+  private final AtomicLong writePosition = new AtomicLong();
+  private final AtomicLong readPosition = new AtomicLong();
+
+  public ByteRingBuffer(int capacity) {
+    if (capacity <= 0) {
+      throw new IllegalArgumentException("Capacity must be positive");
+    }
+
+    this.buffer = new byte[capacity];
+    this.capacity = capacity;
+  }
+
+  public int capacity() {
+    return capacity;
+  }
+
+  /**
+   * @return the bytes can be read
+   */
+  public int size() {
+    return (int) (writePosition.get() - readPosition.get());
+  }
+
+  /**
+   * @return the bytes can be written
+   */
+  public int free() {
+    return capacity - size();
+  }
+
+  /**
+   * Gets the backing array, the readable region is described by {@link #getReadOffset()} and
+   * {@link #getReadableContiguous()}
+   */
+  public byte[] array() {
+    return buffer;
+  }
+
+  /*--------------------------------
+   * Producer functions
+   *-------------------------------*/
+
+  /**
+   * Writes the data into the buffer, all or nothing
+   *
+   * @return true if written, false if there is no enough space
+   */
+  public boolean offer(byte[] src, int offset, int length) {
+    long write = writePosition.get();
+    if (length > capacity - (int) (write - readPosition.get())) {
+      return false;
+    }
+
+    int index = (int) (write % capacity);
+    int first = Math.min(length, capacity - index);
+    System.arraycopy(src, offset, buffer, index, first);
+    if (first < length) {
+      System.arraycopy(src, offset + first, buffer, 0, length - first);
+    }
+
+    writePosition.lazySet(write + length);
+    return true;
+  }
+
+  /**
+   * Writes the remaining data from the position of the source, all or nothing, the position of the
+   * source is advanced only if written
+   *
+   * @return true if written, false if there is no enough space
+   */
+  public boolean offer(ByteBuffer src, int length) {
+    long write = writePosition.get();
+    if (length > capacity - (int) (write - readPosition.get())) {
+      return false;
+    }
+
+    int index = (int) (write % capacity);
+    int first = Math.min(length, capacity - index);
+    src.get(buffer, index, first);
+    if (first < length) {
+      src.get(buffer, 0, length - first);
+    }
+
+    writePosition.lazySet(write + length);
+    return true;
+  }
+
+  /*--------------------------------
+   * Consumer functions
+   *-------------------------------*/
+
+  /**
+   * @return the index of the first readable byte in {@link #array()}
+   */
+  public int getReadOffset() {
+    return (int) (readPosition.get() % capacity);
+  }
+
+  /**
+   * @return the bytes can be read from {@link #getReadOffset()} without wrapping
+   */
+  public int getReadableContiguous() {
+    return Math.min(size(), capacity - getReadOffset());
+  }
+
+  /**
+   * Marks the bytes as consumed
+   */
+  public void skip(int length) {
+    readPosition.lazySet(readPosition.get() + Math.min(length, size()));
+  }
+
+  /**
+   * Reads and consumes the data
+   *
+   * @return the bytes read
+   */
+  public int read(byte[] dst, int offset, int length) {
+    long read = readPosition.get();
+    int count = Math.min(length, (int) (writePosition.get() - read));
+    int index = (int) (read % capacity);
+    int first = Math.min(count, capacity - index);
+    System.arraycopy(buffer, index, dst, offset, first);
+    if (first < count) {
+      System.arraycopy(buffer, 0, dst, offset + first, count - first);
+    }
+
+    readPosition.lazySet(read + count);
+    return count;
+  }
+
+  /**
+   * Discards all readable data
+   */
+  public void clear() {
+    readPosition.lazySet(writePosition.get());
+  }
+}
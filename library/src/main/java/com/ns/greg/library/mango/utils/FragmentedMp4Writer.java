@@ -0,0 +1,1101 @@
+package com.ns.greg.library.mango.utils;
+
+import com.ns.greg.library.mango.codec.AnnexB;
+import com.ns.greg.library.mango.codec.CodecConstants;
+import com.ns.greg.library.mango.codec.CodecFormat;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * @author gregho
+ * @since 2019/3/16
+ *
+ * <p>
+ * Writes H.264/H.265 and aac access units into fragmented mp4 in pure Java. The moov only
+ * describes the tracks, the samples are written as moof and mdat fragments of bounded duration
+ * and size, so a file cut at any point keeps every completed fragment playable. All the buffers
+ * are allocated when the tracks are set, and a fragment starts from a video key frame unless the
+ * buffers are full or the GOP is longer than two fragments.
+ *
+ * Started with a {@link SegmentCallback}, the recording rolls over to a new self-contained file at
+ * the first video key frame after the segment duration or size.
+ *
+ * The video is in Annex-B, it is rewritten into 4 bytes length prefixes and the parameter sets
+ * are moved into the sample entry. The presentation time is used as the decode time, so B-frames
+ * are not supported. The aac is raw or ADTS.
+ * </p>
+ */
+public class FragmentedMp4Writer {
+
+  public interface SegmentCallback {
+
+    /**
+     * @param index index of the segment from 0
+     * @param presentationTimeUs presentation time of the first sample
+     * @return file of the segment
+     */
+    File onSegmentStart(int index, long presentationTimeUs);
+
+    /**
+     * @param durationUs duration till the first sample of the next segment, or the last sample
+     * @param size file size in bytes
+     */
+    void onSegmentFinish(File file, long presentationTimeUs, long durationUs, long size);
+  }
+
+  public static final long DEFAULT_FRAGMENT_DURATION_MS = 1000L;
+  public static final int DEFAULT_VIDEO_BUFFER_SIZE = 2 << 20;
+  public static final int DEFAULT_AUDIO_BUFFER_SIZE = 128 * 1024;
+  private static final int MAX_SAMPLES = 512;
+  /* the moov or a moof read by readDurationUs */
+  private static final int MAX_READ_BOX_SIZE = 1024 * 1024;
+  private static final int MOVIE_TIMESCALE = 1000;
+  private static final int VIDEO_TIMESCALE = 90000;
+  private static final int VIDEO_TRACK_ID = 1;
+  private static final int AUDIO_TRACK_ID = 2;
+  /* tfhd default-base-is-moof */
+  private static final int TFHD_FLAGS = 0x020000;
+  /* trun data-offset, sample-duration, sample-size and sample-flags present */
+  private static final int TRUN_FLAGS = 0x000701;
+  /* sample_depends_on 2, does not depend on others */
+  private static final int SYNC_SAMPLE_FLAGS = 0x02000000;
+  /* sample_depends_on 1 and sample_is_non_sync_sample */
+  private static final int NON_SYNC_SAMPLE_FLAGS = 0x01010000;
+  private static final int[] MATRIX = new int[] {
+      0x00010000, 0, 0, 0, 0x00010000, 0, 0, 0, 0x40000000
+  };
+
+  private final int videoBufferSize;
+  private final int audioBufferSize;
+  private Track video;
+  private Track audio;
+  private long fragmentDurationUs = DEFAULT_FRAGMENT_DURATION_MS * 1000L;
+  /* moof and the mdat header */
+  private ByteBuffer header;
+  private final ByteBuffer[] buffers = new ByteBuffer[3];
+  /* segment */
+  private SegmentCallback callback;
+  private File file;
+  private long segmentDurationUs;
+  private long maxSegmentSize;
+  private FileChannel channel;
+  private int segmentIndex;
+  private long segmentStartUs;
+  private long segmentSize;
+  private int sequenceNumber;
+  private long fragmentStartUs;
+  private long latestUs;
+  private boolean started;
+  private volatile boolean failed;
+  private volatile long droppedSamples;
+
+  public FragmentedMp4Writer() {
+    this(DEFAULT_VIDEO_BUFFER_SIZE, DEFAULT_AUDIO_BUFFER_SIZE);
+  }
+
+  /**
+   * @param videoBufferSize the video bytes a fragment can hold
+   * @param audioBufferSize the audio bytes a fragment can hold
+   */
+  public FragmentedMp4Writer(int videoBufferSize, int audioBufferSize) {
+    if (videoBufferSize <= 0 || audioBufferSize <= 0) {
+      throw new IllegalArgumentException("Unacceptable buffer size");
+    }
+
+    this.videoBufferSize = videoBufferSize;
+    this.audioBufferSize = audioBufferSize;
+  }
+
+  /*--------------------------------
+   * Format functions, before started
+   *-------------------------------*/
+
+  /**
+   * @param codecFormat {@link CodecFormat#VIDEO_AVC} or {@link CodecFormat#VIDEO_HEVC}
+   * @param csd the parameter sets in Annex-B, the same as the decoder
+   */
+  public synchronized void setVideoFormat(CodecFormat codecFormat, byte[] csd, int csdSize,
+      int width, int height) {
+    if (codecFormat != CodecFormat.VIDEO_AVC && codecFormat != CodecFormat.VIDEO_HEVC) {
+      throw new IllegalArgumentException("Unacceptable video format");
+    }
+
+    checkNotStarted();
+    List<byte[]> parameterSets = new ArrayList<>();
+    int nalStart = AnnexB.findNalStart(csd, 0, csdSize);
+    while (nalStart >= 0) {
+      int nalEnd = AnnexB.findNalEnd(csd, nalStart, csdSize);
+      if (nalEnd > nalStart
+          && AnnexB.isParameterSet(codecFormat, AnnexB.getNalType(codecFormat, csd[nalStart]))) {
+        byte[] nal = new byte[nalEnd - nalStart];
+        System.arraycopy(csd, nalStart, nal, 0, nal.length);
+        parameterSets.add(nal);
+      }
+
+      nalStart = AnnexB.findNalStart(csd, nalEnd, csdSize);
+    }
+
+    video = new Track(codecFormat, VIDEO_TRACK_ID, VIDEO_TIMESCALE, videoBufferSize);
+    video.sampleEntry = codecFormat == CodecFormat.VIDEO_HEVC
+        ? getHevcSampleEntry(parameterSets, width, height)
+        : getAvcSampleEntry(parameterSets, width, height);
+    video.width = width;
+    video.height = height;
+  }
+
+  public synchronized void setAudioFormat(int sampleRate, int channelCount) {
+    checkNotStarted();
+    ByteBuffer csd = CodecConstants.getAacCsd0(sampleRate, channelCount,
+        CodecFormat.AUDIO_AAC_LC.getProfile());
+    byte[] audioSpecificConfig = new byte[csd.remaining()];
+    csd.get(audioSpecificConfig);
+    audio = new Track(CodecFormat.AUDIO_AAC_LC, AUDIO_TRACK_ID, sampleRate, audioBufferSize);
+    audio.sampleEntry = getAacSampleEntry(audioSpecificConfig, sampleRate, channelCount);
+  }
+
+  /**
+   * @param fragmentDurationMs duration of a fragment, the data lost when killed is at most this
+   */
+  public synchronized void setFragmentDurationMs(long fragmentDurationMs) {
+    if (fragmentDurationMs <= 0) {
+      throw new IllegalArgumentException("Unacceptable fragment duration");
+    }
+
+    this.fragmentDurationUs = fragmentDurationMs * 1000L;
+  }
+
+  /*--------------------------------
+   * Writing functions
+   *-------------------------------*/
+
+  /**
+   * Writes into a single file
+   */
+  public synchronized void start(File file) {
+    start(file, null, 0L);
+  }
+
+  /**
+   * Writes into the segments of the callback, rolls over at the first video key frame after the
+   * segment duration
+   */
+  public synchronized void start(SegmentCallback callback, long segmentDurationMs) {
+    start(callback, segmentDurationMs, 0L);
+  }
+
+  /**
+   * Writes into the segments of the callback, rolls over at the first video key frame after the
+   * segment duration or the segment size, whichever comes first
+   *
+   * @param segmentDurationMs 0 for no limit
+   * @param segmentSize size in bytes, 0 for no limit
+   */
+  public synchronized void start(SegmentCallback callback, long segmentDurationMs,
+      long segmentSize) {
+    if (callback == null || segmentDurationMs < 0 || segmentSize < 0
+        || (segmentDurationMs == 0 && segmentSize == 0)) {
+      throw new IllegalArgumentException("Unacceptable segment");
+    }
+
+    start(null, callback, segmentDurationMs * 1000L);
+    maxSegmentSize = segmentSize;
+  }
+
+  /**
+   * @param content the access unit in Annex-B
+   * @return true if written
+   */
+  public synchronized boolean writeVideo(byte[] content, int contentLength,
+      long presentationTimeUs) {
+    if (video == null || contentLength <= 0) {
+      return false;
+    }
+
+    boolean keyFrame = AnnexB.isKeyFrame(video.codecFormat, content, 0, contentLength);
+    return add(video, content, 0, contentLength, presentationTimeUs, keyFrame);
+  }
+
+  /**
+   * @param content the raw or the ADTS aac access unit
+   * @return true if written
+   */
+  public synchronized boolean writeAudio(byte[] content, int contentLength,
+      long presentationTimeUs) {
+    if (audio == null || contentLength <= 0) {
+      return false;
+    }
+
+    int offset = 0;
+    if (contentLength > 7 && (content[0] & 0xFF) == 0xFF && (content[1] & 0xF0) == 0xF0) {
+      /* without the crc when the protection is absent */
+      offset = (content[1] & 0x01) == 1 ? 7 : 9;
+    }
+
+    return add(audio, content, offset, contentLength - offset, presentationTimeUs, true);
+  }
+
+  /**
+   * Writes the last fragment and closes the file
+   */
+  public synchronized void stop() {
+    if (!started) {
+      return;
+    }
+
+    started = false;
+    try {
+      if (channel != null) {
+        finishSegment(latestUs);
+      }
+    } catch (IOException e) {
+      fail();
+    }
+  }
+
+  public boolean isFailed() {
+    return failed;
+  }
+
+  /**
+   * @return the samples dropped since a fragment can not hold them, or before the first key frame
+   */
+  public long getDroppedSamples() {
+    return droppedSamples;
+  }
+
+  /*--------------------------------
+   * Reading functions
+   *-------------------------------*/
+
+  /**
+   * Reads the duration of a written file by its fragments, e.g. a segment left by a recording not
+   * stopped properly, the fragment cut at the end is not counted
+   *
+   * @return duration in microseconds, -1 if not readable
+   */
+  public static long readDurationUs(File file) {
+    long[] timescales = new long[AUDIO_TRACK_ID + 1];
+    long durationUs = -1L;
+    try (RandomAccessFile input = new RandomAccessFile(file, "r")) {
+      long length = input.length();
+      long position = 0L;
+      while (position + 8 <= length) {
+        input.seek(position);
+        long size = input.readInt() & 0xFFFFFFFFL;
+        int type = input.readInt();
+        if (size < 8 || position + size > length) {
+          break;
+        }
+
+        if (type == toInt("moov") || type == toInt("moof")) {
+          if (size > MAX_READ_BOX_SIZE) {
+            break;
+          }
+
+          /* the mdat of the fragment is complete as well */
+          long mdat = position + size;
+          if (type == toInt("moof") && (mdat + 8 > length || !isComplete(input, mdat, length))) {
+            break;
+          }
+
+          byte[] box = new byte[(int) size];
+          input.seek(position);
+          input.readFully(box);
+          ByteBuffer buffer = ByteBuffer.wrap(box);
+          if (type == toInt("moov")) {
+            readTimescales(buffer, timescales);
+          } else {
+            durationUs = Math.max(durationUs, readFragmentEndUs(buffer, timescales));
+          }
+        }
+
+        position += size;
+      }
+    } catch (IOException | IndexOutOfBoundsException e) {
+      return -1L;
+    }
+
+    return durationUs;
+  }
+
+  /*--------------------------------
+   * Private functions
+   *-------------------------------*/
+
+  private void checkNotStarted() {
+    if (started) {
+      throw new IllegalStateException("Already started");
+    }
+  }
+
+  private void start(File file, SegmentCallback callback, long segmentDurationUs) {
+    checkNotStarted();
+    if (video == null && audio == null) {
+      throw new IllegalStateException("No format");
+    }
+
+    this.file = file;
+    this.callback = callback;
+    this.segmentDurationUs = segmentDurationUs;
+    this.maxSegmentSize = 0L;
+    int trunSize = 20 + 12 * MAX_SAMPLES;
+    header = ByteBuffer.allocate(8 + 16 + 2 * (8 + 16 + 20 + trunSize) + 8);
+    segmentIndex = 0;
+    channel = null;
+    failed = false;
+    started = true;
+  }
+
+  private boolean add(Track track, byte[] content, int offset, int length,
+      long presentationTimeUs, boolean sync) {
+    if (!started || failed) {
+      return false;
+    }
+
+    try {
+      /* the video decides where to cut, the audio only stream is cut anywhere */
+      boolean boundary = sync && (track == video || video == null);
+      if (channel == null) {
+        if (!boundary) {
+          droppedSamples++;
+          return false;
+        }
+
+        startSegment(presentationTimeUs);
+      } else if (boundary && isSegmentFull(presentationTimeUs)) {
+        finishSegment(presentationTimeUs);
+        startSegment(presentationTimeUs);
+      } else if (fragmentStartUs >= 0) {
+        /* cuts at a key frame, or anywhere if the GOP is much longer than a fragment */
+        long elapsedUs = presentationTimeUs - fragmentStartUs;
+        if ((boundary && elapsedUs >= fragmentDurationUs) || elapsedUs >= 2 * fragmentDurationUs) {
+          writeFragment();
+        }
+      }
+
+      if (presentationTimeUs < segmentStartUs) {
+        /* the audio before the first key frame */
+        droppedSamples++;
+        return false;
+      }
+
+      long time = (presentationTimeUs - segmentStartUs) * track.timescale / 1_000_000L;
+      int flags = sync ? SYNC_SAMPLE_FLAGS : NON_SYNC_SAMPLE_FLAGS;
+      if (!track.append(content, offset, length, time, flags)) {
+        writeFragment();
+        if (!track.append(content, offset, length, time, flags)) {
+          droppedSamples++;
+          return false;
+        }
+      }
+
+      if (fragmentStartUs < 0) {
+        fragmentStartUs = presentationTimeUs;
+      }
+
+      latestUs = Math.max(latestUs, presentationTimeUs);
+      return true;
+    } catch (IOException e) {
+      fail();
+      return false;
+    }
+  }
+
+  private boolean isSegmentFull(long presentationTimeUs) {
+    if (callback == null) {
+      return false;
+    }
+
+    return (segmentDurationUs > 0 && presentationTimeUs - segmentStartUs >= segmentDurationUs)
+        || (maxSegmentSize > 0 && segmentSize >= maxSegmentSize);
+  }
+
+  private void fail() {
+    failed = true;
+    if (channel != null) {
+      try {
+        channel.close();
+      } catch (IOException ignored) {
+      }
+
+      channel = null;
+    }
+  }
+
+  private void startSegment(long presentationTimeUs) throws IOException {
+    File segment = callback != null
+        ? callback.onSegmentStart(segmentIndex, presentationTimeUs) : file;
+    channel = new FileOutputStream(segment).getChannel();
+    file = segment;
+    segmentStartUs = presentationTimeUs;
+    fragmentStartUs = -1L;
+    latestUs = presentationTimeUs;
+    sequenceNumber = 0;
+    if (video != null) {
+      video.reset();
+    }
+
+    if (audio != null) {
+      audio.reset();
+    }
+
+    ByteBuffer init = getInitialization();
+    while (init.hasRemaining()) {
+      channel.write(init);
+    }
+
+    segmentSize = init.limit();
+  }
+
+  private void finishSegment(long endUs) throws IOException {
+    writeFragment();
+    channel.close();
+    channel = null;
+    if (callback != null) {
+      callback.onSegmentFinish(file, segmentStartUs, endUs - segmentStartUs, segmentSize);
+    }
+
+    segmentIndex++;
+  }
+
+  /**
+   * Writes the buffered samples as a moof and a mdat
+   */
+  private void writeFragment() throws IOException {
+    int videoCount = video != null ? video.count : 0;
+    int audioCount = audio != null ? audio.count : 0;
+    if (videoCount == 0 && audioCount == 0) {
+      return;
+    }
+
+    ByteBuffer moof = header;
+    moof.clear();
+    int moofStart = begin(moof, "moof");
+    int mfhd = beginFull(moof, "mfhd", 0);
+    moof.putInt(++sequenceNumber);
+    end(moof, mfhd);
+    int videoOffsetPosition = videoCount > 0 ? putTrackFragment(moof, video) : -1;
+    int audioOffsetPosition = audioCount > 0 ? putTrackFragment(moof, audio) : -1;
+    end(moof, moofStart);
+    int moofSize = moof.position();
+    int videoLength = videoCount > 0 ? video.length : 0;
+    int audioLength = audioCount > 0 ? audio.length : 0;
+    /* the data offsets are from the start of the moof */
+    if (videoOffsetPosition >= 0) {
+      moof.putInt(videoOffsetPosition, moofSize + 8);
+    }
+
+    if (audioOffsetPosition >= 0) {
+      moof.putInt(audioOffsetPosition, moofSize + 8 + videoLength);
+    }
+
+    moof.putInt(8 + videoLength + audioLength).put(toType("mdat"));
+    moof.flip();
+    int count = 0;
+    buffers[count++] = moof;
+    if (videoLength > 0) {
+      buffers[count++] = video.getData();
+    }
+
+    if (audioLength > 0) {
+      buffers[count++] = audio.getData();
+    }
+
+    long remaining = moof.remaining() + videoLength + audioLength;
+    while (remaining > 0) {
+      remaining -= channel.write(buffers, 0, count);
+    }
+
+    segmentSize += moofSize + 8 + videoLength + audioLength;
+    if (video != null) {
+      video.clear();
+    }
+
+    if (audio != null) {
+      audio.clear();
+    }
+
+    fragmentStartUs = -1L;
+  }
+
+  /**
+   * @return position of the data offset of the trun
+   */
+  private static int putTrackFragment(ByteBuffer buffer, Track track) {
+    int trafStart = begin(buffer, "traf");
+    int tfhd = beginFull(buffer, "tfhd", TFHD_FLAGS);
+    buffer.putInt(track.id);
+    end(buffer, tfhd);
+    /* version 1, 64 bits base media decode time */
+    int tfdt = beginFull(buffer, "tfdt", 0x01000000);
+    buffer.putLong(track.times[0]);
+    end(buffer, tfdt);
+    int trunStart = beginFull(buffer, "trun", TRUN_FLAGS);
+    buffer.putInt(track.count);
+    int dataOffsetPosition = buffer.position();
+    buffer.putInt(0);
+    for (int i = 0; i < track.count; i++) {
+      buffer.putInt((int) track.getDuration(i));
+      buffer.putInt(track.sizes[i]);
+      buffer.putInt(track.flags[i]);
+    }
+
+    end(buffer, trunStart);
+    end(buffer, trafStart);
+    return dataOffsetPosition;
+  }
+
+  /*--------------------------------
+   * Initialization segment
+   *-------------------------------*/
+
+  private ByteBuffer getInitialization() {
+    int entrySize = (video != null ? video.sampleEntry.length : 0)
+        + (audio != null ? audio.sampleEntry.length : 0);
+    ByteBuffer buffer = ByteBuffer.allocate(2048 + entrySize);
+    int ftyp = begin(buffer, "ftyp");
+    buffer.put(toType("isom")).putInt(0x200);
+    buffer.put(toType("isom")).put(toType("iso6")).put(toType("mp41"));
+    end(buffer, ftyp);
+    int moov = begin(buffer, "moov");
+    int mvhd = beginFull(buffer, "mvhd", 0);
+    buffer.putInt(0).putInt(0).putInt(MOVIE_TIMESCALE).putInt(0);
+    buffer.putInt(0x00010000).putShort((short) 0x0100).putShort((short) 0).putInt(0).putInt(0);
+    putMatrix(buffer);
+    for (int i = 0; i < 6; i++) {
+      buffer.putInt(0);
+    }
+
+    buffer.putInt(AUDIO_TRACK_ID + 1);
+    end(buffer, mvhd);
+    if (video != null) {
+      putTrack(buffer, video);
+    }
+
+    if (audio != null) {
+      putTrack(buffer, audio);
+    }
+
+    int mvex = begin(buffer, "mvex");
+    if (video != null) {
+      putTrackExtends(buffer, video);
+    }
+
+    if (audio != null) {
+      putTrackExtends(buffer, audio);
+    }
+
+    end(buffer, mvex);
+    end(buffer, moov);
+    buffer.flip();
+    return buffer;
+  }
+
+  private static void putTrack(ByteBuffer buffer, Track track) {
+    boolean isVideo = track.id == VIDEO_TRACK_ID;
+    int trak = begin(buffer, "trak");
+    /* enabled and in movie */
+    int tkhd = beginFull(buffer, "tkhd", 0x000003);
+    buffer.putInt(0).putInt(0).putInt(track.id).putInt(0).putInt(0).putInt(0).putInt(0);
+    buffer.putShort((short) 0).putShort((short) 0);
+    buffer.putShort((short) (isVideo ? 0 : 0x0100)).putShort((short) 0);
+    putMatrix(buffer);
+    buffer.putInt(track.width << 16).putInt(track.height << 16);
+    end(buffer, tkhd);
+    int mdia = begin(buffer, "mdia");
+    int mdhd = beginFull(buffer, "mdhd", 0);
+    /* language und */
+    buffer.putInt(0).putInt(0).putInt(track.timescale).putInt(0);
+    buffer.putShort((short) 0x55C4).putShort((short) 0);
+    end(buffer, mdhd);
+    int hdlr = beginFull(buffer, "hdlr", 0);
+    buffer.putInt(0).put(toType(isVideo ? "vide" : "soun")).putInt(0).putInt(0).putInt(0);
+    for (char c : (isVideo ? "VideoHandler" : "SoundHandler").toCharArray()) {
+      buffer.put((byte) c);
+    }
+
+    buffer.put((byte) 0);
+    end(buffer, hdlr);
+    int minf = begin(buffer, "minf");
+    if (isVideo) {
+      int vmhd = beginFull(buffer, "vmhd", 1);
+      buffer.putShort((short) 0).putShort((short) 0).putShort((short) 0).putShort((short) 0);
+      end(buffer, vmhd);
+    } else {
+      int smhd = beginFull(buffer, "smhd", 0);
+      buffer.putShort((short) 0).putShort((short) 0);
+      end(buffer, smhd);
+    }
+
+    int dinf = begin(buffer, "dinf");
+    int dref = beginFull(buffer, "dref", 0);
+    buffer.putInt(1);
+    /* self contained */
+    end(buffer, beginFull(buffer, "url ", 1));
+    end(buffer, dref);
+    end(buffer, dinf);
+    int stbl = begin(buffer, "stbl");
+    int stsd = beginFull(buffer, "stsd", 0);
+    buffer.putInt(1).put(track.sampleEntry);
+    end(buffer, stsd);
+    /* the samples are in the fragments */
+    int stts = beginFull(buffer, "stts", 0);
+    end(buffer, stts, 0);
+    int stsc = beginFull(buffer, "stsc", 0);
+    end(buffer, stsc, 0);
+    int stsz = beginFull(buffer, "stsz", 0);
+    buffer.putInt(0);
+    end(buffer, stsz, 0);
+    int stco = beginFull(buffer, "stco", 0);
+    end(buffer, stco, 0);
+    end(buffer, stbl);
+    end(buffer, minf);
+    end(buffer, mdia);
+    end(buffer, trak);
+  }
+
+  private static void putTrackExtends(ByteBuffer buffer, Track track) {
+    int trex = beginFull(buffer, "trex", 0);
+    buffer.putInt(track.id).putInt(1).putInt(0).putInt(0).putInt(0);
+    end(buffer, trex);
+  }
+
+  private static byte[] getAvcSampleEntry(List<byte[]> parameterSets, int width, int height) {
+    byte[] sps = null;
+    int spsCount = 0;
+    int ppsCount = 0;
+    int size = 0;
+    for (byte[] nal : parameterSets) {
+      if ((nal[0] & 0x1F) == AnnexB.AVC_SPS) {
+        spsCount++;
+        if (sps == null) {
+          sps = nal;
+        }
+      } else if ((nal[0] & 0x1F) == AnnexB.AVC_PPS) {
+        ppsCount++;
+      }
+
+      size += 2 + nal.length;
+    }
+
+    if (sps == null || sps.length < 4 || ppsCount == 0) {
+      throw new IllegalArgumentException("Unacceptable csd, no sps or pps");
+    }
+
+    ByteBuffer buffer = ByteBuffer.allocate(128 + size);
+    int entry = putVisualSampleEntry(buffer, "avc1", width, height);
+    int avcC = begin(buffer, "avcC");
+    /* profile, compatibility and level of the sps, 4 bytes length prefixes */
+    buffer.put((byte) 1).put(sps[1]).put(sps[2]).put(sps[3]).put((byte) 0xFF);
+    buffer.put((byte) (0xE0 | spsCount));
+    for (byte[] nal : parameterSets) {
+      if ((nal[0] & 0x1F) == AnnexB.AVC_SPS) {
+        buffer.putShort((short) nal.length).put(nal);
+      }
+    }
+
+    buffer.put((byte) ppsCount);
+    for (byte[] nal : parameterSets) {
+      if ((nal[0] & 0x1F) == AnnexB.AVC_PPS) {
+        buffer.putShort((short) nal.length).put(nal);
+      }
+    }
+
+    end(buffer, avcC);
+    end(buffer, entry);
+    return toArray(buffer);
+  }
+
+  private static byte[] getHevcSampleEntry(List<byte[]> parameterSets, int width, int height) {
+    byte[] sps = null;
+    int size = 0;
+    for (byte[] nal : parameterSets) {
+      if (AnnexB.getNalType(CodecFormat.VIDEO_HEVC, nal[0]) == AnnexB.HEVC_SPS && sps == null) {
+        sps = nal;
+      }
+
+      size += 5 + nal.length;
+    }
+
+    /* nal unit header, the sub layers byte and the general profile tier level */
+    byte[] profileTierLevel = new byte[15];
+    if (sps == null || unescape(sps, profileTierLevel) < profileTierLevel.length) {
+      throw new IllegalArgumentException("Unacceptable csd, no sps");
+    }
+
+    ByteBuffer buffer = ByteBuffer.allocate(128 + size);
+    int entry = putVisualSampleEntry(buffer, "hvc1", width, height);
+    int hvcC = begin(buffer, "hvcC");
+    buffer.put((byte) 1).put(profileTierLevel, 3, 12);
+    /* no segmentation and parallelism, assumes 4:2:0 8 bits */
+    buffer.putShort((short) 0xF000).put((byte) 0xFC).put((byte) 0xFD);
+    buffer.put((byte) 0xF8).put((byte) 0xF8).putShort((short) 0);
+    /* one temporal layer, nested, 4 bytes length prefixes */
+    buffer.put((byte) 0x0F);
+    buffer.put((byte) parameterSets.size());
+    for (byte[] nal : parameterSets) {
+      /* complete array */
+      buffer.put((byte) (0x80 | AnnexB.getNalType(CodecFormat.VIDEO_HEVC, nal[0])));
+      buffer.putShort((short) 1).putShort((short) nal.length).put(nal);
+    }
+
+    end(buffer, hvcC);
+    end(buffer, entry);
+    return toArray(buffer);
+  }
+
+  private static int putVisualSampleEntry(ByteBuffer buffer, String type, int width,
+      int height) {
+    int entry = begin(buffer, type);
+    buffer.putInt(0).putShort((short) 0).putShort((short) 1);
+    buffer.putShort((short) 0).putShort((short) 0).putInt(0).putInt(0).putInt(0);
+    buffer.putShort((short) width).putShort((short) height);
+    /* 72 dpi */
+    buffer.putInt(0x00480000).putInt(0x00480000).putInt(0).putShort((short) 1);
+    buffer.put(new byte[32]);
+    buffer.putShort((short) 0x0018).putShort((short) -1);
+    return entry;
+  }
+
+  private static byte[] getAacSampleEntry(byte[] audioSpecificConfig, int sampleRate,
+      int channelCount) {
+    ByteBuffer buffer = ByteBuffer.allocate(128);
+    int entry = begin(buffer, "mp4a");
+    buffer.putInt(0).putShort((short) 0).putShort((short) 1);
+    buffer.putInt(0).putInt(0);
+    buffer.putShort((short) channelCount).putShort((short) 16).putInt(0);
+    buffer.putInt(sampleRate << 16);
+    int esds = beginFull(buffer, "esds", 0);
+    int decoderConfigSize = 13 + 2 + audioSpecificConfig.length;
+    /* ES_Descriptor */
+    buffer.put((byte) 0x03).put((byte) (3 + 2 + decoderConfigSize + 3));
+    buffer.putShort((short) 0).put((byte) 0);
+    /* DecoderConfigDescriptor, mpeg-4 audio stream */
+    buffer.put((byte) 0x04).put((byte) decoderConfigSize);
+    buffer.put((byte) 0x40).put((byte) 0x15).put(new byte[3]).putInt(0).putInt(0);
+    /* DecoderSpecificInfo */
+    buffer.put((byte) 0x05).put((byte) audioSpecificConfig.length).put(audioSpecificConfig);
+    /* SLConfigDescriptor */
+    buffer.put((byte) 0x06).put((byte) 1).put((byte) 0x02);
+    end(buffer, esds);
+    end(buffer, entry);
+    return toArray(buffer);
+  }
+
+  /*--------------------------------
+   * Box functions
+   *-------------------------------*/
+
+  private static boolean isComplete(RandomAccessFile input, long position, long length)
+      throws IOException {
+    input.seek(position);
+    long size = input.readInt() & 0xFFFFFFFFL;
+    return size >= 8 && position + size <= length;
+  }
+
+  /**
+   * Reads the timescale of each track in the moov
+   */
+  private static void readTimescales(ByteBuffer moov, long[] timescales) {
+    int end = moov.limit();
+    for (int trak = findBox(moov, 8, end, "trak"); trak >= 0;
+        trak = findBox(moov, trak + moov.getInt(trak), end, "trak")) {
+      int trakEnd = trak + moov.getInt(trak);
+      int tkhd = findBox(moov, trak + 8, trakEnd, "tkhd");
+      int mdia = findBox(moov, trak + 8, trakEnd, "mdia");
+      int mdhd = mdia < 0 ? -1 : findBox(moov, mdia + 8, mdia + moov.getInt(mdia), "mdhd");
+      if (tkhd < 0 || mdhd < 0) {
+        continue;
+      }
+
+      /* after the creation and the modification time, 64 bits in version 1 */
+      int id = moov.getInt(tkhd + (moov.get(tkhd + 8) == 1 ? 28 : 20));
+      if (id > 0 && id < timescales.length) {
+        timescales[id] = moov.getInt(mdhd + (moov.get(mdhd + 8) == 1 ? 28 : 20)) & 0xFFFFFFFFL;
+      }
+    }
+  }
+
+  /**
+   * @return the latest end of the track runs in the moof, -1 if none is known
+   */
+  private static long readFragmentEndUs(ByteBuffer moof, long[] timescales) {
+    long endUs = -1L;
+    int end = moof.limit();
+    for (int traf = findBox(moof, 8, end, "traf"); traf >= 0;
+        traf = findBox(moof, traf + moof.getInt(traf), end, "traf")) {
+      int trafEnd = traf + moof.getInt(traf);
+      int tfhd = findBox(moof, traf + 8, trafEnd, "tfhd");
+      int tfdt = findBox(moof, traf + 8, trafEnd, "tfdt");
+      int trun = findBox(moof, traf + 8, trafEnd, "trun");
+      if (tfhd < 0 || tfdt < 0 || trun < 0) {
+        continue;
+      }
+
+      int id = moof.getInt(tfhd + 12);
+      int flags = moof.getInt(trun + 8) & 0xFFFFFF;
+      if (id <= 0 || id >= timescales.length || timescales[id] == 0 || (flags & 0x100) == 0) {
+        /* no timescale, or the durations are the defaults */
+        continue;
+      }
+
+      long time = moof.get(tfdt + 8) == 1 ? moof.getLong(tfdt + 12)
+          : moof.getInt(tfdt + 12) & 0xFFFFFFFFL;
+      int count = moof.getInt(trun + 12);
+      /* the data offset and the first sample flags are optional */
+      int entry = trun + 16 + ((flags & 0x001) != 0 ? 4 : 0) + ((flags & 0x004) != 0 ? 4 : 0);
+      int entrySize = 4 * Integer.bitCount(flags & 0xF00);
+      for (int i = 0; i < count && entry + 4 <= trafEnd; i++, entry += entrySize) {
+        time += moof.getInt(entry) & 0xFFFFFFFFL;
+      }
+
+      endUs = Math.max(endUs, time * 1_000_000L / timescales[id]);
+    }
+
+    return endUs;
+  }
+
+  /**
+   * @return index of the box of the type, -1 if not found
+   */
+  private static int findBox(ByteBuffer buffer, int from, int end, String type) {
+    int fourCc = toInt(type);
+    int position = from;
+    while (position + 8 <= end) {
+      int size = buffer.getInt(position);
+      if (size < 8 || position + size > end) {
+        return -1;
+      }
+
+      if (buffer.getInt(position + 4) == fourCc) {
+        return position;
+      }
+
+      position += size;
+    }
+
+    return -1;
+  }
+
+  private static int toInt(String type) {
+    return ByteBuffer.wrap(toType(type)).getInt();
+  }
+
+  private static int begin(ByteBuffer buffer, String type) {
+    int start = buffer.position();
+    buffer.putInt(0).put(toType(type));
+    return start;
+  }
+
+  private static int beginFull(ByteBuffer buffer, String type, int versionAndFlags) {
+    int start = begin(buffer, type);
+    buffer.putInt(versionAndFlags);
+    return start;
+  }
+
+  private static void end(ByteBuffer buffer, int start) {
+    buffer.putInt(start, buffer.position() - start);
+  }
+
+  /**
+   * Ends the box with an entry count
+   */
+  private static void end(ByteBuffer buffer, int start, int entryCount) {
+    buffer.putInt(entryCount);
+    end(buffer, start);
+  }
+
+  private static void putMatrix(ByteBuffer buffer) {
+    for (int value : MATRIX) {
+      buffer.putInt(value);
+    }
+  }
+
+  private static byte[] toType(String type) {
+    return new byte[] {
+        (byte) type.charAt(0), (byte) type.charAt(1), (byte) type.charAt(2),
+        (byte) type.charAt(3)
+    };
+  }
+
+  private static byte[] toArray(ByteBuffer buffer) {
+    byte[] array = new byte[buffer.position()];
+    System.arraycopy(buffer.array(), 0, array, 0, array.length);
+    return array;
+  }
+
+  /**
+   * Removes the emulation prevention bytes
+   *
+   * @return length of the unescaped
+   */
+  private static int unescape(byte[] nal, byte[] dst) {
+    int length = 0;
+    int zeros = 0;
+    for (int i = 0; i < nal.length && length < dst.length; i++) {
+      if (zeros >= 2 && nal[i] == 3) {
+        zeros = 0;
+        continue;
+      }
+
+      zeros = nal[i] == 0 ? zeros + 1 : 0;
+      dst[length++] = nal[i];
+    }
+
+    return length;
+  }
+
+  /**
+   * Samples of a track in the current fragment
+   */
+  private static final class Track {
+
+    final CodecFormat codecFormat;
+    final int id;
+    final int timescale;
+    final byte[] data;
+    final ByteBuffer dataBuffer;
+    final int[] sizes = new int[MAX_SAMPLES];
+    final long[] times = new long[MAX_SAMPLES];
+    final int[] flags = new int[MAX_SAMPLES];
+    byte[] sampleEntry;
+    int width;
+    int height;
+    int length;
+    int count;
+    /* decode time of the last sample, carried across the fragments */
+    long lastTime;
+    long lastDuration;
+
+    Track(CodecFormat codecFormat, int id, int timescale, int bufferSize) {
+      this.codecFormat = codecFormat;
+      this.id = id;
+      this.timescale = timescale;
+      this.data = new byte[bufferSize];
+      this.dataBuffer = ByteBuffer.wrap(data);
+    }
+
+    void reset() {
+      clear();
+      lastTime = -1L;
+      lastDuration = 0L;
+    }
+
+    void clear() {
+      length = 0;
+      count = 0;
+    }
+
+    /**
+     * @return false if the fragment can not hold the sample
+     */
+    boolean append(byte[] content, int offset, int size, long time, int sampleFlags) {
+      if (count == MAX_SAMPLES) {
+        return false;
+      }
+
+      int end = id == VIDEO_TRACK_ID ? appendNalUnits(content, offset, size)
+          : appendRaw(content, offset, size);
+      if (end < 0) {
+        return false;
+      }
+
+      if (end == length) {
+        /* only the parameter sets or the delimiters */
+        return true;
+      }
+
+      /* the previous fragment declared its last sample to last the duration before, the first
+       * sample starts right after it unless it is a real gap */
+      if (count == 0 && lastTime >= 0) {
+        long carried = lastTime + lastDuration;
+        if (Math.abs(time - carried) <= lastDuration / 2) {
+          time = carried;
+        }
+      }
+
+      /* the decode time always increases */
+      if (time <= lastTime) {
+        time = lastTime + 1;
+      }
+
+      if (lastTime >= 0) {
+        lastDuration = time - lastTime;
+      }
+
+      sizes[count] = end - length;
+      times[count] = time;
+      flags[count] = sampleFlags;
+      count++;
+      length = end;
+      lastTime = time;
+      return true;
+    }
+
+    /**
+     * The last sample lasts as long as the one before, the next fragment starts after it
+     */
+    long getDuration(int index) {
+      return index + 1 < count ? times[index + 1] - times[index] : lastDuration;
+    }
+
+    ByteBuffer getData() {
+      dataBuffer.limit(length).position(0);
+      return dataBuffer;
+    }
+
+    /**
+     * @return end of the data, -1 if no enough space
+     */
+    private int appendRaw(byte[] content, int offset, int size) {
+      if (length + size > data.length) {
+        return -1;
+      }
+
+      System.arraycopy(content, offset, data, length, size);
+      return length + size;
+    }
+
+    /**
+     * Rewrites the start codes into the length prefixes, without the parameter sets and the
+     * delimiters
+     *
+     * @return end of the data, -1 if no enough space
+     */
+    private int appendNalUnits(byte[] content, int offset, int size) {
+      int contentEnd = offset + size;
+      int end = length;
+      int nalStart = AnnexB.findNalStart(content, offset, contentEnd);
+      while (nalStart >= 0) {
+        int nalEnd = AnnexB.findNalEnd(content, nalStart, contentEnd);
+        int nalType = AnnexB.getNalType(codecFormat, content[nalStart]);
+        int nalSize = nalEnd - nalStart;
+        if (nalSize > 0
+            && !AnnexB.isParameterSet(codecFormat, nalType)
+            && !AnnexB.isAccessUnitDelimiter(codecFormat, nalType)) {
+          if (end + 4 + nalSize > data.length) {
+            return -1;
+          }
+
+          data[end] = (byte) (nalSize >>> 24);
+          data[end + 1] = (byte) (nalSize >>> 16);
+          data[end + 2] = (byte) (nalSize >>> 8);
+          data[end + 3] = (byte) nalSize;
+          System.arraycopy(content, nalStart, data, end + 4, nalSize);
+          end += 4 + nalSize;
+        }
+
+        nalStart = AnnexB.findNalStart(content, nalEnd, contentEnd);
+      }
+
+      return end;
+    }
+  }
+}
@@ -6,46 +6,233 @@ import android.os.Environment;
 import java.io.*;
 import java.nio.ByteBuffer;
 import java.nio.ByteOrder;
+import java.nio.channels.FileChannel;
 import java.text.SimpleDateFormat;
 import java.util.Calendar;
 import java.util.Locale;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.LockSupport;
 
 /**
  * @author gregho
  * @since 2018/12/13
+ *
+ * <p>
+ * The writes are copied into a preallocated ring buffer and written to the file by a dedicated
+ * writer thread, so a slow storage never blocks the caller. The writer thread writes when the
+ * backlog reaches the flush size or when the flush interval elapses, so the file only ever holds
+ * the written data.
+ *
+ * A wav has its header sizes refreshed by the writer thread at the flush interval with positional
+ * writes, so the file is valid wherever the process dies, and nothing is reopened when closed.
+ *
+ * Each writer expects a single producer thread, a write which can not fit in the ring buffer is
+ * dropped as a whole and counted by {@link #getDroppedBytes()}.
+ * </p>
  */
 public class MediaWriter {
 
+  public static final int DEFAULT_BUFFER_SIZE = 1 << 20;
+  private static final int FLUSH_SIZE = 64 * 1024;
+  private static final long FLUSH_INTERVAL_MS = 500L;
+  private static final int MAX_NAME_SUFFIX = 1000;
+  private static final int WAV_HEADER_SIZE = 44;
+
   private final File file;
-  private BufferedOutputStream outputStream;
+  private final ByteRingBuffer ringBuffer;
+  private final int flushSize;
+  private RandomAccessFile accessFile;
+  private FileChannel channel;
+  private Thread writingThread;
+  private volatile boolean closed;
+  /* file offset of the next accepted byte, owned by the producer */
+  private volatile long position;
+  /* metrics */
+  private volatile long writtenBytes;
+  private volatile long droppedBytes;
+  private volatile int maxBacklog;
+  private volatile long lastWriteLatencyUs;
+  private volatile long maxWriteLatencyUs;
+  /* wav, the sizes of the header are refreshed by the writer thread */
+  private volatile boolean wav;
+  private final ByteBuffer wavSize = ByteBuffer.allocate(4).order(ByteOrder.LITTLE_ENDIAN);
+  private long wavUpdatedBytes;
+  private long wavUpdatedNs;
+  private volatile long wavUpdates;
+  private volatile long maxWavUpdateLatencyUs;
 
   public MediaWriter(String fileName, String fileType) {
-    SimpleDateFormat sdf = new SimpleDateFormat("MM-dd HH:mm:ss", Locale.US);
-    file = new File(Environment.getExternalStoragePublicDirectory(Environment.DIRECTORY_DCIM)
-        .getAbsolutePath(), fileName + "_" + sdf.format(Calendar.getInstance().getTime()) + fileType);
+    this(fileName, fileType, DEFAULT_BUFFER_SIZE);
+  }
+
+  /**
+   * @param bufferSize size of the ring buffer, the backlog the writer thread can fall behind
+   */
+  public MediaWriter(String fileName, String fileType, int bufferSize) {
+    this(Environment.getExternalStoragePublicDirectory(Environment.DIRECTORY_DCIM), fileName,
+        fileType, bufferSize);
+  }
+
+  /**
+   * @param directory directory of the file, created if not exists
+   * @param fileName prefix of the file name, followed by the time and a suffix if the name is taken
+   * @param bufferSize size of the ring buffer, the backlog the writer thread can fall behind
+   */
+  public MediaWriter(File directory, String fileName, String fileType, int bufferSize) {
+    SimpleDateFormat sdf = new SimpleDateFormat("yyyyMMdd_HHmmss_SSS", Locale.US);
+    ringBuffer = new ByteRingBuffer(bufferSize);
+    flushSize = Math.min(FLUSH_SIZE, bufferSize / 2);
+    File created = null;
     try {
-      outputStream = new BufferedOutputStream(new FileOutputStream(file));
-    } catch (FileNotFoundException e) {
+      created = createFile(directory,
+          fileName + "_" + sdf.format(Calendar.getInstance().getTime()), fileType);
+      accessFile = new RandomAccessFile(created, "rw");
+      channel = accessFile.getChannel();
+      writingThread = new Thread(new WritingRunnable(this));
+      writingThread.start();
+    } catch (IOException e) {
+      closeQuietly();
     }
+
+    file = created;
   }
 
-  public void write(byte[] data) {
-    if (outputStream != null) {
-      try {
-        outputStream.write(data);
-      } catch (IOException ignored) {
+  /**
+   * Creates a new file, the name is suffixed by a number if taken, so the writers never share a
+   * file
+   */
+  static File createFile(File directory, String name, String type) throws IOException {
+    if (!directory.isDirectory() && !directory.mkdirs()) {
+      throw new IOException("Can not create " + directory);
+    }
+
+    File file = new File(directory, name + type);
+    for (int i = 1; !file.createNewFile(); i++) {
+      if (i > MAX_NAME_SUFFIX) {
+        throw new IOException("Can not create " + file);
       }
+
+      file = new File(directory, name + "_" + i + type);
+    }
+
+    return file;
+  }
+
+  /**
+   * @return the file, null if failed to create
+   */
+  public File getFile() {
+    return file;
+  }
+
+  public boolean write(byte[] data) {
+    return write(data, 0, data.length);
+  }
+
+  /**
+   * @return true if accepted, false if closed or dropped because the ring buffer was full
+   */
+  public boolean write(byte[] data, int offset, int length) {
+    if (channel == null || closed) {
+      return false;
+    }
+
+    if (!ringBuffer.offer(data, offset, length)) {
+      droppedBytes += length;
+      LockSupport.unpark(writingThread);
+      return false;
+    }
+
+    position += length;
+
+    int backlog = ringBuffer.size();
+    if (backlog > maxBacklog) {
+      maxBacklog = backlog;
     }
+
+    if (backlog >= flushSize) {
+      LockSupport.unpark(writingThread);
+    }
+
+    return true;
   }
 
+  /**
+   * Gets the file offset of the next accepted byte, the dropped bytes are not counted, so it is
+   * where the next {@link #write(byte[], int, int)} lands if accepted
+   *
+   * @return the bytes accepted so far
+   */
+  public long getPosition() {
+    return position;
+  }
+
+  /**
+   * Writes the backlog, syncs the file and closes it, blocks until the writer thread is finished
+   */
   public void close() {
-    if (outputStream != null) {
+    if (writingThread == null || closed) {
+      return;
+    }
+
+    closed = true;
+    LockSupport.unpark(writingThread);
+    boolean interrupted = false;
+    while (writingThread.isAlive()) {
       try {
-        outputStream.flush();
-        outputStream.close();
-      } catch (IOException ignored) {
+        writingThread.join();
+      } catch (InterruptedException e) {
+        interrupted = true;
       }
     }
+
+    if (interrupted) {
+      Thread.currentThread().interrupt();
+    }
+  }
+
+  /**
+   * @return the bytes waiting for the writer thread
+   */
+  public int getBacklog() {
+    return ringBuffer.size();
+  }
+
+  public int getMaxBacklog() {
+    return maxBacklog;
+  }
+
+  public long getWrittenBytes() {
+    return writtenBytes;
+  }
+
+  /**
+   * @return the bytes dropped because the ring buffer was full
+   */
+  public long getDroppedBytes() {
+    return droppedBytes;
+  }
+
+  /**
+   * @return duration of the last write to the file
+   */
+  public long getLastWriteLatencyUs() {
+    return lastWriteLatencyUs;
+  }
+
+  public long getMaxWriteLatencyUs() {
+    return maxWriteLatencyUs;
+  }
+
+  /**
+   * @return times the sizes of the wav header were refreshed
+   */
+  public long getWavUpdates() {
+    return wavUpdates;
+  }
+
+  public long getMaxWavUpdateLatencyUs() {
+    return maxWavUpdateLatencyUs;
   }
 
   public void writeWavHeader(int sampleRate, int channelConfig,
@@ -80,42 +267,101 @@ public class MediaWriter {
     writeWavHeader(sampleRate, channels, bitDepth);
   }
 
-  public void updateWavHeader() throws Exception {
-    byte[] sizes = ByteBuffer
-        .allocate(8)
-        .order(ByteOrder.LITTLE_ENDIAN)
-        // There are probably a bunch of different/better ways to calculate
-        // these two given your circumstances. Cast should be safe since if the WAV is
-        // > 4 GB we've already made a terrible mistake.
-        .putInt((int) (file.length() - 8)) // ChunkSize
-        .putInt((int) (file.length() - 44)) // Sub chunk2 Size
-        .array();
-    RandomAccessFile accessWave = null;
-    try {
-      accessWave = new RandomAccessFile(file, "rw");
-      // ChunkSize
-      accessWave.seek(4);
-      accessWave.write(sizes, 0, 4);
-      // Subchunk2Size
-      accessWave.seek(40);
-      accessWave.write(sizes, 4, 4);
-    } catch (IOException ex) {
-      // Rethrow but we still close accessWave in our finally
-      throw ex;
-    } finally {
-      if (accessWave != null) {
-        try {
-          accessWave.close();
-        } catch (IOException ex) {
-        }
-      }
-    }
+  /**
+   * @deprecated the sizes of the header are refreshed by the writer thread periodically and when
+   * closed, so the file is valid at any point
+   */
+  @Deprecated
+  public void updateWavHeader() {
   }
 
   /*--------------------------------
    * Private functions
    *-------------------------------*/
 
+  /**
+   * Writes the readable data of the ring buffer to the file, runs on the writer thread
+   */
+  private void drain() throws IOException {
+    int length;
+    while ((length = ringBuffer.getReadableContiguous()) > 0) {
+      ByteBuffer src = ByteBuffer.wrap(ringBuffer.array(), ringBuffer.getReadOffset(), length);
+      long startNs = System.nanoTime();
+      while (src.hasRemaining()) {
+        channel.write(src);
+      }
+
+      long latencyUs = (System.nanoTime() - startNs) / 1000L;
+      lastWriteLatencyUs = latencyUs;
+      if (latencyUs > maxWriteLatencyUs) {
+        maxWriteLatencyUs = latencyUs;
+      }
+
+      ringBuffer.skip(length);
+      writtenBytes += length;
+    }
+  }
+
+  /**
+   * Writes the sizes of the written data into the wav header, positional writes which do not move
+   * the data position. The data is always written before the sizes, so the sizes never cover more
+   * than the file has.
+   *
+   * @param force refreshes even if the interval has not elapsed
+   */
+  private void updateWavSizes(boolean force) throws IOException {
+    long nowNs = System.nanoTime();
+    if (!wav || writtenBytes < WAV_HEADER_SIZE || writtenBytes == wavUpdatedBytes
+        || (!force && nowNs - wavUpdatedNs < TimeUnit.MILLISECONDS.toNanos(FLUSH_INTERVAL_MS))) {
+      return;
+    }
+
+    long dataSize = writtenBytes - WAV_HEADER_SIZE;
+    /* ChunkSize, then Subchunk2Size */
+    writeWavSize(4, (int) (dataSize + 36));
+    writeWavSize(40, (int) dataSize);
+    long latencyUs = (System.nanoTime() - nowNs) / 1000L;
+    if (latencyUs > maxWavUpdateLatencyUs) {
+      maxWavUpdateLatencyUs = latencyUs;
+    }
+
+    wavUpdatedBytes = writtenBytes;
+    wavUpdatedNs = nowNs;
+    wavUpdates++;
+  }
+
+  private void writeWavSize(long position, int size) throws IOException {
+    wavSize.clear();
+    wavSize.putInt(0, size);
+    while (wavSize.hasRemaining()) {
+      channel.write(wavSize, position + wavSize.position());
+    }
+  }
+
+  /**
+   * Refreshes the wav sizes, syncs and closes the file, runs on the writer thread
+   */
+  private void finish() {
+    try {
+      if (channel != null) {
+        updateWavSizes(true);
+        channel.force(false);
+      }
+    } catch (IOException ignored) {
+    }
+
+    closeQuietly();
+  }
+
+  private void closeQuietly() {
+    if (accessFile != null) {
+      try {
+        accessFile.close();
+      } catch (IOException ignored) {
+      }
+    }
+  }
+
   private void writeWavHeader(int sampleRate, short channels,
       short bitDepth) throws IOException {
     // Convert the multi-byte integers to raw bytes in little endian format as required by the spec
@@ -128,8 +374,9 @@ public class MediaWriter {
         .putShort((short) (channels * (bitDepth / 8)))
         .putShort(bitDepth)
         .array();
+    wav = true;
     // Not necessarily the best, but it's very easy to visualize this way
-    outputStream.write(new byte[] {
+    write(new byte[] {
         // RIFF header
         'R', 'I', 'F', 'F', // ChunkID
         0, 0, 0, 0, // ChunkSize (must be updated later)
@@ -148,4 +395,30 @@ public class MediaWriter {
         0, 0, 0, 0, // Subchunk2Size (must be updated later)
     });
   }
+
+  private static class WritingRunnable implements Runnable {
+
+    private final MediaWriter instance;
+
+    WritingRunnable(MediaWriter instance) {
+      this.instance = instance;
+    }
+
+    @Override public void run() {
+      long intervalNs = TimeUnit.MILLISECONDS.toNanos(FLUSH_INTERVAL_MS);
+      try {
+        while (!instance.closed) {
+          /* woken by the flush size, or times out at the flush interval */
+          LockSupport.parkNanos(this, intervalNs);
+          instance.drain();
+          instance.updateWavSizes(false);
+        }
+
+        instance.drain();
+      } catch (IOException ignored) {
+      } finally {
+        instance.finish();
+      }
+    }
+  }
 }
@@ -0,0 +1,334 @@
+package com.ns.greg.library.mango.utils;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * @author gregho
+ * @since 2019/3/17
+ *
+ * <p>
+ * Records continuously into rotating segments by the {@link FragmentedMp4Writer}, each segment is
+ * named by the wall clock time of its first sample, and the segments are indexed by that time. A
+ * background evictor deletes the oldest segments once the finished segments exceed the quota, the
+ * write path only hands the finished segment over and never waits for the deletion.
+ *
+ * The segments left in the directory by a previous recording are indexed when constructed, so
+ * they are looked up and evicted as well.
+ * </p>
+ */
+public class SegmentRecorder implements FragmentedMp4Writer.SegmentCallback {
+
+  private static final String FILE_TYPE = ".mp4";
+
+  public static final class Segment {
+
+    private final File file;
+    private final long startTimeMs;
+    private final long durationMs;
+    private final long size;
+    private final boolean finished;
+
+    Segment(File file, long startTimeMs, long durationMs, long size, boolean finished) {
+      this.file = file;
+      this.startTimeMs = startTimeMs;
+      this.durationMs = durationMs;
+      this.size = size;
+      this.finished = finished;
+    }
+
+    public File getFile() {
+      return file;
+    }
+
+    /**
+     * @return wall clock time of the first sample
+     */
+    public long getStartTimeMs() {
+      return startTimeMs;
+    }
+
+    /**
+     * @return duration, 0 if still being written or unknown
+     */
+    public long getDurationMs() {
+      return durationMs;
+    }
+
+    public long getSize() {
+      return size;
+    }
+
+    /**
+     * @return false if still being written
+     */
+    public boolean isFinished() {
+      return finished;
+    }
+  }
+
+  private final FragmentedMp4Writer writer;
+  private final File directory;
+  private final String prefix;
+  private final long quotaBytes;
+  /* sorted by the start time, guarded by itself */
+  private final List<Segment> segments = new ArrayList<>();
+  private long finishedBytes;
+  private Segment current;
+  /* maps the presentation time to the wall clock */
+  private long baseTimeMs;
+  private long basePresentationTimeUs;
+  private volatile Thread evictingThread;
+  private volatile boolean evicting;
+  private volatile long evictedSegments;
+
+  /**
+   * @param writer the writer with the formats set
+   * @param directory directory of the segments
+   * @param prefix prefix of the segment names
+   * @param quotaBytes the bytes of the finished segments to keep
+   */
+  public SegmentRecorder(FragmentedMp4Writer writer, File directory, String prefix,
+      long quotaBytes) {
+    if (quotaBytes <= 0) {
+      throw new IllegalArgumentException("Unacceptable quota");
+    }
+
+    this.writer = writer;
+    this.directory = directory;
+    this.prefix = prefix + "_";
+    this.quotaBytes = quotaBytes;
+    loadSegments();
+  }
+
+  /**
+   * Starts a new segment at the first video key frame after the duration or the size, whichever
+   * comes first
+   *
+   * @param segmentDurationMs 0 for no limit
+   * @param segmentSize size in bytes, 0 for no limit
+   */
+  public synchronized void start(long segmentDurationMs, long segmentSize) {
+    if (evicting) {
+      return;
+    }
+
+    baseTimeMs = -1L;
+    /* the evictor is started once the writer accepts the segment limits */
+    writer.start(this, segmentDurationMs, segmentSize);
+    evicting = true;
+    evictingThread = new Thread(new EvictingRunnable(this));
+    evictingThread.start();
+  }
+
+  /**
+   * Finishes the current segment, the evictor runs once more then ends
+   */
+  public synchronized void stop() {
+    if (!evicting) {
+      return;
+    }
+
+    writer.stop();
+    evicting = false;
+    LockSupport.unpark(evictingThread);
+  }
+
+  public FragmentedMp4Writer getWriter() {
+    return writer;
+  }
+
+  /**
+   * Finds the segment containing the time
+   *
+   * @param timeMs wall clock time
+   * @return the segment, null if no segment contains the time
+   */
+  public Segment findSegment(long timeMs) {
+    synchronized (segments) {
+      int low = 0;
+      int high = segments.size() - 1;
+      /* the last segment starting at or before the time */
+      while (low <= high) {
+        int middle = (low + high) >>> 1;
+        if (segments.get(middle).startTimeMs <= timeMs) {
+          low = middle + 1;
+        } else {
+          high = middle - 1;
+        }
+      }
+
+      if (high < 0) {
+        return null;
+      }
+
+      Segment segment = segments.get(high);
+      /* being written, the end is not known yet */
+      if (!segment.finished || timeMs < segment.startTimeMs + segment.durationMs) {
+        return segment;
+      }
+
+      return null;
+    }
+  }
+
+  /**
+   * @return the segments sorted by the start time
+   */
+  public List<Segment> getSegments() {
+    synchronized (segments) {
+      return new ArrayList<>(segments);
+    }
+  }
+
+  /**
+   * @return the bytes of the finished segments
+   */
+  public long getFinishedBytes() {
+    synchronized (segments) {
+      return finishedBytes;
+    }
+  }
+
+  public long getEvictedSegments() {
+    return evictedSegments;
+  }
+
+  /*--------------------------------
+   * Segment callback, on the write path
+   *-------------------------------*/
+
+  @Override public File onSegmentStart(int index, long presentationTimeUs) {
+    if (baseTimeMs < 0) {
+      baseTimeMs = System.currentTimeMillis();
+      basePresentationTimeUs = presentationTimeUs;
+    }
+
+    long startTimeMs = baseTimeMs + (presentationTimeUs - basePresentationTimeUs) / 1000L;
+    File file;
+    try {
+      file = MediaWriter.createFile(directory, prefix + startTimeMs, FILE_TYPE);
+    } catch (IOException e) {
+      /* the writer fails to open it */
+      file = new File(directory, prefix + startTimeMs + FILE_TYPE);
+    }
+
+    synchronized (segments) {
+      current = new Segment(file, startTimeMs, 0L, 0L, false);
+      segments.add(current);
+    }
+
+    return file;
+  }
+
+  @Override public void onSegmentFinish(File file, long presentationTimeUs, long durationUs,
+      long size) {
+    synchronized (segments) {
+      int index = segments.lastIndexOf(current);
+      if (index >= 0) {
+        segments.set(index,
+            new Segment(file, current.startTimeMs, durationUs / 1000L, size, true));
+        finishedBytes += size;
+      }
+
+      current = null;
+    }
+
+    LockSupport.unpark(evictingThread);
+  }
+
+  /*--------------------------------
+   * Private functions
+   *-------------------------------*/
+
+  private void loadSegments() {
+    File[] files = directory.listFiles();
+    if (files == null) {
+      return;
+    }
+
+    for (File file : files) {
+      String name = file.getName();
+      if (!name.startsWith(prefix) || !name.endsWith(FILE_TYPE)) {
+        continue;
+      }
+
+      String time = name.substring(prefix.length(), name.length() - FILE_TYPE.length());
+      int suffix = time.indexOf('_');
+      try {
+        long startTimeMs = Long.parseLong(suffix < 0 ? time : time.substring(0, suffix));
+        segments.add(new Segment(file, startTimeMs, 0L, file.length(), true));
+        finishedBytes += file.length();
+      } catch (NumberFormatException ignored) {
+      }
+    }
+
+    Collections.sort(segments, new Comparator<Segment>() {
+      @Override public int compare(Segment o1, Segment o2) {
+        return Long.compare(o1.startTimeMs, o2.startTimeMs);
+      }
+    });
+    /* the end of a segment is the start of the next one */
+    for (int i = 0; i + 1 < segments.size(); i++) {
+      Segment segment = segments.get(i);
+      segments.set(i, new Segment(segment.file, segment.startTimeMs,
+          segments.get(i + 1).startTimeMs - segment.startTimeMs, segment.size, true));
+    }
+
+    /* the newest one has no next, the duration is read from its fragments, or follows the last
+     * modified time if not readable */
+    if (!segments.isEmpty()) {
+      int last = segments.size() - 1;
+      Segment segment = segments.get(last);
+      long durationUs = FragmentedMp4Writer.readDurationUs(segment.file);
+      long durationMs = durationUs >= 0 ? durationUs / 1000L
+          : Math.max(0L, segment.file.lastModified() - segment.startTimeMs);
+      segments.set(last,
+          new Segment(segment.file, segment.startTimeMs, durationMs, segment.size, true));
+    }
+  }
+
+  /**
+   * Deletes the oldest finished segments until the quota is met, runs on the evictor thread
+   */
+  private void evict() {
+    while (true) {
+      Segment oldest;
+      synchronized (segments) {
+        if (finishedBytes <= quotaBytes || segments.isEmpty() || segments.get(0) == current) {
+          return;
+        }
+
+        oldest = segments.remove(0);
+        finishedBytes -= oldest.size;
+      }
+
+      /* deleted outside of the lock, the write path never waits for it */
+      oldest.file.delete();
+      evictedSegments++;
+    }
+  }
+
+  private static class EvictingRunnable implements Runnable {
+
+    private final SegmentRecorder instance;
+
+    EvictingRunnable(SegmentRecorder instance) {
+      this.instance = instance;
+    }
+
+    @Override public void run() {
+      while (instance.evicting) {
+        instance.evict();
+        LockSupport.park(this);
+      }
+
+      instance.evict();
+    }
+  }
+}
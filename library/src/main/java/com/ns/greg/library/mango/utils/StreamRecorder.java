@@ -0,0 +1,498 @@
+package com.ns.greg.library.mango.utils;
+
+import android.media.MediaCodec;
+import android.media.MediaFormat;
+import android.media.MediaMuxer;
+import android.util.Log;
+import com.ns.greg.library.mango.codec.AnnexB;
+import com.ns.greg.library.mango.codec.CodecFormat;
+import com.ns.greg.library.mango.codec.MediaFormatBuilder;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+
+/**
+ * @author gregho
+ * @since 2019/3/15
+ *
+ * <p>
+ * Records the compressed access units into mp4 by the {@link MediaMuxer}, nothing is decoded or
+ * encoded. The access units are kept in a preallocated in-memory ring of the last pre-event
+ * duration, evicted in whole GOPs so the ring always starts from a video key frame. When
+ * triggered, the ring and the live access units are muxed by a dedicated muxing thread until the
+ * post-event duration has passed, triggering again while recording extends it.
+ *
+ * The video is H.264/H.265 in Annex-B, which is what the muxer expects, it rewrites the start codes
+ * into the length prefixes itself. The audio is raw aac, other audio formats are not recorded.
+ * </p>
+ */
+public class StreamRecorder {
+
+  public interface RecordingListener {
+
+    void onRecordingStart(File file);
+
+    /**
+     * @param succeeded false if the muxer failed, the file may be incomplete
+     */
+    void onRecordingStop(File file, boolean succeeded);
+  }
+
+  private static final String TAG = "StreamRecorder";
+  public static final int DEFAULT_BUFFER_SIZE = 8 << 20;
+  private static final int MAX_SAMPLES = 4096;
+  private static final int TRACK_VIDEO = 0;
+  private static final int TRACK_AUDIO = 1;
+  private static final long NO_STOP = -1L;
+
+  private final CodecFormat videoFormat;
+  private final CodecFormat audioFormat;
+  private final long preEventUs;
+  /* data of the access units, each one is contiguous */
+  private final byte[] data;
+  /* metadata of the access units, indexed by the sequence modulo the max samples */
+  private final int[] offsets = new int[MAX_SAMPLES];
+  private final int[] sizes = new int[MAX_SAMPLES];
+  private final long[] presentationTimesUs = new long[MAX_SAMPLES];
+  private final byte[] tracks = new byte[MAX_SAMPLES];
+  private final boolean[] keyFrames = new boolean[MAX_SAMPLES];
+  /* sequences of the oldest kept, the next to mux and the next to add */
+  private long head;
+  private long read;
+  private long tail;
+  private int maxSampleSize;
+  /* formats of the muxer tracks */
+  private MediaFormat videoMediaFormat;
+  private MediaFormat audioMediaFormat;
+  private boolean waitKeyFrame = true;
+  /* latest presentation time of the track which decides the GOPs */
+  private long latestUs;
+  /* recording */
+  private volatile RecordingListener listener;
+  private boolean recording;
+  private long stopUs;
+  private long stopSequence = NO_STOP;
+  private volatile long droppedSamples;
+
+  public StreamRecorder(CodecFormat videoFormat, CodecFormat audioFormat, int preEventMs) {
+    this(videoFormat, audioFormat, preEventMs, DEFAULT_BUFFER_SIZE);
+  }
+
+  /**
+   * @param preEventMs duration kept before the trigger
+   * @param bufferSize memory of the ring, must hold the pre-event duration plus a GOP
+   */
+  public StreamRecorder(CodecFormat videoFormat, CodecFormat audioFormat, int preEventMs,
+      int bufferSize) {
+    if (preEventMs < 0) {
+      throw new IllegalArgumentException("Unacceptable pre-event duration");
+    }
+
+    if (bufferSize <= 0) {
+      throw new IllegalArgumentException("Unacceptable buffer size");
+    }
+
+    this.videoFormat = videoFormat;
+    this.audioFormat = audioFormat;
+    this.preEventUs = preEventMs * 1000L;
+    this.data = new byte[bufferSize];
+  }
+
+  public void setRecordingListener(RecordingListener listener) {
+    this.listener = listener;
+  }
+
+  /*--------------------------------
+   * Format functions
+   *-------------------------------*/
+
+  /**
+   * Sets the video format, the buffered access units are discarded since they belong to the
+   * previous format. Ignored while recording.
+   *
+   * @param csd the parameter sets in Annex-B, the same as the decoder
+   */
+  public synchronized void setVideoFormat(byte[] csd, int csdSize, int width, int height) {
+    if (recording) {
+      Log.i(TAG, "SET VIDEO FORMAT -> failed, recording");
+      return;
+    }
+
+    MediaFormatBuilder builder = MediaFormatBuilder.videoFormat(videoFormat.getType(), width,
+        height);
+    if (videoFormat == CodecFormat.VIDEO_HEVC) {
+      /* vps, sps and pps together */
+      builder.setByteBuffer("csd-0", ByteBuffer.wrap(csd, 0, csdSize));
+    } else {
+      /* the muxer builds the avcC from the sps in csd-0 and the pps in csd-1 */
+      int nalStart = AnnexB.findNalStart(csd, 0, csdSize);
+      while (nalStart >= 0) {
+        int nalEnd = AnnexB.findNalEnd(csd, nalStart, csdSize);
+        int nalType = AnnexB.getNalType(videoFormat, csd[nalStart]);
+        if (nalType == AnnexB.AVC_SPS || nalType == AnnexB.AVC_PPS) {
+          ByteBuffer nal = ByteBuffer.allocate(4 + nalEnd - nalStart);
+          nal.putInt(1).put(csd, nalStart, nalEnd - nalStart).flip();
+          builder.setByteBuffer(nalType == AnnexB.AVC_SPS ? "csd-0" : "csd-1", nal);
+        }
+
+        nalStart = AnnexB.findNalStart(csd, nalEnd, csdSize);
+      }
+    }
+
+    videoMediaFormat = builder.build();
+    clear();
+    Log.i(TAG, "SET VIDEO FORMAT -> " + width + "x" + height);
+  }
+
+  /**
+   * Sets the audio format, ignored while recording
+   */
+  public synchronized void setAudioFormat(int sampleRate, int channelCount) {
+    if (recording) {
+      Log.i(TAG, "SET AUDIO FORMAT -> failed, recording");
+      return;
+    }
+
+    if (audioFormat != CodecFormat.AUDIO_AAC_LC) {
+      Log.i(TAG, "SET AUDIO FORMAT -> ignored, " + audioFormat + " is not recorded");
+      return;
+    }
+
+    audioMediaFormat = MediaFormatBuilder.audioFormat(audioFormat.getType(), sampleRate,
+        channelCount)
+        .setAacCsd0(sampleRate, channelCount, audioFormat.getProfile())
+        .build();
+    clear();
+    Log.i(TAG, "SET AUDIO FORMAT -> " + sampleRate + " Hz, " + channelCount + " channels");
+  }
+
+  /*--------------------------------
+   * Tap functions
+   *-------------------------------*/
+
+  /**
+   * @param content the access unit in Annex-B
+   */
+  public void writeVideo(byte[] content, int contentLength, long presentationTimeUs) {
+    add(TRACK_VIDEO, content, contentLength, presentationTimeUs);
+  }
+
+  /**
+   * @param content the raw aac access unit
+   */
+  public void writeAudio(byte[] content, int contentLength, long presentationTimeUs) {
+    add(TRACK_AUDIO, content, contentLength, presentationTimeUs);
+  }
+
+  /*--------------------------------
+   * Recording functions
+   *-------------------------------*/
+
+  /**
+   * Starts recording from the start of the ring, or extends the recording
+   *
+   * @param file output mp4, ignored when extending
+   * @param postEventMs duration recorded after the latest access unit
+   * @return true if started or extended
+   */
+  public synchronized boolean trigger(File file, long postEventMs) {
+    if (videoMediaFormat == null && audioMediaFormat == null) {
+      Log.i(TAG, "TRIGGER -> failed, no format");
+      return false;
+    }
+
+    stopUs = latestUs + postEventMs * 1000L;
+    if (recording) {
+      stopSequence = NO_STOP;
+      Log.i(TAG, "TRIGGER -> extended");
+      return true;
+    }
+
+    recording = true;
+    stopSequence = NO_STOP;
+    read = head;
+    Thread thread = new Thread(new MuxingRunnable(this, file));
+    thread.start();
+    Log.i(TAG, "TRIGGER -> start recording " + (tail - head) + " buffered samples");
+    return true;
+  }
+
+  /**
+   * Stops recording after the access units added so far are muxed
+   */
+  public synchronized void stop() {
+    if (recording) {
+      stopSequence = tail;
+      notifyAll();
+    }
+  }
+
+  public synchronized boolean isRecording() {
+    return recording;
+  }
+
+  /**
+   * @return the access units dropped since the ring was full while recording
+   */
+  public long getDroppedSamples() {
+    return droppedSamples;
+  }
+
+  /**
+   * @return duration of the ring
+   */
+  public synchronized long getBufferedDurationUs() {
+    return tail == head ? 0L : latestUs - presentationTimesUs[index(head)];
+  }
+
+  /*--------------------------------
+   * Private functions
+   *-------------------------------*/
+
+  private synchronized void add(int track, byte[] content, int contentLength,
+      long presentationTimeUs) {
+    MediaFormat mediaFormat = track == TRACK_VIDEO ? videoMediaFormat : audioMediaFormat;
+    if (mediaFormat == null || contentLength <= 0) {
+      return;
+    }
+
+    /* the video decides the GOPs, the audio only stream is cut anywhere */
+    int gopTrack = videoMediaFormat != null ? TRACK_VIDEO : TRACK_AUDIO;
+    boolean keyFrame = track == TRACK_AUDIO
+        || AnnexB.isKeyFrame(videoFormat, content, 0, contentLength);
+    if (track == gopTrack) {
+      if (waitKeyFrame && !keyFrame) {
+        return;
+      }
+    } else if (tail == head) {
+      /* the ring always starts from a key frame */
+      return;
+    }
+
+    int offset;
+    while ((offset = allocate(contentLength)) < 0) {
+      if (evict(recording ? read : tail)) {
+        continue;
+      }
+
+      if (recording) {
+        drop(track);
+        return;
+      }
+
+      /* not even one GOP fits, starts over from this key frame, or waits for the next one */
+      clear();
+      if (track != gopTrack || !keyFrame || (offset = allocate(contentLength)) < 0) {
+        return;
+      }
+
+      break;
+    }
+
+    if (track == gopTrack) {
+      waitKeyFrame = false;
+      latestUs = presentationTimeUs;
+    }
+
+    int index = index(tail);
+    System.arraycopy(content, 0, data, offset, contentLength);
+    offsets[index] = offset;
+    sizes[index] = contentLength;
+    presentationTimesUs[index] = presentationTimeUs;
+    tracks[index] = (byte) track;
+    keyFrames[index] = keyFrame && track == gopTrack;
+    maxSampleSize = Math.max(maxSampleSize, contentLength);
+    tail++;
+    /* keeps the pre-event duration from the key frame before it */
+    long limit = recording ? read : tail;
+    long next;
+    while ((next = findKeyFrame(head + 1, limit)) >= 0
+        && presentationTimesUs[index(next)] <= latestUs - preEventUs) {
+      head = next;
+    }
+
+    if (recording) {
+      if (stopSequence == NO_STOP && latestUs >= stopUs) {
+        stopSequence = tail;
+      }
+
+      notifyAll();
+    }
+  }
+
+  private void drop(int track) {
+    droppedSamples++;
+    if (track == TRACK_VIDEO) {
+      /* the following frames can not be decoded without the dropped one */
+      waitKeyFrame = true;
+    }
+  }
+
+  /**
+   * @return offset of the space in the data, -1 if not enough
+   */
+  private int allocate(int size) {
+    if (size > data.length || tail - head >= MAX_SAMPLES) {
+      return -1;
+    }
+
+    if (tail == head) {
+      return 0;
+    }
+
+    int last = index(tail - 1);
+    int start = offsets[index(head)];
+    int end = offsets[last] + sizes[last];
+    if (end > start) {
+      if (data.length - end >= size) {
+        return end;
+      }
+
+      /* wraps, the tail of the data is wasted */
+      return size <= start ? 0 : -1;
+    }
+
+    return start - end >= size ? end : -1;
+  }
+
+  /**
+   * Evicts the oldest GOP
+   *
+   * @param limit the last sequence the head can move to
+   * @return true if evicted
+   */
+  private boolean evict(long limit) {
+    long next = findKeyFrame(head + 1, limit);
+    if (next < 0) {
+      return false;
+    }
+
+    head = next;
+    return true;
+  }
+
+  /**
+   * @return sequence of the first key frame in [from, limit], -1 if not found
+   */
+  private long findKeyFrame(long from, long limit) {
+    for (long sequence = from; sequence <= limit && sequence < tail; sequence++) {
+      if (keyFrames[index(sequence)]) {
+        return sequence;
+      }
+    }
+
+    return -1L;
+  }
+
+  private void clear() {
+    head = tail;
+    read = tail;
+    waitKeyFrame = true;
+  }
+
+  private static int index(long sequence) {
+    return (int) (sequence % MAX_SAMPLES);
+  }
+
+  private static class MuxingRunnable implements Runnable {
+
+    private final StreamRecorder instance;
+    private final File file;
+    private final MediaCodec.BufferInfo bufferInfo = new MediaCodec.BufferInfo();
+
+    MuxingRunnable(StreamRecorder instance, File file) {
+      this.instance = instance;
+      this.file = file;
+    }
+
+    @Override public void run() {
+      RecordingListener listener = instance.listener;
+      if (listener != null) {
+        listener.onRecordingStart(file);
+      }
+
+      boolean succeeded = false;
+      boolean detached = false;
+      MediaMuxer muxer = null;
+      try {
+        muxer = new MediaMuxer(file.getAbsolutePath(),
+            MediaMuxer.OutputFormat.MUXER_OUTPUT_MPEG_4);
+        int[] trackIndices = new int[2];
+        synchronized (instance) {
+          if (instance.videoMediaFormat != null) {
+            trackIndices[TRACK_VIDEO] = muxer.addTrack(instance.videoMediaFormat);
+          }
+
+          if (instance.audioMediaFormat != null) {
+            trackIndices[TRACK_AUDIO] = muxer.addTrack(instance.audioMediaFormat);
+          }
+        }
+
+        muxer.start();
+        Log.i(TAG, "MUXER -> start, " + file);
+        ByteBuffer buffer = null;
+        int track;
+        while (true) {
+          synchronized (instance) {
+            while (instance.read == instance.tail && instance.stopSequence == NO_STOP) {
+              instance.wait();
+            }
+
+            if (instance.stopSequence != NO_STOP && instance.read >= instance.stopSequence) {
+              /* a trigger from now on starts a new recording */
+              instance.recording = false;
+              instance.stopSequence = NO_STOP;
+              detached = true;
+              break;
+            }
+
+            if (buffer == null || buffer.capacity() < instance.maxSampleSize) {
+              buffer = ByteBuffer.allocateDirect(instance.maxSampleSize);
+            }
+
+            /* copies out, so the muxer writes without holding the ring */
+            int index = index(instance.read);
+            buffer.clear();
+            buffer.put(instance.data, instance.offsets[index], instance.sizes[index]);
+            buffer.flip();
+            track = instance.tracks[index];
+            bufferInfo.set(0, instance.sizes[index], instance.presentationTimesUs[index],
+                instance.keyFrames[index] || track == TRACK_AUDIO
+                    ? MediaCodec.BUFFER_FLAG_SYNC_FRAME : 0);
+            instance.read++;
+          }
+
+          muxer.writeSampleData(trackIndices[track], buffer, bufferInfo);
+        }
+
+        muxer.stop();
+        succeeded = true;
+        Log.i(TAG, "MUXER -> stop");
+      } catch (IOException | IllegalStateException | IllegalArgumentException e) {
+        e.printStackTrace();
+        Log.i(TAG, "MUXER -> failed, " + e.getMessage());
+      } catch (InterruptedException e) {
+        Thread.currentThread().interrupt();
+      } finally {
+        if (muxer != null) {
+          try {
+            muxer.release();
+          } catch (IllegalStateException ignored) {
+          }
+        }
+
+        if (!detached) {
+          synchronized (instance) {
+            instance.recording = false;
+            instance.stopSequence = NO_STOP;
+          }
+        }
+
+        if (listener != null) {
+          listener.onRecordingStop(file, succeeded);
+        }
+      }
+    }
+  }
+}
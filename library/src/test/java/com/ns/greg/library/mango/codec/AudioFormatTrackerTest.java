@@ -0,0 +1,104 @@
+package com.ns.greg.library.mango.codec;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * @author gregho
+ * @since 2019/3/6
+ */
+public class AudioFormatTrackerTest {
+
+  private static final int LOOPS = 10_000;
+
+  private AudioFormatTracker tracker;
+
+  @Before public void setUp() {
+    tracker = new AudioFormatTracker();
+    tracker.reset(16000, 1);
+  }
+
+  @Test public void steadyFormat_neverNotifies() {
+    assertEquals(0, runDecodeLoop(16000, 1));
+  }
+
+  @Test public void changedFormat_notifiesOnce() {
+    assertEquals(1, runDecodeLoop(44100, 2));
+    assertEquals(44100, tracker.getSampleRate());
+    assertEquals(2, tracker.getChannelCount());
+  }
+
+  @Test public void everyChange_notifiesOnce() {
+    assertEquals(1, runDecodeLoop(8000, 1));
+    assertEquals(1, runDecodeLoop(8000, 2));
+    assertEquals(0, runDecodeLoop(8000, 2));
+  }
+
+  @Test public void firstOutputFormat_notifiesOnce() {
+    assertEquals(1, outputFormatChanged(16000, 1));
+    assertEquals(0, outputFormatChanged(16000, 1));
+  }
+
+  @Test public void reconfiguration_notifiesOnceWithTheRestartedCodec() {
+    outputFormatChanged(16000, 1);
+    assertEquals(1, runDecodeLoop(44100, 2));
+    assertEquals(0, runDecodeLoop(44100, 2));
+    assertEquals(1, runDecodeLoop(16000, 1));
+  }
+
+  @Test public void differentOutputFormat_isNotified() {
+    /* e.g. the implicit sbr of he-aac doubles the configured sample rate */
+    assertEquals(1, runDecodeLoop(22050, 1));
+    assertEquals(1, outputFormatChanged(44100, 1));
+  }
+
+  @Test public void reset_forgetsTheNotifiedFormat() {
+    outputFormatChanged(16000, 1);
+    tracker.reset(16000, 1);
+    assertEquals(1, outputFormatChanged(16000, 1));
+  }
+
+  @Test public void changeBackBeforeConsumed_isStillReported() {
+    assertTrue(tracker.update(48000, 2));
+    assertFalse(tracker.update(48000, 2));
+    tracker.update(16000, 1);
+    assertTrue(tracker.consumeChange());
+    assertFalse(tracker.consumeChange());
+  }
+
+  /**
+   * Simulates {@link AudioDecoder#decode} followed by {@link AudioDecoder#process} on every loop,
+   * a consumed change reconfigures the codec, which notifies, then the restarted codec reports
+   * its output format, which notifies as well unless it is the same
+   *
+   * @return the listener notifications
+   */
+  private int runDecodeLoop(int sampleRate, int channelCount) {
+    int notifications = 0;
+    for (int i = 0; i < LOOPS; i++) {
+      tracker.update(sampleRate, channelCount);
+      if (tracker.consumeChange()) {
+        if (tracker.shouldNotify(tracker.getSampleRate(), tracker.getChannelCount())) {
+          notifications++;
+        }
+
+        notifications += outputFormatChanged(tracker.getSampleRate(), tracker.getChannelCount());
+      }
+    }
+
+    return notifications;
+  }
+
+  /**
+   * Simulates the INFO_OUTPUT_FORMAT_CHANGED of {@link AudioDecoder#output}
+   *
+   * @return the listener notifications
+   */
+  private int outputFormatChanged(int sampleRate, int channelCount) {
+    return tracker.shouldNotify(sampleRate, channelCount) ? 1 : 0;
+  }
+}
@@ -0,0 +1,102 @@
+package com.ns.greg.library.mango.codec;
+
+import org.junit.Test;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * @author gregho
+ * @since 2019/3/13
+ */
+public class G711Test {
+
+  private static final int SAMPLE_RATE = 8000;
+  /* 20 ms packets */
+  private static final int PACKET_SAMPLES = 160;
+
+  @Test public void silence_encodesToStandardCodes() {
+    byte[] pcm = new byte[2];
+    byte[] code = new byte[1];
+    G711.encode(CodecFormat.AUDIO_G711_ALAW, pcm, 0, 2, code, 0);
+    assertEquals((byte) 0xD5, code[0]);
+    G711.encode(CodecFormat.AUDIO_G711_MLAW, pcm, 0, 2, code, 0);
+    assertEquals((byte) 0xFF, code[0]);
+  }
+
+  @Test public void everyCode_survivesRoundTrip() {
+    for (CodecFormat format : new CodecFormat[] {
+        CodecFormat.AUDIO_G711_ALAW, CodecFormat.AUDIO_G711_MLAW
+    }) {
+      byte[] pcm = new byte[2];
+      byte[] code = new byte[1];
+      for (int i = 0; i < 256; i++) {
+        G711.decode(format, new byte[] { (byte) i }, 0, 1, pcm, 0);
+        G711.encode(format, pcm, 0, 2, code, 0);
+        byte[] decoded = new byte[2];
+        G711.decode(format, code, 0, 1, decoded, 0);
+        /* mu-law has two codes for zero */
+        assertEquals(toSample(pcm, 0), toSample(decoded, 0));
+      }
+    }
+  }
+
+  @Test public void quantizationError_isWithinSegmentStep() {
+    for (CodecFormat format : new CodecFormat[] {
+        CodecFormat.AUDIO_G711_ALAW, CodecFormat.AUDIO_G711_MLAW
+    }) {
+      byte[] pcm = new byte[2];
+      byte[] code = new byte[1];
+      byte[] decoded = new byte[2];
+      for (int sample = -32768; sample <= 32767; sample += 7) {
+        pcm[0] = (byte) sample;
+        pcm[1] = (byte) (sample >> 8);
+        G711.encode(format, pcm, 0, 2, code, 0);
+        G711.decode(format, code, 0, 1, decoded, 0);
+        int error = Math.abs(sample - toSample(decoded, 0));
+        /* the largest segment step is 1024, half of it plus the clipping of mu-law */
+        assertTrue(format + " " + sample + " error " + error, error <= 1024);
+      }
+    }
+  }
+
+  /**
+   * Encodes and decodes 8 kHz packets for a while, and reports how many real-time streams one
+   * core can serve in both directions
+   */
+  @Test public void throughput_servesManyStreamsPerCore() {
+    byte[] pcm = new byte[PACKET_SAMPLES * 2];
+    for (int i = 0; i < PACKET_SAMPLES; i++) {
+      short sample = (short) (8000 * Math.sin(2 * Math.PI * 440 * i / SAMPLE_RATE));
+      pcm[2 * i] = (byte) sample;
+      pcm[2 * i + 1] = (byte) (sample >> 8);
+    }
+
+    byte[] code = new byte[PACKET_SAMPLES];
+    byte[] decoded = new byte[PACKET_SAMPLES * 2];
+    /* warm up */
+    run(pcm, code, decoded, 20_000);
+    int packets = 200_000;
+    long startNs = System.nanoTime();
+    run(pcm, code, decoded, packets);
+    long elapsedNs = System.nanoTime() - startNs;
+    double audioSeconds = packets * (double) PACKET_SAMPLES / SAMPLE_RATE;
+    double streams = audioSeconds / (elapsedNs / 1e9);
+    /* far below the expected, only guards against a regression to per-sample computation */
+    assertTrue(String.format("G.711 encode + decode: %.0f streams per core", streams),
+        streams > 100);
+  }
+
+  private static void run(byte[] pcm, byte[] code, byte[] decoded, int packets) {
+    for (int i = 0; i < packets; i++) {
+      CodecFormat format =
+          (i & 1) == 0 ? CodecFormat.AUDIO_G711_ALAW : CodecFormat.AUDIO_G711_MLAW;
+      G711.encode(format, pcm, 0, pcm.length, code, 0);
+      G711.decode(format, code, 0, code.length, decoded, 0);
+    }
+  }
+
+  private static int toSample(byte[] pcm, int offset) {
+    return (short) ((pcm[offset] & 0xFF) | (pcm[offset + 1] << 8));
+  }
+}
@@ -0,0 +1,148 @@
+package com.ns.greg.library.mango.rtp;
+
+import com.ns.greg.library.mango.codec.CodecFormat;
+import java.io.IOException;
+import java.net.DatagramPacket;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.DatagramChannel;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import static org.junit.Assert.assertEquals;
+
+/**
+ * @author gregho
+ * @since 2019/3/14
+ */
+public class RtpSenderTest {
+
+  private static final int SAMPLE_RATE = 16000;
+  /* 1024 samples at 16 kHz */
+  private static final long AAC_FRAME_US = 64_000L;
+
+  private DatagramChannel rtpSink;
+  private DatagramChannel rtcpSink;
+  private RtpSender sender;
+
+  @Before public void setUp() throws IOException {
+    rtpSink = openSink();
+    rtcpSink = openSink();
+  }
+
+  @After public void tearDown() throws IOException {
+    if (sender != null) {
+      sender.close();
+    }
+
+    rtpSink.close();
+    rtcpSink.close();
+  }
+
+  @Test public void aac_aggregatesAccessUnitsWithoutAdts() throws IOException {
+    sender = new RtpSender(CodecFormat.AUDIO_AAC_LC, SAMPLE_RATE);
+    sender.setMaxAusPerPacket(2);
+    sender.open(address(rtpSink), null);
+    for (int i = 0; i < 4; i++) {
+      sender.onEncode(adts(100 + i), 7 + 100 + i, 1_000_000L + i * AAC_FRAME_US);
+    }
+
+    ByteBuffer first = receive(rtpSink);
+    ByteBuffer second = receive(rtpSink);
+    assertEquals(0x80, first.get(0) & 0xFF);
+    /* marker and the dynamic payload type */
+    assertEquals(0x80 | 96, first.get(1) & 0xFF);
+    assertEquals((first.getShort(2) + 1) & 0xFFFF, second.getShort(2) & 0xFFFF);
+    assertEquals(2 * 1024, second.getInt(4) - first.getInt(4));
+    /* two AU-headers of 16 bits, 13-bit sizes */
+    assertEquals(32, first.getShort(12));
+    assertEquals(100, (first.getShort(14) & 0xFFFF) >> 3);
+    assertEquals(101, (first.getShort(16) & 0xFFFF) >> 3);
+    assertEquals(12 + 2 + 4 + 100 + 101, first.remaining());
+    /* the first access unit starts right after the AU-headers */
+    assertEquals(0, first.get(18));
+    assertEquals(2, sender.getPacketCount());
+  }
+
+  @Test public void aac_gapFlushesPendingAccessUnits() throws IOException {
+    sender = new RtpSender(CodecFormat.AUDIO_AAC_LC, SAMPLE_RATE);
+    sender.setMaxAusPerPacket(4);
+    sender.open(address(rtpSink), null);
+    sender.onEncode(adts(50), 57, 0L);
+    /* the silence suppression skipped a second */
+    sender.onEncode(adts(50), 57, 1_000_000L);
+    sender.flush();
+    ByteBuffer first = receive(rtpSink);
+    ByteBuffer second = receive(rtpSink);
+    assertEquals(16, first.getShort(12));
+    assertEquals(SAMPLE_RATE, second.getInt(4) - first.getInt(4));
+  }
+
+  @Test public void g711_sendsStaticPayloadTypeAndMarksTalkspurts() throws IOException {
+    sender = new RtpSender(CodecFormat.AUDIO_G711_MLAW, 8000);
+    sender.open(address(rtpSink), null);
+    byte[] codes = new byte[160];
+    sender.onEncode(codes, 160, 0L);
+    sender.onEncode(codes, 160, 20_000L);
+    sender.onEncode(codes, 160, 500_000L);
+    ByteBuffer first = receive(rtpSink);
+    ByteBuffer second = receive(rtpSink);
+    ByteBuffer third = receive(rtpSink);
+    assertEquals(0x80, first.get(1) & 0xFF);
+    assertEquals(0, second.get(1) & 0xFF);
+    assertEquals(0x80, third.get(1) & 0xFF);
+    assertEquals(160, second.getInt(4) - first.getInt(4));
+    assertEquals(12 + 160, second.remaining());
+  }
+
+  @Test public void rtcp_sendsSenderReportWithCname() throws IOException {
+    sender = new RtpSender(CodecFormat.AUDIO_G711_ALAW, 8000);
+    sender.setReportIntervalMs(0L);
+    sender.open(address(rtpSink), address(rtcpSink));
+    sender.onEncode(new byte[160], 160, 0L);
+    receive(rtpSink);
+    ByteBuffer report = receive(rtcpSink);
+    assertEquals(200, report.get(1) & 0xFF);
+    assertEquals(6, report.getShort(2));
+    assertEquals(sender.getSsrc(), report.getInt(4));
+    assertEquals(1, report.getInt(20));
+    assertEquals(160, report.getInt(24));
+    /* the source description follows */
+    assertEquals(202, report.get(29) & 0xFF);
+    assertEquals(0, report.remaining() % 4);
+  }
+
+  private static DatagramChannel openSink() throws IOException {
+    DatagramChannel channel = DatagramChannel.open();
+    channel.bind(new InetSocketAddress(InetAddress.getLoopbackAddress(), 0));
+    /* only the socket receive respects the timeout, a lost datagram fails instead of hanging */
+    channel.socket().setSoTimeout(1000);
+    return channel;
+  }
+
+  private static InetSocketAddress address(DatagramChannel channel) throws IOException {
+    return (InetSocketAddress) channel.getLocalAddress();
+  }
+
+  private static ByteBuffer receive(DatagramChannel channel) throws IOException {
+    DatagramPacket packet = new DatagramPacket(new byte[2048], 2048);
+    channel.socket().receive(packet);
+    return ByteBuffer.wrap(packet.getData(), 0, packet.getLength()).slice();
+  }
+
+  /**
+   * @return an adts frame of the payload size, the payload is 0, 1, 2...
+   */
+  private static byte[] adts(int payloadSize) {
+    byte[] frame = new byte[7 + payloadSize];
+    frame[0] = (byte) 0xFF;
+    frame[1] = (byte) 0xF1;
+    for (int i = 0; i < payloadSize; i++) {
+      frame[7 + i] = (byte) i;
+    }
+
+    return frame;
+  }
+}
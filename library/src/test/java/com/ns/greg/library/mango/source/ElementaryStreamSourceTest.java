@@ -0,0 +1,94 @@
+package com.ns.greg.library.mango.source;
+
+import com.ns.greg.library.mango.codec.CodecFormat;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.file.Files;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import static com.ns.greg.library.mango.source.KeyFrameIndexTest.accessUnit;
+import static com.ns.greg.library.mango.source.KeyFrameIndexTest.nal;
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+
+/**
+ * @author gregho
+ * @since 2019/3/18
+ */
+public class ElementaryStreamSourceTest {
+
+  private static final long FRAME_US = 40_000L;
+  private static final byte[] SPS = nal(4, 0x67, 8);
+  private static final byte[] PPS = nal(4, 0x68, 3);
+
+  private File directory;
+  private ElementaryStreamSource source;
+
+  @Before public void setUp() throws IOException {
+    directory = Files.createTempDirectory("es").toFile();
+    File stream = new File(directory, "stream.h264");
+    /* 3 seconds of 25 fps, the parameter sets are written with the key frames at 0 s and 2 s */
+    try (FileOutputStream output = new FileOutputStream(stream)) {
+      for (int i = 0; i < 75; i++) {
+        output.write(accessUnit(i, i % 25 == 0, i % 50 == 0));
+      }
+    }
+
+    source = new ElementaryStreamSource(stream, CodecFormat.VIDEO_AVC, FRAME_US);
+    source.open();
+  }
+
+  @After public void tearDown() {
+    source.close();
+    File[] files = directory.listFiles();
+    if (files != null) {
+      for (File file : files) {
+        file.delete();
+      }
+    }
+
+    directory.delete();
+  }
+
+  @Test public void seekTo_primesAKeyFrameWithoutParameterSets() throws IOException {
+    assertEquals(1_000_000L, source.seekTo(1_500_000L));
+    assertArrayEquals(concat(SPS, PPS, accessUnit(25, true, false)), source.readAccessUnit());
+    assertEquals(1_000_000L, source.getPresentationTimeUs());
+    /* only the first access unit is primed */
+    assertArrayEquals(accessUnit(26, false, false), source.readAccessUnit());
+    assertEquals(1_040_000L, source.getPresentationTimeUs());
+  }
+
+  @Test public void seekTo_readsTheParameterSetsWrittenWithTheKeyFrame() throws IOException {
+    assertEquals(2_000_000L, source.seekTo(2_500_000L));
+    assertArrayEquals(accessUnit(50, true, true), source.readAccessUnit());
+    assertEquals(0L, source.seekTo(0L));
+    assertArrayEquals(accessUnit(0, true, true), source.readAccessUnit());
+    /* back to a key frame without them */
+    assertEquals(1_000_000L, source.seekTo(1_000_000L));
+    assertArrayEquals(concat(SPS, PPS, accessUnit(25, true, false)), source.readAccessUnit());
+  }
+
+  @Test public void readAccessUnit_endsAtTheEndOfTheFile() throws IOException {
+    assertEquals(2_000_000L, source.seekTo(Long.MAX_VALUE));
+    for (int i = 50; i < 75; i++) {
+      assertArrayEquals(accessUnit(i, i % 25 == 0, i % 50 == 0), source.readAccessUnit());
+    }
+
+    assertNull(source.readAccessUnit());
+  }
+
+  private static byte[] concat(byte[]... arrays) {
+    ByteArrayOutputStream output = new ByteArrayOutputStream();
+    for (byte[] array : arrays) {
+      output.write(array, 0, array.length);
+    }
+
+    return output.toByteArray();
+  }
+}
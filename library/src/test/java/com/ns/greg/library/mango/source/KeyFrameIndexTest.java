@@ -0,0 +1,206 @@
+package com.ns.greg.library.mango.source;
+
+import com.ns.greg.library.mango.codec.AnnexB;
+import com.ns.greg.library.mango.codec.CodecFormat;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.file.Files;
+import java.util.Arrays;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+
+/**
+ * @author gregho
+ * @since 2019/3/18
+ */
+public class KeyFrameIndexTest {
+
+  /* the scan buffer size */
+  private static final int BOUNDARY = 1024 * 1024;
+  private static final long FRAME_US = 40_000L;
+  private static final byte[] SPS = nal(4, 0x67, 8);
+  private static final byte[] PPS = nal(4, 0x68, 3);
+  private static final byte[] IDR = nal(4, 0x65, 40);
+
+  private File directory;
+  private File stream;
+
+  @Before public void setUp() throws IOException {
+    directory = Files.createTempDirectory("kfi").toFile();
+    stream = new File(directory, "stream.h264");
+  }
+
+  @After public void tearDown() {
+    File[] files = directory.listFiles();
+    if (files != null) {
+      for (File file : files) {
+        file.delete();
+      }
+    }
+
+    directory.delete();
+  }
+
+  @Test public void scan_findsStartCodesAcrossTheBufferBoundary() throws IOException {
+    for (int codeLength = 3; codeLength <= 4; codeLength++) {
+      /* from before the overlap of the buffers to after the end of the first one */
+      for (int position = BOUNDARY - 16; position <= BOUNDARY + 4; position++) {
+        byte[] data = new byte[BOUNDARY + 256];
+        Arrays.fill(data, (byte) 0x55);
+        int offset = put(data, 0, SPS);
+        offset = put(data, offset, PPS);
+        put(data, offset, IDR);
+        byte[] keyFrame = nal(codeLength, 0x65, 16);
+        put(data, position, keyFrame);
+        write(data);
+
+        String at = codeLength + " bytes start code at " + (position - BOUNDARY);
+        KeyFrameIndex index = KeyFrameIndex.scan(stream, CodecFormat.VIDEO_AVC, FRAME_US);
+        assertEquals(at, 4, index.size());
+        assertEquals(at, SPS.length + PPS.length, index.getOffset(2));
+        assertEquals(at, position, index.getOffset(3));
+        assertEquals(at, AnnexB.AVC_IDR, index.getNalType(3));
+        /* the key frame is the second picture */
+        assertEquals(at, FRAME_US, index.getPresentationTimeUs(3));
+      }
+    }
+  }
+
+  @Test public void scan_matchesTheIndexBuiltWhileWriting() throws IOException {
+    KeyFrameIndex written = new KeyFrameIndex(CodecFormat.VIDEO_AVC);
+    ByteArrayOutputStream output = new ByteArrayOutputStream();
+    /* over a few scan buffers */
+    for (int i = 0; output.size() < 3 * BOUNDARY; i++) {
+      byte[] accessUnit = accessUnit(i, i % 25 == 0, i % 50 == 0);
+      written.add(accessUnit, 0, accessUnit.length, output.size(), i * FRAME_US);
+      output.write(accessUnit);
+    }
+
+    write(output.toByteArray());
+    KeyFrameIndex scanned = KeyFrameIndex.scan(stream, CodecFormat.VIDEO_AVC, FRAME_US);
+    assertEquals(written.size(), scanned.size());
+    for (int i = 0; i < written.size(); i++) {
+      assertEquals("offset of " + i, written.getOffset(i), scanned.getOffset(i));
+      assertEquals("time of " + i, written.getPresentationTimeUs(i),
+          scanned.getPresentationTimeUs(i));
+      assertEquals("type of " + i, written.getNalType(i), scanned.getNalType(i));
+    }
+  }
+
+  @Test public void sidecar_roundTripsAndIsStaleOnceTheStreamChanges() throws IOException {
+    assertNull(KeyFrameIndex.load(stream, CodecFormat.VIDEO_AVC));
+    KeyFrameIndex index = writeGops();
+    index.save(stream);
+    KeyFrameIndex loaded = KeyFrameIndex.load(stream, CodecFormat.VIDEO_AVC);
+    assertNotNull(loaded);
+    assertEquals(index.size(), loaded.size());
+    for (int i = 0; i < index.size(); i++) {
+      assertEquals(index.getOffset(i), loaded.getOffset(i));
+      assertEquals(index.getPresentationTimeUs(i), loaded.getPresentationTimeUs(i));
+      assertEquals(index.getNalType(i), loaded.getNalType(i));
+    }
+
+    /* a truncated sidecar is broken */
+    File sidecar = KeyFrameIndex.getSidecar(stream);
+    try (RandomAccessFile file = new RandomAccessFile(sidecar, "rw")) {
+      file.setLength(file.length() - 1);
+    }
+
+    assertNull(KeyFrameIndex.load(stream, CodecFormat.VIDEO_AVC));
+    index.save(stream);
+    assertNotNull(KeyFrameIndex.load(stream, CodecFormat.VIDEO_AVC));
+    /* the stream is appended after the index is saved */
+    try (FileOutputStream output = new FileOutputStream(stream, true)) {
+      output.write(IDR);
+    }
+
+    assertNull(KeyFrameIndex.load(stream, CodecFormat.VIDEO_AVC));
+  }
+
+  @Test public void findKeyFrame_andTheParameterSetsInEffect() throws IOException {
+    KeyFrameIndex index = writeGops();
+    /* sps, pps and the key frame at 0 s; the key frame at 1 s; new ones at 2 s */
+    assertEquals(7, index.size());
+    assertEquals(-1, new KeyFrameIndex(CodecFormat.VIDEO_AVC).findKeyFrame(0L));
+    assertEquals(2, index.findKeyFrame(-1L));
+    assertEquals(2, index.findKeyFrame(0L));
+    assertEquals(2, index.findKeyFrame(999_999L));
+    assertEquals(3, index.findKeyFrame(1_000_000L));
+    assertEquals(3, index.findKeyFrame(1_999_999L));
+    assertEquals(6, index.findKeyFrame(2_000_000L));
+    assertEquals(6, index.findKeyFrame(Long.MAX_VALUE));
+
+    assertEquals(0, index.findParameterSet(3, AnnexB.AVC_SPS));
+    assertEquals(1, index.findParameterSet(3, AnnexB.AVC_PPS));
+    assertEquals(4, index.findParameterSet(6, AnnexB.AVC_SPS));
+    assertEquals(5, index.findParameterSet(6, AnnexB.AVC_PPS));
+    assertEquals(-1, index.findParameterSet(2, AnnexB.AVC_IDR));
+  }
+
+  /**
+   * Writes 3 seconds of 25 fps with a key frame per second, the parameter sets are written with
+   * the first and the third key frame only
+   */
+  private KeyFrameIndex writeGops() throws IOException {
+    KeyFrameIndex index = new KeyFrameIndex(CodecFormat.VIDEO_AVC);
+    ByteArrayOutputStream output = new ByteArrayOutputStream();
+    for (int i = 0; i < 75; i++) {
+      byte[] accessUnit = accessUnit(i, i % 25 == 0, i % 50 == 0);
+      index.add(accessUnit, 0, accessUnit.length, output.size(), i * FRAME_US);
+      output.write(accessUnit);
+    }
+
+    write(output.toByteArray());
+    return index;
+  }
+
+  private void write(byte[] data) throws IOException {
+    try (FileOutputStream output = new FileOutputStream(stream)) {
+      output.write(data);
+    }
+  }
+
+  /**
+   * @return an access unit of two slices, led by the parameter sets if asked
+   */
+  static byte[] accessUnit(int index, boolean keyFrame, boolean parameterSets) {
+    ByteArrayOutputStream output = new ByteArrayOutputStream();
+    if (parameterSets) {
+      output.write(SPS, 0, SPS.length);
+      output.write(PPS, 0, PPS.length);
+    }
+
+    byte[] first = nal(index % 2 == 0 ? 4 : 3, keyFrame ? 0x65 : 0x41, 100 + index % 17);
+    byte[] second = nal(3, keyFrame ? 0x65 : 0x41, 50 + index % 7);
+    /* first_mb_in_slice of the second slice is not 0 */
+    second[4] = 0x08;
+    output.write(first, 0, first.length);
+    output.write(second, 0, second.length);
+    return output.toByteArray();
+  }
+
+  /**
+   * @return a nal unit of the first slice of a picture when it is a coded slice
+   */
+  static byte[] nal(int codeLength, int header, int size) {
+    byte[] nal = new byte[codeLength + 1 + size];
+    nal[codeLength - 1] = 1;
+    nal[codeLength] = (byte) header;
+    Arrays.fill(nal, codeLength + 1, nal.length, (byte) 0x55);
+    nal[codeLength + 1] = (byte) 0x88;
+    return nal;
+  }
+
+  private static int put(byte[] data, int offset, byte[] nal) {
+    System.arraycopy(nal, 0, data, offset, nal.length);
+    return offset + nal.length;
+  }
+}
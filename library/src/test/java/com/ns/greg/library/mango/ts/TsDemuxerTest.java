@@ -0,0 +1,281 @@
+package com.ns.greg.library.mango.ts;
+
+import com.ns.greg.library.mango.codec.CodecFormat;
+import java.io.ByteArrayOutputStream;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import org.junit.Before;
+import org.junit.Test;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * @author gregho
+ * @since 2019/3/20
+ */
+public class TsDemuxerTest {
+
+  private static final int PMT_PID = 0x100;
+  private static final int VIDEO_PID = 0x101;
+  private static final int AUDIO_PID = 0x102;
+  private static final byte[] IDR = {
+      0, 0, 0, 1, 0x67, 0x42, 0, 0x1F, 0, 0, 0, 1, 0x68, (byte) 0xCE, 0, 0, 1, 0x65, (byte) 0x88
+  };
+
+  private final int[] continuityCounters = new int[0x2000];
+  private final List<Object[]> units = new ArrayList<>();
+  private final List<Integer> losses = new ArrayList<>();
+  private ByteArrayOutputStream stream;
+  private TsDemuxer demuxer;
+
+  @Before public void setUp() {
+    stream = new ByteArrayOutputStream();
+    demuxer = new TsDemuxer();
+    demuxer.setListener(new TsDemuxer.Listener() {
+      @Override public void onVideo(CodecFormat codecFormat, byte[] data, int offset, int length,
+          long presentationTimeUs, boolean keyFrame) {
+        units.add(new Object[] {
+            Arrays.copyOfRange(data, offset, offset + length), presentationTimeUs, keyFrame
+        });
+      }
+
+      @Override public void onAudio(CodecFormat codecFormat, byte[] data, int offset, int length,
+          int sampleRate, int channelCount, long presentationTimeUs) {
+        units.add(new Object[] {
+            Arrays.copyOfRange(data, offset, offset + length), presentationTimeUs, sampleRate,
+            channelCount
+        });
+      }
+
+      @Override public void onDiscontinuity(boolean video, int lostPackets) {
+        losses.add(lostPackets);
+      }
+    });
+  }
+
+  @Test public void video_reassemblesPesAcrossPacketsInDirectBuffers() {
+    writePsi();
+    byte[] large = new byte[1000];
+    large[0] = 0;
+    large[1] = 0;
+    large[2] = 1;
+    large[3] = 0x41;
+    for (int i = 4; i < large.length; i++) {
+      large[i] = (byte) (i | 0x10);
+    }
+
+    writePes(VIDEO_PID, 0xE0, IDR, 900_000L, true);
+    writePes(VIDEO_PID, 0xE0, large, 903_003L, false);
+    /* the last unbounded PES is ended by the next one */
+    writePes(VIDEO_PID, 0xE0, IDR, 906_006L, false);
+    feedDirect(stream.toByteArray());
+    assertEquals(2, units.size());
+    assertArrayEquals(IDR, (byte[]) units.get(0)[0]);
+    assertEquals(10_000_000L, units.get(0)[1]);
+    assertTrue((Boolean) units.get(0)[2]);
+    assertArrayEquals(large, (byte[]) units.get(1)[0]);
+    assertEquals(10_033_366L, units.get(1)[1]);
+    assertFalse((Boolean) units.get(1)[2]);
+    assertEquals(10_000_000L, demuxer.getLastPcrUs());
+  }
+
+  @Test public void audio_splitsAdtsFramesOfBoundedPes() {
+    writePsi();
+    ByteArrayOutputStream adts = new ByteArrayOutputStream();
+    for (int i = 0; i < 3; i++) {
+      byte[] frame = new byte[7 + 20 + i];
+      int length = frame.length;
+      frame[0] = (byte) 0xFF;
+      frame[1] = (byte) 0xF1;
+      /* AAC LC, 48 kHz (3), 2 channels */
+      frame[2] = (byte) ((1 << 6) | (3 << 2));
+      frame[3] = (byte) ((2 << 6) | (length >> 11));
+      frame[4] = (byte) (length >> 3);
+      frame[5] = (byte) ((length & 0x07) << 5 | 0x1F);
+      frame[6] = (byte) 0xFC;
+      Arrays.fill(frame, 7, length, (byte) (i + 1));
+      adts.write(frame, 0, length);
+    }
+
+    writePes(AUDIO_PID, 0xC0, adts.toByteArray(), 90_000L, false);
+    feedDirect(stream.toByteArray());
+    /* bounded, emitted without the next PES */
+    assertEquals(3, units.size());
+    for (int i = 0; i < 3; i++) {
+      byte[] payload = (byte[]) units.get(i)[0];
+      assertEquals(20 + i, payload.length);
+      assertEquals(i + 1, payload[0]);
+      assertEquals(1_000_000L + i * 1024 * 1_000_000L / 48000, units.get(i)[1]);
+      assertEquals(48000, units.get(i)[2]);
+      assertEquals(2, units.get(i)[3]);
+    }
+  }
+
+  @Test public void continuityGap_dropsThePesAndReportsTheLoss() {
+    writePsi();
+    byte[] large = new byte[600];
+    large[2] = 1;
+    large[3] = 0x41;
+    writePes(VIDEO_PID, 0xE0, IDR, 0L, false);
+    int start = stream.size();
+    writePes(VIDEO_PID, 0xE0, large, 3003L, false);
+    writePes(VIDEO_PID, 0xE0, IDR, 6006L, false);
+    writePes(VIDEO_PID, 0xE0, IDR, 9009L, false);
+    byte[] bytes = stream.toByteArray();
+    /* loses the second packet of the large PES */
+    byte[] lossy = new byte[bytes.length - TsDemuxer.PACKET_SIZE];
+    int lost = start + TsDemuxer.PACKET_SIZE;
+    System.arraycopy(bytes, 0, lossy, 0, lost);
+    System.arraycopy(bytes, lost + TsDemuxer.PACKET_SIZE, lossy, lost,
+        bytes.length - lost - TsDemuxer.PACKET_SIZE);
+    feedDirect(lossy);
+    assertEquals(Arrays.asList(1), losses);
+    assertEquals(1L, demuxer.getLostPackets());
+    assertEquals(1L, demuxer.getDroppedPes());
+    /* the first and the third, the last one waits for the next PES */
+    assertEquals(2, units.size());
+    assertEquals(0L, units.get(0)[1]);
+    assertEquals(66_733L, units.get(1)[1]);
+  }
+
+  @Test public void rtpDatagram_skipsHeaderAndResyncs() {
+    writePsi();
+    writePes(VIDEO_PID, 0xE0, IDR, 0L, false);
+    writePes(VIDEO_PID, 0xE0, IDR, 3003L, false);
+    byte[] packets = stream.toByteArray();
+    ByteBuffer datagram = ByteBuffer.allocateDirect(12 + packets.length);
+    /* version 2, MP2T payload type 33 */
+    datagram.put((byte) 0x80).put((byte) 33).putShort((short) 1).putInt(0).putInt(0);
+    datagram.put(packets);
+    datagram.flip();
+    demuxer.feedDatagram(datagram);
+    assertEquals(1, units.size());
+    assertEquals(0L, demuxer.getSyncLosses());
+    assertEquals(datagram.limit(), datagram.position());
+  }
+
+  @Test public void pts_isExtendedOverTheWrap() {
+    writePsi();
+    long wrap = 1L << 33;
+    writePes(VIDEO_PID, 0xE0, IDR, wrap - 3003L, false);
+    writePes(VIDEO_PID, 0xE0, IDR, 0L, false);
+    writePes(VIDEO_PID, 0xE0, IDR, 3003L, false);
+    feedDirect(stream.toByteArray());
+    assertEquals(2, units.size());
+    assertEquals(33_366L, (Long) units.get(1)[1] - (Long) units.get(0)[1]);
+  }
+
+  /*--------------------------------
+   * Muxing functions
+   *-------------------------------*/
+
+  private void feedDirect(byte[] bytes) {
+    TsPacketPool pool = new TsPacketPool(2);
+    ByteBuffer buffer = pool.acquire();
+    int offset = 0;
+    /* a partial packet is kept for the next read */
+    while (offset < bytes.length) {
+      int length = Math.min(buffer.remaining(), Math.min(1000, bytes.length - offset));
+      buffer.put(bytes, offset, length);
+      offset += length;
+      buffer.flip();
+      demuxer.feed(buffer);
+      buffer.compact();
+    }
+
+    pool.release(buffer);
+  }
+
+  private void writePsi() {
+    byte[] pat = {
+        0x00, (byte) 0xB0, 13, 0, 1, (byte) 0xC1, 0, 0, 0, 1, (byte) (0xE0 | (PMT_PID >> 8)),
+        (byte) PMT_PID, 0, 0, 0, 0
+    };
+    byte[] pmt = {
+        0x02, (byte) 0xB0, 23, 0, 1, (byte) 0xC1, 0, 0, (byte) (0xE0 | (VIDEO_PID >> 8)),
+        (byte) VIDEO_PID, (byte) 0xF0, 0, 0x1B, (byte) (0xE0 | (VIDEO_PID >> 8)), (byte) VIDEO_PID,
+        (byte) 0xF0, 0, 0x0F, (byte) (0xE0 | (AUDIO_PID >> 8)), (byte) AUDIO_PID, (byte) 0xF0, 0, 0,
+        0, 0, 0
+    };
+    writeSection(0, pat);
+    writeSection(PMT_PID, pmt);
+  }
+
+  private void writeSection(int pid, byte[] section) {
+    byte[] payload = new byte[1 + section.length];
+    System.arraycopy(section, 0, payload, 1, section.length);
+    writePackets(pid, payload, -1L);
+  }
+
+  private void writePes(int pid, int streamId, byte[] data, long pts, boolean pcr) {
+    int headerLength = 5;
+    int packetLength = streamId == 0xE0 ? 0 : 3 + headerLength + data.length;
+    byte[] pes = new byte[9 + headerLength + data.length];
+    pes[2] = 1;
+    pes[3] = (byte) streamId;
+    pes[4] = (byte) (packetLength >> 8);
+    pes[5] = (byte) packetLength;
+    pes[6] = (byte) 0x80;
+    pes[7] = (byte) 0x80;
+    pes[8] = (byte) headerLength;
+    pes[9] = (byte) (0x21 | ((pts >> 29) & 0x0E));
+    pes[10] = (byte) (pts >> 22);
+    pes[11] = (byte) (0x01 | ((pts >> 14) & 0xFE));
+    pes[12] = (byte) (pts >> 7);
+    pes[13] = (byte) (0x01 | ((pts << 1) & 0xFE));
+    System.arraycopy(data, 0, pes, 14, data.length);
+    writePackets(pid, pes, pcr ? pts : -1L);
+  }
+
+  private void writePackets(int pid, byte[] payload, long pcr) {
+    int offset = 0;
+    boolean first = true;
+    while (offset < payload.length) {
+      byte[] packet = new byte[TsDemuxer.PACKET_SIZE];
+      int adaptationLength = first && pcr >= 0 ? 7 : -1;
+      int room = TsDemuxer.PACKET_SIZE - 4 - (adaptationLength + 1);
+      int length = Math.min(room, payload.length - offset);
+      if (length < room) {
+        /* stuffing by the adaptation field */
+        adaptationLength = Math.max(adaptationLength, 0) + room - length
+            - (adaptationLength < 0 ? 1 : 0);
+      }
+
+      packet[0] = 0x47;
+      packet[1] = (byte) ((first ? 0x40 : 0) | (pid >> 8));
+      packet[2] = (byte) pid;
+      packet[3] = (byte) ((adaptationLength >= 0 ? 0x30 : 0x10) | continuityCounters[pid]);
+      continuityCounters[pid] = (continuityCounters[pid] + 1) & 0x0F;
+      int index = 4;
+      if (adaptationLength >= 0) {
+        packet[index++] = (byte) adaptationLength;
+        int end = index + adaptationLength;
+        if (adaptationLength > 0) {
+          packet[index++] = (byte) (first && pcr >= 0 ? 0x10 : 0);
+          if (first && pcr >= 0) {
+            packet[index++] = (byte) (pcr >> 25);
+            packet[index++] = (byte) (pcr >> 17);
+            packet[index++] = (byte) (pcr >> 9);
+            packet[index++] = (byte) (pcr >> 1);
+            packet[index++] = (byte) ((pcr << 7) | 0x7E);
+            packet[index++] = 0;
+          }
+        }
+
+        while (index < end) {
+          packet[index++] = (byte) 0xFF;
+        }
+      }
+
+      System.arraycopy(payload, offset, packet, index, length);
+      offset += length;
+      stream.write(packet, 0, packet.length);
+      first = false;
+    }
+  }
+}
@@ -0,0 +1,471 @@
+package com.ns.greg.library.mango.utils;
+
+import com.ns.greg.library.mango.codec.CodecFormat;
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+/**
+ * @author gregho
+ * @since 2019/3/16
+ * <p>
+ * Parses the box tree of the written output
+ */
+public class FragmentedMp4WriterTest {
+
+  static final byte[] CSD = new byte[] {
+      0, 0, 0, 1, 0x67, 0x42, 0, 0x1E, 9, 0, 0, 0, 1, 0x68, 4, 5
+  };
+  static final int SAMPLE_RATE = 16000;
+  private static final long FRAME_US = 33_333L;
+  private static final long AUDIO_FRAME_US = 1024 * 1_000_000L / SAMPLE_RATE;
+  private static final long START_US = 1_000_000L;
+  /* 1.5 seconds */
+  private static final int GOP = 45;
+  private static final int SYNC_SAMPLE_FLAGS = 0x02000000;
+  private static final int VIDEO_TRACK_ID = 1;
+  private static final int AUDIO_TRACK_ID = 2;
+  private static final List<String> CONTAINERS =
+      Arrays.asList("moov", "trak", "mdia", "minf", "dinf", "stbl", "mvex", "moof", "traf");
+
+  private File directory;
+  private FragmentedMp4Writer writer;
+  private final List<File> segments = new ArrayList<>();
+  private final List<Long> segmentStarts = new ArrayList<>();
+
+  @Before public void setUp() throws IOException {
+    directory = Files.createTempDirectory("fmp4").toFile();
+    writer = new FragmentedMp4Writer();
+    writer.setVideoFormat(CodecFormat.VIDEO_AVC, CSD, CSD.length, 640, 480);
+    writer.setAudioFormat(SAMPLE_RATE, 1);
+  }
+
+  @After public void tearDown() {
+    File[] files = directory.listFiles();
+    if (files != null) {
+      for (File file : files) {
+        file.delete();
+      }
+    }
+
+    directory.delete();
+  }
+
+  @Test public void boxes_tileTheFileAndTheirParents() throws IOException {
+    File file = new File(directory, "single.mp4");
+    writer.start(file);
+    writeStream(writer, 300);
+    writer.stop();
+    byte[] data = Files.readAllBytes(file.toPath());
+    List<Box> boxes = parse(data, 0, data.length);
+    assertEquals("ftyp", boxes.get(0).type);
+    assertEquals("moov", boxes.get(1).type);
+    assertTrue(boxes.size() > 4);
+    assertEquals(0, boxes.size() % 2);
+    for (int i = 2; i < boxes.size(); i += 2) {
+      assertEquals("moof", boxes.get(i).type);
+      assertEquals("mdat", boxes.get(i + 1).type);
+    }
+
+    Box moov = boxes.get(1);
+    assertEquals(2, moov.findAll("trak").size());
+    assertEquals(2, moov.find("mvex").findAll("trex").size());
+  }
+
+  @Test public void sampleEntries_describeTheCodecs() throws IOException {
+    File file = new File(directory, "entries.mp4");
+    writer.start(file);
+    writeStream(writer, 60);
+    writer.stop();
+    byte[] data = Files.readAllBytes(file.toPath());
+    Box moov = parse(data, 0, data.length).get(1);
+    Box avcC = moov.findAll("trak").get(0).find("mdia", "minf", "stbl", "stsd", "avc1", "avcC");
+    int p = avcC.start + 8;
+    assertEquals(1, data[p]);
+    /* profile, compatibility and level of the sps */
+    assertEquals(0x42, data[p + 1]);
+    assertEquals(0, data[p + 2]);
+    assertEquals(0x1E, data[p + 3]);
+    assertEquals(3, data[p + 4] & 0x03);
+    assertEquals(1, data[p + 5] & 0x1F);
+    assertEquals(5, readShort(data, p + 6));
+    assertEquals(0x67, data[p + 8]);
+    assertEquals(1, data[p + 13]);
+    assertEquals(3, readShort(data, p + 14));
+    assertEquals(0x68, data[p + 16]);
+    assertEquals(avcC.start + avcC.size, p + 19);
+
+    Box esds = moov.findAll("trak").get(1).find("mdia", "minf", "stbl", "stsd", "mp4a", "esds");
+    int es = esds.start + 12;
+    assertEquals(0x03, data[es]);
+    /* each descriptor covers the rest of its parent */
+    assertEquals(esds.start + esds.size, es + 2 + data[es + 1]);
+    int decoderConfig = es + 2 + 3;
+    assertEquals(0x04, data[decoderConfig]);
+    assertEquals(0x40, data[decoderConfig + 2]);
+    int specific = decoderConfig + 2 + 13;
+    assertEquals(0x05, data[specific]);
+    assertEquals(0x06, data[decoderConfig + 2 + data[decoderConfig + 1]]);
+    assertEquals(0x06, data[specific + 2 + data[specific + 1]]);
+  }
+
+  @Test public void trunDataOffsets_coverTheMdat() throws IOException {
+    File file = new File(directory, "offsets.mp4");
+    writer.start(file);
+    writeStream(writer, 300);
+    writer.stop();
+    byte[] data = Files.readAllBytes(file.toPath());
+    List<Box> boxes = parse(data, 0, data.length);
+    for (int i = 2; i < boxes.size(); i += 2) {
+      Box moof = boxes.get(i);
+      Box mdat = boxes.get(i + 1);
+      int position = mdat.start + 8;
+      for (Box traf : moof.findAll("traf")) {
+        Run run = new Run(data, traf);
+        assertEquals("data offset of fragment " + i, position, moof.start + run.dataOffset);
+        for (int j = 0; j < run.count; j++) {
+          if (run.trackId == VIDEO_TRACK_ID) {
+            /* a sample of length prefixed nal units */
+            int nal = position;
+            while (nal < position + run.sizes[j]) {
+              nal += 4 + readInt(data, nal);
+            }
+
+            assertEquals(position + run.sizes[j], nal);
+          }
+
+          position += run.sizes[j];
+        }
+      }
+
+      assertEquals(mdat.start + mdat.size, position);
+    }
+  }
+
+  @Test public void tfdt_continuesWithTheSummedDurations() throws IOException {
+    File file = new File(directory, "timeline.mp4");
+    writer.start(file);
+    writeStream(writer, 300);
+    writer.stop();
+    byte[] data = Files.readAllBytes(file.toPath());
+    List<Box> boxes = parse(data, 0, data.length);
+    long[] next = new long[] { -1L, -1L, -1L };
+    int[] fragments = new int[3];
+    for (int i = 2; i < boxes.size(); i += 2) {
+      for (Box traf : boxes.get(i).findAll("traf")) {
+        Run run = new Run(data, traf);
+        if (next[run.trackId] >= 0) {
+          assertEquals("tfdt of track " + run.trackId + " in fragment " + i, next[run.trackId],
+              run.decodeTime);
+        } else {
+          assertEquals(0L, run.decodeTime);
+        }
+
+        long duration = 0L;
+        for (int j = 0; j < run.count; j++) {
+          assertTrue(run.durations[j] > 0);
+          duration += run.durations[j];
+        }
+
+        next[run.trackId] = run.decodeTime + duration;
+        fragments[run.trackId]++;
+      }
+    }
+
+    assertTrue(fragments[VIDEO_TRACK_ID] > 2);
+    assertTrue(fragments[AUDIO_TRACK_ID] > 2);
+    /* ten seconds, within a frame */
+    assertEquals(10 * 90000L, next[VIDEO_TRACK_ID], 3000);
+    assertEquals(10L * SAMPLE_RATE, next[AUDIO_TRACK_ID], 1024);
+  }
+
+  @Test public void segmentRollover_startsOnSyncSample() throws IOException {
+    writer.start(new FragmentedMp4Writer.SegmentCallback() {
+      @Override public File onSegmentStart(int index, long presentationTimeUs) {
+        segmentStarts.add(presentationTimeUs);
+        File segment = new File(directory, "segment" + index + ".mp4");
+        segments.add(segment);
+        return segment;
+      }
+
+      @Override public void onSegmentFinish(File file, long presentationTimeUs, long durationUs,
+          long size) {
+        assertEquals(file.length(), size);
+      }
+    }, 2000L);
+    writeStream(writer, 300);
+    writer.stop();
+    assertTrue(segments.size() > 2);
+    for (int i = 0; i < segments.size(); i++) {
+      /* cut at the key frame after the segment duration */
+      assertEquals(0, (segmentStarts.get(i) - START_US) / FRAME_US % GOP);
+      byte[] data = Files.readAllBytes(segments.get(i).toPath());
+      List<Box> boxes = parse(data, 0, data.length);
+      assertEquals("ftyp", boxes.get(0).type);
+      assertEquals("moov", boxes.get(1).type);
+      Box traf = boxes.get(2).findAll("traf").get(0);
+      Run run = new Run(data, traf);
+      assertEquals(VIDEO_TRACK_ID, run.trackId);
+      assertEquals(0L, run.decodeTime);
+      assertEquals("first sample of segment " + i, SYNC_SAMPLE_FLAGS, run.flags[0]);
+      /* the first nal unit of the sample is an idr slice */
+      assertEquals(5, data[boxes.get(3).start + 8 + 4] & 0x1F);
+    }
+  }
+
+  @Test public void readDurationUs_countsTheCompleteFragments() throws IOException {
+    File file = new File(directory, "duration.mp4");
+    writer.start(file);
+    writeStream(writer, 300);
+    writer.stop();
+    byte[] data = Files.readAllBytes(file.toPath());
+    List<Box> boxes = parse(data, 0, data.length);
+    int last = boxes.size() - 2;
+    assertEquals(getEndUs(data, boxes, last), FragmentedMp4Writer.readDurationUs(file));
+    /* about ten seconds */
+    assertEquals(10_000_000L, FragmentedMp4Writer.readDurationUs(file), 100_000L);
+
+    /* cut in the middle of the last mdat */
+    try (RandomAccessFile output = new RandomAccessFile(file, "rw")) {
+      output.setLength(boxes.get(last + 1).start + 100);
+    }
+
+    assertEquals(getEndUs(data, boxes, last - 2), FragmentedMp4Writer.readDurationUs(file));
+    /* no fragment */
+    try (RandomAccessFile output = new RandomAccessFile(file, "rw")) {
+      output.setLength(boxes.get(2).start);
+    }
+
+    assertEquals(-1L, FragmentedMp4Writer.readDurationUs(file));
+  }
+
+  /**
+   * @return the latest end of the tracks up to the moof
+   */
+  private static long getEndUs(byte[] data, List<Box> boxes, int moof) {
+    long endUs = 0L;
+    for (int i = 2; i <= moof; i += 2) {
+      for (Box traf : boxes.get(i).findAll("traf")) {
+        Run run = new Run(data, traf);
+        long time = run.decodeTime;
+        for (int j = 0; j < run.count; j++) {
+          time += run.durations[j];
+        }
+
+        long timescale = run.trackId == VIDEO_TRACK_ID ? 90000L : SAMPLE_RATE;
+        endUs = Math.max(endUs, time * 1_000_000L / timescale);
+      }
+    }
+
+    return endUs;
+  }
+
+  /**
+   * Writes a 30 fps video of a key frame every {@link #GOP} frames, interleaved with the audio
+   */
+  static void writeStream(FragmentedMp4Writer writer, int frames) {
+    long audioUs = START_US;
+    int audioIndex = 0;
+    for (int i = 0; i < frames; i++) {
+      long videoUs = START_US + i * FRAME_US;
+      byte[] frame = i % GOP == 0 ? keyFrame(i) : frame(i);
+      assertTrue(writer.writeVideo(frame, frame.length, videoUs));
+      while (audioUs < videoUs + FRAME_US) {
+        byte[] adts = adts(40 + audioIndex % 7);
+        assertTrue(writer.writeAudio(adts, adts.length, audioUs));
+        audioIndex++;
+        audioUs = START_US + audioIndex * AUDIO_FRAME_US;
+      }
+    }
+  }
+
+  private static byte[] keyFrame(int index) {
+    byte[] slice = slice(0x65, 200 + index % 13);
+    byte[] frame = new byte[6 + CSD.length + slice.length];
+    /* an access unit delimiter, the parameter sets and the idr */
+    byte[] delimiter = new byte[] { 0, 0, 0, 1, 0x09, 0x10 };
+    System.arraycopy(delimiter, 0, frame, 0, delimiter.length);
+    System.arraycopy(CSD, 0, frame, delimiter.length, CSD.length);
+    System.arraycopy(slice, 0, frame, delimiter.length + CSD.length, slice.length);
+    return frame;
+  }
+
+  private static byte[] frame(int index) {
+    byte[] first = slice(0x41, 30 + index % 11);
+    byte[] second = slice(0x41, 20 + index % 5);
+    byte[] frame = Arrays.copyOf(first, first.length + second.length);
+    System.arraycopy(second, 0, frame, first.length, second.length);
+    return frame;
+  }
+
+  private static byte[] slice(int header, int size) {
+    byte[] slice = new byte[4 + size];
+    slice[3] = 1;
+    slice[4] = (byte) header;
+    Arrays.fill(slice, 5, slice.length, (byte) (size | 0x10));
+    return slice;
+  }
+
+  private static byte[] adts(int payload) {
+    int length = 7 + payload;
+    byte[] frame = new byte[length];
+    frame[0] = (byte) 0xFF;
+    frame[1] = (byte) 0xF1;
+    /* AAC LC, 16 kHz (8), 1 channel */
+    frame[2] = (byte) ((1 << 6) | (8 << 2));
+    frame[3] = (byte) ((1 << 6) | (length >> 11));
+    frame[4] = (byte) (length >> 3);
+    frame[5] = (byte) ((length & 0x07) << 5 | 0x1F);
+    frame[6] = (byte) 0xFC;
+    Arrays.fill(frame, 7, length, (byte) payload);
+    return frame;
+  }
+
+  /**
+   * Parses the boxes between start and end, which must be tiled by them
+   */
+  private static List<Box> parse(byte[] data, int start, int end) {
+    List<Box> boxes = new ArrayList<>();
+    int position = start;
+    while (position < end) {
+      assertTrue("box header at " + position, position + 8 <= end);
+      Box box = new Box(readType(data, position + 4), position, readInt(data, position));
+      assertTrue(box.type + " size " + box.size + " at " + position,
+          box.size >= 8 && position + box.size <= end);
+      int header = getContainerHeader(box.type);
+      if (header > 0) {
+        box.children.addAll(parse(data, position + header, position + box.size));
+      }
+
+      boxes.add(box);
+      position += box.size;
+    }
+
+    assertEquals(end, position);
+    return boxes;
+  }
+
+  /**
+   * @return the size before the child boxes, 0 if not a container
+   */
+  private static int getContainerHeader(String type) {
+    if (CONTAINERS.contains(type)) {
+      return 8;
+    }
+
+    switch (type) {
+      case "stsd":
+      case "dref":
+        /* full box and entry count */
+        return 16;
+      case "avc1":
+      case "hvc1":
+        /* visual sample entry */
+        return 86;
+      case "mp4a":
+        /* audio sample entry */
+        return 36;
+      default:
+        return 0;
+    }
+  }
+
+  private static int readInt(byte[] data, int position) {
+    return ByteBuffer.wrap(data, position, 4).getInt();
+  }
+
+  private static int readShort(byte[] data, int position) {
+    return ((data[position] & 0xFF) << 8) | (data[position + 1] & 0xFF);
+  }
+
+  private static String readType(byte[] data, int position) {
+    return new String(data, position, 4);
+  }
+
+  private static final class Box {
+
+    final String type;
+    final int start;
+    final int size;
+    final List<Box> children = new ArrayList<>();
+
+    Box(String type, int start, int size) {
+      this.type = type;
+      this.start = start;
+      this.size = size;
+    }
+
+    List<Box> findAll(String type) {
+      List<Box> found = new ArrayList<>();
+      for (Box child : children) {
+        if (child.type.equals(type)) {
+          found.add(child);
+        }
+      }
+
+      return found;
+    }
+
+    Box find(String... path) {
+      Box box = this;
+      for (String type : path) {
+        List<Box> found = box.findAll(type);
+        if (found.size() != 1) {
+          fail(type + " of " + box.type + " found " + found.size());
+        }
+
+        box = found.get(0);
+      }
+
+      return box;
+    }
+  }
+
+  /**
+   * The track fragment header, decode time and run of a traf
+   */
+  private static final class Run {
+
+    final int trackId;
+    final long decodeTime;
+    final int count;
+    final int dataOffset;
+    final int[] durations;
+    final int[] sizes;
+    final int[] flags;
+
+    Run(byte[] data, Box traf) {
+      Box tfhd = traf.find("tfhd");
+      trackId = readInt(data, tfhd.start + 12);
+      Box tfdt = traf.find("tfdt");
+      assertEquals(1, data[tfdt.start + 8]);
+      assertEquals(20, tfdt.size);
+      decodeTime = ByteBuffer.wrap(data, tfdt.start + 12, 8).getLong();
+      Box trun = traf.find("trun");
+      count = readInt(data, trun.start + 12);
+      dataOffset = readInt(data, trun.start + 16);
+      assertEquals(20 + 12 * count, trun.size);
+      durations = new int[count];
+      sizes = new int[count];
+      flags = new int[count];
+      for (int i = 0; i < count; i++) {
+        int entry = trun.start + 20 + 12 * i;
+        durations[i] = readInt(data, entry);
+        sizes[i] = readInt(data, entry + 4);
+        flags[i] = readInt(data, entry + 8);
+      }
+    }
+  }
+}
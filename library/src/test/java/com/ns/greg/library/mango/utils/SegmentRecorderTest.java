@@ -0,0 +1,121 @@
+package com.ns.greg.library.mango.utils;
+
+import com.ns.greg.library.mango.codec.CodecFormat;
+import com.ns.greg.library.mango.utils.SegmentRecorder.Segment;
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.file.Files;
+import java.util.List;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import static com.ns.greg.library.mango.utils.FragmentedMp4WriterTest.CSD;
+import static com.ns.greg.library.mango.utils.FragmentedMp4WriterTest.SAMPLE_RATE;
+import static com.ns.greg.library.mango.utils.FragmentedMp4WriterTest.writeStream;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+/**
+ * @author gregho
+ * @since 2019/3/17
+ */
+public class SegmentRecorderTest {
+
+  private static final long QUOTA_BYTES = 64L * 1024 * 1024;
+
+  private File directory;
+  private FragmentedMp4Writer writer;
+
+  @Before public void setUp() throws IOException {
+    directory = Files.createTempDirectory("segments").toFile();
+    writer = newWriter();
+  }
+
+  @After public void tearDown() {
+    File[] files = directory.listFiles();
+    if (files != null) {
+      for (File file : files) {
+        file.delete();
+      }
+    }
+
+    directory.delete();
+  }
+
+  @Test public void start_isRetriedAfterTheWriterRejectsIt() {
+    SegmentRecorder recorder = new SegmentRecorder(writer, directory, "cam", QUOTA_BYTES);
+    try {
+      recorder.start(0L, 0L);
+      fail("no segment limit");
+    } catch (IllegalArgumentException expected) {
+    }
+
+    recorder.start(2000L, 0L);
+    writeStream(writer, 150);
+    recorder.stop();
+    assertEquals(2, recorder.getSegments().size());
+  }
+
+  @Test public void currentSegment_isFoundUntilFinished() {
+    SegmentRecorder recorder = new SegmentRecorder(writer, directory, "cam", QUOTA_BYTES);
+    recorder.start(60_000L, 0L);
+    writeStream(writer, 30);
+    Segment current = recorder.getSegments().get(0);
+    assertFalse(current.isFinished());
+    assertEquals(current, recorder.findSegment(current.getStartTimeMs() + 60_000L));
+    recorder.stop();
+
+    Segment finished = recorder.getSegments().get(0);
+    assertTrue(finished.isFinished());
+    assertEquals(finished, recorder.findSegment(finished.getStartTimeMs()));
+    assertNull(recorder.findSegment(finished.getStartTimeMs() + finished.getDurationMs()));
+  }
+
+  @Test public void leftoverSegments_areFinishedWithTheirDuration() throws IOException {
+    SegmentRecorder previous = new SegmentRecorder(writer, directory, "cam", QUOTA_BYTES);
+    previous.start(2000L, 0L);
+    /* the newest one from 9 s is of two fragments */
+    writeStream(writer, 350);
+    previous.stop();
+    List<Segment> recorded = previous.getSegments();
+    Segment newest = recorded.get(recorded.size() - 1);
+
+    SegmentRecorder recorder = new SegmentRecorder(newWriter(), directory, "cam", QUOTA_BYTES);
+    List<Segment> segments = recorder.getSegments();
+    assertEquals(recorded.size(), segments.size());
+    for (int i = 0; i < segments.size(); i++) {
+      assertTrue(segments.get(i).isFinished());
+      assertEquals(recorded.get(i).getStartTimeMs(), segments.get(i).getStartTimeMs());
+    }
+
+    Segment leftover = segments.get(segments.size() - 1);
+    /* read to the end of the last sample, the finished one is to the start of it */
+    assertEquals(newest.getDurationMs(), leftover.getDurationMs(), 1024 * 1000 / SAMPLE_RATE);
+    long endMs = leftover.getStartTimeMs() + leftover.getDurationMs();
+    assertEquals(leftover.getFile(), recorder.findSegment(endMs - 1).getFile());
+    assertNull(recorder.findSegment(endMs + 1000L));
+
+    /* a recording not stopped properly, cut in the last fragment */
+    try (RandomAccessFile file = new RandomAccessFile(leftover.getFile(), "rw")) {
+      file.setLength(file.length() - 100);
+    }
+
+    leftover = new SegmentRecorder(newWriter(), directory, "cam", QUOTA_BYTES).getSegments()
+        .get(segments.size() - 1);
+    assertTrue(leftover.isFinished());
+    assertTrue(leftover.getDurationMs() > 0);
+    assertTrue(leftover.getDurationMs() < newest.getDurationMs());
+  }
+
+  private static FragmentedMp4Writer newWriter() {
+    FragmentedMp4Writer writer = new FragmentedMp4Writer();
+    writer.setVideoFormat(CodecFormat.VIDEO_AVC, CSD, CSD.length, 640, 480);
+    writer.setAudioFormat(SAMPLE_RATE, 1);
+    return writer;
+  }
+}